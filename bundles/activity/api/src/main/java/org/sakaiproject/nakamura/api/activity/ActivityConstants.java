@@ -56,6 +56,11 @@ public interface ActivityConstants {
    * The name for the big store where the original activities will be copied to.
    */
   public static final String ACTIVITY_FEED_NAME = "activityFeed";
+  /**
+   * Holds a single copy of the activities of an actor with too many contacts to deliver
+   * to each of them, contacts read it when their feed is searched.
+   */
+  public static final String ACTIVITY_OUTBOX_NAME = "activityOutbox";
 
   /**
    * JCR folder name for templates.
@@ -62,6 +62,18 @@ public class ActivityUtils {
         + ActivityConstants.ACTIVITY_FEED_NAME;
   }
 
+  /**
+   * Returns the path to the activity outbox for a user, which holds the activities of the
+   * user that were not delivered to each of their contacts.
+   *
+   * @param user
+   * @return
+   */
+  public static String getUserOutbox(String user) {
+    return LitePersonalUtils.getPrivatePath(user) + "/"
+        + ActivityConstants.ACTIVITY_OUTBOX_NAME;
+  }
+
   /**
    * Get the path from an activity id.
    *
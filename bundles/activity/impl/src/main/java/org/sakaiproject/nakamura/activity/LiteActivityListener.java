@@ -21,6 +21,7 @@ import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_ACT
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Maps;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
@@ -29,18 +30,27 @@ import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.activity.routing.ActivityOutboxRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.jcr.RepositoryException;
@@ -130,7 +140,11 @@ public class LiteActivityListener implements MessageListener {
   
         // Copy the activity items to each endpoint.
         for (ActivityRoute route : routes) {
-          deliverActivityToFeed(session, activity, route.getDestination());
+          if (route instanceof ActivityOutboxRoute) {
+            deliverActivityToOutbox(session, activity, route.getDestination());
+          } else {
+            deliverActivityToFeed(session, activity, route.getDestination());
+          }
         }
       } finally {
         try { 
@@ -180,4 +194,60 @@ public class LiteActivityListener implements MessageListener {
     contentManager.update(content);
   }
 
+  /**
+   * Delivers an activity once to the outbox of its actor. Instead of checking whether each
+   * contact may read the activity, the delivered copy is given the read access of the
+   * activity so that searches of the outbox only return it to those who may read it.
+   *
+   * @param session
+   *          The session that should be used to do the delivering.
+   * @param activity
+   *          The node that represents the activity.
+   * @param outboxPath
+   *          The path of the outbox.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  protected void deliverActivityToOutbox(Session session, Content activity,
+      String outboxPath) throws AccessDeniedException, StorageClientException {
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    if (!contentManager.exists(outboxPath)) {
+      // the outbox is in private space, contacts need to be able to find it.
+      accessControlManager.setAcl(Security.ZONE_CONTENT, outboxPath, new AclModification[] {
+          new AclModification(AclModification.denyKey(User.ANON_USER),
+              Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+          new AclModification(AclModification.grantKey(Group.EVERYONE),
+              Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+      contentManager.update(new Content(outboxPath, ImmutableMap.<String, Object> of(
+          JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE)));
+    }
+
+    int read = Permissions.CAN_READ.getPermission();
+    Map<String, AclModification> acl = Maps.newLinkedHashMap();
+    acl.put(AclModification.denyKey(User.ANON_USER), new AclModification(
+        AclModification.denyKey(User.ANON_USER), Permissions.ALL.getPermission(),
+        Operation.OP_REPLACE));
+    acl.put(AclModification.denyKey(Group.EVERYONE), new AclModification(
+        AclModification.denyKey(Group.EVERYONE), read, Operation.OP_REPLACE));
+    for (Entry<String, Object> ace : accessControlManager.getEffectiveAcl(
+        Security.ZONE_CONTENT, activity.getPath()).entrySet()) {
+      if (AclModification.getPrincipal(ace.getKey()) != null
+          && !acl.containsKey(ace.getKey())
+          && (StorageClientUtils.toInt(ace.getValue()) & read) == read) {
+        acl.put(ace.getKey(), new AclModification(ace.getKey(), read, Operation.OP_REPLACE));
+      }
+    }
+    if (acl.containsKey(AclModification.grantKey(Group.EVERYONE))) {
+      acl.remove(AclModification.denyKey(Group.EVERYONE));
+    }
+    // set the access before the copy exists so it is never indexed without it.
+    String deliveryPath = StorageClientUtils.newPath(outboxPath,
+        StorageClientUtils.getObjectName(activity.getPath()));
+    accessControlManager.setAcl(Security.ZONE_CONTENT, deliveryPath,
+        acl.values().toArray(new AclModification[acl.size()]));
+    deliverActivityToFeed(session, activity, outboxPath);
+  }
+
 }
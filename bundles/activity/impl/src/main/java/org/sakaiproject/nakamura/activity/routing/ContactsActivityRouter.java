@@ -17,9 +17,13 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.activity.AbstractActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
@@ -40,6 +44,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -51,15 +56,31 @@ import javax.jcr.security.Privilege;
 /**
  * This router will deliver an activity to the feed of all the contacts of the actor. It
  * will only deliver if the contact has READ access on the node where the activity was
- * performed on.
+ * performed on. Actors with more contacts than {@link #FANOUT_MAX} have the activity
+ * delivered once, to their outbox, which their contacts read along with their own feed.
  */
-@Component(immediate = true, enabled = true)
+@Component(immediate = true, enabled = true, metatype = true)
 @Service(value = ActivityRouter.class)
 public class ContactsActivityRouter implements ActivityRouter {
 
+  static final int DEFAULT_FANOUT_MAX = 100;
+  /**
+   * The largest number of contacts an activity is copied to.
+   */
+  @Property(intValue = DEFAULT_FANOUT_MAX)
+  static final String FANOUT_MAX = "contacts.fanout.max";
+
   @Reference
   protected ConnectionManager connectionManager;
 
+  private int fanoutMax = DEFAULT_FANOUT_MAX;
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> properties) {
+    fanoutMax = PropertiesUtil.toInteger(properties.get(FANOUT_MAX), DEFAULT_FANOUT_MAX);
+  }
+
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ContactsActivityRouter.class);
 
@@ -131,6 +152,11 @@ public class ContactsActivityRouter implements ActivityRouter {
       String actor = (String) activity.getProperty(ActivityConstants.PARAM_ACTOR_ID);
       List<String> connections = connectionManager.getConnectedUsers(adminSession, actor,
           ConnectionState.ACCEPTED);
+      if (connections != null && connections.size() > fanoutMax) {
+        // readers check access when they search the outbox, see LiteActivityListener.
+        routes.add(new ActivityOutboxRoute(ActivityUtils.getUserOutbox(actor)));
+        return;
+      }
       org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager accessControlManager = adminSession.getAccessControlManager();
       AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
       if (connections != null && connections.size() > 0) {
@@ -20,12 +20,23 @@ package org.sakaiproject.nakamura.activity.search;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchPropertyProvider;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.Map;
 
 @Component(label = "ActivitySearchPropertyProvider")
@@ -37,6 +48,17 @@ import java.util.Map;
 @Service
 public class ActivitySearchPropertyProvider implements SolrSearchPropertyProvider {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ActivitySearchPropertyProvider.class);
+
+  /**
+   * Most contact outboxes searched with a feed, each is a clause of the query.
+   */
+  static final int MAX_OUTBOXES = 500;
+
+  @Reference
+  protected ConnectionManager connectionManager;
+
   /**
    * {@inheritDoc}
    *
@@ -53,5 +75,49 @@ public class ActivitySearchPropertyProvider implements SolrSearchPropertyProvide
     // Encode the path
     path = ClientUtils.escapeQueryChars(path);
     propertiesMap.put("_myFeed", path);
+    propertiesMap.put("_contactOutboxes", getContactOutboxes(request, user));
+  }
+
+  /**
+   * Activities of contacts with many contacts of their own are kept in their outbox
+   * rather than copied to this feed, so they are merged into the feed when it is read.
+   * Most contacts have no outbox, but a clause for a path that does not exist matches
+   * nothing, so the outboxes are not looked up one by one.
+   *
+   * @return a query clause matching the outboxes of the user's contacts, or an empty
+   *         string if there are none.
+   */
+  private String getContactOutboxes(SlingHttpServletRequest request, String user) {
+    if (connectionManager == null || user == null || UserConstants.ANON_USERID.equals(user)) {
+      return "";
+    }
+    StringBuilder outboxes = new StringBuilder();
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      List<String> contacts = connectionManager.getConnectedUsers(session, user,
+          ConnectionState.ACCEPTED);
+      int count = 0;
+      for (String contact : contacts) {
+        if (count == MAX_OUTBOXES) {
+          LOGGER.warn("{} has more than {} contacts, ignoring the activity outboxes of the rest",
+              user, MAX_OUTBOXES);
+          break;
+        }
+        outboxes.append(count == 0 ? " OR path:(" : " OR ");
+        outboxes.append(ClientUtils.escapeQueryChars(ActivityUtils.getUserOutbox(contact)));
+        count++;
+      }
+      if (count > 0) {
+        outboxes.append(")");
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+      return "";
+    } catch (AccessDeniedException e) {
+      LOGGER.warn(e.getMessage(), e);
+      return "";
+    }
+    return outboxes.toString();
   }
 }
@@ -17,12 +17,21 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -55,4 +64,28 @@ public class ContactsActivityRouterTest extends AbstractActivityRouterTest {
     verify();
   }
 
+  @Test
+  public void testLargeAudienceGoesToOutbox() throws StorageClientException {
+    Session adminSession = createMock(Session.class);
+    ConnectionManager connectionManager = createNiceMock(ConnectionManager.class);
+    List<String> connections = new ArrayList<String>();
+    for (int i = 0; i < 3; i++) {
+      connections.add("contact" + i);
+    }
+    EasyMock.expect(connectionManager.getConnectedUsers(adminSession, user, ConnectionState.ACCEPTED)).andReturn(connections);
+
+    replay();
+    ContactsActivityRouter router = new ContactsActivityRouter();
+    router.connectionManager = connectionManager;
+    router.activate(ImmutableMap.of(ContactsActivityRouter.FANOUT_MAX, 2));
+    Content activityContent = new Content(path, ImmutableMap.<String, Object> of(
+        ActivityConstants.PARAM_ACTOR_ID, user));
+    router.route(activityContent, routes, adminSession);
+
+    assertEquals(1, routes.size());
+    assertTrue(routes.get(0) instanceof ActivityOutboxRoute);
+    assertEquals(ActivityUtils.getUserOutbox(user), routes.get(0).getDestination());
+    verify();
+  }
+
 }
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.batch;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceNotFoundException;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -27,6 +28,7 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.util.RequestInfo;
 import org.sakaiproject.nakamura.util.RequestWrapper;
@@ -35,7 +37,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
@@ -43,6 +44,11 @@ import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -55,6 +61,27 @@ public class BatchHelper {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  private final SlingRequestProcessor requestProcessor;
+  private final ExecutorService executor;
+
+  /**
+   * A helper that runs every batched request in turn on the calling thread.
+   */
+  public BatchHelper() {
+    this(null, null);
+  }
+
+  /**
+   * A helper that, when a batch contains only safe requests, runs them concurrently on the
+   * executor and streams the results back in the requested order.
+   *
+   * @param requestProcessor used to process the requests that run on the executor.
+   * @param executor the executor, or null to run every request on the calling thread.
+   */
+  public BatchHelper(SlingRequestProcessor requestProcessor, ExecutorService executor) {
+    this.requestProcessor = requestProcessor;
+    this.executor = executor;
+  }
 
   /**
    * Takes the original request and starts the batching.
@@ -94,43 +121,93 @@ public class BatchHelper {
       return;
     }
 
-    // Loop over the requests and handle each one.
+    // Anonymous users may only GET, refuse the batch before any of it is written out.
+    // TODO: This is a nasty hack to work around white listing of /system/batch POST
+    // requests. This should be removed when the UI has refactored itself not to use batch
+    // POSTs in place of GETs (see http spec for reasons by thats bad)
+    boolean allSafe = true;
+    for (RequestInfo r : batchedRequests) {
+      if (User.ANON_USER.equals(request.getRemoteUser()) && !"GET".equals(r.getMethod())) {
+        response.reset();
+        throw new ServletException("Anon Users may only perform GET operations");
+      }
+      allSafe = allSafe && r.isSafe();
+    }
+
+    // Loop over the requests and handle each one, streaming each result as it is ready.
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter write = new JSONWriter(response.getWriter());
       write.object();
       write.key("results");
       write.array();
 
-      for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+      if (executor != null && allSafe && batchedRequests.size() > 1) {
+        doParallelRequests(request, response, batchedRequests, write);
+      } else {
+        for (RequestInfo r : batchedRequests) {
+          write.value(doRequest(request, response, r));
+        }
       }
       write.endArray();
       write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
     } catch (JSONException e) {
       LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
     }
   }
 
-  private void doRequest(SlingHttpServletRequest request,
-      SlingHttpServletResponse response, RequestInfo requestInfo,
-      JSONWriter write) throws JSONException, ServletException {
-    // Look for a matching resource in the usual way. If one is found,
-    // the resource will also be embedded with any necessary RequestPathInfo.
-    // TODO: This is a nasty hack to work around white listing of /system/batch POST
-    // requests. This should be removed when the UI has refactored itself not to use batch
-    // POSTs in place of GETs (see http spec for reasons by thats bad)
-    if (User.ANON_USER.equals(request.getRemoteUser())) {
-      if (!"GET".equals(requestInfo.getMethod())) {
-        response.reset();
-        throw new ServletException("Anon Users may only perform GET operations");
+  /**
+   * Run the requests concurrently, each with its own resource resolver, writing the results
+   * out in the order they were requested.
+   */
+  private void doParallelRequests(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests, JSONWriter write)
+      throws JSONException {
+    List<Future<JSONObject>> results = new ArrayList<Future<JSONObject>>();
+    for (RequestInfo r : batchedRequests) {
+      try {
+        ResourceResolver resourceResolver = request.getResourceResolver().clone(null);
+        try {
+          results.add(executor.submit(new DetachedRequest(request, response, r,
+              resourceResolver)));
+        } catch (RejectedExecutionException e) {
+          resourceResolver.close();
+          results.add(null);
+        }
+      } catch (LoginException e) {
+        LOGGER.warn("Unable to clone the resource resolver for {} ", r.getUrl());
+        results.add(null);
+      }
+    }
+    for (int i = 0; i < results.size(); i++) {
+      RequestInfo requestInfo = batchedRequests.get(i);
+      Future<JSONObject> result = results.get(i);
+      if (result == null) {
+        write.value(failedRequest(requestInfo));
+        continue;
+      }
+      try {
+        write.value(result.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        write.value(failedRequest(requestInfo));
+      } catch (ExecutionException e) {
+        LOGGER.warn("Batched request to {} failed: {}", requestInfo.getUrl(), e.getCause());
+        write.value(failedRequest(requestInfo));
       }
     }
+  }
+
+  private JSONObject doRequest(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, RequestInfo requestInfo)
+      throws JSONException {
+    // Look for a matching resource in the usual way. If one is found,
+    // the resource will also be embedded with any necessary RequestPathInfo.
     String requestPath = requestInfo.getUrl();
     ResourceResolver resourceResolver = request.getResourceResolver();
     Resource resource = resourceResolver.resolve(request, requestPath);
@@ -155,53 +232,85 @@ public class BatchHelper {
       } catch (SlingException e) {
         responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
-      // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      // Capture the response (status, headers, body) for the client.
+      return toJSON(responseWrapper, requestInfo);
     } catch (ServletException e) {
-      writeFailedRequest(write, requestInfo);
+      return failedRequest(requestInfo);
     } catch (IOException e) {
-      writeFailedRequest(write, requestInfo);
+      return failedRequest(requestInfo);
     }
 
   }
 
-  private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestInfo requestData) throws JSONException {
+  private JSONObject toJSON(ResponseWrapper responseWrapper, RequestInfo requestData)
+      throws JSONException {
     try {
       String body = responseWrapper.getDataAsString();
-      write.object();
-      write.key("url");
-      write.value(requestData.getUrl());
-      write.key("success");
-      write.value(true);
-      write.key("body");
-      write.value(body);
-      write.key("status");
-      write.value(responseWrapper.getResponseStatus());
-      write.key("headers");
-      write.object();
-      Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
-      Enumeration<String> keys = headers.keys();
+      JSONObject result = new JSONObject();
+      result.put("url", requestData.getUrl());
+      result.put("success", true);
+      result.put("body", body);
+      result.put("status", responseWrapper.getResponseStatus());
+      JSONObject headers = new JSONObject();
+      Dictionary<String, String> responseHeaders = responseWrapper.getResponseHeaders();
+      Enumeration<String> keys = responseHeaders.keys();
       while (keys.hasMoreElements()) {
         String k = keys.nextElement();
-        write.key(k);
-        write.value(headers.get(k));
+        headers.put(k, responseHeaders.get(k));
       }
-      write.endObject();
-      write.endObject();
+      result.put("headers", headers);
+      return result;
     } catch (UnsupportedEncodingException e) {
-      writeFailedRequest(write, requestData);
+      return failedRequest(requestData);
     }
   }
 
-  private void writeFailedRequest(JSONWriter write, RequestInfo requestData)
+  private JSONObject failedRequest(RequestInfo requestData)
       throws JSONException {
-    write.object();
-    write.key("url");
-    write.value(requestData.getUrl());
-    write.key("success");
-    write.value(false);
-    write.endObject();
+    JSONObject result = new JSONObject();
+    result.put("url", requestData.getUrl());
+    result.put("success", false);
+    return result;
+  }
+
+  /**
+   * A safe request processed off the calling thread through the Sling request processor, so
+   * that it does not share the (single threaded) dispatch state of the batch request.
+   */
+  private final class DetachedRequest implements Callable<JSONObject> {
+
+    private final SlingHttpServletRequest request;
+    private final SlingHttpServletResponse response;
+    private final RequestInfo requestInfo;
+    private final ResourceResolver resourceResolver;
+
+    private DetachedRequest(SlingHttpServletRequest request,
+        SlingHttpServletResponse response, RequestInfo requestInfo,
+        ResourceResolver resourceResolver) {
+      this.request = request;
+      this.response = response;
+      this.requestInfo = requestInfo;
+      this.resourceResolver = resourceResolver;
+    }
+
+    public JSONObject call() throws Exception {
+      try {
+        DetachedRequestWrapper requestWrapper = new DetachedRequestWrapper(request,
+            requestInfo);
+        ResponseWrapper responseWrapper = new ResponseWrapper(response);
+        LOGGER.debug("Processing request path='{}' concurrently", requestInfo.getUrl());
+        try {
+          requestProcessor.processRequest(requestWrapper, responseWrapper, resourceResolver);
+        } catch (ServletException e) {
+          return failedRequest(requestInfo);
+        } catch (IOException e) {
+          return failedRequest(requestInfo);
+        }
+        return toJSON(responseWrapper, requestInfo);
+      } finally {
+        resourceResolver.close();
+      }
+    }
   }
 
 }
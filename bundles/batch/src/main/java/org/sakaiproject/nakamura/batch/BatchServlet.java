@@ -17,10 +17,16 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -29,11 +35,17 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@SlingServlet(methods = { "POST" }, generateService = true, paths = { "/system/batch" })
+@SlingServlet(methods = { "POST" }, generateService = true, paths = { "/system/batch" }, metatype = true)
 @ServiceDocumentation(name = "BatchServlet", okForVersion = "1.2",
     shortDescription = "Bundles multiple requests into a single response.",
     description = "Allows multiple requests to be executed in a single request.",
@@ -64,7 +76,60 @@ public class BatchServlet extends SlingAllMethodsServlet {
 
   protected static final String REQUESTS_PARAMETER = "requests";
   
-  private BatchHelper helper = new BatchHelper();
+  /**
+   * If true, batches made up only of GET requests are processed concurrently.
+   */
+  @Property(boolValue = false)
+  static final String PARALLEL_ENABLED = "batch.parallel.enabled";
+  /**
+   * Number of threads shared by all concurrently processed batches.
+   */
+  @Property(intValue = 8)
+  static final String PARALLEL_THREADS = "batch.parallel.threads";
+  /**
+   * Number of requests that may wait for a thread, beyond that requests run on the thread
+   * handling the batch.
+   */
+  @Property(intValue = 100)
+  static final String PARALLEL_QUEUE = "batch.parallel.queue";
+
+  @Reference
+  protected transient SlingRequestProcessor requestProcessor;
+
+  private transient ThreadPoolExecutor executor;
+
+  private volatile BatchHelper helper = new BatchHelper();
+
+  @Activate
+  protected void activate(Map<?, ?> properties) {
+    if (PropertiesUtil.toBoolean(properties.get(PARALLEL_ENABLED), false)) {
+      int threads = PropertiesUtil.toInteger(properties.get(PARALLEL_THREADS), 8);
+      int queue = PropertiesUtil.toInteger(properties.get(PARALLEL_QUEUE), 100);
+      executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "batch-request-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+      executor.allowCoreThreadTimeOut(true);
+      helper = new BatchHelper(requestProcessor, executor);
+    } else {
+      helper = new BatchHelper();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    helper = new BatchHelper();
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
 
   /**
    * {@inheritDoc}
@@ -17,7 +17,14 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
@@ -26,15 +33,24 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -80,4 +96,49 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testParallelRequests() throws Exception {
+    String json = "[{\"url\" : \"/foo/a\",\"method\" : \"GET\"},{\"url\" : \"/foo/b\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    StringWriter writer = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    ResourceResolver clone = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.clone(null)).thenReturn(clone);
+
+    servlet.requestProcessor = mock(SlingRequestProcessor.class);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletRequest subRequest = (HttpServletRequest) invocation.getArguments()[0];
+        HttpServletResponse subResponse = (HttpServletResponse) invocation.getArguments()[1];
+        if (subRequest.getRequestURI().endsWith("a")) {
+          // finish last, the results must still come back in order.
+          Thread.sleep(100);
+        }
+        subRequest.setAttribute("shared", "no");
+        subResponse.getWriter().write(subRequest.getRequestURI());
+        return null;
+      }
+    }).when(servlet.requestProcessor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), eq(clone));
+
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(BatchServlet.PARALLEL_ENABLED, true);
+    servlet.activate(properties);
+    try {
+      servlet.doGet(request, response);
+    } finally {
+      servlet.deactivate();
+    }
+
+    JSONArray results = new JSONObject(writer.toString()).getJSONArray("results");
+    assertEquals(2, results.length());
+    assertEquals("/foo/a", results.getJSONObject(0).getString("body"));
+    assertEquals("/foo/b", results.getJSONObject(1).getString("body"));
+    verify(clone, times(2)).close();
+    verify(request, never()).setAttribute(anyString(), any());
+  }
+
 }
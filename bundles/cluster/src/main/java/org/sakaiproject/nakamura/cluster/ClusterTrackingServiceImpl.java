@@ -119,6 +119,12 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   private String thisSecureUrl;
   private UniqueIdGenerator uniqueIdGenerator;
 
+  /**
+   * Cache handles, resolved once from the cache manager rather than on every request.
+   */
+  private volatile Cache<ClusterServer> serverCache;
+  private volatile Cache<ClusterUser> trackingCache;
+
   /**
    * Constructor for testing purposes only.
    *
@@ -166,6 +172,8 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
       LOGGER.info("Cluster Tacking Cache has already been disposed, the server registration will timeout on other nodes :{}",e.getMessage());
       LOGGER.debug(e.getMessage(),e);
     }
+    serverCache = null;
+    trackingCache = null;
   }
 
   /**
@@ -442,7 +450,12 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @return the cache used to store server registrations.
    */
   private Cache<ClusterServer> getServerCache() {
-    return cacheManagerService.getCache(SERVER_CACHE, CacheScope.CLUSTERREPLICATED);
+    Cache<ClusterServer> cache = serverCache;
+    if (cache == null) {
+      cache = cacheManagerService.getCache(SERVER_CACHE, CacheScope.CLUSTERREPLICATED);
+      serverCache = cache;
+    }
+    return cache;
   }
 
   /**
@@ -450,7 +463,12 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    */
   private Cache<ClusterUser> getTrackingCache() {
     // this is a local cache. if we add things here we ping the home server
-    return cacheManagerService.getCache(TRACKING_CACHE, CacheScope.INSTANCE);
+    Cache<ClusterUser> cache = trackingCache;
+    if (cache == null) {
+      cache = cacheManagerService.getCache(TRACKING_CACHE, CacheScope.INSTANCE);
+      trackingCache = cache;
+    }
+    return cache;
   }
 
   /**
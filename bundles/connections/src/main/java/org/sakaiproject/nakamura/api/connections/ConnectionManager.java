@@ -70,6 +70,25 @@ public interface ConnectionManager {
       Session session, String actor,
       ConnectionState accepted);
 
+  /**
+   * @param session
+   * @param user
+   * @param otherUser
+   * @return the ids of the users that both users have accepted connections with
+   */
+  List<String> getMutualConnections(Session session, String user, String otherUser);
+
+  /**
+   * Users connected to the user's accepted connections that the user has no connection
+   * with yet, the users with the most mutual connections first.
+   *
+   * @param session
+   * @param user
+   * @param max the maximum number of users to return
+   * @return a list of user ids
+   */
+  List<String> getContactsOfContacts(Session session, String user, int max);
+
   /**
    * Get connection details to <code>otherUser</code> from <code>thisUser</code>
    *
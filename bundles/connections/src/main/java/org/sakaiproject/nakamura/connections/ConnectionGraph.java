@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in memory index of the connections between users. Each user is interned to an int
+ * and, for every connection state, holds a sorted array of the users it is connected to
+ * in that state. Only the current state of a connection is kept, a connection in state
+ * {@link ConnectionState#NONE} is not held at all.
+ */
+class ConnectionGraph {
+
+  private static final int[] EMPTY = new int[0];
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, Integer> ids = new HashMap<String, Integer>();
+  private String[] names = new String[1024];
+  /**
+   * adjacency[state][user] is the sorted list of users connected to user in that state.
+   */
+  private final int[][][] adjacency = new int[ConnectionState.values().length][][];
+  /**
+   * Edges set by {@link #set(String, String, ConnectionState)} while rebuilding, which a
+   * rebuild must not overwrite with what it read before them. Null when not rebuilding.
+   */
+  private Set<Long> changedWhileRebuilding;
+  private volatile boolean ready;
+
+  ConnectionGraph() {
+    for (int i = 0; i < adjacency.length; i++) {
+      adjacency[i] = new int[names.length][];
+    }
+  }
+
+  /**
+   * @return true once the graph holds every connection and can answer queries.
+   */
+  boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Start a rebuild, the graph is not ready until {@link #endRebuild(boolean)}.
+   */
+  void startRebuild() {
+    lock.writeLock().lock();
+    try {
+      ready = false;
+      changedWhileRebuilding = new HashSet<Long>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Record a connection read while rebuilding, unless it has changed since the rebuild
+   * started.
+   */
+  void rebuild(String user, String other, ConnectionState state) {
+    lock.writeLock().lock();
+    try {
+      int u = intern(user);
+      int o = intern(other);
+      if (changedWhileRebuilding == null || !changedWhileRebuilding.contains(edge(u, o))) {
+        setEdge(u, o, state);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  void endRebuild(boolean complete) {
+    lock.writeLock().lock();
+    try {
+      changedWhileRebuilding = null;
+      ready = complete;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Set the state of the connection from user to other.
+   */
+  void set(String user, String other, ConnectionState state) {
+    lock.writeLock().lock();
+    try {
+      int u = intern(user);
+      int o = intern(other);
+      if (changedWhileRebuilding != null) {
+        changedWhileRebuilding.add(edge(u, o));
+      }
+      setEdge(u, o, state);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replace every connection from user with the connections read from the store.
+   *
+   * @param connections the state of each connection the user has, by the other user.
+   */
+  void replace(String user, Map<String, ConnectionState> connections) {
+    lock.writeLock().lock();
+    try {
+      int u = intern(user);
+      for (int s = 0; s < adjacency.length; s++) {
+        for (int o : adjacent(u, s)) {
+          if (!connections.containsKey(names[o])) {
+            if (changedWhileRebuilding != null) {
+              changedWhileRebuilding.add(edge(u, o));
+            }
+            setEdge(u, o, ConnectionState.NONE);
+          }
+        }
+      }
+      for (Map.Entry<String, ConnectionState> e : connections.entrySet()) {
+        int o = intern(e.getKey());
+        if (changedWhileRebuilding != null) {
+          changedWhileRebuilding.add(edge(u, o));
+        }
+        setEdge(u, o, e.getValue());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the users connected to user in a state, in no particular order.
+   */
+  List<String> get(String user, ConnectionState state) {
+    lock.readLock().lock();
+    try {
+      return toNames(adjacent(user, state));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the accepted contacts that user and other have in common.
+   */
+  List<String> getMutual(String user, String other) {
+    lock.readLock().lock();
+    try {
+      int[] a = adjacent(user, ConnectionState.ACCEPTED);
+      int[] b = adjacent(other, ConnectionState.ACCEPTED);
+      int[] common = new int[Math.min(a.length, b.length)];
+      int n = 0;
+      int i = 0;
+      int j = 0;
+      while (i < a.length && j < b.length) {
+        if (a[i] < b[j]) {
+          i++;
+        } else if (a[i] > b[j]) {
+          j++;
+        } else {
+          common[n++] = a[i];
+          i++;
+          j++;
+        }
+      }
+      return toNames(Arrays.copyOf(common, n));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the accepted contacts of the accepted contacts of a user, leaving out the user and
+   * anyone the user already has a connection with.
+   *
+   * @param max
+   *          the most users to return.
+   * @return users ordered by the number of contacts they have in common with user, most
+   *         first.
+   */
+  List<String> getContactsOfContacts(String user, int max) {
+    lock.readLock().lock();
+    try {
+      Integer id = ids.get(user);
+      if (id == null) {
+        return new ArrayList<String>();
+      }
+      int[] contacts = adjacent(id, ConnectionState.ACCEPTED);
+      int total = 0;
+      for (int c : contacts) {
+        total += adjacent(c, ConnectionState.ACCEPTED).length;
+      }
+      int[] reached = new int[total];
+      int n = 0;
+      for (int c : contacts) {
+        int[] next = adjacent(c, ConnectionState.ACCEPTED);
+        System.arraycopy(next, 0, reached, n, next.length);
+        n += next.length;
+      }
+      Arrays.sort(reached, 0, n);
+
+      // pack (mutual count, user) into longs so a single sort orders them.
+      long[] candidates = new long[n];
+      int m = 0;
+      for (int i = 0; i < n;) {
+        int candidate = reached[i];
+        int count = 0;
+        while (i < n && reached[i] == candidate) {
+          count++;
+          i++;
+        }
+        if (candidate != id && !isConnected(id, candidate)) {
+          candidates[m++] = ((long) (Integer.MAX_VALUE - count) << 32) | candidate;
+        }
+      }
+      Arrays.sort(candidates, 0, m);
+      List<String> result = new ArrayList<String>(Math.min(m, max));
+      for (int i = 0; i < m && result.size() < max; i++) {
+        result.add(names[(int) candidates[i]]);
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private boolean isConnected(int user, int other) {
+    for (int s = 0; s < adjacency.length; s++) {
+      if (Arrays.binarySearch(adjacent(user, s), other) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int[] adjacent(String user, ConnectionState state) {
+    Integer id = ids.get(user);
+    return id == null ? EMPTY : adjacent(id, state);
+  }
+
+  private int[] adjacent(int id, ConnectionState state) {
+    return adjacent(id, state.ordinal());
+  }
+
+  private int[] adjacent(int id, int state) {
+    int[] a = adjacency[state][id];
+    return a == null ? EMPTY : a;
+  }
+
+  private void setEdge(int u, int o, ConnectionState state) {
+    for (int s = 0; s < adjacency.length; s++) {
+      int[] a = adjacent(u, s);
+      int at = Arrays.binarySearch(a, o);
+      if (s == state.ordinal() && state != ConnectionState.NONE) {
+        if (at < 0) {
+          int insert = -at - 1;
+          int[] b = new int[a.length + 1];
+          System.arraycopy(a, 0, b, 0, insert);
+          b[insert] = o;
+          System.arraycopy(a, insert, b, insert + 1, a.length - insert);
+          adjacency[s][u] = b;
+        }
+      } else if (at >= 0) {
+        int[] b = new int[a.length - 1];
+        System.arraycopy(a, 0, b, 0, at);
+        System.arraycopy(a, at + 1, b, at, a.length - at - 1);
+        adjacency[s][u] = b.length == 0 ? null : b;
+      }
+    }
+  }
+
+  private int intern(String user) {
+    Integer id = ids.get(user);
+    if (id == null) {
+      id = ids.size();
+      if (id == names.length) {
+        names = Arrays.copyOf(names, names.length * 2);
+        for (int s = 0; s < adjacency.length; s++) {
+          adjacency[s] = Arrays.copyOf(adjacency[s], names.length);
+        }
+      }
+      names[id] = user;
+      ids.put(user, id);
+    }
+    return id;
+  }
+
+  private List<String> toNames(int[] a) {
+    List<String> result = new ArrayList<String>(a.length);
+    for (int i : a) {
+      result.add(names[i]);
+    }
+    return result;
+  }
+
+  private static long edge(int u, int o) {
+    return ((long) u << 32) | (o & 0xffffffffL);
+  }
+}
@@ -36,8 +36,11 @@ import static org.sakaiproject.nakamura.api.connections.ConnectionState.REJECTED
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -45,6 +48,10 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
@@ -67,12 +74,17 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -86,10 +98,11 @@ import java.util.Set;
 /**
  * Service for doing operations with connections.
  */
-@Component(immediate = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
-@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
-@Service(value = ConnectionManager.class)
-public class ConnectionManagerImpl implements ConnectionManager {
+@Component(immediate = true, metatype = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
+@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = ConnectionConstants.EVENT_TOPIC_BASE + "*") })
+@Service(value = { ConnectionManager.class, EventHandler.class })
+public class ConnectionManagerImpl implements ConnectionManager, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ConnectionManagerImpl.class);
@@ -98,6 +111,172 @@ public class ConnectionManagerImpl implements ConnectionManager {
   @Reference
   protected transient Repository repository;
 
+  @Property(longValue = 0L, description = "Minutes between rebuilds of the in memory connection graph, 0 to only build it at startup. The graph is only used to suggest contacts of contacts, which are confirmed against the contact stores, and it is corrected whenever a user's contacts are read.")
+  static final String REBUILD_INTERVAL = "connections.graph.rebuild.minutes";
+
+  /**
+   * Suggests contacts of contacts once it has been built from the contact stores, until
+   * then the contact stores are read. Replaced as a whole by every rebuild. Lists of
+   * connections are always read from the contact stores, which are current across the
+   * cluster.
+   */
+  protected volatile ConnectionGraph graph = new ConnectionGraph();
+
+  /**
+   * The graph a rebuild is reading into, which must also see the changes made while it
+   * reads. Null when not rebuilding.
+   */
+  private volatile ConnectionGraph nextGraph;
+
+  private volatile Thread rebuildThread;
+
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    final long interval = PropertiesUtil.toLong(props.get(REBUILD_INTERVAL), 0L) * 60000L;
+    rebuildThread = new Thread(new Runnable() {
+      public void run() {
+        while (rebuildThread == Thread.currentThread()) {
+          rebuildGraph();
+          if (interval <= 0) {
+            return;
+          }
+          try {
+            Thread.sleep(interval);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "connection-graph-rebuild");
+    rebuildThread.setDaemon(true);
+    rebuildThread.start();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    Thread t = rebuildThread;
+    rebuildThread = null;
+    if (t != null) {
+      t.interrupt();
+    }
+  }
+
+  /**
+   * Read every contact node into a new graph, which replaces the current one if every node
+   * was read. The current graph keeps answering queries while this runs.
+   */
+  protected void rebuildGraph() {
+    long start = System.currentTimeMillis();
+    boolean complete = false;
+    int count = 0;
+    ConnectionGraph next = new ConnectionGraph();
+    next.startRebuild();
+    nextGraph = next;
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      Iterable<Content> contacts = adminSession.getContentManager().find(
+          ImmutableMap.of("sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT));
+      for (Content contact : contacts) {
+        if (rebuildThread == null) {
+          return;
+        }
+        String[] users = getConnectionUsers(contact.getPath());
+        if (users != null) {
+          next.rebuild(users[0], users[1], getConnectionState(contact));
+          count++;
+        }
+      }
+      complete = true;
+      LOGGER.info("Indexed {} connections in {} ms", count, System.currentTimeMillis() - start);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to index connections, contact stores will be read instead: {}", e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to index connections, contact stores will be read instead: {}", e.getMessage());
+    } catch (ConnectionException e) {
+      LOGGER.warn("Unable to index connections, contact stores will be read instead: {}", e.getMessage());
+    } finally {
+      next.endRebuild(complete);
+      if (complete) {
+        graph = next;
+      }
+      nextGraph = null;
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the owner and the other user of a contact node path, or null if the path is
+   *         not a contact node.
+   */
+  static String[] getConnectionUsers(String path) {
+    if (path == null || !path.startsWith(LitePersonalUtils.PATH_AUTHORIZABLE)) {
+      return null;
+    }
+    String[] parts = StringUtils.split(path.substring(LitePersonalUtils.PATH_AUTHORIZABLE.length()), '/');
+    if (parts.length != 3 || !ConnectionConstants.CONTACT_STORE_NAME.equals(parts[1])) {
+      return null;
+    }
+    return new String[] { parts[0], parts[2] };
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The graph is brought up to date from the contact nodes of both users. Events are only
+   * delivered on the server that made the change, changes made on other servers are picked
+   * up when the contacts of the users concerned are next read.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String user = (String) event.getProperty(UserConstants.EVENT_PROP_USERID);
+    String target = (String) event.getProperty("target");
+    if (user == null || target == null || user.equals(target)) {
+      return;
+    }
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      setGraphEdge(user, target, getConnectionState(contentManager.get(ConnectionUtils
+          .getConnectionPath(user, target))));
+      setGraphEdge(target, user, getConnectionState(contentManager.get(ConnectionUtils
+          .getConnectionPath(target, user))));
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (ConnectionException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } finally {
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Set the state of a connection in the graph, and in the graph being rebuilt if there is
+   * one.
+   */
+  private void setGraphEdge(String user, String other, ConnectionState state) {
+    graph.set(user, other, state);
+    ConnectionGraph next = nextGraph;
+    if (next != null) {
+      next.set(user, other, state);
+    }
+  }
 
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
@@ -282,6 +461,8 @@ public class ConnectionManagerImpl implements ConnectionManager {
       ContentManager contentManager = adminSession.getContentManager();
       contentManager.update(thisNode);
       contentManager.update(otherNode);
+      setGraphEdge(thisUserId, otherUserId, getConnectionState(thisNode));
+      setGraphEdge(otherUserId, thisUserId, getConnectionState(otherNode));
 
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
@@ -395,6 +576,23 @@ public class ConnectionManagerImpl implements ConnectionManager {
    */
   public List<String> getConnectedUsers(Session session, String user, ConnectionState state) {
     List<String> connections = Lists.newArrayList();
+    for (Entry<String, ConnectionState> e : readConnections(session, user).entrySet()) {
+      if (state.equals(e.getValue())) {
+        connections.add(e.getKey());
+      }
+    }
+    return connections;
+  }
+
+  /**
+   * Read the connections of a user from the contact store. When the session can see every
+   * connection of the user the graph is corrected with what was read, so that changes made
+   * on other servers are picked up as the users concerned are read.
+   *
+   * @return the state of each connection the session can see, by the other user.
+   */
+  private Map<String, ConnectionState> readConnections(Session session, String user) {
+    Map<String, ConnectionState> connections = Maps.newHashMap();
     try {
       ContentManager contentManager = session.getContentManager();
       String path = ConnectionUtils.getConnectionPathBase(user);
@@ -407,8 +605,8 @@ public class ConnectionManagerImpl implements ConnectionManager {
           if (connectionStateValue != null ) {
             connectionState = ConnectionState.valueOf(connectionStateValue);
           }
-          if ( ConnectionConstants.SAKAI_CONTACT_RT.equals(resourceType) && state.equals(connectionState)) {
-            connections.add(StorageClientUtils.getObjectName(connection.getPath()));
+          if ( ConnectionConstants.SAKAI_CONTACT_RT.equals(resourceType)) {
+            connections.put(StorageClientUtils.getObjectName(connection.getPath()), connectionState);
           }
         }
       }
@@ -417,9 +615,91 @@ public class ConnectionManagerImpl implements ConnectionManager {
     } catch (AccessDeniedException e) {
       throw new IllegalStateException(e.getMessage(), e);
     }
+    if (canReadAllConnections(session, user)) {
+      graph.replace(user, connections);
+      ConnectionGraph next = nextGraph;
+      if (next != null) {
+        next.replace(user, connections);
+      }
+    }
     return connections;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getMutualConnections(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String)
+   */
+  public List<String> getMutualConnections(Session session, String user, String otherUser) {
+    List<String> mutual = getConnectedUsers(session, user, ConnectionState.ACCEPTED);
+    mutual.retainAll(new HashSet<String>(getConnectedUsers(session, otherUser,
+        ConnectionState.ACCEPTED)));
+    return mutual;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The graph is only used to find candidates, which may be stale if connections were
+   * changed on another server. The connections of the user and of every candidate returned
+   * are read from the contact stores, so only candidates that really share an accepted
+   * contact with the user are returned, ordered by the number they share.
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getContactsOfContacts(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, int)
+   */
+  public List<String> getContactsOfContacts(Session session, String user, int max) {
+    Map<String, ConnectionState> own = readConnections(session, user);
+    Set<String> contacts = new HashSet<String>();
+    for (Entry<String, ConnectionState> e : own.entrySet()) {
+      if (e.getValue() == ConnectionState.ACCEPTED) {
+        contacts.add(e.getKey());
+      }
+    }
+    final Map<String, Integer> counts = Maps.newHashMap();
+    ConnectionGraph current = graph;
+    if (current.isReady() && canReadAllConnections(session, user)) {
+      // the graph has just been corrected for the user, confirm each candidate it gives.
+      for (String candidate : current.getContactsOfContacts(user, max)) {
+        int count = 0;
+        for (String contact : getConnectedUsers(session, candidate, ConnectionState.ACCEPTED)) {
+          if (contacts.contains(contact)) {
+            count++;
+          }
+        }
+        if (count > 0) {
+          counts.put(candidate, count);
+        }
+      }
+    } else {
+      for (String contact : contacts) {
+        for (String candidate : getConnectedUsers(session, contact, ConnectionState.ACCEPTED)) {
+          if (!candidate.equals(user) && !own.containsKey(candidate)) {
+            Integer count = counts.get(candidate);
+            counts.put(candidate, count == null ? 1 : count + 1);
+          }
+        }
+      }
+    }
+    List<String> result = new ArrayList<String>(counts.keySet());
+    Collections.sort(result, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return counts.get(b) - counts.get(a);
+      }
+    });
+    return result.size() > max ? result.subList(0, max) : result;
+  }
+
+  /**
+   * Accepted connections can be read by everyone (KERN-1696), other states only by the
+   * user and administrators.
+   */
+  private boolean canReadAllConnections(Session session, String user) {
+    String sessionUser = session.getUserId();
+    return user.equals(sessionUser) || User.ADMIN_USER.equals(sessionUser);
+  }
+
   protected Content getOrCreateConnectionNode(Session session, Authorizable fromUser,
       Authorizable toUser) throws StorageClientException, AccessDeniedException {
     String nodePath = ConnectionUtils.getConnectionPath(fromUser, toUser);
@@ -176,6 +176,17 @@ public class RelatedContactsSearchBatchResultProcessor implements
         LOG.debug("writeResults() first iteration took {} seconds",
             new Object[] { (float) (firstIterationTicks - startTicks) / 1000 });
       }
+      if (processedUsers.size() < nitems) {
+        /* Add contacts of my contacts, most mutual contacts first */
+        for (final String peep : connectionManager.getContactsOfContacts(session, user,
+            (int) nitems)) {
+          if (processedUsers.size() >= nitems) {
+            break;
+          }
+          renderContact(peep, session, authMgr, writer, connectedUsers, processedUsers);
+        }
+        firstIterationTicks = System.currentTimeMillis();
+      }
       if (processedUsers.size() < nitems) {
         // TODO migrate to part of the primary solr query - this was a quick solution
         /* Add people that are a member of groups I'm a member of */
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ConnectionGraphTest {
+
+  private ConnectionGraph graph;
+
+  @Before
+  public void setUp() {
+    graph = new ConnectionGraph();
+    graph.startRebuild();
+    accept("alice", "bob");
+    accept("alice", "carol");
+    accept("bob", "dave");
+    accept("carol", "dave");
+    accept("carol", "erin");
+    graph.rebuild("alice", "frank", ConnectionState.PENDING);
+    graph.rebuild("frank", "alice", ConnectionState.INVITED);
+    graph.endRebuild(true);
+  }
+
+  private void accept(String a, String b) {
+    graph.rebuild(a, b, ConnectionState.ACCEPTED);
+    graph.rebuild(b, a, ConnectionState.ACCEPTED);
+  }
+
+  @Test
+  public void testGet() {
+    assertTrue(graph.isReady());
+    assertEquals(Arrays.asList("bob", "carol"), graph.get("alice", ConnectionState.ACCEPTED));
+    assertEquals(Arrays.asList("frank"), graph.get("alice", ConnectionState.PENDING));
+    assertEquals(Collections.emptyList(), graph.get("nobody", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testTransition() {
+    graph.set("alice", "frank", ConnectionState.ACCEPTED);
+    graph.set("frank", "alice", ConnectionState.ACCEPTED);
+    assertEquals(Collections.emptyList(), graph.get("alice", ConnectionState.PENDING));
+    assertEquals(Arrays.asList("bob", "carol", "frank"),
+        graph.get("alice", ConnectionState.ACCEPTED));
+
+    graph.set("alice", "bob", ConnectionState.NONE);
+    assertEquals(Arrays.asList("carol", "frank"), graph.get("alice", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testMutual() {
+    assertEquals(Arrays.asList("bob", "carol"), graph.getMutual("dave", "alice"));
+    assertEquals(Arrays.asList("carol"), graph.getMutual("erin", "dave"));
+    assertEquals(Collections.emptyList(), graph.getMutual("erin", "bob"));
+  }
+
+  @Test
+  public void testContactsOfContacts() {
+    // dave is reached through bob and carol, erin only through carol
+    assertEquals(Arrays.asList("dave", "erin"), graph.getContactsOfContacts("alice", 10));
+    assertEquals(Arrays.asList("dave"), graph.getContactsOfContacts("alice", 1));
+    // frank is already known to alice
+    assertFalse(graph.getContactsOfContacts("alice", 10).contains("frank"));
+  }
+
+  @Test
+  public void testRebuildKeepsLaterChanges() {
+    graph.startRebuild();
+    assertFalse(graph.isReady());
+    graph.set("alice", "bob", ConnectionState.NONE);
+    graph.rebuild("alice", "bob", ConnectionState.ACCEPTED);
+    graph.endRebuild(true);
+    assertEquals(Arrays.asList("carol"), graph.get("alice", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testReplace() {
+    // as read from alice's contact store: carol was removed and erin accepted elsewhere.
+    Map<String, ConnectionState> read = new HashMap<String, ConnectionState>();
+    read.put("bob", ConnectionState.ACCEPTED);
+    read.put("erin", ConnectionState.ACCEPTED);
+    read.put("frank", ConnectionState.PENDING);
+    graph.replace("alice", read);
+    assertEquals(Arrays.asList("bob", "erin"), graph.get("alice", ConnectionState.ACCEPTED));
+    assertEquals(Arrays.asList("frank"), graph.get("alice", ConnectionState.PENDING));
+    // carol is now reached through erin, and is no longer a contact of alice.
+    assertEquals(new HashSet<String>(Arrays.asList("carol", "dave")), new HashSet<String>(
+        graph.getContactsOfContacts("alice", 10)));
+  }
+
+  @Test
+  public void testIncompleteRebuild() {
+    graph.startRebuild();
+    graph.endRebuild(false);
+    assertFalse(graph.isReady());
+  }
+}
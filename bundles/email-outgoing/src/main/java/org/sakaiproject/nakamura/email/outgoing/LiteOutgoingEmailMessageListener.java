@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.email.outgoing;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
 import org.apache.commons.lang.StringUtils;
@@ -37,6 +38,9 @@ import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -56,6 +60,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Dictionary;
@@ -108,6 +113,34 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final String REPLY_AS_ADDRESS = "sakai.email.replyAsAddress";
   @Property(value = "Sakai OAE")
   private static final String REPLY_AS_NAME = "sakai.email.replyAsName";
+  @Property(intValue = 480)
+  private static final String MAX_RETRY_INTERVAL = "sakai.email.maxRetryIntervalMinutes";
+  /**
+   * If true messages are sent over a pool of SMTP connections that are kept open, rather
+   * than a new connection per message.
+   */
+  @Property(boolValue = true)
+  private static final String SMTP_POOL_ENABLED = "sakai.smtp.pool.enabled";
+  @Property(intValue = 2)
+  private static final String SMTP_POOL_SIZE = "sakai.smtp.pool.size";
+  @Property(intValue = 100)
+  private static final String SMTP_MESSAGES_PER_CONNECTION = "sakai.smtp.messagesPerConnection";
+  /**
+   * The maximum number of recipients per SMTP transaction, most relays limit this.
+   */
+  @Property(intValue = 50)
+  private static final String SMTP_MAX_RECIPIENTS = "sakai.smtp.maxRecipients";
+  /**
+   * The maximum number of SMTP transactions per minute, 0 for no limit.
+   */
+  @Property(intValue = 0)
+  private static final String SMTP_RATE = "sakai.smtp.ratePerMinute";
+  /**
+   * How often (minutes) to look for retries that are overdue because the node that scheduled
+   * them was restarted, and how overdue a retry must be before it is sent from here.
+   */
+  @Property(intValue = 5)
+  private static final String RETRY_SWEEP_INTERVAL = "sakai.email.retrySweepMinutes";
 
   protected static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
@@ -137,6 +170,21 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   public static final String RECIPIENTS = "recipients";
 
+  /**
+   * A retry is scheduled in memory, so each is also recorded under this path, to be found
+   * and sent again if it is lost.
+   */
+  static final String RETRY_ROOT = "/var/email/retry";
+  static final String RETRY_RT = "sakai/email-retry";
+  static final String PROP_MESSAGE_PATH = "sakai:messagePath";
+  /**
+   * The time (ms) of the next retry of a message, only set while a retry is scheduled.
+   */
+  static final String PROP_RETRY_AT = "sakai:retryAt";
+  static final String PROP_RETRY_RECIPIENTS = "sakai:retryRecipients";
+
+  private static final String RETRY_SWEEP_JOB = "email-retry-sweep";
+
   private Connection connection = null;
   private String smtpServer;
   private Integer smtpPort;
@@ -146,6 +194,9 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private String authPass;
   private Integer maxRetries;
   private Integer retryInterval;
+  private int maxRetryInterval;
+  private long retrySweepMillis;
+  private volatile SmtpTransportPool transportPool;
   private String replyAsAddress;
   private String replyAsName;
 
@@ -198,6 +249,11 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                   messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR,
                       (String) null);
                 }
+                if (messageContent.hasProperty(PROP_RETRY_AT)) {
+                  // this is the retry, it is only set again if another one is scheduled.
+                  messageContent.removeProperty(PROP_RETRY_AT);
+                  messageContent.removeProperty(PROP_RETRY_RECIPIENTS);
+                }
                 if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_TO)
                     && messageContent.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
                   // make a commons-email message from the message
@@ -206,13 +262,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                     email = constructMessage(messageContent, recipients, adminSession,
                         sparseSession);
 
-                    setOptions(email);
-                    if (LOGGER.isDebugEnabled()) {
-                      // build wrapped meesage in order to log it
-                      email.buildMimeMessage();
-                      logEmail(email);
-                    }
-                    email.send();
+                    send(email);
                   } catch (EmailException e) {
                     String exMessage = e.getMessage();
                     Throwable cause = e.getCause();
@@ -220,6 +270,12 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                     setError(messageContent, exMessage);
                     LOGGER.warn("Unable to send email: " + exMessage);
 
+                    // only retry the recipients that have not been sent the message
+                    List<String> retryRecipients = recipients;
+                    if (cause instanceof PartialDeliveryException) {
+                      retryRecipients = ((PartialDeliveryException) cause).getUndelivered();
+                    }
+
                     // Get the SMTP error code
                     // There has to be a better way to do this
                     boolean rescheduled = false;
@@ -229,7 +285,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                         int errorCode = Integer.parseInt(smtpError.substring(0, 3));
                         // All retry-able SMTP errors should have codes starting
                         // with 4
-                        scheduleRetry(errorCode, messageContent);
+                        scheduleRetry(errorCode, messageContent, retryRecipients);
                         rescheduled = true;
                       } catch (NumberFormatException nfe) {
                         // smtpError didn't start with an error code, let's dig for
@@ -240,11 +296,11 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                             && (rindex + searchFor.length()) < smtpError.length()) {
                           int errorCode = Integer.parseInt(smtpError.substring(
                               searchFor.length(), searchFor.length() + 3));
-                          scheduleRetry(errorCode, messageContent);
+                          scheduleRetry(errorCode, messageContent, retryRecipients);
                           rescheduled = true;
                         }
                         else if (!rescheduled && cause.toString().contains("java.net.ConnectException")){
-                          scheduleRetry(messageContent);
+                          scheduleRetry(messageContent, retryRecipients);
                           rescheduled = true;
                         }
                       }
@@ -269,6 +325,8 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                 messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
                     MessageConstants.BOX_SENT);
               }
+              contentManager.update(messageContent);
+              updateRetryRecord(contentManager, messageContent);
             }
           } else {
             String retval = "null";
@@ -298,6 +356,38 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  /**
+   * Send the email, over the transport pool if there is one.
+   *
+   * @param email
+   * @throws EmailException
+   */
+  private void send(MultiPartEmail email) throws EmailException {
+    SmtpTransportPool pool = transportPool;
+    if (pool == null) {
+      setOptions(email);
+      if (LOGGER.isDebugEnabled()) {
+        // build wrapped meesage in order to log it
+        email.buildMimeMessage();
+        logEmail(email);
+      }
+      email.send();
+      return;
+    }
+    email.setMailSession(pool.getMailSession());
+    email.buildMimeMessage();
+    if (LOGGER.isDebugEnabled()) {
+      logEmail(email);
+    }
+    try {
+      pool.send(email.getMimeMessage());
+    } catch (MessagingException e) {
+      // as MultiPartEmail.send() reports it, so the SMTP error code can be found
+      throw new EmailException("Sending the email to the following server failed : "
+          + smtpServer + ":" + smtpPort, e);
+    }
+  }
+
   /**
    * Set transfer options on the email based on configuration of this service.
    *
@@ -490,16 +580,25 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     return address;
   }
 
-  protected void scheduleRetry(int errorCode, Content contentNode) {
+  protected void scheduleRetry(int errorCode, Content contentNode, List<String> recipients) {
     // All retry-able SMTP errors should have codes starting with 4
     if ((errorCode / 100) == 4) {
-      scheduleRetry(contentNode);
+      scheduleRetry(contentNode, recipients);
     } else {
       LOGGER.warn("Not scheduling a retry for error code not of the form 4xx.");
     }
   }
 
-  protected void scheduleRetry(Content contentNode) {
+  /**
+   * Schedule the message to be sent again after an interval that doubles with every
+   * retry, up to the maximum retry interval. The retry count is kept on the message so
+   * that it survives restarts, and the retry is queued as a persistent message like the
+   * original.
+   *
+   * @param contentNode
+   * @param recipients
+   */
+  protected void scheduleRetry(Content contentNode, final List<String> recipients) {
 
     long retryCount = 0;
     if (contentNode.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)) {
@@ -512,20 +611,25 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
         public void execute(JobContext jc) {
           Map<String, Serializable> config = jc.getConfiguration();
-          Properties eventProps = new Properties();
-          eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
-
-          Event retryEvent = new Event(QUEUE_NAME, (Map<Object, Object>) eventProps);
-          eventAdmin.postEvent(retryEvent);
-
+          postRetry((String) config.get(NODE_PATH_PROPERTY), config.get(RECIPIENTS));
         }
       };
 
+      ArrayList<String> retryRecipients = recipients == null ? new ArrayList<String>()
+          : new ArrayList<String>(recipients);
       HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
       jobConfig.put(NODE_PATH_PROPERTY, contentNode.getPath());
-
-      int retryIntervalMillis = retryInterval * 60000;
-      Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
+      jobConfig.put(RECIPIENTS, retryRecipients);
+
+      Date nextTry = new Date(System.currentTimeMillis()
+          + getRetryDelayMillis(retryCount, retryInterval, maxRetryInterval));
+      contentNode.setProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT, retryCount + 1);
+      contentNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+          MessageConstants.BOX_PENDING);
+      // kept with the message, so that the retry can be found if the job is lost.
+      contentNode.setProperty(PROP_RETRY_AT, nextTry.getTime());
+      contentNode.setProperty(PROP_RETRY_RECIPIENTS,
+          retryRecipients.toArray(new String[retryRecipients.size()]));
 
       try {
         scheduler.fireJobAt(null, job, jobConfig, nextTry);
@@ -537,6 +641,116 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  /**
+   * Queue a message to be sent again, as a persistent message like the original.
+   */
+  @SuppressWarnings("unchecked")
+  private void postRetry(String path, Object recipients) {
+    Properties eventProps = new Properties();
+    eventProps.put(NODE_PATH_PROPERTY, path);
+    eventProps.put(CONTENT_PATH_PROPERTY, path);
+    eventProps.put(RECIPIENTS, recipients);
+    eventProps.put(EventDeliveryConstants.DELIVERY_MODE, EventDeliveryMode.P2P);
+    eventProps.put(EventDeliveryConstants.MESSAGE_MODE, EventMessageMode.PERSISTENT);
+
+    Event retryEvent = new Event(QUEUE_NAME, (Map<Object, Object>) eventProps);
+    eventAdmin.postEvent(retryEvent);
+  }
+
+  /**
+   * Record a message that has a retry scheduled, and drop the record once it has none.
+   */
+  private void updateRetryRecord(ContentManager contentManager, Content messageContent)
+      throws StorageClientException, AccessDeniedException {
+    if (messageContent.hasProperty(PROP_RETRY_AT)) {
+      String recordPath = getRetryRecordPath(messageContent.getPath());
+      if (!contentManager.exists(recordPath)) {
+        contentManager.update(new Content(recordPath, ImmutableMap.of(
+            "sling:resourceType", (Object) RETRY_RT, PROP_MESSAGE_PATH,
+            messageContent.getPath())));
+      }
+    } else if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)) {
+      String recordPath = getRetryRecordPath(messageContent.getPath());
+      if (contentManager.exists(recordPath)) {
+        contentManager.delete(recordPath);
+      }
+    }
+  }
+
+  static String getRetryRecordPath(String messagePath) {
+    try {
+      return RETRY_ROOT + "/"
+          + org.sakaiproject.nakamura.util.StringUtils.sha1Hash(messagePath);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Send the retries whose job was lost, because the node that scheduled it was restarted
+   * before it ran. A retry that is due is normally sent and its record updated within
+   * moments, so only those overdue by more than the sweep interval are sent from here.
+   * The next retry time is moved on first, so that other nodes sweeping at the same time
+   * leave it alone.
+   */
+  protected void sweepRetries() {
+    javax.jcr.Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative(null);
+      ContentManager contentManager = StorageClientUtils.adaptToSession(adminSession)
+          .getContentManager();
+      long now = System.currentTimeMillis();
+      int sent = 0;
+      for (Content record : contentManager.find(ImmutableMap.of("sling:resourceType",
+          (Object) RETRY_RT))) {
+        String messagePath = (String) record.getProperty(PROP_MESSAGE_PATH);
+        Content messageContent = messagePath == null ? null : contentManager
+            .get(messagePath);
+        if (messageContent == null || !messageContent.hasProperty(PROP_RETRY_AT)) {
+          contentManager.delete(record.getPath());
+        } else if (Long.parseLong(String.valueOf(messageContent.getProperty(PROP_RETRY_AT)))
+            + retrySweepMillis < now) {
+          messageContent.setProperty(PROP_RETRY_AT, now + retrySweepMillis);
+          contentManager.update(messageContent);
+          Object recipients = messageContent.getProperty(PROP_RETRY_RECIPIENTS);
+          postRetry(messagePath, recipients instanceof String[] ? new ArrayList<String>(
+              Arrays.asList((String[]) recipients)) : recipients);
+          sent++;
+        }
+      }
+      if (sent > 0) {
+        LOGGER.info("Sent {} email retries that were lost", sent);
+      }
+    } catch (RepositoryException e) {
+      LOGGER.error("Unable to look for lost email retries", e);
+    } catch (StorageClientException e) {
+      LOGGER.error("Unable to look for lost email retries", e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Unable to look for lost email retries", e);
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * @param retryCount
+   *          the number of retries already made.
+   * @param retryInterval
+   *          the interval before the first retry, in minutes.
+   * @param maxRetryInterval
+   *          the longest interval between retries, in minutes.
+   * @return the time to wait before the next retry, in ms.
+   */
+  static long getRetryDelayMillis(long retryCount, int retryInterval, int maxRetryInterval) {
+    long minutes = retryInterval;
+    for (long i = 0; i < retryCount && minutes < maxRetryInterval; i++) {
+      minutes *= 2;
+    }
+    return Math.min(minutes, Math.max(retryInterval, maxRetryInterval)) * 60000L;
+  }
+
   @Activate
   @Modified
   protected void activate(ComponentContext ctx) {
@@ -561,6 +775,10 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("SMTP retry interval not set.");
     }
 
+    maxRetryInterval = PropertiesUtil.toInteger(props.get(MAX_RETRY_INTERVAL), 480);
+    int retrySweepMinutes = PropertiesUtil.toInteger(props.get(RETRY_SWEEP_INTERVAL), 5);
+    retrySweepMillis = retrySweepMinutes * 60000L;
+
     if (maxRetries * retryInterval < 4320 /* minutes in 3 days */) {
       LOGGER.warn("SMTP retry window is very short.");
     }
@@ -607,6 +825,16 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     authUser = PropertiesUtil.toString(props.get(SMTP_AUTH_USER), "");
     authPass = PropertiesUtil.toString(props.get(SMTP_AUTH_PASS), "");
 
+    closeTransportPool();
+    if (PropertiesUtil.toBoolean(props.get(SMTP_POOL_ENABLED), true) && smtpServer != null
+        && smtpPort != null) {
+      transportPool = new SmtpTransportPool(smtpServer, smtpPort, useTls, useSsl, authUser,
+          authPass, PropertiesUtil.toInteger(props.get(SMTP_POOL_SIZE), 2),
+          PropertiesUtil.toInteger(props.get(SMTP_MESSAGES_PER_CONNECTION), 100),
+          PropertiesUtil.toInteger(props.get(SMTP_MAX_RECIPIENTS), 50),
+          PropertiesUtil.toInteger(props.get(SMTP_RATE), 0));
+    }
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
@@ -623,10 +851,27 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
         }
       }
     }
+
+    if (scheduler != null && retrySweepMinutes > 0) {
+      // runs straight away as well, to pick up the retries lost by a restart of this node.
+      try {
+        scheduler.addPeriodicJob(RETRY_SWEEP_JOB, new Job() {
+          public void execute(JobContext context) {
+            sweepRetries();
+          }
+        }, null, retrySweepMinutes * 60L, false);
+      } catch (Exception e) {
+        LOGGER.error("Failed to add the email retry sweep", e);
+      }
+    }
   }
 
   @Deactivate
   protected void deactivate(ComponentContext ctx) {
+    if (scheduler != null) {
+      scheduler.removeJob(RETRY_SWEEP_JOB);
+    }
+    closeTransportPool();
     if (connection != null) {
       try {
         connection.close();
@@ -635,6 +880,13 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  private void closeTransportPool() {
+    if (transportPool != null) {
+      transportPool.close();
+      transportPool = null;
+    }
+  }
+
   private void setError(Content node, String error) {
     node.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR, error);
   }
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+/**
+ * A message was delivered to some of its recipients but not to all of them, only the
+ * recipients it was not delivered to should be sent it again. The message is that of the
+ * failure, so that the SMTP error code can be found in it.
+ */
+class PartialDeliveryException extends MessagingException {
+
+  private static final long serialVersionUID = -5424620927185731632L;
+
+  private final List<String> undelivered;
+
+  PartialDeliveryException(MessagingException cause, List<String> undelivered) {
+    super(cause.getMessage(), cause);
+    this.undelivered = Collections.unmodifiableList(undelivered);
+  }
+
+  /**
+   * @return the addresses of the recipients the message was not delivered to.
+   */
+  List<String> getUndelivered() {
+    return undelivered;
+  }
+}
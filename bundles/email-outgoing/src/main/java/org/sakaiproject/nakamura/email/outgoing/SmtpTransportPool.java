@@ -0,0 +1,290 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A pool of connected, authenticated SMTP transports. Each transport sends up to
+ * messagesPerConnection messages before it is closed and replaced, and an idle transport
+ * is checked with the server before it is reused. Recipients of a message are sent in
+ * groups of at most maxRecipients per SMTP transaction, and transactions are spaced out
+ * to stay under the configured rate.
+ */
+class SmtpTransportPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  /**
+   * Connection and read timeout in ms, so that a stalled server does not hold a transport
+   * forever.
+   */
+  private static final String TIMEOUT = "60000";
+
+  private final Session mailSession;
+  private final String protocol;
+  private final String authUser;
+  private final String authPass;
+  private final int messagesPerConnection;
+  private final int maxRecipients;
+  private final long intervalNanos;
+  private final Semaphore permits;
+  private final BlockingQueue<PooledTransport> idle = new LinkedBlockingQueue<PooledTransport>();
+  private final AtomicInteger connectionsOpened = new AtomicInteger();
+  private long nextSendNanos = System.nanoTime();
+  private volatile boolean closed;
+
+  /**
+   * @param host
+   * @param port
+   * @param useTls
+   *          upgrade the connection with STARTTLS.
+   * @param useSsl
+   *          connect over SSL.
+   * @param authUser
+   *          the user to authenticate as, blank for none.
+   * @param authPass
+   * @param size
+   *          the maximum number of open transports.
+   * @param messagesPerConnection
+   *          the number of messages sent over a transport before it is replaced.
+   * @param maxRecipients
+   *          the maximum number of recipients per SMTP transaction.
+   * @param ratePerMinute
+   *          the maximum number of SMTP transactions per minute, 0 for no limit.
+   */
+  SmtpTransportPool(String host, int port, boolean useTls, boolean useSsl,
+      String authUser, String authPass, int size, int messagesPerConnection,
+      int maxRecipients, int ratePerMinute) {
+    protocol = useSsl ? "smtps" : "smtp";
+    boolean auth = !StringUtils.isBlank(authUser) && !StringUtils.isBlank(authPass);
+    Properties props = new Properties();
+    props.setProperty("mail." + protocol + ".host", host);
+    props.setProperty("mail." + protocol + ".port", String.valueOf(port));
+    props.setProperty("mail." + protocol + ".auth", String.valueOf(auth));
+    props.setProperty("mail." + protocol + ".connectiontimeout", TIMEOUT);
+    props.setProperty("mail." + protocol + ".timeout", TIMEOUT);
+    if (useTls) {
+      props.setProperty("mail." + protocol + ".starttls.enable", "true");
+    }
+    mailSession = Session.getInstance(props);
+    this.authUser = auth ? authUser : null;
+    this.authPass = auth ? authPass : null;
+    this.messagesPerConnection = Math.max(1, messagesPerConnection);
+    this.maxRecipients = Math.max(1, maxRecipients);
+    this.intervalNanos = ratePerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / ratePerMinute : 0;
+    this.permits = new Semaphore(Math.max(1, size), true);
+  }
+
+  /**
+   * @return the mail session transports are created from, for building messages.
+   */
+  Session getMailSession() {
+    return mailSession;
+  }
+
+  /**
+   * Send a message to all of its recipients, To, Cc and Bcc, over a pooled transport.
+   *
+   * @param message
+   * @throws PartialDeliveryException
+   *           if the message was delivered to some of the recipients, but not to all.
+   * @throws MessagingException
+   *           if the message was not delivered to any of the recipients.
+   */
+  void send(MimeMessage message) throws MessagingException {
+    Address[] recipients = message.getAllRecipients();
+    if (recipients == null || recipients.length == 0) {
+      throw new MessagingException("No recipient addresses");
+    }
+    message.saveChanges();
+    PooledTransport transport = borrow();
+    boolean reusable = false;
+    List<Address> delivered = new ArrayList<Address>();
+    try {
+      for (int i = 0; i < recipients.length; i += maxRecipients) {
+        Address[] group = Arrays.copyOfRange(recipients, i,
+            Math.min(recipients.length, i + maxRecipients));
+        throttle();
+        transport.transport.sendMessage(message, group);
+        transport.sent++;
+        delivered.addAll(Arrays.asList(group));
+      }
+      reusable = true;
+    } catch (MessagingException e) {
+      throw failure(e, recipients, delivered);
+    } finally {
+      release(transport, reusable);
+    }
+  }
+
+  /**
+   * @return the failure to report, naming the recipients still to be sent to if the
+   *         message was delivered to any.
+   */
+  private MessagingException failure(MessagingException e, Address[] recipients,
+      List<Address> delivered) {
+    if (e instanceof SendFailedException) {
+      // the server may have accepted part of the failed group
+      Address[] sent = ((SendFailedException) e).getValidSentAddresses();
+      if (sent != null) {
+        delivered.addAll(Arrays.asList(sent));
+      }
+    }
+    if (delivered.isEmpty()) {
+      return e;
+    }
+    Set<Address> done = new HashSet<Address>(delivered);
+    List<String> undelivered = new ArrayList<String>();
+    for (Address recipient : recipients) {
+      if (!done.contains(recipient)) {
+        undelivered.add(recipient instanceof InternetAddress ? ((InternetAddress) recipient)
+            .getAddress() : recipient.toString());
+      }
+    }
+    LOGGER.info("Message delivered to {} recipients before failing, {} left to send to",
+        done.size(), undelivered.size());
+    return new PartialDeliveryException(e, undelivered);
+  }
+
+  /**
+   * @return the number of SMTP connections opened so far.
+   */
+  int getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  /**
+   * Close all idle transports, transports in use are closed when they are returned.
+   */
+  void close() {
+    closed = true;
+    PooledTransport transport;
+    while ((transport = idle.poll()) != null) {
+      closeQuietly(transport);
+    }
+  }
+
+  private PooledTransport borrow() throws MessagingException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException("Interrupted waiting for an SMTP connection", e);
+    }
+    try {
+      PooledTransport transport;
+      while ((transport = idle.poll()) != null) {
+        // the server may have dropped an idle connection
+        if (transport.transport.isConnected()) {
+          return transport;
+        }
+        closeQuietly(transport);
+      }
+      Transport t = mailSession.getTransport(protocol);
+      if (authUser != null) {
+        t.connect(authUser, authPass);
+      } else {
+        t.connect();
+      }
+      connectionsOpened.incrementAndGet();
+      return new PooledTransport(t);
+    } catch (MessagingException e) {
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private void release(PooledTransport transport, boolean reusable) {
+    try {
+      if (reusable && !closed && transport.sent < messagesPerConnection) {
+        idle.offer(transport);
+      } else {
+        closeQuietly(transport);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Wait for the next send slot when a rate is set.
+   */
+  private void throttle() throws MessagingException {
+    if (intervalNanos == 0) {
+      return;
+    }
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      long slot = Math.max(now, nextSendNanos);
+      nextSendNanos = slot + intervalNanos;
+      wait = slot - now;
+    }
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new MessagingException("Interrupted waiting to send", e);
+      }
+    }
+  }
+
+  private void closeQuietly(PooledTransport transport) {
+    try {
+      transport.transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close SMTP connection: {}", e.getMessage());
+    }
+  }
+
+  private static final class PooledTransport {
+    final Transport transport;
+    int sent;
+
+    PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+  }
+}
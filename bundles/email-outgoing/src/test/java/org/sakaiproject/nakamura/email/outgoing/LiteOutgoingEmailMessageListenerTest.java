@@ -1,6 +1,7 @@
 package org.sakaiproject.nakamura.email.outgoing;
 
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.when;
 
 import org.apache.commons.mail.EmailException;
@@ -85,6 +86,14 @@ public class LiteOutgoingEmailMessageListenerTest {
     LiteOutgoingEmailMessageListener spyLiteOutgoingEmailMessageListener = Mockito.spy(liteOutgoingEmailMessageListener);
     Mockito.doThrow(new EmailException("Server is down", new ConnectException("The email server is down"))).when(spyLiteOutgoingEmailMessageListener).constructMessage(Mockito.any(Content.class), Mockito.anyList(), Mockito.any(Session.class), Mockito.any(org.sakaiproject.nakamura.api.lite.Session.class));
     spyLiteOutgoingEmailMessageListener.onMessage(message);
-    Mockito.verify(spyLiteOutgoingEmailMessageListener).scheduleRetry(messageContent);
+    Mockito.verify(spyLiteOutgoingEmailMessageListener).scheduleRetry(Mockito.eq(messageContent), Mockito.anyList());
+  }
+
+  @Test
+  public void testRetryBackoff() {
+    assertEquals(30 * 60000L, LiteOutgoingEmailMessageListener.getRetryDelayMillis(0, 30, 480));
+    assertEquals(60 * 60000L, LiteOutgoingEmailMessageListener.getRetryDelayMillis(1, 30, 480));
+    assertEquals(240 * 60000L, LiteOutgoingEmailMessageListener.getRetryDelayMillis(3, 30, 480));
+    assertEquals(480 * 60000L, LiteOutgoingEmailMessageListener.getRetryDelayMillis(10, 30, 480));
   }
 }
@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends through the pool to an in-process SMTP server.
+ */
+public class SmtpTransportPoolTest {
+
+  private Wiser wiser;
+  private int port;
+
+  @Before
+  public void setUp() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    port = socket.getLocalPort();
+    socket.close();
+    wiser = new Wiser() {
+      @Override
+      public boolean accept(String from, String recipient) {
+        return !recipient.startsWith("rejected");
+      }
+    };
+    wiser.setPort(port);
+    wiser.start();
+  }
+
+  @After
+  public void tearDown() {
+    wiser.stop();
+  }
+
+  private MimeMessage createMessage(SmtpTransportPool pool, int recipients) throws Exception {
+    MimeMessage message = new MimeMessage(pool.getMailSession());
+    message.setFrom(new InternetAddress("no-reply@example.com"));
+    for (int i = 0; i < recipients; i++) {
+      message.addRecipient(RecipientType.BCC, new InternetAddress("user" + i + "@example.com"));
+    }
+    message.setSubject("test");
+    message.setText("body");
+    return message;
+  }
+
+  @Test
+  public void testConnectionReused() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool("localhost", port, false, false, null,
+        null, 1, 100, 50, 0);
+    for (int i = 0; i < 5; i++) {
+      pool.send(createMessage(pool, 1));
+    }
+    pool.close();
+    assertEquals(5, wiser.getMessages().size());
+    assertEquals(1, pool.getConnectionsOpened());
+  }
+
+  @Test
+  public void testConnectionReplaced() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool("localhost", port, false, false, null,
+        null, 1, 2, 50, 0);
+    for (int i = 0; i < 5; i++) {
+      pool.send(createMessage(pool, 1));
+    }
+    pool.close();
+    assertEquals(5, wiser.getMessages().size());
+    assertEquals(3, pool.getConnectionsOpened());
+  }
+
+  @Test
+  public void testRecipientsGrouped() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool("localhost", port, false, false, null,
+        null, 1, 100, 4, 0);
+    pool.send(createMessage(pool, 10));
+    pool.close();
+    // one message received per recipient, sent in three transactions
+    assertEquals(10, wiser.getMessages().size());
+    assertEquals(1, pool.getConnectionsOpened());
+  }
+
+  @Test
+  public void testPartialDeliveryReportsUndelivered() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool("localhost", port, false, false, null,
+        null, 1, 100, 4, 0);
+    MimeMessage message = createMessage(pool, 6);
+    // fails the second of the two transactions
+    message.addRecipient(RecipientType.BCC, new InternetAddress("rejected@example.com"));
+    try {
+      pool.send(message);
+      fail("Expected the send to fail part way through");
+    } catch (PartialDeliveryException e) {
+      assertEquals(Arrays.asList("user4@example.com", "user5@example.com",
+          "rejected@example.com"), e.getUndelivered());
+    } finally {
+      pool.close();
+    }
+    assertEquals(4, wiser.getMessages().size());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    // 600 a minute is one every 100ms
+    SmtpTransportPool pool = new SmtpTransportPool("localhost", port, false, false, null,
+        null, 1, 100, 50, 600);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 4; i++) {
+      pool.send(createMessage(pool, 1));
+    }
+    pool.close();
+    assertTrue(System.currentTimeMillis() - start >= 300);
+  }
+}
@@ -0,0 +1,279 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Publishes events handed to it from a single thread, over one long lived transacted
+ * session with a producer per destination. The session is committed every batchSize
+ * events, or batchMillis after the first event of a batch, whichever comes first. After
+ * a failure the batch is lost and the connection is re-created for the next event.
+ */
+class BatchingJmsPublisher implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchingJmsPublisher.class);
+
+  /**
+   * Producers are kept for this many destinations, the least recently used is closed
+   * beyond that.
+   */
+  static final int MAX_PRODUCERS = 256;
+
+  private static final MetricCounter SENT = TelemetryCounter.getCounter("event",
+      "JMSBridge", "batched");
+  private static final MetricCounter DROPPED = TelemetryCounter.getCounter("event",
+      "JMSBridge", "dropped");
+  private static final MetricCounter FAILED = TelemetryCounter.getCounter("event",
+      "JMSBridge", "failed");
+
+  private final OsgiJmsBridge bridge;
+  private final ConnectionFactory connectionFactory;
+  private final int batchSize;
+  private final long batchNanos;
+  private final long blockMillis;
+  private final boolean dropOnOverflow;
+  private final BlockingQueue<Event> queue;
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  private Connection connection;
+  private Session session;
+  private final Map<String, MessageProducer> producers = new LinkedHashMap<String, MessageProducer>(
+      16, 0.75f, true);
+
+  /**
+   * @param bridge
+   *          creates the messages.
+   * @param connectionFactory
+   * @param batchSize
+   *          the maximum number of events per commit.
+   * @param batchMillis
+   *          the maximum time an event waits to be committed.
+   * @param queueSize
+   *          the number of events that may wait to be sent.
+   * @param blockMillis
+   *          how long {@link #offer(Event)} waits for space in the queue.
+   * @param dropOnOverflow
+   *          if true {@link #offer(Event)} drops an event it cannot queue, rather than
+   *          leaving it to the caller.
+   */
+  BatchingJmsPublisher(OsgiJmsBridge bridge, ConnectionFactory connectionFactory,
+      int batchSize, long batchMillis, int queueSize, long blockMillis,
+      boolean dropOnOverflow) {
+    this.bridge = bridge;
+    this.connectionFactory = connectionFactory;
+    this.batchSize = Math.max(1, batchSize);
+    this.batchNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+    this.blockMillis = blockMillis;
+    this.dropOnOverflow = dropOnOverflow;
+    this.queue = new ArrayBlockingQueue<Event>(Math.max(1, queueSize));
+    this.thread = new Thread(this, "osgi-jms-bridge");
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * Stop taking events, send the events already queued and close the session.
+   */
+  void stop() {
+    running = false;
+    thread.interrupt();
+    try {
+      thread.join(10000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Queue an event to be sent.
+   *
+   * @param event
+   * @return true if the event was queued or dropped, false if the caller should send it.
+   */
+  boolean offer(Event event) {
+    if (!running) {
+      return false;
+    }
+    boolean queued;
+    if (blockMillis > 0) {
+      try {
+        queued = queue.offer(event, blockMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        queued = false;
+      }
+    } else {
+      queued = queue.offer(event);
+    }
+    if (!queued && dropOnOverflow) {
+      DROPPED.increment();
+      LOGGER.debug("Event queue full, dropped {} ", event);
+      return true;
+    }
+    return queued;
+  }
+
+  /**
+   * @return the number of events waiting to be sent.
+   */
+  int getQueued() {
+    return queue.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    try {
+      while (running) {
+        Event first;
+        try {
+          first = queue.take();
+        } catch (InterruptedException e) {
+          continue;
+        }
+        sendBatch(first);
+      }
+      // send what was queued before stopping
+      Event next;
+      while ((next = queue.poll()) != null) {
+        sendBatch(next);
+      }
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Send first and then whatever else arrives within the batch limits, and commit.
+   */
+  private void sendBatch(Event first) {
+    long deadline = System.nanoTime() + batchNanos;
+    int sent = 0;
+    try {
+      Session s = getSession();
+      send(s, first);
+      sent++;
+      while (sent < batchSize) {
+        Event next = queue.poll();
+        if (next == null && running) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          try {
+            next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+          } catch (InterruptedException e) {
+            // stopping, commit what we have
+            break;
+          }
+        }
+        if (next == null) {
+          break;
+        }
+        send(s, next);
+        sent++;
+      }
+      s.commit();
+      SENT.add(sent);
+    } catch (JMSException e) {
+      FAILED.add(sent + 1);
+      LOGGER.warn("Failed to send a batch of {} events ", sent + 1);
+      bridge.logJmsException(e);
+      close();
+    }
+  }
+
+  private void send(Session s, Event event) throws JMSException {
+    String key = OsgiJmsBridge.getDestinationKey(event);
+    MessageProducer producer = producers.get(key);
+    if (producer == null) {
+      producer = s.createProducer(OsgiJmsBridge.createDestination(s, event));
+      producers.put(key, producer);
+      if (producers.size() > MAX_PRODUCERS) {
+        Iterator<MessageProducer> eldest = producers.values().iterator();
+        closeQuietly(eldest.next());
+        eldest.remove();
+      }
+    }
+    producer.send(bridge.createMessage(s, event));
+  }
+
+  private Session getSession() throws JMSException {
+    if (session == null) {
+      connection = connectionFactory.createConnection();
+      session = connection.createSession(true, Session.SESSION_TRANSACTED);
+    }
+    return session;
+  }
+
+  private void close() {
+    for (MessageProducer producer : producers.values()) {
+      closeQuietly(producer);
+    }
+    producers.clear();
+    if (session != null) {
+      try {
+        session.close();
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      session = null;
+    }
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      connection = null;
+    }
+  }
+
+  private void closeQuietly(MessageProducer producer) {
+    try {
+      producer.close();
+    } catch (Exception e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+}
@@ -33,6 +33,7 @@ import javax.jms.Session;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
@@ -74,8 +75,56 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  /**
+   * If true events are handed to a single publishing thread, which sends them over a
+   * long lived transacted session, committing in batches.
+   */
+  @Property(boolValue = false)
+  static final String BATCH_ENABLED = "bridge.batch.enabled";
+
+  /**
+   * The maximum number of events sent per commit.
+   */
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batch.size";
+
+  /**
+   * The maximum time in ms an event waits for its batch to be committed.
+   */
+  @Property(longValue = 50)
+  static final String BATCH_MILLIS = "bridge.batch.millis";
+
+  /**
+   * The number of events that may wait for the publishing thread.
+   */
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queue.size";
+
+  static final String OVERFLOW_DIRECT = "direct";
+  static final String OVERFLOW_BLOCK = "block";
+  static final String OVERFLOW_DROP = "drop";
+
+  /**
+   * What to do with an event when the queue is full: direct sends it from the thread
+   * delivering the event as without batching, block waits up to bridge.queue.block.millis
+   * for space and then drops it, drop discards it.
+   */
+  @Property(value = OVERFLOW_DIRECT, options = {
+      @PropertyOption(name = OVERFLOW_DIRECT, value = "Send directly"),
+      @PropertyOption(name = OVERFLOW_BLOCK, value = "Wait for space, then drop"),
+      @PropertyOption(name = OVERFLOW_DROP, value = "Drop") })
+  static final String QUEUE_OVERFLOW = "bridge.queue.overflow";
+
+  /**
+   * The time in ms to wait for space in the queue with the block overflow policy.
+   */
+  @Property(longValue = 1000)
+  static final String QUEUE_BLOCK_MILLIS = "bridge.queue.block.millis";
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
+  private volatile BatchingJmsPublisher publisher;
+
 
   @Reference
   private ConnectionFactoryService connFactoryService;
@@ -137,6 +186,22 @@ public class OsgiJmsBridge implements EventHandler {
 
     LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
         new Object[] { transacted, acknowledgeMode, connectionClientId });
+
+    stopPublisher();
+    if (PropertiesUtil.toBoolean(props.get(BATCH_ENABLED), false)) {
+      int batchSize = PropertiesUtil.toInteger(props.get(BATCH_SIZE), 100);
+      long batchMillis = PropertiesUtil.toLong(props.get(BATCH_MILLIS), 50);
+      int queueSize = PropertiesUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+      String overflow = PropertiesUtil.toString(props.get(QUEUE_OVERFLOW), OVERFLOW_DIRECT);
+      long blockMillis = OVERFLOW_BLOCK.equals(overflow) ? PropertiesUtil.toLong(
+          props.get(QUEUE_BLOCK_MILLIS), 1000) : 0;
+      publisher = new BatchingJmsPublisher(this,
+          connFactoryService.getDefaultPooledConnectionFactory(), batchSize, batchMillis,
+          queueSize, blockMillis, !OVERFLOW_DIRECT.equals(overflow));
+      publisher.start();
+      LOGGER.info("Batching events, Batch Size: {}, Batch Millis: {}, Queue Size: {}, "
+          + "Overflow: {}", new Object[] { batchSize, batchMillis, queueSize, overflow });
+    }
   }
 
   /**
@@ -145,6 +210,15 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    stopPublisher();
+  }
+
+  private void stopPublisher() {
+    BatchingJmsPublisher p = publisher;
+    publisher = null;
+    if (p != null) {
+      p.stop();
+    }
   }
 
   /**
@@ -158,10 +232,21 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
-
     LOGGER.debug("Processing event {}", event);
     TelemetryCounter.incrementValue("event", "JMSBridge", event.getTopic());
+    BatchingJmsPublisher p = publisher;
+    if (p == null || !p.offer(event)) {
+      sendEvent(event);
+    }
+  }
+
+  /**
+   * Send a single event on its own connection and session, on the calling thread.
+   *
+   * @param event
+   */
+  protected void sendEvent(Event event) {
+    Connection conn = null;
     Session clientSession = null;
     try {
 
@@ -170,11 +255,6 @@ public class OsgiJmsBridge implements EventHandler {
       // post to JMS
       // Sessions are not thread safe, so we need to create and destroy a session, for
       // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
       EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
           .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
 
@@ -195,70 +275,14 @@ public class OsgiJmsBridge implements EventHandler {
 
       clientSession = conn.createSession(transacted, clientAcknowledgeMode);
 
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
-        }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-      }
-
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
-      }
+      Message msg = createMessage(clientSession, event);
+      Destination destination = createDestination(clientSession, event);
       MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List || obj instanceof Object[]) {
-          msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
-        }
-      }
-
-      msg.setStringProperty("clusterServerId", serverId);
-
-      // add the current user
 
       LOGGER.debug("Sending Message {} to {}  ",msg, destination);
       producer.send(msg);
     } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
-      }
+      logJmsException(e);
     } finally {
       try {
         if (conn != null) {
@@ -276,4 +300,87 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
   }
+
+  /**
+   * Create the JMS message for an event, carrying the event properties.
+   *
+   * @param clientSession
+   * @param event
+   * @return
+   * @throws JMSException
+   */
+  Message createMessage(Session clientSession, Event event) throws JMSException {
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+
+    Message msg = clientSession.createMessage();
+
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    if (messageMode != null) {
+      switch (messageMode) {
+      case PERSISTENT:
+        msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+        break;
+      case NON_PERSISTENT:
+      default:
+        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        break;
+      }
+    } else {
+      msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    }
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List || obj instanceof Object[]) {
+        msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+      }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
+  }
+
+  /**
+   * @return a queue for point to point events, otherwise a topic, named after the event
+   *         topic.
+   */
+  static Destination createDestination(Session clientSession, Event event)
+      throws JMSException {
+    if (isPointToPoint(event)) {
+      return clientSession.createQueue(event.getTopic());
+    }
+    return clientSession.createTopic(event.getTopic());
+  }
+
+  /**
+   * @return a key that identifies the destination an event is sent to.
+   */
+  static String getDestinationKey(Event event) {
+    return (isPointToPoint(event) ? "queue:" : "topic:") + event.getTopic();
+  }
+
+  private static boolean isPointToPoint(Event event) {
+    return event.getProperty(EventDeliveryConstants.DELIVERY_MODE) == EventDeliveryMode.P2P;
+  }
+
+  void logJmsException(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
 }
@@ -24,6 +24,8 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Dictionary;
@@ -223,6 +225,64 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  /**
+   * Test that batched events share one transacted session and producer, and are
+   * committed together.
+   */
+  @Test
+  public void testBatchedEvents() throws Exception {
+    compProps.put(OsgiJmsBridge.BATCH_ENABLED, true);
+    compProps.put(OsgiJmsBridge.BATCH_SIZE, 3);
+    compProps.put(OsgiJmsBridge.BATCH_MILLIS, 10000L);
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic("test-event")).andReturn(topic);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prod.send((Message) anyObject());
+    expectLastCall().times(3);
+    sess.commit();
+    prod.close();
+    sess.close();
+    conn.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    for (int i = 0; i < 3; i++) {
+      bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    }
+    bridge.deactivate(ctx);
+
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+  }
+
+  @Test
+  public void testQueueOverflow() {
+    Event e = new Event("test-event", buildEventProperties());
+    BatchingJmsPublisher dropping = new BatchingJmsPublisher(null, connFactory, 10, 10, 1,
+        0, true);
+    assertTrue(dropping.offer(e));
+    assertTrue(dropping.offer(e));
+    assertEquals(1, dropping.getQueued());
+
+    BatchingJmsPublisher direct = new BatchingJmsPublisher(null, connFactory, 10, 10, 1, 0,
+        false);
+    assertTrue(direct.offer(e));
+    // left to the caller to send
+    assertFalse(direct.offer(e));
+    assertEquals(1, direct.getQueued());
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -18,9 +18,13 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
+import com.google.common.collect.Lists;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -29,8 +33,14 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -40,6 +50,20 @@ import javax.servlet.http.HttpServletResponse;
 
 public class StreamHelper {
 
+  static final String HEADER_RANGE = "Range";
+  static final String HEADER_IF_RANGE = "If-Range";
+  static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  static final String HEADER_ETAG = "ETag";
+  static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  static final String HEADER_CONTENT_RANGE = "Content-Range";
+  static final String BYTERANGES_BOUNDARY = "NAKAMURA_BYTERANGES";
+
+  /**
+   * Requests for more ranges than this are answered with the whole body, many small
+   * ranges cost more to serve than the body itself.
+   */
+  static final int MAX_RANGES = 16;
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
     InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
 
@@ -47,18 +71,233 @@ public class StreamHelper {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+
+    try {
+      Map<String, Object> properties = node.getProperties();
+      long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+      long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+      String etag = getETag(modifTime, length);
+      if (etag != null) {
+        response.setHeader(HEADER_ETAG, etag);
+      }
+      if (notModified(request, etag, modifTime)) {
+        response.setStatus(SC_NOT_MODIFIED);
+        return;
+      }
+
+      setHeaders(properties, resource, response, alternativeStream, servletContext);
+      if (length <= 0) {
+        IOUtils.copyLarge(dataStream, response.getOutputStream());
+        return;
+      }
+      response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+
+      List<long[]> ranges = null;
+      String range = request.getHeader(HEADER_RANGE);
+      if (range != null && ifRange(request, etag, modifTime)) {
+        ranges = parseRanges(range, length);
+        if (ranges != null && ranges.isEmpty()) {
+          response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+          response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          return;
+        }
+      }
+
+      if (ranges == null) {
+        setContentLength(response, length);
+        IOUtils.copyLarge(dataStream, response.getOutputStream());
+      } else if (ranges.size() == 1) {
+        long[] r = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(HEADER_CONTENT_RANGE, contentRange(r, length));
+        setContentLength(response, r[1] - r[0] + 1);
+        dataStream = copyRange(contentManager, node.getPath(), alternativeStream, dataStream, 0, r, response.getOutputStream());
+      } else {
+        streamRanges(contentManager, node.getPath(), alternativeStream, dataStream, ranges, length, response);
+      }
+    } finally {
+      dataStream.close();
+    }
+  }
+
+  /**
+   * Writes a multipart/byteranges response, one part per range.
+   */
+  private void streamRanges(ContentManager contentManager, String path, String alternativeStream, InputStream dataStream, List<long[]> ranges, long length, HttpServletResponse response) throws IOException, StorageClientException, AccessDeniedException {
+    String contentType = response.getContentType();
+    response.setStatus(SC_PARTIAL_CONTENT);
+    response.setContentType("multipart/byteranges; boundary=" + BYTERANGES_BOUNDARY);
+
+    OutputStream out = response.getOutputStream();
+    long position = 0;
+    InputStream in = dataStream;
+    try {
+      for (long[] r : ranges) {
+        StringBuilder head = new StringBuilder();
+        head.append("\r\n--").append(BYTERANGES_BOUNDARY).append("\r\n");
+        if (contentType != null) {
+          head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        head.append("Content-Range: ").append(contentRange(r, length)).append("\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        in = copyRange(contentManager, path, alternativeStream, in, position, r, out);
+        position = r[1] + 1;
+      }
+      out.write(("\r\n--" + BYTERANGES_BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+    } finally {
+      if (in != dataStream) {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Copy one range of the body to the output. File backed bodies are positioned and
+   * transferred by their channel, other bodies are read forward from
+   * <code>position</code>, and re-opened if the range starts before it.
+   *
+   * @return the stream to use for the next range.
+   */
+  private InputStream copyRange(ContentManager contentManager, String path, String alternativeStream, InputStream in, long position, long[] range, OutputStream out) throws IOException, StorageClientException, AccessDeniedException {
+    long count = range[1] - range[0] + 1;
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long offset = range[0];
+      while (count > 0) {
+        long sent = channel.transferTo(offset, count, target);
+        if (sent <= 0) {
+          throw new IOException("Body of " + path + " ended before " + offset);
+        }
+        offset += sent;
+        count -= sent;
+      }
+      return in;
+    }
+    if (range[0] < position) {
+      in.close();
+      in = contentManager.getInputStream(path, alternativeStream);
+      position = 0;
+    }
+    long toSkip = range[0] - position;
+    while (toSkip > 0) {
+      long skipped = in.skip(toSkip);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new IOException("Body of " + path + " ended before " + range[0]);
+        }
+        skipped = 1;
+      }
+      toSkip -= skipped;
+    }
+    IOUtils.copyLarge(new BoundedInputStream(in, count), out);
+    return in;
+  }
+
+  /**
+   * Parse a <code>Range</code> header.
+   *
+   * @return the inclusive ranges in the order requested, an empty list if none of them can
+   *         be satisfied, or null if the header should be ignored and the whole body sent.
+   */
+  static List<long[]> parseRanges(String header, long length) {
+    String value = header.trim();
+    if (!value.startsWith("bytes=")) {
+      return null;
+    }
+    List<long[]> ranges = Lists.newArrayList();
+    for (String spec : value.substring("bytes=".length()).split(",")) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first;
+      long last;
+      try {
+        if (dash == 0) {
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          first = Math.max(0, length - suffix);
+          last = length - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, dash));
+          String end = spec.substring(dash + 1);
+          last = end.length() == 0 ? length - 1 : Math.min(Long.parseLong(end), length - 1);
+          if (last < first && end.length() > 0 && Long.parseLong(end) < first) {
+            return null;
+          }
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (first < length && first <= last) {
+        ranges.add(new long[] { first, last });
+      }
+    }
+    if (ranges.size() > MAX_RANGES) {
+      return null;
+    }
+    return ranges;
+  }
+
+  /**
+   * @return true if the <code>If-Range</code> header is absent or still matches the body,
+   *         in which case a <code>Range</code> may be served.
+   */
+  private boolean ifRange(HttpServletRequest request, String etag, long modifTime) {
+    String ifRange = request.getHeader(HEADER_IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return etag != null && etag.equals(ifRange);
+    }
+    long date;
+    try {
+      date = request.getDateHeader(HEADER_IF_RANGE);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    return modifTime > 0 && date >= 0 && modifTime / 1000 == date / 1000;
+  }
+
+  /**
+   * An <code>If-None-Match</code> header takes precedence over
+   * <code>If-Modified-Since</code>.
+   */
+  private boolean notModified(HttpServletRequest request, String etag, long modifTime) {
+    String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      if (etag == null) {
+        return false;
+      }
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if ("*".equals(tag) || etag.equals(tag) || ("W/" + etag).equals(tag)) {
+          return true;
+        }
+      }
+      return false;
     }
+    return unmodified(request, modifTime);
+  }
+
+  /**
+   * @return a strong validator for a body, or null if the body has no modification time.
+   */
+  static String getETag(long modifTime, long length) {
+    if (modifTime <= 0) {
+      return null;
+    }
+    return "\"" + Long.toHexString(modifTime) + "-" + Long.toHexString(length) + "\"";
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  private String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
   }
 
   /**
@@ -128,8 +367,7 @@ public class StreamHelper {
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
@@ -139,4 +377,41 @@ public class StreamHelper {
     }
   }
 
+  /**
+   * Reads no further than a number of bytes into the underlying stream, and leaves it open.
+   */
+  private static class BoundedInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long remaining) {
+      this.in = in;
+      this.remaining = remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+  }
+
 }
@@ -0,0 +1,388 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import org.apache.tika.exception.TikaException;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the text of pooled content away from the indexing thread. Indexing asks for
+ * the text of a stream; if it has not been extracted yet the extraction is queued and
+ * the document is indexed without it. Once the text is ready the path is refreshed so
+ * the document is indexed again, this time with the cached text. The text is held apart
+ * from the LRU cache until that refresh reads it, so that other extractions can not evict
+ * it first and have the document queued again on every refresh.
+ */
+class ContentTextExtractor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ContentTextExtractor.class);
+
+  private static final String BODY_LOCATION = "_bodyLocation";
+  private static final String BODY_LAST_MODIFIED = "_bodyLastModified";
+  /**
+   * How long extracted text waits for its refresh to read it, before it is assumed the
+   * refresh will not come, eg because the document has been deleted.
+   */
+  private static final long PIN_MILLIS = 10L * 60L * 1000L;
+
+  private final TikaService tika;
+  private final Repository repository;
+  private final long maxBytes;
+  private final long maxMillis;
+  private final long maxCachedChars;
+  private final ThreadPoolExecutor executor;
+  /**
+   * Extractions queued or running, by key.
+   */
+  private final ConcurrentMap<String, String> pending = new ConcurrentHashMap<String, String>();
+  /**
+   * Extracted text by key, least recently used first. Guarded by itself.
+   */
+  private final LinkedHashMap<String, String> extracted = new LinkedHashMap<String, String>(
+      16, 0.75f, true);
+  private long cachedChars;
+  /**
+   * Extracted text waiting to be read by the refresh it triggered, by key.
+   */
+  private final ConcurrentMap<String, Pinned> pinned = new ConcurrentHashMap<String, Pinned>();
+
+  /**
+   * @param threads
+   *          the number of documents extracted at once.
+   * @param queue
+   *          the number of extractions that may wait, beyond that extraction is skipped
+   *          until the document is next indexed.
+   * @param maxBytes
+   *          streams larger than this are not extracted.
+   * @param maxMillis
+   *          the time an extraction may spend reading its stream.
+   * @param maxCachedChars
+   *          the number of extracted characters to keep, longer texts are truncated to
+   *          this.
+   */
+  ContentTextExtractor(TikaService tika, Repository repository, int threads, int queue,
+      long maxBytes, long maxMillis, long maxCachedChars) {
+    this.tika = tika;
+    this.repository = repository;
+    this.maxBytes = maxBytes;
+    this.maxMillis = maxMillis;
+    this.maxCachedChars = maxCachedChars;
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "text-extraction-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Get the text of the body of a content item.
+   *
+   * @param content
+   *          the content whose body to extract.
+   * @param refreshPath
+   *          the path to refresh once the text has been extracted.
+   * @return the extracted text, or null if it is not available yet or the body has no
+   *         text.
+   */
+  String getBodyText(Content content, String refreshPath) {
+    Object length = content.getProperty(Content.LENGTH_FIELD);
+    if (length == null) {
+      return null;
+    }
+    if (length instanceof Number && ((Number) length).longValue() > maxBytes) {
+      LOGGER.debug("Not extracting {}, the body is {} bytes", content.getPath(), length);
+      return null;
+    }
+    Object location = content.getProperty(BODY_LOCATION);
+    String key = "body:"
+        + (location != null ? location : content.getPath() + ":"
+            + content.getProperty(BODY_LAST_MODIFIED)) + ":" + length;
+    return getText(key, new BodyExtraction(key, content.getPath(), refreshPath));
+  }
+
+  /**
+   * Get the text of the pages of a document.
+   *
+   * @param pages
+   *          the source of each page.
+   * @param refreshPath
+   *          the path to refresh once the text has been extracted.
+   * @return the extracted text of each page, or null if it is not available yet.
+   */
+  String[] getPageText(String path, List<String> pages, String refreshPath) {
+    if (pages.isEmpty()) {
+      return new String[0];
+    }
+    StringBuilder source = new StringBuilder();
+    for (String page : pages) {
+      source.append(page.length()).append(':').append(page);
+    }
+    String key;
+    try {
+      key = "pages:" + path + ":" + StringUtils.sha1Hash(source.toString());
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.warn(e.getMessage(), e);
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      LOGGER.warn(e.getMessage(), e);
+      return null;
+    }
+    String text = getText(key, new PageExtraction(key, path, pages, refreshPath));
+    return text == null ? null : StringUtils.split(text, '\0');
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private String getText(String key, Extraction extraction) {
+    Pinned p = pinned.remove(key);
+    if (p != null) {
+      store(key, p.text);
+      return p.text;
+    }
+    synchronized (extracted) {
+      String text = extracted.get(key);
+      if (text != null) {
+        return text.length() == 0 ? null : text;
+      }
+    }
+    if (pending.putIfAbsent(key, key) == null) {
+      try {
+        executor.execute(extraction);
+      } catch (RejectedExecutionException e) {
+        pending.remove(key);
+        LOGGER.info("Extraction queue is full, {} will be extracted when next indexed",
+            extraction.path);
+      }
+    }
+    return null;
+  }
+
+  private String truncate(String key, String text) {
+    if (text.length() > maxCachedChars) {
+      // a text larger than the cache would evict itself and be extracted again every time
+      // the document is indexed, so only the start of it is kept.
+      LOGGER.debug("Keeping the first {} of {} characters extracted for {}", new Object[] {
+          maxCachedChars, text.length(), key });
+      return text.substring(0, (int) maxCachedChars);
+    }
+    return text;
+  }
+
+  /**
+   * Hold text until the refresh it triggers reads it, dropping text that has waited too
+   * long.
+   */
+  private void pin(String key, String text) {
+    long now = System.currentTimeMillis();
+    for (Iterator<Pinned> i = pinned.values().iterator(); i.hasNext();) {
+      if (i.next().pinnedAt + PIN_MILLIS < now) {
+        i.remove();
+      }
+    }
+    pinned.put(key, new Pinned(text, now));
+  }
+
+  private void store(String key, String text) {
+    synchronized (extracted) {
+      String previous = extracted.put(key, text);
+      cachedChars += text.length() - (previous == null ? 0 : previous.length());
+      Iterator<String> eldest = extracted.values().iterator();
+      while (cachedChars > maxCachedChars && eldest.hasNext()) {
+        cachedChars -= eldest.next().length();
+        eldest.remove();
+      }
+    }
+  }
+
+  private String parse(InputStream stream) throws IOException, TikaException {
+    return tika.parseToString(new DeadlineInputStream(stream, System.currentTimeMillis()
+        + maxMillis));
+  }
+
+  private static final class Pinned {
+    final String text;
+    final long pinnedAt;
+
+    Pinned(String text, long pinnedAt) {
+      this.text = text;
+      this.pinnedAt = pinnedAt;
+    }
+  }
+
+  private abstract class Extraction implements Runnable {
+    final String key;
+    final String path;
+    final String refreshPath;
+
+    Extraction(String key, String path, String refreshPath) {
+      this.key = key;
+      this.path = path;
+      this.refreshPath = refreshPath;
+    }
+
+    public void run() {
+      Session session = null;
+      try {
+        session = repository.loginAdministrative();
+        String text = extract(session);
+        if (text != null && text.length() > 0) {
+          pin(key, truncate(key, text));
+          session.getContentManager().triggerRefresh(refreshPath);
+        } else {
+          // an empty entry records that there is nothing to extract, so the document is
+          // not queued again until its stream changes.
+          store(key, "");
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Failed to extract text from {}: {}", path, e.getMessage());
+        store(key, "");
+      } catch (TikaException e) {
+        LOGGER.warn("Failed to extract text from {}: {}", path, e.getMessage());
+        store(key, "");
+      } catch (StorageClientException e) {
+        LOGGER.warn(e.getMessage(), e);
+      } catch (AccessDeniedException e) {
+        LOGGER.warn(e.getMessage(), e);
+      } finally {
+        pending.remove(key);
+        if (session != null) {
+          try {
+            session.logout();
+          } catch (ClientPoolException e) {
+            LOGGER.warn(e.getMessage(), e);
+          }
+        }
+      }
+    }
+
+    abstract String extract(Session session) throws IOException, TikaException,
+        StorageClientException, AccessDeniedException;
+  }
+
+  private class BodyExtraction extends Extraction {
+    BodyExtraction(String key, String path, String refreshPath) {
+      super(key, path, refreshPath);
+    }
+
+    @Override
+    String extract(Session session) throws IOException, TikaException,
+        StorageClientException, AccessDeniedException {
+      // tika handles the closing of the input stream
+      InputStream stream = session.getContentManager().getInputStream(path);
+      return stream == null ? null : parse(stream);
+    }
+  }
+
+  private class PageExtraction extends Extraction {
+    private final List<String> pages;
+
+    PageExtraction(String key, String path, List<String> pages, String refreshPath) {
+      super(key, path, refreshPath);
+      this.pages = pages;
+    }
+
+    @Override
+    String extract(Session session) throws IOException, TikaException {
+      StringBuilder text = new StringBuilder();
+      for (String page : pages) {
+        try {
+          String pageText = parse(new ByteArrayInputStream(page.getBytes("UTF-8")));
+          if (pageText.trim().length() > 0) {
+            text.append(pageText.replace('\0', ' ')).append('\0');
+          }
+        } catch (TikaException e) {
+          LOGGER.warn(e.getMessage());
+        }
+      }
+      return text.toString();
+    }
+  }
+
+  /**
+   * Fails the parse once it has read for longer than its budget.
+   */
+  private static class DeadlineInputStream extends FilterInputStream {
+    private final long deadline;
+
+    DeadlineInputStream(InputStream in, long deadline) {
+      super(in);
+      this.deadline = deadline;
+    }
+
+    private void checkDeadline() throws IOException {
+      if (System.currentTimeMillis() > deadline) {
+        throw new IOException("Text extraction took too long");
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkDeadline();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      checkDeadline();
+      return super.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      checkDeadline();
+      return super.skip(n);
+    }
+  }
+}
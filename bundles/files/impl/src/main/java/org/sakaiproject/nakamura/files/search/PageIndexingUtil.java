@@ -55,18 +55,28 @@ public class PageIndexingUtil {
 
   private static List<InputStream> getPageStreams(Content content, ContentManager contentManager) throws PageIndexException {
     List<InputStream> streams = Lists.newArrayList();
+    for (String pageSource : getPageSources(content, contentManager)) {
+      try {
+        streams.add(new ByteArrayInputStream(pageSource.getBytes("UTF-8")));
+      } catch (UnsupportedEncodingException e) {
+        throw new PageIndexException("Could not get bytes from the page property because UTF-8 is an unsupported encoding.");
+      }
+    }
+    return streams;
+  }
+
+  /**
+   * @return the source of each page of a document, ready to have its text extracted.
+   */
+  public static List<String> getPageSources(Content content, ContentManager contentManager) throws PageIndexException {
+    List<String> sources = Lists.newArrayList();
     for (Content page : getPages(content, contentManager)) {
       if (page.hasProperty("page")) {
-        try {
-          // The UX posts a string, but it may have been silently stored as a LongString value.
-          String pageProperty = page.getProperty("page").toString();
-          streams.add(new ByteArrayInputStream(pageProperty.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-          throw new PageIndexException("Could not get bytes from the page property because UTF-8 is an unsupported encoding.");
-        }
+        // The UX posts a string, but it may have been silently stored as a LongString value.
+        sources.add(page.getProperty("page").toString());
       }
     }
-    return streams;
+    return sources;
   }
 
   private static List<Content> getPages(Content content, ContentManager contentManager) throws PageIndexException {
@@ -29,6 +29,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
@@ -36,6 +37,7 @@ import org.apache.solr.common.SolrInputDocument;
 import org.apache.tika.exception.TikaException;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
@@ -84,6 +86,37 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
   @Reference
   private TikaService tika;
 
+  @Reference
+  protected Repository repository;
+
+  /**
+   * If true, text is extracted by a pool of its own and documents are indexed again once
+   * their text is ready. If false, text is extracted while indexing.
+   */
+  @Property(boolValue = true)
+  static final String EXTRACT_ASYNC = "extract.async";
+  @Property(intValue = 2)
+  static final String EXTRACT_THREADS = "extract.threads";
+  @Property(intValue = 100)
+  static final String EXTRACT_QUEUE = "extract.queue";
+  /**
+   * Bodies larger than this many bytes are indexed without their text.
+   */
+  @Property(longValue = 52428800)
+  static final String EXTRACT_MAX_BYTES = "extract.maxbytes";
+  /**
+   * Milliseconds an extraction may spend reading a body.
+   */
+  @Property(longValue = 60000)
+  static final String EXTRACT_MAX_MILLIS = "extract.maxmillis";
+  /**
+   * Number of extracted characters kept for indexing.
+   */
+  @Property(longValue = 10000000)
+  static final String EXTRACT_CACHE_CHARS = "extract.cache.chars";
+
+  private volatile ContentTextExtractor extractor;
+
   private static Map<String, Object> getFieldMap() {
     Builder<String, Object> builder = ImmutableMap.builder();
     builder.put(FilesConstants.POOLED_CONTENT_USER_MANAGER, "manager");
@@ -112,6 +145,14 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
 
   @Activate
   public void activate(Map<String, Object> properties) throws Exception {
+    if (PropertiesUtil.toBoolean(properties.get(EXTRACT_ASYNC), true)) {
+      extractor = new ContentTextExtractor(tika, repository,
+          PropertiesUtil.toInteger(properties.get(EXTRACT_THREADS), 2),
+          PropertiesUtil.toInteger(properties.get(EXTRACT_QUEUE), 100),
+          PropertiesUtil.toLong(properties.get(EXTRACT_MAX_BYTES), 52428800),
+          PropertiesUtil.toLong(properties.get(EXTRACT_MAX_MILLIS), 60000),
+          PropertiesUtil.toLong(properties.get(EXTRACT_CACHE_CHARS), 10000000));
+    }
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.addHandler(type, this);
     }
@@ -122,6 +163,10 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.removeHandler(type, this);
     }
+    if (extractor != null) {
+      extractor.shutdown();
+      extractor = null;
+    }
   }
 
   /**
@@ -190,7 +235,25 @@ public class PoolContentResourceTypeHandler implements IndexingHandler, QoSIndex
                 }
               }
             }
-            if (isPageContent) {
+            ContentTextExtractor textExtractor = extractor;
+            if (textExtractor != null) {
+              // text that has not been extracted yet is added when the extractor
+              // refreshes this path.
+              if (isPageContent) {
+                String[] pages = textExtractor.getPageText(content.getPath(),
+                    PageIndexingUtil.getPageSources(content, contentManager), path);
+                if (pages != null) {
+                  for (String page : pages) {
+                    doc.addField("content", page);
+                  }
+                }
+              } else {
+                String extracted = textExtractor.getBodyText(content, path);
+                if (extracted != null) {
+                  doc.addField("content", extracted);
+                }
+              }
+            } else if (isPageContent) {
               long startIndexing = System.currentTimeMillis();
               PageIndexingUtil.indexAllPages(content, contentManager, doc, tika);
               long finishIndexing = System.currentTimeMillis();
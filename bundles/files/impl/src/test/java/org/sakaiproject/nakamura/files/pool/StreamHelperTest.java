@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StreamHelperTest {
+
+  private static final String BODY = "0123456789";
+  private static final long MODIFIED = 1300000000000L;
+
+  @Mock
+  private HttpServletRequest request;
+
+  @Mock
+  private HttpServletResponse response;
+
+  @Mock
+  private ContentManager contentManager;
+
+  @Mock
+  private Resource resource;
+
+  private Content content;
+  private ByteArrayOutputStream output;
+
+  @Before
+  public void setUp() throws Exception {
+    content = new Content("/p/abc", ImmutableMap.<String, Object> of(
+        Content.LENGTH_FIELD, (long) BODY.length(), Content.LASTMODIFIED_FIELD, MODIFIED,
+        Content.MIMETYPE_FIELD, "text/plain"));
+    when(contentManager.getInputStream("/p/abc", null)).thenReturn(
+        new ByteArrayInputStream(BODY.getBytes("UTF-8")),
+        new ByteArrayInputStream(BODY.getBytes("UTF-8")));
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+    output = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        output.write(b);
+      }
+    });
+  }
+
+  @Test
+  public void parseRanges() {
+    assertRange(StreamHelper.parseRanges("bytes=0-4", 10), 0, 4);
+    assertRange(StreamHelper.parseRanges("bytes=5-", 10), 5, 9);
+    assertRange(StreamHelper.parseRanges("bytes=-3", 10), 7, 9);
+    assertRange(StreamHelper.parseRanges("bytes=8-100", 10), 8, 9);
+    assertTrue(StreamHelper.parseRanges("bytes=10-", 10).isEmpty());
+    assertNull(StreamHelper.parseRanges("bytes=5-1", 10));
+    assertNull(StreamHelper.parseRanges("items=0-1", 10));
+    assertEquals(2, StreamHelper.parseRanges("bytes=0-1, 4-5", 10).size());
+  }
+
+  @Test
+  public void wholeBody() throws Exception {
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    assertEquals(BODY, output.toString("UTF-8"));
+    verify(response).setHeader("Accept-Ranges", "bytes");
+    verify(response).setContentLength(10);
+  }
+
+  @Test
+  public void singleRange() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=2-5");
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    assertEquals("2345", output.toString("UTF-8"));
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(response).setHeader("Content-Range", "bytes 2-5/10");
+    verify(response).setContentLength(4);
+  }
+
+  @Test
+  public void multipleRangesOutOfOrder() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=6-7,1-2");
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    String body = output.toString("UTF-8");
+    assertTrue(body.contains("Content-Range: bytes 6-7/10\r\n\r\n67\r\n"));
+    assertTrue(body.contains("Content-Range: bytes 1-2/10\r\n\r\n12\r\n"));
+    assertTrue(body.endsWith("--" + StreamHelper.BYTERANGES_BOUNDARY + "--\r\n"));
+  }
+
+  @Test
+  public void staleIfRangeSendsWholeBody() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=2-5");
+    when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    assertEquals(BODY, output.toString("UTF-8"));
+  }
+
+  @Test
+  public void unsatisfiableRange() throws Exception {
+    when(request.getHeader("Range")).thenReturn("bytes=20-");
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    verify(response).setHeader("Content-Range", "bytes */10");
+    verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  @Test
+  public void matchingETagIsNotModified() throws Exception {
+    when(request.getHeader("If-None-Match")).thenReturn(
+        StreamHelper.getETag(MODIFIED, BODY.length()));
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(0, output.size());
+  }
+
+  private void assertRange(List<long[]> ranges, long first, long last) {
+    assertEquals(1, ranges.size());
+    assertArrayEquals(new long[] { first, last }, ranges.get(0));
+  }
+}
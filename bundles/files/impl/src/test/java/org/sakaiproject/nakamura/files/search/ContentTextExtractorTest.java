@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the ContentTextExtractor class.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ContentTextExtractorTest {
+
+  private final static String PATH = "/p/abc";
+
+  @Mock
+  private TikaService tika;
+
+  @Mock
+  private Repository repository;
+
+  @Mock
+  private Session session;
+
+  @Mock
+  private ContentManager contentManager;
+
+  private ContentTextExtractor extractor;
+
+  @Before
+  public void setUp() throws Exception {
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    extractor = new ContentTextExtractor(tika, repository, 1, 10, 1000, 60000, 1000);
+  }
+
+  @After
+  public void tearDown() {
+    extractor.shutdown();
+  }
+
+  @Test
+  public void bodyTextIsExtractedOffThreadThenRefreshed() throws Exception {
+    when(contentManager.getInputStream(PATH)).thenReturn(
+        new ByteArrayInputStream("body".getBytes("UTF-8")));
+    when(tika.parseToString(any(InputStream.class))).thenReturn("extracted");
+    Content content = body(4L);
+
+    assertNull(extractor.getBodyText(content, PATH));
+    verify(contentManager, timeout(5000)).triggerRefresh(PATH);
+    assertEquals("extracted", extractor.getBodyText(content, PATH));
+  }
+
+  @Test
+  public void oversizedBodyIsNotExtracted() throws Exception {
+    assertNull(extractor.getBodyText(body(1001L), PATH));
+    Thread.sleep(100);
+    verify(repository, never()).loginAdministrative();
+  }
+
+  @Test
+  public void textLargerThanTheCacheIsTruncatedNotExtractedAgain() throws Exception {
+    when(contentManager.getInputStream(PATH)).thenReturn(
+        new ByteArrayInputStream("body".getBytes("UTF-8")));
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 1500; i++) {
+      large.append('x');
+    }
+    when(tika.parseToString(any(InputStream.class))).thenReturn(large.toString());
+    Content content = body(4L);
+
+    assertNull(extractor.getBodyText(content, PATH));
+    verify(contentManager, timeout(5000)).triggerRefresh(PATH);
+    assertEquals(large.substring(0, 1000), extractor.getBodyText(content, PATH));
+    assertEquals(large.substring(0, 1000), extractor.getBodyText(content, PATH));
+    verify(repository, times(1)).loginAdministrative();
+  }
+
+  @Test
+  public void textIsKeptUntilItsRefreshReadsIt() throws Exception {
+    when(contentManager.getInputStream(PATH)).thenReturn(
+        new ByteArrayInputStream("body".getBytes("UTF-8")));
+    when(contentManager.getInputStream(PATH + "2")).thenReturn(
+        new ByteArrayInputStream("body".getBytes("UTF-8")));
+    StringBuilder first = new StringBuilder();
+    StringBuilder second = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      first.append('x');
+      second.append('y');
+    }
+    when(tika.parseToString(any(InputStream.class))).thenReturn(first.toString(),
+        second.toString());
+    Content content = body(4L);
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(Content.LENGTH_FIELD, 4L);
+    props.put("_bodyLocation", "2012/1/ab/cd/eg");
+    Content other = new Content(PATH + "2", props);
+
+    // both texts fill the cache, the second must not evict the first before it is indexed
+    assertNull(extractor.getBodyText(content, PATH));
+    verify(contentManager, timeout(5000)).triggerRefresh(PATH);
+    assertNull(extractor.getBodyText(other, PATH + "2"));
+    verify(contentManager, timeout(5000)).triggerRefresh(PATH + "2");
+    assertEquals(first.toString(), extractor.getBodyText(content, PATH));
+    assertEquals(second.toString(), extractor.getBodyText(other, PATH + "2"));
+    verify(repository, times(2)).loginAdministrative();
+  }
+
+  @Test
+  public void pageTextIsCachedBySource() throws Exception {
+    when(tika.parseToString(any(InputStream.class))).thenReturn("one", "two");
+    ImmutableList<String> pages = ImmutableList.of("<p>one</p>", "<p>two</p>");
+
+    assertNull(extractor.getPageText(PATH, pages, PATH + "/id1"));
+    verify(contentManager, timeout(5000)).triggerRefresh(PATH + "/id1");
+    String[] text = extractor.getPageText(PATH, pages, PATH + "/id1");
+    assertEquals(2, text.length);
+    assertEquals("one", text[0]);
+    assertEquals("two", text[1]);
+
+    assertNull(extractor.getPageText(PATH, ImmutableList.of("<p>three</p>"), PATH
+        + "/id1"));
+  }
+
+  private Content body(long length) {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(Content.LENGTH_FIELD, length);
+    props.put("_bodyLocation", "2012/1/ab/cd/ef");
+    return new Content(PATH, props);
+  }
+}
@@ -21,45 +21,256 @@ import org.sakaiproject.nakamura.api.http.cache.Operation;
 import org.sakaiproject.nakamura.http.cache.OperationResponseCapture;
 import org.sakaiproject.nakamura.http.cache.OperationResponseReplay;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
 /**
-  A pojo to contain the response redo log and content.
+  A pojo to contain the response redo log and content. The strong ETag of the body and,
+  where it is worth it, a gzipped copy of the body are computed once when the response
+  is saved so that replays only have to compare and copy. The identity and gzip bodies
+  are different entities, so each has its own ETag.
+  <p>
+  The ETag, Last-Modified and Vary headers the response set are not replayed, the sender
+  of the cached response sets them from {@link #getEtag()}, {@link #getLastModified()}
+  and {@link #getVary()}.
  */
 public class CachedResponse implements Serializable {
 
   /**
    *
    */
-  private static final long serialVersionUID = -533080549451000116L;
+  private static final long serialVersionUID = -533080549451000117L;
+  /**
+   * Bodies smaller than this are not worth compressing.
+   */
+  private static final int MIN_GZIP_SIZE = 256;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final Set<String> SENDER_HEADERS = Collections.unmodifiableSet(new HashSet<String>(
+      Arrays.asList("etag", "last-modified", "vary")));
   private long expires;
+  private long lastModified;
+  private String etag;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
+  private byte[] gzipContent;
+  private String vary;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
-    expires = System.currentTimeMillis() + cacheAge*1000L;
-    responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
+    lastModified = System.currentTimeMillis();
+    expires = lastModified + cacheAge*1000L;
+    responseOperation.setDateHeader("X-Nakamura-Cache", lastModified);
     operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+    byte[] body = getBody();
+    etag = computeEtag(body);
+    if (body.length >= MIN_GZIP_SIZE && !isEncoded()) {
+      byte[] gzipped = gzip(body);
+      if (gzipped.length < body.length) {
+        gzipContent = gzipped;
+      }
+    }
+    vary = computeVary();
   }
 
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * @return a strong entity tag for the body of the response, including the quotes.
+   */
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * @return a strong entity tag for the gzipped body of the response, including the
+   *         quotes.
+   */
+  public String getGzipEtag() {
+    return etag.substring(0, etag.length() - 1) + "-gzip\"";
+  }
+
+  /**
+   * @return the value of the Vary header to send, the request headers the response set as
+   *         varying with plus Accept-Encoding if a gzipped body is held, or null for none.
+   */
+  public String getVary() {
+    return vary;
+  }
+
+  /**
+   * @return the time the response was captured, in ms.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * @return true if a gzipped copy of the body is held.
+   */
+  public boolean hasGzipContent() {
+    return gzipContent != null;
+  }
+
+  /**
+   * @return an estimate of the number of bytes this response occupies in memory.
+   */
+  public long getSize() {
+    long size = 64L + operations.length * 64L;
+    if (stringContent != null) {
+      size += stringContent.length() * 2L;
+    }
+    if (byteContent != null) {
+      size += byteContent.length;
+    }
+    if (gzipContent != null) {
+      size += gzipContent.length;
+    }
+    return size;
+  }
+
   public void replay(HttpServletResponse response) throws IOException {
-    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
+    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent, SENDER_HEADERS);
     responseOperation.replay(response);
   }
 
+  /**
+   * Replay the response with the gzipped body, the caller must have checked that the
+   * client accepts gzip and that {@link #hasGzipContent()}.
+   *
+   * @param response
+   * @throws IOException
+   */
+  public void replayGzip(HttpServletResponse response) throws IOException {
+    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, gzipContent, null, SENDER_HEADERS);
+    responseOperation.replayEncoded(response, "gzip");
+  }
+
   @Override
   public String toString() {
     return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
   }
 
+  /**
+   * @return the body as it will be written, character content is encoded with the
+   *         character encoding the response set.
+   */
+  private byte[] getBody() throws UnsupportedEncodingException {
+    if (stringContent != null) {
+      return stringContent.getBytes(getCharacterEncoding());
+    } else if (byteContent != null) {
+      return byteContent;
+    }
+    return new byte[0];
+  }
+
+  private String getCharacterEncoding() {
+    String encoding = "ISO-8859-1";
+    for (Operation o : operations) {
+      if (o.getOperation() == OperationResponseCapture.SET_CHARACTER_ENCODING) {
+        encoding = o.get(0);
+      } else if (o.getOperation() == OperationResponseCapture.SET_CONTENT_TYPE) {
+        String contentType = o.get(0);
+        int i = (contentType == null) ? -1 : contentType.toLowerCase().indexOf("charset=");
+        if (i >= 0) {
+          encoding = contentType.substring(i + "charset=".length()).trim();
+        }
+      }
+    }
+    try {
+      "".getBytes(encoding);
+      return encoding;
+    } catch (UnsupportedEncodingException e) {
+      return "ISO-8859-1";
+    }
+  }
+
+  private boolean isEncoded() {
+    for (Operation o : operations) {
+      int op = o.getOperation();
+      if ((op == OperationResponseCapture.SET_HEADER || op == OperationResponseCapture.ADD_HEADER)
+          && "content-encoding".equalsIgnoreCase((String) o.get(0))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String computeVary() {
+    Set<String> fields = new LinkedHashSet<String>();
+    for (Operation o : operations) {
+      int op = o.getOperation();
+      if ((op == OperationResponseCapture.SET_HEADER || op == OperationResponseCapture.ADD_HEADER)
+          && "vary".equalsIgnoreCase((String) o.get(0))) {
+        if (op == OperationResponseCapture.SET_HEADER) {
+          fields.clear();
+        }
+        for (String field : ((String) o.get(1)).split(",")) {
+          if (field.trim().length() > 0) {
+            fields.add(field.trim());
+          }
+        }
+      }
+    }
+    if (gzipContent != null && !containsIgnoreCase(fields, "Accept-Encoding")) {
+      fields.add("Accept-Encoding");
+    }
+    if (fields.isEmpty()) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String field : fields) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(field);
+    }
+    return sb.toString();
+  }
+
+  private static boolean containsIgnoreCase(Set<String> values, String value) {
+    for (String v : values) {
+      if (v.equalsIgnoreCase(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String computeEtag(byte[] body) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(body);
+      char[] hex = new char[digest.length * 2];
+      for (int i = 0; i < digest.length; i++) {
+        hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+        hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+      }
+      return "\"" + new String(hex) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      return "\"" + Integer.toHexString(Arrays.hashCode(body)) + "-" + body.length + "\"";
+    }
+  }
+
+  private static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length / 2);
+    GZIPOutputStream gzip = new GZIPOutputStream(baos);
+    gzip.write(body);
+    gzip.close();
+    return baos.toByteArray();
+  }
 }
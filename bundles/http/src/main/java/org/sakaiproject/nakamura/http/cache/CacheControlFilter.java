@@ -29,8 +29,7 @@ import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
 import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 
 import java.io.IOException;
@@ -38,6 +37,10 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.servlet.Filter;
@@ -75,6 +78,9 @@ import javax.servlet.http.HttpServletResponse;
     @Property(name = "service.vendor", value = "The Sakai Foundation")})
 public class CacheControlFilter implements Filter {
 
+  private static final LatencyHistogram HIT_LATENCY = TelemetryCounter.getHistogram("http", "CacheControlFilter", "hit");
+  private static final LatencyHistogram RENDER_LATENCY = TelemetryCounter.getHistogram("http", "CacheControlFilter", "render");
+
   /**
    * map of expiry times for whole subtrees
    */
@@ -100,9 +106,36 @@ public class CacheControlFilter implements Filter {
   @Property(intValue=5)
   private static final String FILTER_PRIORITY_CONF = "filter.priority";
 
-  
-  @Reference 
-  protected CacheManagerService cacheManagerService;
+  private static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+  private static final long DEFAULT_MAX_ENTRY_BYTES = 1024L * 1024L;
+  private static final long DEFAULT_COALESCE_TIMEOUT = 10000L;
+
+  /**
+   * Total size of all the responses held in the request cache.
+   */
+  @Property(longValue=DEFAULT_MAX_BYTES)
+  static final String SAKAI_CACHE_MAX_BYTES = "sakai.cache.maxbytes";
+
+  /**
+   * Size of the largest response that will be held in the request cache.
+   */
+  @Property(longValue=DEFAULT_MAX_ENTRY_BYTES)
+  static final String SAKAI_CACHE_MAX_ENTRY_BYTES = "sakai.cache.maxentrybytes";
+
+  /**
+   * How long, in ms, a request waits for another request rendering the same response.
+   */
+  @Property(longValue=DEFAULT_COALESCE_TIMEOUT)
+  static final String SAKAI_CACHE_COALESCE_TIMEOUT = "sakai.cache.coalescetimeout";
+
+  private WeightedResponseCache responseCache = new WeightedResponseCache(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+  private long maxEntryBytes = DEFAULT_MAX_ENTRY_BYTES;
+  private long coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+
+  /**
+   * Responses currently being rendered, by cache key.
+   */
+  private final ConcurrentMap<String, CountDownLatch> renders = new ConcurrentHashMap<String, CountDownLatch>();
   
   @Reference
   protected ExtHttpService extHttpService;
@@ -161,34 +194,71 @@ public class CacheControlFilter implements Filter {
       sresponse.setStatus(respCode);
       sresponse.flushBuffer();
     } else {
+      CountDownLatch rendering = null;
       if ( cacheAge > 0 ) {
         cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
         if ( cachedResponseManager.isValid() ) {
           TelemetryCounter.incrementValue("http", "CacheControlFilter-hit", path);
-          cachedResponseManager.send(sresponse);
+          long start = System.nanoTime();
+          cachedResponseManager.send(srequest, sresponse, withLastModfied);
+          HIT_LATENCY.recordSince(start);
+          return;
+        }
+        // only one request renders a missing response, the others wait for it and replay
+        // the result.
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch inProgress = renders.putIfAbsent(cachedResponseManager.getKey(), latch);
+        if ( inProgress == null ) {
+          rendering = latch;
+        } else if ( awaitRender(inProgress) && cachedResponseManager.reload() ) {
+          TelemetryCounter.incrementValue("http", "CacheControlFilter-coalesced", path);
+          cachedResponseManager.send(srequest, sresponse, withLastModfied);
           return;
         }
       }
-      if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
-        fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
-      }
-      if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
-        if ( cachedResponseManager != null ) {
-          TelemetryCounter.incrementValue("http", "CacheControlFilter-save", path);
-          cachedResponseManager.save(fresponse.getResponseOperation());
+      try {
+        if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
+          fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null, (int) maxEntryBytes);
+        }
+        if ( fresponse != null ) {
+          long start = System.nanoTime();
+          chain.doFilter(request, fresponse);
+          RENDER_LATENCY.recordSince(start);
+          if ( cachedResponseManager != null ) {
+            TelemetryCounter.incrementValue("http", "CacheControlFilter-save", path);
+            cachedResponseManager.save(fresponse.getResponseOperation());
+          } else {
+            TelemetryCounter.incrementValue("http", "CacheControlFilter-nosave", path);
+          }
         } else {
-          TelemetryCounter.incrementValue("http", "CacheControlFilter-nosave", path);
+          TelemetryCounter.incrementValue("http", "CacheControlFilter-noop", path);
+          chain.doFilter(request, response);
+        }
+      } finally {
+        if ( rendering != null ) {
+          renders.remove(cachedResponseManager.getKey(), rendering);
+          rendering.countDown();
         }
-      } else {
-        TelemetryCounter.incrementValue("http", "CacheControlFilter-noop", path);
-        chain.doFilter(request, response);
       }
     }
   }
 
-  private Cache<CachedResponse> getCache() {
-    return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE);
+  /**
+   * Wait for another request to finish rendering a response.
+   *
+   * @return true if the render completed in time.
+   */
+  private boolean awaitRender(CountDownLatch inProgress) {
+    try {
+      return inProgress.await(coalesceTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  Cache<CachedResponse> getCache() {
+    return responseCache;
   }
 
 
@@ -267,6 +337,11 @@ public class CacheControlFilter implements Filter {
       rootPathPatterns = new HashMap<Pattern, Map<String, String>>();
     }
 
+    long maxBytes = PropertiesUtil.toLong(properties.get(SAKAI_CACHE_MAX_BYTES), DEFAULT_MAX_BYTES);
+    maxEntryBytes = Math.min(Integer.MAX_VALUE, PropertiesUtil.toLong(properties.get(SAKAI_CACHE_MAX_ENTRY_BYTES), DEFAULT_MAX_ENTRY_BYTES));
+    coalesceTimeout = PropertiesUtil.toLong(properties.get(SAKAI_CACHE_COALESCE_TIMEOUT), DEFAULT_COALESCE_TIMEOUT);
+    responseCache = new WeightedResponseCache(maxBytes, maxEntryBytes);
+
     int filterPriority = PropertiesUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),0);
 
     extHttpService.registerFilter(this, ".*", null, filterPriority, null);
@@ -277,6 +352,7 @@ public class CacheControlFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    responseCache.clear();
   }
 
   private Map<String, String> toMap(int starting, String[] cp) {
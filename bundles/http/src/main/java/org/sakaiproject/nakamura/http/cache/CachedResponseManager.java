@@ -23,6 +23,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -30,6 +33,7 @@ import javax.servlet.http.HttpServletResponse;
 public class CachedResponseManager {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CachedResponseManager.class);
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
   private int cacheAge;
   private String key;
   private Cache<CachedResponse> cache;
@@ -42,10 +46,45 @@ public class CachedResponseManager {
     this.cachedResponse = load();
   }
 
-  private String hashKey(String key) {
+  /**
+   * @return a fixed width key for the request, the hex SHA-1 of the path and query string,
+   *         so that long query strings do not make for long cache keys.
+   */
+  static String hashKey(String key) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(key.getBytes("UTF-8"));
+      char[] hex = new char[digest.length * 2];
+      for (int i = 0; i < digest.length; i++) {
+        hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+        hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+      }
+      return new String(hex);
+    } catch (NoSuchAlgorithmException e) {
+      return key;
+    } catch (UnsupportedEncodingException e) {
+      return key;
+    }
+  }
+
+  /**
+   * @return the key the response is cached under.
+   */
+  public String getKey() {
     return key;
   }
 
+  /**
+   * Look the response up in the cache again, used after waiting for another request to
+   * render it.
+   *
+   * @return true if a valid response is now available.
+   */
+  public boolean reload() {
+    cachedResponse = load();
+    return isValid();
+  }
+
   /**
    * @return true if the CacheResponse is current and valid.
    */
@@ -76,6 +115,94 @@ public class CachedResponseManager {
   public void send(HttpServletResponse response) throws IOException {
     cachedResponse.replay(response);
   }
+
+  /**
+   * Send the cached response, or a 304 with no body if the client already has it. The
+   * gzipped body is sent to clients that accept it, with an ETag of its own.
+   *
+   * @param request
+   * @param response
+   * @param withLastModified
+   *          true if a Last-Modified header may be sent and If-Modified-Since honoured.
+   * @throws IOException
+   */
+  public void send(HttpServletRequest request, HttpServletResponse response,
+      boolean withLastModified) throws IOException {
+    boolean gzip = cachedResponse.hasGzipContent() && acceptsGzip(request);
+    String etag = gzip ? cachedResponse.getGzipEtag() : cachedResponse.getEtag();
+    response.setHeader("ETag", etag);
+    if (withLastModified) {
+      response.setDateHeader("Last-Modified", cachedResponse.getLastModified());
+    }
+    String vary = cachedResponse.getVary();
+    if (vary != null) {
+      if (response.containsHeader("Vary")) {
+        response.addHeader("Vary", vary);
+      } else {
+        response.setHeader("Vary", vary);
+      }
+    }
+    if (isNotModified(request, etag, withLastModified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    if (gzip) {
+      cachedResponse.replayGzip(response);
+    } else {
+      cachedResponse.replay(response);
+    }
+  }
+
+  /**
+   * If-None-Match takes precedence over If-Modified-Since, as in RFC 2616 14.26.
+   */
+  private boolean isNotModified(HttpServletRequest request, String etag,
+      boolean withLastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        if ("*".equals(candidate) || etag.equals(candidate)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (withLastModified) {
+      try {
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        // http dates only have a resolution of seconds.
+        return ifModifiedSince >= 0
+            && ifModifiedSince >= (cachedResponse.getLastModified() / 1000L) * 1000L;
+      } catch (IllegalArgumentException e) {
+        LOGGER.debug("Ignoring unparsable If-Modified-Since {} ", e.getMessage());
+      }
+    }
+    return false;
+  }
+
+  private boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+        for (int i = 1; i < parts.length; i++) {
+          String p = parts[i].trim().replace(" ", "");
+          if (p.equals("q=0") || p.equals("q=0.0") || p.equals("q=0.00") || p.equals("q=0.000")) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
   
   @Override
   public String toString() {
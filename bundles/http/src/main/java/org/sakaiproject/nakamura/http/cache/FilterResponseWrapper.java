@@ -36,15 +36,22 @@ public class FilterResponseWrapper extends HttpServletResponseWrapper {
   private boolean withCookies;
   private boolean withLastModified;
   private boolean captureResponse;
-  private OperationResponseCapture capture = new OperationResponseCapture();
+  private OperationResponseCapture capture;
 
   public FilterResponseWrapper(HttpServletResponse wrappedResponse, boolean withLastModfied, boolean withCookies, boolean captureResponse) {
+    this(wrappedResponse, withLastModfied, withCookies, captureResponse, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param maxCaptureSize
+   *          the largest body that will be captured for caching, larger bodies are passed
+   *          through uncaptured.
+   */
+  public FilterResponseWrapper(HttpServletResponse wrappedResponse, boolean withLastModfied, boolean withCookies, boolean captureResponse, int maxCaptureSize) {
     super(wrappedResponse);
     this.withCookies = withCookies;
     this.withLastModified = withLastModfied;
-    if ( captureResponse ) {
-      capture = new OperationResponseCapture();
-    }
+    capture = new OperationResponseCapture(captureResponse ? maxCaptureSize : 0);
     this.captureResponse = captureResponse;
   }
   
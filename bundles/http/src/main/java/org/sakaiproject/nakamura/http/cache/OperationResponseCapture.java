@@ -52,9 +52,20 @@ public class OperationResponseCapture {
   private boolean cacheable;
   private SplitWriter splitWriter;
   private List<Operation> operations = new ArrayList<Operation>();
+  private int maxContentSize;
 
   public OperationResponseCapture() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param maxContentSize
+   *          the largest body, in bytes or characters, that will be captured. Responses
+   *          with a larger body are passed through but can't be cached.
+   */
+  public OperationResponseCapture(int maxContentSize) {
     cacheable = true;
+    this.maxContentSize = maxContentSize;
     resetRedoLog();
   }
 
@@ -63,7 +74,7 @@ public class OperationResponseCapture {
       throw new IllegalStateException();
     }
     if (writer == null) {
-      splitWriter = new SplitWriter(baseWriter);
+      splitWriter = new SplitWriter(baseWriter, maxContentSize);
       writer = new PrintWriter(splitWriter);
     }
     return writer;
@@ -74,7 +85,7 @@ public class OperationResponseCapture {
       throw new IllegalStateException();
     }
     if (outputStream == null) {
-      outputStream = new SplitOutputStream(baseStream);
+      outputStream = new SplitOutputStream(baseStream, maxContentSize);
     }
     return outputStream;
   }
@@ -213,6 +224,12 @@ public class OperationResponseCapture {
   }
 
   public boolean canCache() {
+    if (outputStream != null && outputStream.isOverflowed()) {
+      return false;
+    }
+    if (splitWriter != null && splitWriter.isOverflowed()) {
+      return false;
+    }
     return cacheable;
   }
 
@@ -21,7 +21,9 @@ import org.sakaiproject.nakamura.api.http.cache.Operation;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Locale;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -34,11 +36,22 @@ public class OperationResponseReplay implements Serializable {
   private Operation[] operations;
   private String stringContent;
   private byte[] byteContent;
+  private Set<String> skipHeaders;
 
   public OperationResponseReplay(Operation[] operations, byte[] byteContent, String stringContent) {
+    this(operations, byteContent, stringContent, Collections.<String>emptySet());
+  }
+
+  /**
+   * @param skipHeaders
+   *          the lower case names of headers that are not replayed, because the caller
+   *          sets them itself.
+   */
+  public OperationResponseReplay(Operation[] operations, byte[] byteContent, String stringContent, Set<String> skipHeaders) {
     this.operations = operations.clone();
-    this.byteContent = byteContent.clone();
+    this.byteContent = (byteContent == null) ? null : byteContent.clone();
     this.stringContent = stringContent;
+    this.skipHeaders = skipHeaders;
   }
 
   /**
@@ -46,10 +59,41 @@ public class OperationResponseReplay implements Serializable {
    * @param response
    * @throws IOException
    */
-  @SuppressWarnings("deprecation")
   public void replay(HttpServletResponse response) throws IOException {
+    replayOperations(response, false);
+
+     if ( stringContent != null  ) {
+       response.getWriter().write(stringContent);
+     } else if ( byteContent != null ){
+       response.getOutputStream().write(byteContent);
+     }
+
+  }
+
+  /**
+   * Replay the cached request with a body that has already been encoded, the content
+   * length captured with the original body is replaced by the length of the encoded body.
+   * @param response
+   * @param contentEncoding the encoding of the body, eg gzip
+   * @throws IOException
+   */
+  public void replayEncoded(HttpServletResponse response, String contentEncoding) throws IOException {
+    replayOperations(response, true);
+    response.setHeader("Content-Encoding", contentEncoding);
+    response.setContentLength(byteContent.length);
+    response.getOutputStream().write(byteContent);
+  }
+
+  @SuppressWarnings("deprecation")
+  private void replayOperations(HttpServletResponse response, boolean skipContentLength) {
     for ( Operation o : operations ) {
       int op = o.getOperation();
+      if ( skipContentLength && op == OperationResponseCapture.SET_CONTENT_LENGTH ) {
+        continue;
+      }
+      if ( isHeader(op) && skipHeaders.contains(((String)o.get(0)).toLowerCase()) ) {
+        continue;
+      }
       switch (op) {
       case OperationResponseCapture.ADD_DATE_HEADER:
         response.addDateHeader((String)o.get(0),(Long)o.get(1));
@@ -89,14 +133,20 @@ public class OperationResponseReplay implements Serializable {
         break;
       }
     }
-
-     if ( stringContent != null  ) {
-       response.getWriter().write(stringContent);
-     } else if ( byteContent != null ){
-       response.getOutputStream().write(byteContent);
-     }
-
   }
 
+  static boolean isHeader(int op) {
+    switch (op) {
+    case OperationResponseCapture.ADD_DATE_HEADER:
+    case OperationResponseCapture.ADD_HEADER:
+    case OperationResponseCapture.ADD_INT_HEADER:
+    case OperationResponseCapture.SET_DATE_HEADER:
+    case OperationResponseCapture.SET_HEADER:
+    case OperationResponseCapture.SET_INT_HEADER:
+      return true;
+    default:
+      return false;
+    }
+  }
 
 }
@@ -27,16 +27,59 @@ public class SplitOutputStream extends ServletOutputStream {
   
   private ServletOutputStream baseStream;
   private ByteArrayOutputStream store;
+  private int maxBytes;
+  private boolean overflowed;
 
   public SplitOutputStream(ServletOutputStream baseStream) {
+    this(baseStream, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param baseStream
+   * @param maxBytes
+   *          the most bytes to keep a copy of, once more than this has been written the
+   *          copy is dropped and only the base stream is written to.
+   */
+  public SplitOutputStream(ServletOutputStream baseStream, int maxBytes) {
     store = new ByteArrayOutputStream();
     this.baseStream = baseStream;
+    this.maxBytes = maxBytes;
   }
 
   @Override
   public void write(int b) throws IOException {
     baseStream.write(b);
-    store.write(b);
+    if (!overflowed) {
+      if (store.size() < maxBytes) {
+        store.write(b);
+      } else {
+        overflow();
+      }
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    baseStream.write(b, off, len);
+    if (!overflowed) {
+      if (store.size() + len <= maxBytes) {
+        store.write(b, off, len);
+      } else {
+        overflow();
+      }
+    }
+  }
+
+  private void overflow() {
+    overflowed = true;
+    store = new ByteArrayOutputStream(0);
+  }
+
+  /**
+   * @return true if more than the maximum number of bytes was written and no copy was kept.
+   */
+  public boolean isOverflowed() {
+    return overflowed;
   }
   
   @Override
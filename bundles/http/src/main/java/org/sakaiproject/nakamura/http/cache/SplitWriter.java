@@ -27,16 +27,44 @@ public class SplitWriter extends Writer {
   
   private PrintWriter baseWriter;
   private StringWriter store;
+  private int maxChars;
+  private boolean overflowed;
 
   public SplitWriter(PrintWriter baseWriter) {
+    this(baseWriter, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param baseWriter
+   * @param maxChars
+   *          the most characters to keep a copy of, once more than this has been written
+   *          the copy is dropped and only the base writer is written to.
+   */
+  public SplitWriter(PrintWriter baseWriter, int maxChars) {
     this.baseWriter = baseWriter;
     this.store = new StringWriter();
+    this.maxChars = maxChars;
   }
 
   @Override
   public void write(char[] cbuf, int off, int len) throws IOException {
     baseWriter.write(cbuf, off, len);
-    store.write(cbuf,off,len);
+    if (!overflowed) {
+      if (store.getBuffer().length() + len <= maxChars) {
+        store.write(cbuf, off, len);
+      } else {
+        overflowed = true;
+        store = new StringWriter(0);
+      }
+    }
+  }
+
+  /**
+   * @return true if more than the maximum number of characters was written and no copy
+   *         was kept.
+   */
+  public boolean isOverflowed() {
+    return overflowed;
   }
 
   @Override
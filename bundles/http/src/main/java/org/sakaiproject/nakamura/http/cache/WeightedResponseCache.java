@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An LRU cache of {@link CachedResponse}s bounded by the total size of the responses
+ * rather than by their number, so that one large response evicts as many small ones as
+ * it needs room for and no more. Responses larger than the per entry limit are not
+ * cached at all.
+ * <p>
+ * The cache is split into segments by key, each an access ordered map under its own lock
+ * with an equal share of the size budget, so that concurrent requests only contend when
+ * their keys fall in the same segment. Eviction is LRU per segment. Segments are only
+ * added while each can still hold several of the largest responses, so small caches keep a
+ * single segment and an exact LRU order.
+ */
+public class WeightedResponseCache implements Cache<CachedResponse> {
+
+  private static final MetricCounter EVICTIONS = TelemetryCounter.getCounter("http", "CacheControlFilter", "evictions");
+  private static final MetricCounter REJECTIONS = TelemetryCounter.getCounter("http", "CacheControlFilter", "rejections");
+
+  private static final int MAX_SEGMENTS = 16;
+  /**
+   * The number of the largest responses each segment must be able to hold.
+   */
+  private static final int MIN_ENTRIES_PER_SEGMENT = 4;
+
+  private static final class Segment extends LinkedHashMap<String, CachedResponse> {
+    private static final long serialVersionUID = 1L;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long maxBytes;
+    private long bytes;
+
+    private Segment(long maxBytes) {
+      super(16, 0.75f, true);
+      this.maxBytes = maxBytes;
+    }
+
+    private CachedResponse remove0(String key) {
+      CachedResponse previous = remove(key);
+      if (previous != null) {
+        bytes -= previous.getSize();
+      }
+      return previous;
+    }
+  }
+
+  private final Segment[] segments;
+  private final long maxEntryBytes;
+
+  /**
+   * @param maxBytes
+   *          the total size of all the responses held.
+   * @param maxEntryBytes
+   *          the size of the largest response that will be held.
+   */
+  public WeightedResponseCache(long maxBytes, long maxEntryBytes) {
+    this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+    int n = 1;
+    while (n < MAX_SEGMENTS
+        && maxBytes / (n * 2) >= MIN_ENTRIES_PER_SEGMENT * this.maxEntryBytes) {
+      n <<= 1;
+    }
+    segments = new Segment[n];
+    for (int i = 0; i < n; i++) {
+      segments[i] = new Segment(maxBytes / n);
+    }
+  }
+
+  private Segment segmentFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & (segments.length - 1)];
+  }
+
+  public CachedResponse put(String key, CachedResponse payload) {
+    long size = payload.getSize();
+    Segment segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      if (size > maxEntryBytes) {
+        REJECTIONS.increment();
+        return segment.remove0(key);
+      }
+      CachedResponse previous = segment.put(key, payload);
+      if (previous != null) {
+        segment.bytes -= previous.getSize();
+      }
+      segment.bytes += size;
+      Iterator<Entry<String, CachedResponse>> i = segment.entrySet().iterator();
+      while (segment.bytes > segment.maxBytes && i.hasNext()) {
+        Entry<String, CachedResponse> e = i.next();
+        if (!key.equals(e.getKey())) {
+          segment.bytes -= e.getValue().getSize();
+          i.remove();
+          EVICTIONS.increment();
+        }
+      }
+      return previous;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  public boolean containsKey(String key) {
+    Segment segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      return segment.containsKey(key);
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  public CachedResponse get(String key) {
+    Segment segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      return segment.get(key);
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        segment.clear();
+        segment.bytes = 0;
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  public void remove(String key) {
+    Segment segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      segment.remove0(key);
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  public void removeChildren(String key) {
+    remove(key);
+    String prefix = key.endsWith("/") ? key : key + "/";
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        Iterator<Entry<String, CachedResponse>> i = segment.entrySet().iterator();
+        while (i.hasNext()) {
+          Entry<String, CachedResponse> e = i.next();
+          if (e.getKey().startsWith(prefix)) {
+            segment.bytes -= e.getValue().getSize();
+            i.remove();
+          }
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  public List<CachedResponse> list() {
+    List<CachedResponse> list = new ArrayList<CachedResponse>();
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        list.addAll(segment.values());
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return list;
+  }
+
+  public void checkCompatableScope(CacheScope scope) {
+    if (!CacheScope.INSTANCE.equals(scope)) {
+      throw new IllegalStateException("The response cache is an INSTANCE cache and cant be re-used as a " + scope + " cache");
+    }
+  }
+
+  /**
+   * @return the total size of the responses held.
+   */
+  public long getBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        bytes += segment.bytes;
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A resizable concurrency limit for a QoS category. In static mode it behaves like a fair
+ * semaphore with a fixed number of permits. In adaptive mode the number of permits is
+ * recalculated on every release using a gradient of the long term and short term request
+ * latency: while the short term latency stays close to the long term baseline the limit grows
+ * by roughly sqrt(limit), once requests start queueing inside the server the short term latency
+ * rises and the limit is scaled back proportionally (but never by more than half per sample).
+ * <p>
+ * {@link #getLimit()} and {@link #getInFlight()} do not take the lock, so they can be reported
+ * as gauges without contending with requests.
+ */
+public class ConcurrencyLimit {
+
+  /**
+   * Allowed ratio of short term to long term latency before the limit is reduced.
+   */
+  private static final double TOLERANCE = 1.5;
+  private static final double SHORT_SMOOTHING = 0.1;
+  private static final double LONG_SMOOTHING = 1.0 / 600.0;
+  private static final double LIMIT_SMOOTHING = 0.2;
+
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition available = lock.newCondition();
+  private final boolean adaptive;
+  private final int minLimit;
+  private final int maxLimit;
+  // only changed holding the lock, read without it.
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile int permits;
+
+  // all guarded by lock.
+  private double limit;
+  private double shortRtt;
+  private double longRtt;
+
+  /**
+   * @param initialLimit the initial (or, when not adaptive, the fixed) number of permits.
+   * @param adaptive true if the limit should track observed latency.
+   * @param minLimit the floor for an adaptive limit.
+   * @param maxLimit the ceiling for an adaptive limit.
+   */
+  public ConcurrencyLimit(int initialLimit, boolean adaptive, int minLimit, int maxLimit) {
+    this.adaptive = adaptive;
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = adaptive ? Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit))
+        : Math.max(1, initialLimit);
+    this.permits = (int) limit;
+  }
+
+  /**
+   * Try to take a permit, waiting at most waitMs.
+   *
+   * @return true if a permit was granted.
+   * @throws InterruptedException
+   */
+  public boolean tryAcquire(long waitMs) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(waitMs);
+    lock.lockInterruptibly();
+    try {
+      while (inFlight.get() >= permits) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = available.awaitNanos(remaining);
+      }
+      taken();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take a permit, waiting for as long as it takes.
+   *
+   * @throws InterruptedException
+   */
+  public void acquire() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (inFlight.get() >= permits) {
+        available.await();
+      }
+      taken();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Return a permit.
+   *
+   * @param rttNanos the time the permit was held, used as the latency sample in adaptive mode,
+   *          ignored if negative.
+   */
+  public void release(long rttNanos) {
+    lock.lock();
+    try {
+      inFlight.decrementAndGet();
+      if (adaptive && rttNanos >= 0) {
+        int before = permits;
+        update(rttNanos);
+        permits = (int) limit;
+        if (permits > before) {
+          available.signalAll();
+          return;
+        }
+      }
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the current number of permits.
+   */
+  public int getLimit() {
+    return permits;
+  }
+
+  /**
+   * @return the number of permits currently held.
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  private void taken() {
+    inFlight.incrementAndGet();
+  }
+
+  private void update(long rttNanos) {
+    if (shortRtt == 0) {
+      shortRtt = rttNanos;
+      longRtt = rttNanos;
+      return;
+    }
+    shortRtt += (rttNanos - shortRtt) * SHORT_SMOOTHING;
+    longRtt += (rttNanos - longRtt) * LONG_SMOOTHING;
+    // if latency has dropped well below the baseline, let the baseline catch up quickly so
+    // that a past overload does not keep the limit artificially high.
+    if (longRtt > shortRtt * 2) {
+      longRtt *= 0.95;
+    }
+    // the server was not using the permits it had, so there is no evidence for a larger limit.
+    boolean appLimited = inFlight.get() < limit / 2;
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+    double target = limit * gradient + (appLimited ? 0 : Math.sqrt(limit));
+    double next = limit * (1 - LIMIT_SMOOTHING) + target * LIMIT_SMOOTHING;
+    limit = Math.max(minLimit, Math.min(maxLimit, next));
+  }
+}
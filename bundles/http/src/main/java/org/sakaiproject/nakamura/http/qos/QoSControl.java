@@ -17,37 +17,76 @@
  */
 package org.sakaiproject.nakamura.http.qos;
 
-import org.mortbay.util.ajax.Continuation;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
+import org.sakaiproject.nakamura.util.telemetry.MetricGauge;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 
-import java.util.Queue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletRequest;
 
 public class QoSControl {
 
-  private Semaphore semaphore;
+  private ConcurrencyLimit limit;
   private int priority;
-  private Queue<Continuation>[] priorityQueue;
+  private WeightedFairQueue priorityQueue;
   private long timeout;
+  private String service;
+  private AtomicInteger queued = new AtomicInteger();
+  private MetricGauge limitGauge;
+  private MetricGauge inFlightGauge;
+  private MetricGauge queuedGauge;
+  private MetricCounter rejected;
+  private LatencyHistogram waitTime;
 
-  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
-      long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+  public QoSControl(String name, WeightedFairQueue priorityQueue, int nRequests,
+      int priority, long timeout, boolean adaptive, int minLimit, int maxLimit) {
+    this.service = "QoS-" + name;
+    this.limit = new ConcurrencyLimit(nRequests, adaptive, minLimit, maxLimit);
     this.priority = priority;
-    this.priorityQueue = priorityQueue.clone();
+    this.priorityQueue = priorityQueue;
     this.timeout = timeout;
+    this.rejected = TelemetryCounter.getCounter("http", service, "rejected");
+    this.waitTime = TelemetryCounter.getHistogram("http", service, "wait");
+    limitGauge = new MetricGauge() {
+      public long get() {
+        return limit.getLimit();
+      }
+    };
+    inFlightGauge = new MetricGauge() {
+      public long get() {
+        return limit.getInFlight();
+      }
+    };
+    queuedGauge = new MetricGauge() {
+      public long get() {
+        return queued.get();
+      }
+    };
+    TelemetryCounter.registerGauge("http", service, "limit", limitGauge);
+    TelemetryCounter.registerGauge("http", service, "inflight", inFlightGauge);
+    TelemetryCounter.registerGauge("http", service, "queued", queuedGauge);
   }
 
-  public Semaphore getSemaphore() {
-    return semaphore;
+  /**
+   * Stop reporting the gauges of this category.
+   */
+  public void close() {
+    TelemetryCounter.unregisterGauge("http", service, "limit", limitGauge);
+    TelemetryCounter.unregisterGauge("http", service, "inflight", inFlightGauge);
+    TelemetryCounter.unregisterGauge("http", service, "queued", queuedGauge);
+  }
+
+  public ConcurrencyLimit getLimit() {
+    return limit;
   }
 
   public int getPriority(ServletRequest request) {
     return priority;
   }
 
-  public Queue<Continuation>[] getPriorityQueue() {
+  public WeightedFairQueue getPriorityQueue() {
     return priorityQueue;
   }
 
@@ -55,4 +94,25 @@ public class QoSControl {
     return timeout;
   }
 
+  /**
+   * @return the number of requests in this category currently suspended.
+   */
+  public AtomicInteger getQueued() {
+    return queued;
+  }
+
+  /**
+   * @return count of requests in this category refused with a 503.
+   */
+  public MetricCounter getRejected() {
+    return rejected;
+  }
+
+  /**
+   * @return time requests in this category spent suspended before being accepted or refused.
+   */
+  public LatencyHistogram getWaitTime() {
+    return waitTime;
+  }
+
 }
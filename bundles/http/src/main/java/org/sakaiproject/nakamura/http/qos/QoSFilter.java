@@ -36,9 +36,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Dictionary;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -96,12 +94,35 @@ public class QoSFilter implements Filter {
   @Property(longValue=60000L)
   private static final String QOS_TIMEOUT_CONFIG = "qos.timeout";
   /**
-   * List of categories, formatted as pathSpec;maxrequests;priority;timeout
+   * If true, the concurrency limit of each category adapts to the observed latency, starting
+   * from the configured limit. (default false, limits are fixed)
+   */
+  @Property(boolValue=false)
+  private static final String QOS_ADAPTIVE_CONF = "qos.adaptive";
+  /**
+   * The lowest concurrency limit an adaptive category will be reduced to.
+   */
+  @Property(intValue=1)
+  private static final String QOS_ADAPTIVE_MIN_LIMIT_CONF = "qos.adaptive.minlimit";
+  /**
+   * The highest concurrency limit an adaptive category will be raised to.
+   */
+  @Property(intValue=200)
+  private static final String QOS_ADAPTIVE_MAX_LIMIT_CONF = "qos.adaptive.maxlimit";
+  /**
+   * Relative share of released permits given to each priority queue, lowest priority first.
+   * Missing entries default to priority + 1.
+   */
+  @Property(value={})
+  private static final String QOS_PRIORITY_WEIGHTS_CONF = "qos.priority.weights";
+  /**
+   * List of categories, formatted as pathSpec;maxrequests;priority;timeout;mode
    * pathSpec is of the form method:firstPathElement
    * method is * or a HTTP method in lower case (get,post,etc)
-   * maxrequests is the maximum number of concurrent requests
+   * maxrequests is the maximum number of concurrent requests, or the starting limit if adaptive
    * priority is the queue the request is put into if suspended (0 is the lowest) (optional)
    * timeout is the time (ms) the request will wait if suspended. (optional)
+   * mode is adaptive or static, overriding qos.adaptive for the category (optional)
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
@@ -114,7 +135,7 @@ public class QoSFilter implements Filter {
   private long waitMs;
 
 
-  private Queue<Continuation>[] priorityQueue;
+  private WeightedFairQueue priorityQueue;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
 
@@ -138,8 +159,8 @@ public class QoSFilter implements Filter {
           LOGGER.debug("Suspending request");
           request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
           qoSToken.queue(continuation);
+          continuation.suspend(qoSToken.getSuspendTime());
           return;
         }
       } else {
@@ -147,6 +168,7 @@ public class QoSFilter implements Filter {
 
         if (suspended.booleanValue()) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+          dequeued(qoSToken);
           if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE) {
             qoSToken.acquire();
             accepted = true;
@@ -164,11 +186,13 @@ public class QoSFilter implements Filter {
       if (accepted) {
         chain.doFilter(request, response);
       } else {
+        rejected(qoSToken);
         ((HttpServletResponse) response)
             .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
       }
     } catch (InterruptedException e) {
       LOGGER.warn("QoS", e);
+      rejected(qoSToken);
       ((HttpServletResponse) response)
           .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     } finally {
@@ -178,6 +202,18 @@ public class QoSFilter implements Filter {
     }
   }
 
+  private void dequeued(QoSToken qoSToken) {
+    if (qoSToken instanceof QoSTokenImpl) {
+      ((QoSTokenImpl) qoSToken).dequeued();
+    }
+  }
+
+  private void rejected(QoSToken qoSToken) {
+    if (qoSToken instanceof QoSTokenImpl) {
+      ((QoSTokenImpl) qoSToken).rejected();
+    }
+  }
+
   private QoSToken getQoSControl(ServletRequest request) {
     QoSToken control = (QoSToken) request.getAttribute(QoSToken.CONTROL_ATTR);
     if  ( control != null ) {
@@ -210,7 +246,6 @@ public class QoSFilter implements Filter {
    * @param componentContext
    * @throws ServletException
    */
-  @SuppressWarnings("unchecked")
   @Activate
   protected void activate(ComponentContext componentContext) throws ServletException {
 
@@ -218,25 +253,30 @@ public class QoSFilter implements Filter {
 
     long defaultTimeout = PropertiesUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
     int maxPriorityNumber = PropertiesUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
-    for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
+    int[] weights = WeightedFairQueue.defaultWeights(maxPriorityNumber);
+    String[] configuredWeights = PropertiesUtil.toStringArray(properties.get(QOS_PRIORITY_WEIGHTS_CONF));
+    if ( configuredWeights != null ) {
+      for ( int i = 0; i < configuredWeights.length && i < weights.length; i++ ) {
+        weights[i] = Integer.parseInt(configuredWeights[i].trim());
+      }
     }
+    priorityQueue = new WeightedFairQueue(weights);
 
-    // path, max requests, priority, timeout
-    qoSControMap.clear();
+    boolean adaptive = PropertiesUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONF), false);
+    int minLimit = PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MIN_LIMIT_CONF), 1);
+    int maxLimit = PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MAX_LIMIT_CONF), 200);
+
+    // path, max requests, priority, timeout, mode
+    closeQoSControls();
     String[] qosLocations = PropertiesUtil.toStringArray(properties.get(QOS_CATEGORIES_CONFIG));
     if ( qosLocations != null ) {
       for ( String qosLocation : qosLocations ) {
         String[] settings = StringUtils.split(qosLocation,";");
-        if ( settings != null ) {
-          if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
-          } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
-          } else if ( settings.length > 1 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
-          }
+        if ( settings != null && settings.length > 1 ) {
+          int priority = settings.length > 2 ? Integer.parseInt(settings[2]) : maxPriorityNumber;
+          long timeout = settings.length > 3 ? Long.parseLong(settings[3]) : defaultTimeout;
+          boolean categoryAdaptive = settings.length > 4 ? "adaptive".equalsIgnoreCase(settings[4]) : adaptive;
+          qoSControMap.put(settings[0], new QoSControl(settings[0], priorityQueue, Integer.parseInt(settings[1]), priority, timeout, categoryAdaptive, minLimit, maxLimit));
         }
       }
     }
@@ -247,7 +287,7 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = PropertiesUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = PropertiesUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = new QoSControl("default", priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout, adaptive, minLimit, maxLimit);
 
     int filterPriority = PropertiesUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -259,12 +299,17 @@ public class QoSFilter implements Filter {
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
     // resume any continuations held by the filter
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
-      }
+    priorityQueue.resumeAll();
+    closeQoSControls();
+  }
+
+  private void closeQoSControls() {
+    for (QoSControl qoSControl : qoSControMap.values()) {
+      qoSControl.close();
+    }
+    qoSControMap.clear();
+    if (defaultQoSControl != null) {
+      defaultQoSControl.close();
     }
   }
 
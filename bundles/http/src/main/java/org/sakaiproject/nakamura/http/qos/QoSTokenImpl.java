@@ -20,15 +20,14 @@ package org.sakaiproject.nakamura.http.qos;
 import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.http.qos.QoSToken;
 
-import java.util.Queue;
-import java.util.concurrent.TimeUnit;
-
 import javax.servlet.ServletRequest;
 
 public class QoSTokenImpl implements QoSToken {
 
   private QoSControl qoSControl;
   private int priority;
+  private long acquiredAt = -1;
+  private long suspendedAt = -1;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
@@ -41,15 +40,10 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
-      }
-    }
-    qoSControl.getSemaphore().release();
+    // the permit is returned first so the request that is resumed can take it straight away.
+    qoSControl.getLimit().release(acquiredAt < 0 ? -1 : System.nanoTime() - acquiredAt);
+    acquiredAt = -1;
+    qoSControl.getPriorityQueue().resumeNext();
   }
 
   public long getSuspendTime() {
@@ -57,15 +51,40 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+    suspendedAt = System.nanoTime();
+    qoSControl.getQueued().incrementAndGet();
+    qoSControl.getPriorityQueue().add(priority, continuation);
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    boolean acquired = qoSControl.getLimit().tryAcquire(waitMs);
+    if (acquired) {
+      acquiredAt = System.nanoTime();
+    }
+    return acquired;
   }
 
   public void acquire() throws InterruptedException {
-    qoSControl.getSemaphore().acquire();
+    qoSControl.getLimit().acquire();
+    acquiredAt = System.nanoTime();
+  }
+
+  /**
+   * Record the end of a suspension, whether the request was resumed or timed out.
+   */
+  void dequeued() {
+    if (suspendedAt >= 0) {
+      qoSControl.getQueued().decrementAndGet();
+      qoSControl.getWaitTime().recordSince(suspendedAt);
+      suspendedAt = -1;
+    }
+  }
+
+  /**
+   * Record that the request was refused.
+   */
+  void rejected() {
+    qoSControl.getRejected().increment();
   }
 
 }
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The set of priority queues holding suspended requests. Rather than always draining the
+ * highest priority queue first, queues are served with stride scheduling so each queue gets a
+ * share of the released permits proportional to its weight, by default priority + 1. A low
+ * priority queue will be served less often, but will not starve while higher priority
+ * requests keep arriving.
+ */
+public class WeightedFairQueue {
+
+  private static final long STRIDE = 1L << 20;
+
+  private final Queue<Continuation>[] queues;
+  private final long[] stride;
+  // guarded by this.
+  private final long[] pass;
+  private long globalPass;
+
+  /**
+   * @param weights the weight of each priority queue, index 0 being the lowest priority.
+   */
+  @SuppressWarnings("unchecked")
+  public WeightedFairQueue(int[] weights) {
+    queues = new Queue[weights.length];
+    stride = new long[weights.length];
+    pass = new long[weights.length];
+    for (int i = 0; i < weights.length; i++) {
+      queues[i] = new ConcurrentLinkedQueue<Continuation>();
+      stride[i] = STRIDE / Math.max(1, weights[i]);
+    }
+  }
+
+  /**
+   * @return weights of priority + 1 for priorities 0 to maxPriority.
+   */
+  public static int[] defaultWeights(int maxPriority) {
+    int[] weights = new int[maxPriority + 1];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = i + 1;
+    }
+    return weights;
+  }
+
+  /**
+   * @return the number of priority queues.
+   */
+  public int size() {
+    return queues.length;
+  }
+
+  /**
+   * Add a suspended continuation to a priority queue.
+   *
+   * @param priority the queue, clamped to the available range.
+   * @param continuation
+   */
+  public synchronized void add(int priority, Continuation continuation) {
+    int p = Math.max(0, Math.min(queues.length - 1, priority));
+    if (queues[p].isEmpty()) {
+      // a queue that has been idle must not bank credit and then monopolise the permits.
+      pass[p] = Math.max(pass[p], globalPass);
+    }
+    queues[p].add(continuation);
+  }
+
+  /**
+   * Take the next continuation in weighted fair order.
+   *
+   * @return the continuation, or null if all the queues are empty.
+   */
+  public synchronized Continuation poll() {
+    while (true) {
+      int next = -1;
+      for (int p = queues.length; p-- > 0;) {
+        if (!queues[p].isEmpty() && (next < 0 || pass[p] < pass[next])) {
+          next = p;
+        }
+      }
+      if (next < 0) {
+        return null;
+      }
+      Continuation continuation = queues[next].poll();
+      if (continuation != null) {
+        globalPass = pass[next];
+        pass[next] += stride[next];
+        return continuation;
+      }
+    }
+  }
+
+  /**
+   * Resume the next continuation that is still waiting, discarding any that have already timed
+   * out.
+   *
+   * @return true if a continuation was resumed.
+   */
+  public boolean resumeNext() {
+    Continuation continuation;
+    while ((continuation = poll()) != null) {
+      // a continuation may be queued just before it is suspended, resuming it then makes the
+      // suspend return immediately.
+      if (continuation.isNew() || continuation.isPending()) {
+        continuation.resume();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Resume everything that is still waiting.
+   */
+  public void resumeAll() {
+    while (resumeNext()) {
+    }
+  }
+}
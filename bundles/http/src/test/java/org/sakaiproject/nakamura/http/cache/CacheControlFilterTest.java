@@ -17,8 +17,16 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -29,16 +37,13 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -46,11 +51,17 @@ import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CacheControlFilterTest {
@@ -73,15 +84,11 @@ public class CacheControlFilterTest {
   @Mock
   private FilterConfig filterConfig;
 
-  @Mock
-  private CacheManagerService cacheMangerService;
-
-  @Mock
-  private Cache<Object> cache;
-
   @Mock
   private ExtHttpService extHttpService;
 
+  private static final String CACHE_KEY = CachedResponseManager.hashKey("/cacheable/config.json?null");
+
   @Before
   public void setup() throws Exception {
     cacheControlFilter = new CacheControlFilter();
@@ -151,14 +158,10 @@ public class CacheControlFilterTest {
     };
     when(response.getOutputStream()).thenReturn(servletOutputStream);
 
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
-    
-    cacheControlFilter.cacheManagerService = cacheMangerService;
-
     cacheControlFilter.doFilter(request, response, new TFilter(true));
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
-    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    assertNotNull(cacheControlFilter.getCache().get(CACHE_KEY));
     
     
     
@@ -179,11 +182,8 @@ public class CacheControlFilterTest {
     };
     when(response.getOutputStream()).thenReturn(servletOutputStream);
 
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
     CachedResponse cachedResponse  = populateResponseCapture(true);
-    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
-    
-    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.getCache().put(CACHE_KEY, cachedResponse);
 
     cacheControlFilter.doFilter(request, response, null);
 
@@ -192,6 +192,81 @@ public class CacheControlFilterTest {
     
     
     
+  }
+
+  @Test
+  public void checkConditionalGetReplay() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    cacheControlFilter.getCache().put(CACHE_KEY, cachedResponse);
+    when(request.getHeader("If-None-Match")).thenReturn(cachedResponse.getEtag());
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("ETag", cachedResponse.getEtag());
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response, never()).getOutputStream();
+  }
+
+  @Test
+  public void checkGzipReplay() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    assertTrue(cachedResponse.hasGzipContent());
+    cacheControlFilter.getCache().put(CACHE_KEY, cachedResponse);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("ETag", cachedResponse.getGzipEtag());
+    assertEquals("Accept-Encoding", cachedResponse.getVary());
+    // the Last-Modified the response was captured with is not replayed over the cached one
+    verify(response).setDateHeader("Last-Modified", cachedResponse.getLastModified());
+    verify(response, times(1)).setDateHeader(eq("Last-Modified"), anyLong());
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    int length = 0;
+    while (in.read() >= 0) {
+      length++;
+    }
+    assertEquals(1024, length);
+  }
+
+  @Test
+  public void checkVariantsHaveTheirOwnEtag() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    });
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    assertFalse(cachedResponse.getEtag().equals(cachedResponse.getGzipEtag()));
+    cacheControlFilter.getCache().put(CACHE_KEY, cachedResponse);
+    // the client holds the identity body, but now asks for gzip
+    when(request.getHeader("If-None-Match")).thenReturn(cachedResponse.getEtag());
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("ETag", cachedResponse.getGzipEtag());
+    verify(response).setHeader("Content-Encoding", "gzip");
   }
 
   private CachedResponse populateResponseCapture(boolean useOutputStream) throws IOException {
@@ -232,14 +307,107 @@ public class CacheControlFilterTest {
     StringWriter stringWriter = new StringWriter();
     PrintWriter printWriter = new PrintWriter(stringWriter);
     when(response.getWriter()).thenReturn(printWriter);
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
 
-    cacheControlFilter.cacheManagerService = cacheMangerService;
     cacheControlFilter.doFilter(request, response, new TFilter(false));
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
     
-    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    assertNotNull(cacheControlFilter.getCache().get(CACHE_KEY));
+  }
+
+  @Test
+  public void checkKeysAreFixedWidth() throws Exception {
+    assertEquals(40, CACHE_KEY.length());
+    assertEquals(40, CachedResponseManager.hashKey("/var/search/public/random.json?q=" + new String(new char[2000]).replace('\0', 'x')).length());
+  }
+
+  @Test
+  public void checkWeightedCacheBudget() throws Exception {
+    CachedResponse large = populateResponseCapture(true);
+    long size = large.getSize();
+    WeightedResponseCache weightedCache = new WeightedResponseCache(3 * size + 10, 2 * size);
+    weightedCache.put("a", large);
+    weightedCache.put("b", large);
+    weightedCache.put("c", large);
+    assertNotNull(weightedCache.get("a"));
+    assertEquals(3 * size, weightedCache.getBytes());
+    // b is now the least recently used
+    weightedCache.put("d", large);
+    assertNull(weightedCache.get("b"));
+    assertNotNull(weightedCache.get("a"));
+    assertEquals(3 * size, weightedCache.getBytes());
+
+    // larger than the per entry limit
+    WeightedResponseCache small = new WeightedResponseCache(3 * size, size / 2);
+    small.put("a", large);
+    assertNull(small.get("a"));
+  }
+
+  @Test
+  public void checkSegmentedCacheBudget() throws Exception {
+    CachedResponse large = populateResponseCapture(true);
+    long size = large.getSize();
+    // room for several segments of four responses each
+    WeightedResponseCache weightedCache = new WeightedResponseCache(64 * size, size);
+    for (int i = 0; i < 200; i++) {
+      weightedCache.put("key" + i, large);
+      assertNotNull(weightedCache.get("key" + i));
+      assertTrue(weightedCache.getBytes() <= 64 * size);
+    }
+    assertEquals(weightedCache.getBytes(), weightedCache.list().size() * size);
+    weightedCache.clear();
+    assertEquals(0, weightedCache.getBytes());
+  }
+
+  @Test
+  public void checkConcurrentMissesRenderOnce() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    final CountDownLatch inRender = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger renders = new AtomicInteger();
+    final FilterChain slowChain = new FilterChain() {
+      public void doFilter(ServletRequest req, ServletResponse resp) throws IOException,
+          ServletException {
+        renders.incrementAndGet();
+        inRender.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new ServletException(e);
+        }
+        new TFilter(false).doFilter(req, resp);
+      }
+    };
+    Thread leader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          cacheControlFilter.doFilter(request, response, slowChain);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    leader.start();
+    inRender.await();
+    Thread follower = new Thread() {
+      @Override
+      public void run() {
+        try {
+          cacheControlFilter.doFilter(request, response, slowChain);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    follower.start();
+    Thread.sleep(100);
+    release.countDown();
+    leader.join();
+    follower.join();
+    assertEquals(1, renders.get());
   }
 
 
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrencyLimitTest {
+
+  @Test
+  public void testStaticLimit() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit(2, false, 1, 100);
+    assertTrue(limit.tryAcquire(0));
+    assertTrue(limit.tryAcquire(0));
+    assertFalse(limit.tryAcquire(10));
+    assertEquals(2, limit.getInFlight());
+    limit.release(TimeUnit.SECONDS.toNanos(10));
+    assertEquals(2, limit.getLimit());
+    assertTrue(limit.tryAcquire(0));
+  }
+
+  @Test
+  public void testAdaptiveLimitGrowsWhileLatencyIsStable() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit(4, true, 1, 50);
+    for (int i = 0; i < 200; i++) {
+      saturate(limit, TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    assertEquals(50, limit.getLimit());
+  }
+
+  @Test
+  public void testAdaptiveLimitShrinksWhenLatencyRises() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit(40, true, 2, 50);
+    for (int i = 0; i < 20; i++) {
+      saturate(limit, TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    int before = limit.getLimit();
+    for (int i = 0; i < 20; i++) {
+      saturate(limit, TimeUnit.MILLISECONDS.toNanos(200));
+    }
+    assertTrue(limit.getLimit() < before / 2);
+    assertTrue(limit.getLimit() >= 2);
+  }
+
+  @Test
+  public void testIdleAdaptiveLimitDoesNotGrow() throws Exception {
+    ConcurrencyLimit limit = new ConcurrencyLimit(10, true, 1, 50);
+    for (int i = 0; i < 500; i++) {
+      assertTrue(limit.tryAcquire(0));
+      limit.release(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    assertEquals(10, limit.getLimit());
+  }
+
+  private void saturate(ConcurrencyLimit limit, long rtt) throws InterruptedException {
+    int n = 0;
+    while (limit.tryAcquire(0)) {
+      n++;
+    }
+    for (int i = 0; i < n; i++) {
+      limit.release(rtt);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of workers that crop images off the request threads. Identical crops
+ * that are submitted while one is running share that job, and finished jobs are kept for
+ * a while so that the user who submitted a job can collect its results by job key.
+ */
+class CropItJobs {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CropItJobs.class);
+
+  private final ThreadPoolExecutor executor;
+
+  private final ConcurrentMap<String, Job> running = new ConcurrentHashMap<String, Job>();
+
+  private final Map<String, Job> finished;
+
+  /**
+   * @param threads
+   *          the number of images that may be cropped at once.
+   * @param queue
+   *          the number of crops that may wait for a worker, beyond that crops are
+   *          refused.
+   * @param maxFinished
+   *          the number of finished jobs kept for collection.
+   */
+  CropItJobs(int threads, int queue, final int maxFinished) {
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "image-crop-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    finished = new LinkedHashMap<String, Job>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Job> eldest) {
+        return size() > maxFinished;
+      }
+    };
+  }
+
+  /**
+   * Queue a crop, or join the identical crop that is already running. The key must
+   * identify the user, so that users never share a job.
+   *
+   * @param userId
+   *          the user submitting the crop, the only user that may collect it.
+   * @throws ImageException
+   *           503 if the queue is full.
+   */
+  Future<String[]> submit(String key, String userId, Callable<String[]> crop)
+      throws ImageException {
+    Job job = new Job(key, userId, crop);
+    Job existing = running.putIfAbsent(key, job);
+    if (existing != null) {
+      return existing;
+    }
+    try {
+      executor.execute(job);
+    } catch (RejectedExecutionException e) {
+      running.remove(key, job);
+      LOGGER.warn("Refused to crop, {} images are waiting", executor.getQueue().size());
+      throw new ImageException(503, "Too many images are being cropped, try again later.");
+    }
+    return job;
+  }
+
+  /**
+   * @return the running or recently finished job with this key if it was submitted by
+   *         this user, otherwise null.
+   */
+  Future<String[]> get(String key, String userId) {
+    Job job = running.get(key);
+    if (job == null) {
+      synchronized (finished) {
+        job = finished.get(key);
+      }
+    }
+    if (job != null && (job.userId == null || !job.userId.equals(userId))) {
+      LOGGER.warn("Refused crop job {} to {}", key, userId);
+      return null;
+    }
+    return job;
+  }
+
+  /**
+   * Wait for a crop to finish.
+   *
+   * @param waitMs
+   *          the longest time to wait, <= 0 to wait until the crop finishes.
+   * @return the locations of the scaled images, or null if the crop has not finished.
+   */
+  static String[] await(Future<String[]> job, long waitMs) throws ImageException,
+      StorageClientException, AccessDeniedException {
+    try {
+      if (waitMs <= 0) {
+        return job.get();
+      }
+      return job.get(waitMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ImageException) {
+        throw (ImageException) cause;
+      } else if (cause instanceof StorageClientException) {
+        throw (StorageClientException) cause;
+      } else if (cause instanceof AccessDeniedException) {
+        throw (AccessDeniedException) cause;
+      }
+      LOGGER.error("Failed to crop image", cause);
+      throw new ImageException(500, "Unable to crop image.");
+    }
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * A crop that records the user it was submitted by, and moves itself to the finished
+   * jobs when it is done.
+   */
+  private class Job extends FutureTask<String[]> {
+    private final String key;
+    private final String userId;
+
+    Job(String key, String userId, Callable<String[]> crop) {
+      super(crop);
+      this.key = key;
+      this.userId = userId;
+    }
+
+    @Override
+    protected void done() {
+      synchronized (finished) {
+        finished.put(key, this);
+      }
+      running.remove(key, this);
+    }
+  }
+}
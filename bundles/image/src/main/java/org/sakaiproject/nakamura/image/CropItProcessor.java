@@ -24,7 +24,6 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -40,25 +39,38 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.imageio.ImageIO;
-import javax.jcr.Binary;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
-import javax.jcr.ValueFormatException;
 
 public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * Property holding the key of the crop that produced a stored image, so that an
+   * identical crop can be answered from storage.
+   */
+  static final String CROP_KEY = "sakai:cropKey";
+
+  /**
+   * Images are only read into memory as bytes when ImageIO can not decode them, and then
+   * only up to this size.
+   */
+  private static final long MAX_IMAGE_BYTES = 100L * 1024L * 1024L;
+
   /**
    *
    * @param session
@@ -89,131 +101,196 @@ public class CropItProcessor {
       List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
 
     Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
-    ContentManager contentManager = session.getContentManager();
-
-    InputStream in = null;
-
-    // The array that will contain all the cropped and resized images.
-    String[] arrFiles = new String[dimensions.size()];
+    CropJob job = prepare(resourceResolver, resourceResolver.getUserID(), x, y, width,
+        height, dimensions, img, save);
+    String[] stored = job.getStored(session);
+    if (stored != null) {
+      return stored;
+    }
+    return job.run(session);
+  }
 
+  /**
+   * Resolve the image to crop and describe the crop, without reading the image.
+   *
+   * @param userId
+   *          the user asking for the crop.
+   * @return a job that can produce or look up all the scaled instances.
+   * @throws ImageException
+   *           if the image can not be found or is not stored as a file.
+   */
+  static CropJob prepare(ResourceResolver resourceResolver, String userId, int x, int y,
+      int width, int height, List<Dimension> dimensions, String img, String save)
+      throws ImageException {
     try {
       String mimeType = "unknown";
-      String imgName = "";
       Resource imgResource = resourceResolver.getResource(img);
       if (imgResource instanceof SparseContentResource) {
-      Content imgContent = imgResource.adaptTo(Content.class);
+        Content imgContent = imgResource.adaptTo(Content.class);
 
         if (imgContent.hasProperty("mimeType") ) {
           mimeType = (String) imgContent.getProperty("mimeType");
         }
         String imgPath = imgContent.getPath();
-        imgName = imgPath.substring(imgPath.lastIndexOf("/") + 1);
         // nt:file
         if (!imgContent.hasProperty("_bodyLocation")) {
           throw new ImageException(500, "Invalid image");
         }
-        in = contentManager.getInputStream(imgPath);
+        // the body location, modification time and length identify this version of the
+        // image.
+        String version = imgContent.getProperty("_bodyLocation") + ":"
+            + imgContent.getProperty("_bodyLastModified") + ":"
+            + imgContent.getProperty(Content.LENGTH_FIELD);
+        return new CropJob(img, imgPath, null, mimeType, version, x, y, width, height,
+            dimensions, save, userId);
       } else {
         Node imgNode = imgResource.adaptTo(Node.class);
         if (imgNode.hasProperty("jcr:mimeType")) {
           mimeType = imgNode.getProperty("jcr:mimeType").getString();
         }
-        imgName = imgNode.getName();
         Node imgDataNode = imgNode.getNode(JCRConstants.JCR_CONTENT);
-        Binary content = imgDataNode.getProperty(JCRConstants.JCR_DATA).getBinary();
-        in = content.getStream();
-
+        String version = imgNode.getPath();
+        if (imgDataNode.hasProperty(JCRConstants.JCR_LASTMODIFIED)) {
+          version = version + ":"
+              + imgDataNode.getProperty(JCRConstants.JCR_LASTMODIFIED).getString();
+        }
+        return new CropJob(img, imgNode.getPath(), imgNode, mimeType, version, x, y,
+            width, height, dimensions, save, userId);
       }
+    } catch (RepositoryException e) {
+      LOGGER.error("Unable to read image in order to crop it.", e);
+      throw new ImageException(500, "Unable to read image in order to crop it.");
+    }
+  }
 
-        if ( in.available() > 100L*1024L*1024L ) {
-          throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
-        }
+  /**
+   * Decode the part of an image that will be cropped. Where ImageIO can read the format
+   * only the crop region is decoded, subsampled when it is more than twice the size of
+   * the largest scaled instance, so large images are never held in memory at full
+   * resolution. Other formats are read with Sanselan.
+   *
+   * @param in
+   *          the image.
+   * @param img
+   *          the location of the image, used in messages.
+   * @return the cropped region and a description of the source image.
+   * @throws IOException
+   * @throws ImageReadException
+   *           if the image can not be parsed.
+   * @throws ImageException
+   *           if the image is too large or the crop region is outside the image.
+   */
+  static DecodedImage decode(ImageInputStream in, int x, int y, int width, int height,
+      List<Dimension> dimensions, String img) throws IOException, ImageReadException,
+      ImageException {
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+    if (readers.hasNext()) {
+      ImageReader reader = readers.next();
+      ImageFormat format = toImageFormat(reader.getFormatName());
+      if (format != null) {
         try {
-
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
+          reader.setInput(in, true, true);
+          int sourceWidth = reader.getWidth(0);
+          int sourceHeight = reader.getHeight(0);
+          Rectangle region = getCropRegion(x, y, width, height, sourceWidth, sourceHeight);
+          ImageReadParam param = reader.getDefaultReadParam();
+          param.setSourceRegion(region);
+          int subsampling = getSubsampling(region, dimensions, sourceWidth, sourceHeight);
+          if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
           }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
-          }
-
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
-
-            Dimension d = dimensions.get(i);
-
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
-
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
+          BufferedImage image = reader.read(0, param);
+          String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+          String mimeType = (mimeTypes != null && mimeTypes.length > 0) ? mimeTypes[0]
+              : "image/" + reader.getFormatName().toLowerCase();
+          return new DecodedImage(image, sourceWidth, sourceHeight, format, mimeType);
+        } finally {
+          reader.dispose();
+        }
+      }
+    }
 
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+    // NOTE: Sanselan needs the whole image to get the ImageInfo _and_ the BufferedImage.
+    in.seek(0);
+    byte[] bytes = readFully(in, img);
+    ImageInfo info = Sanselan.getImageInfo(bytes);
+    BufferedImage imgBuf = getBufferedImage(bytes, info);
+    Rectangle region = getCropRegion(x, y, width, height, info.getWidth(),
+        info.getHeight());
+    return new DecodedImage(imgBuf.getSubimage(region.x, region.y, region.width,
+        region.height), info.getWidth(), info.getHeight(), info.getFormat(),
+        info.getMimeType());
+  }
 
-            if ( image != null ) {
+  /**
+   * @return the formats that are read with ImageIO, null for those that are left to
+   *         Sanselan.
+   */
+  private static ImageFormat toImageFormat(String formatName) {
+    String name = formatName.toLowerCase();
+    if ("jpeg".equals(name) || "jpg".equals(name)) {
+      return ImageFormat.IMAGE_FORMAT_JPEG;
+    } else if ("png".equals(name)) {
+      return ImageFormat.IMAGE_FORMAT_PNG;
+    } else if ("gif".equals(name)) {
+      return ImageFormat.IMAGE_FORMAT_GIF;
+    } else if ("bmp".equals(name)) {
+      return ImageFormat.IMAGE_FORMAT_BMP;
+    }
+    return null;
+  }
 
-              String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
-              // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+  /**
+   * @return the crop region, with a width or height of <=0 meaning the whole image and
+   *         clipped to the image.
+   * @throws ImageException
+   *           if the region lies outside the image.
+   */
+  protected static Rectangle getCropRegion(int x, int y, int width, int height,
+      int imageWidth, int imageHeight) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? imageWidth : width;
+    height = (height <= 0) ? imageHeight : height;
+
+    if (x + width > imageWidth) {
+      width = imageWidth - x;
+    }
+    if (y + height > imageHeight) {
+      height = imageHeight - y;
+    }
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(400, "The area to crop lies outside the image.");
+    }
+    return new Rectangle(x, y, width, height);
+  }
 
-              arrFiles[i] = sPath;
-            } else {
-              LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
-              arrFiles[i] = img;
-            }
-          }
-        } catch (ImageReadException e) {
-          // This is not a valid image.
-          LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
-        }
+  /**
+   * @return how many source pixels may be skipped for each one decoded while still
+   *         leaving at least twice the resolution of the largest scaled instance.
+   */
+  protected static int getSubsampling(Rectangle region, List<Dimension> dimensions,
+      int imageWidth, int imageHeight) {
+    int maxWidth = 1;
+    int maxHeight = 1;
+    for (Dimension d : dimensions) {
+      maxWidth = Math.max(maxWidth, (d.width <= 0) ? imageWidth : d.width);
+      maxHeight = Math.max(maxHeight, (d.height <= 0) ? imageHeight : d.height);
+    }
+    return Math.max(1, Math.min(region.width / (2 * maxWidth), region.height
+        / (2 * maxHeight)));
+  }
 
-    } catch (IOException e) {
-      LOGGER.error("Unable to read image in order to crop it.", e);
-      throw new ImageException(500, "Unable to read image in order to crop it.");
-    } catch (ValueFormatException e) {
-      LOGGER.error("Unable to read image in order to crop it.", e);
-      throw new ImageException(500, "Unable to read image in order to crop it.");
-    } catch (PathNotFoundException e) {
-      LOGGER.error("Unable to read image in order to crop it.", e);
-      throw new ImageException(500, "Unable to read image in order to crop it.");
-    } catch (RepositoryException e) {
-      LOGGER.error("Unable to read image in order to crop it.", e);
-      throw new ImageException(500, "Unable to read image in order to crop it.");
-    } finally {
-      // close the streams
-      if (in != null) {
-        try {
-          in.close();
-        } catch (IOException e) {
-          LOGGER.debug("Exception closing inputstream.");
-        }
+  private static byte[] readFully(ImageInputStream in, String img) throws IOException,
+      ImageException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+      if (out.size() > MAX_IMAGE_BYTES) {
+        throw new ImageException(406, "Image " + img + " too large to crop > 100MB");
       }
     }
-    return arrFiles;
+    return out.toByteArray();
   }
 
   /**
@@ -261,6 +338,19 @@ public class CropItProcessor {
    */
   protected static void saveImageToContentStore(String path, String mimetype,
       byte[] image, Session session) throws ImageException, StorageClientException {
+    saveImageToContentStore(path, mimetype, image, session, null);
+  }
+
+  /**
+   * Will save a stream of an image to the content store, recording the crop that
+   * produced it once the body has been written.
+   *
+   * @param cropKey
+   *          the key of the crop, or null.
+   */
+  protected static void saveImageToContentStore(String path, String mimetype,
+      byte[] image, Session session, String cropKey) throws ImageException,
+      StorageClientException {
     ContentManager contentManager = session.getContentManager();
 
     ByteArrayInputStream bais = null;
@@ -268,6 +358,7 @@ public class CropItProcessor {
       Content node = contentManager.get(path);
       if (node != null) {
         node.setProperty("mimeType", mimetype);
+        node.removeProperty(CROP_KEY);
         contentManager.update(node);
       } else {
         contentManager.update(new Content(path, ImmutableMap.of("mimeType", (Object)mimetype)));
@@ -276,6 +367,11 @@ public class CropItProcessor {
       bais = new ByteArrayInputStream(image);
       contentManager.writeBody(path, bais);
 
+      if (cropKey != null) {
+        node = contentManager.get(path);
+        node.setProperty(CROP_KEY, cropKey);
+        contentManager.update(node);
+      }
     } catch (Exception e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
       throw new ImageException(500, "Unable to save image to JCR.");
@@ -313,20 +409,26 @@ public class CropItProcessor {
   protected static byte[] scaleAndWriteToByteArray(int width, int height,
       BufferedImage img, String imgName, ImageInfo info) throws IOException,
       ImageWriteException {
-    try {
-      // Get a scaled image.
-      BufferedImage imgScaled = getScaledInstance(img, width, height);
+    return writeToByteArray(getScaledInstance(img, width, height), info.getFormat());
+  }
 
+  /**
+   * Encode an image in the given format.
+   *
+   * @return the encoded image, or null if it could not be written.
+   */
+  protected static byte[] writeToByteArray(BufferedImage img, ImageFormat format) {
+    try {
       // Convert image to a stream
       ByteArrayOutputStream out = new ByteArrayOutputStream();
 
       // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
-      } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
-        ImageIO.write(imgScaled, "png", out);
+      if (format == ImageFormat.IMAGE_FORMAT_JPEG) {
+        ImageIO.write(img, "jpg", out);
+      } else if (format == ImageFormat.IMAGE_FORMAT_PNG) {
+        ImageIO.write(img, "png", out);
       } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
+        Sanselan.writeImage(img, out, format, null);
       }
       out.close();
       return out.toByteArray();
@@ -352,6 +454,14 @@ public class CropItProcessor {
       int targetHeight) {
     BufferedImage ret = img;
 
+    // custom and indexed images can't be drawn into at quality, so scale them as RGB.
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
+
     // Use multi-step technique: start with original size, then
     // scale down in multiple passes with drawImage()
     // until the target size is reached
@@ -371,7 +481,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
@@ -387,4 +497,24 @@ public class CropItProcessor {
 
     return ret;
   }
+
+  /**
+   * The cropped region of an image together with a description of the source.
+   */
+  static class DecodedImage {
+    final BufferedImage image;
+    final int sourceWidth;
+    final int sourceHeight;
+    final ImageFormat format;
+    final String mimeType;
+
+    DecodedImage(BufferedImage image, int sourceWidth, int sourceHeight,
+        ImageFormat format, String mimeType) {
+      this.image = image;
+      this.sourceWidth = sourceWidth;
+      this.sourceHeight = sourceHeight;
+      this.format = format;
+      this.mimeType = mimeType;
+    }
+  }
 }
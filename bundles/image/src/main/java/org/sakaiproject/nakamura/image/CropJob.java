@@ -0,0 +1,271 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import org.apache.sanselan.ImageReadException;
+import org.sakaiproject.nakamura.api.jcr.JCRConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * One crop of an image into a number of scaled instances. All the instances are produced
+ * from a single decode of the image, and each is stored with a key derived from the
+ * version of the image and the crop parameters so that repeating a crop is answered from
+ * storage.
+ */
+class CropJob {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CropJob.class);
+
+  private final String img;
+  private final String imgPath;
+  private final String imgName;
+  private final Node imgNode;
+  private final String mimeType;
+  private final String version;
+  private final int x;
+  private final int y;
+  private final int width;
+  private final int height;
+  private final List<Dimension> dimensions;
+  private final String save;
+  private final String userId;
+  private final String key;
+
+  /**
+   * @param img
+   *          the requested location of the image.
+   * @param imgPath
+   *          the path of the image in the content store.
+   * @param imgNode
+   *          the JCR node holding the image, or null if it is in the content store.
+   * @param version
+   *          identifies the current version of the image.
+   * @param userId
+   *          the user who asked for the crop.
+   */
+  CropJob(String img, String imgPath, Node imgNode, String mimeType, String version,
+      int x, int y, int width, int height, List<Dimension> dimensions, String save,
+      String userId) {
+    this.img = img;
+    this.imgPath = imgPath;
+    this.imgName = imgPath.substring(imgPath.lastIndexOf("/") + 1);
+    this.imgNode = imgNode;
+    this.mimeType = mimeType;
+    this.version = version;
+    this.x = x;
+    this.y = y;
+    this.width = width;
+    this.height = height;
+    this.dimensions = dimensions;
+    this.save = save;
+    this.userId = userId;
+    StringBuilder sb = new StringBuilder();
+    for (Dimension d : dimensions) {
+      sb.append(d.width).append('x').append(d.height).append(';');
+    }
+    this.key = hash(imgPath + "|" + version + "|" + x + "," + y + "," + width + ","
+        + height + "|" + sb + "|" + save + "|" + userId);
+  }
+
+  /**
+   * @return a key identifying this crop of this version of the image for the user who
+   *         asked for it.
+   */
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the user who asked for the crop.
+   */
+  String getUserId() {
+    return userId;
+  }
+
+  /**
+   * @return true if the image is read from the content store, false if it can only be
+   *         read through the JCR session that found it.
+   */
+  boolean isContentStoreImage() {
+    return imgNode == null;
+  }
+
+  /**
+   * @return the locations of all the scaled instances if they have already been produced
+   *         from this version of the image, otherwise null.
+   */
+  String[] getStored(Session session) throws StorageClientException,
+      AccessDeniedException {
+    ContentManager contentManager = session.getContentManager();
+    String[] files = new String[dimensions.size()];
+    for (int i = 0; i < files.length; i++) {
+      Dimension d = dimensions.get(i);
+      if (d.width <= 0 || d.height <= 0) {
+        // the size depends on the image.
+        return null;
+      }
+      files[i] = getSavePath(d.width, d.height);
+      Content content = contentManager.get(files[i]);
+      if (content == null
+          || !getInstanceKey(d).equals(content.getProperty(CropItProcessor.CROP_KEY))) {
+        return null;
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Decode the image once and produce and save every scaled instance, largest first so
+   * that smaller instances of the same shape can be scaled from the previous one.
+   *
+   * @return the locations of the scaled instances.
+   */
+  String[] run(Session session) throws ImageException, StorageClientException,
+      AccessDeniedException {
+    InputStream in = null;
+    ImageInputStream iis = null;
+    try {
+      in = open(session);
+      iis = (in == null) ? null : ImageIO.createImageInputStream(in);
+      if (iis == null) {
+        throw new ImageException(500, "Unable to read image in order to crop it.");
+      }
+      CropItProcessor.DecodedImage decoded = CropItProcessor.decode(iis, x, y, width,
+          height, dimensions, img);
+
+      final int[][] sizes = new int[dimensions.size()][];
+      Integer[] order = new Integer[sizes.length];
+      for (int i = 0; i < sizes.length; i++) {
+        Dimension d = dimensions.get(i);
+        sizes[i] = new int[] { (d.width <= 0) ? decoded.sourceWidth : d.width,
+            (d.height <= 0) ? decoded.sourceHeight : d.height };
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          long areaA = (long) sizes[a][0] * sizes[a][1];
+          long areaB = (long) sizes[b][0] * sizes[b][1];
+          return (areaA > areaB) ? -1 : ((areaA == areaB) ? 0 : 1);
+        }
+      });
+
+      String[] files = new String[sizes.length];
+      BufferedImage previous = decoded.image;
+      for (int i : order) {
+        int iWidth = sizes[i][0];
+        int iHeight = sizes[i][1];
+        BufferedImage from = decoded.image;
+        if (previous.getWidth() >= iWidth && previous.getHeight() >= iHeight
+            && (long) previous.getWidth() * iHeight == (long) previous.getHeight() * iWidth) {
+          from = previous;
+        }
+        BufferedImage scaled = CropItProcessor.getScaledInstance(from, iWidth, iHeight);
+        byte[] image = CropItProcessor.writeToByteArray(scaled, decoded.format);
+
+        if ( image != null ) {
+          String sPath = getSavePath(iWidth, iHeight);
+          CropItProcessor.saveImageToContentStore(sPath, decoded.mimeType, image, session,
+              getInstanceKey(dimensions.get(i)));
+          files[i] = sPath;
+          previous = scaled;
+        } else {
+          LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
+          files[i] = img;
+        }
+      }
+      return files;
+    } catch (ImageReadException e) {
+      // This is not a valid image.
+      LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
+      LOGGER.debug("Cause: ", e);
+      throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
+    } catch (IOException e) {
+      LOGGER.error("Unable to read image in order to crop it.", e);
+      throw new ImageException(500, "Unable to read image in order to crop it.");
+    } catch (RepositoryException e) {
+      LOGGER.error("Unable to read image in order to crop it.", e);
+      throw new ImageException(500, "Unable to read image in order to crop it.");
+    } finally {
+      // close the streams
+      if (iis != null) {
+        try {
+          iis.close();
+        } catch (IOException e) {
+          LOGGER.debug("Exception closing imageinputstream.");
+        }
+      }
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.debug("Exception closing inputstream.");
+        }
+      }
+    }
+  }
+
+  private InputStream open(Session session) throws StorageClientException,
+      AccessDeniedException, IOException, RepositoryException {
+    if (imgNode == null) {
+      return session.getContentManager().getInputStream(imgPath);
+    }
+    Node imgDataNode = imgNode.getNode(JCRConstants.JCR_CONTENT);
+    return imgDataNode.getProperty(JCRConstants.JCR_DATA).getBinary().getStream();
+  }
+
+  private String getSavePath(int iWidth, int iHeight) {
+    return save + "/" + iWidth + "x" + iHeight + "_" + imgName;
+  }
+
+  private String getInstanceKey(Dimension d) {
+    return hash(imgPath + "|" + version + "|" + x + "," + y + "," + width + "," + height
+        + "|" + d.width + "x" + d.height);
+  }
+
+  private static String hash(String value) {
+    try {
+      return StringUtils.sha1Hash(value);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
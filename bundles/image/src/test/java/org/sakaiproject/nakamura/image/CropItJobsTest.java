@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+/**
+ *
+ */
+public class CropItJobsTest {
+
+  private CropItJobs jobs;
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() {
+    jobs = new CropItJobs(1, 1, 10);
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    jobs.shutdown();
+  }
+
+  @Test
+  public void testIdenticalCropsShareAJob() throws Exception {
+    Future<String[]> first = jobs.submit("a", "alice", new BlockedCrop("/a.png"));
+    Future<String[]> second = jobs.submit("a", "alice", new BlockedCrop("/other.png"));
+    assertSame(first, second);
+    assertNull(CropItJobs.await(first, 10));
+
+    release.countDown();
+    assertArrayEquals(new String[] { "/a.png" }, CropItJobs.await(first, 0));
+    assertSame(first, jobs.get("a", "alice"));
+  }
+
+  @Test
+  public void testJobsAreOnlyGivenToTheirOwner() throws Exception {
+    Future<String[]> job = jobs.submit("a", "alice", new BlockedCrop("/a.png"));
+    assertSame(job, jobs.get("a", "alice"));
+    assertNull(jobs.get("a", "bob"));
+
+    release.countDown();
+    CropItJobs.await(job, 0);
+    assertNull(jobs.get("a", "bob"));
+  }
+
+  @Test
+  public void testFullQueueIsRefused() throws Exception {
+    jobs.submit("a", "alice", new BlockedCrop("/a.png"));
+    jobs.submit("b", "alice", new BlockedCrop("/b.png"));
+    try {
+      jobs.submit("c", "alice", new BlockedCrop("/c.png"));
+      fail("The queue should have been full.");
+    } catch (ImageException e) {
+      assertEquals(503, e.getCode());
+    }
+    assertNull(jobs.get("c", "alice"));
+  }
+
+  @Test
+  public void testFailureIsRethrown() throws Exception {
+    Future<String[]> job = jobs.submit("a", "alice", new Callable<String[]>() {
+      public String[] call() throws Exception {
+        throw new ImageException(406, "Bad image");
+      }
+    });
+    try {
+      CropItJobs.await(job, 0);
+      fail("The crop failure should have been rethrown.");
+    } catch (ImageException e) {
+      assertEquals(406, e.getCode());
+    }
+  }
+
+  private class BlockedCrop implements Callable<String[]> {
+    private final String path;
+
+    BlockedCrop(String path) {
+      this.path = path;
+    }
+
+    public String[] call() throws Exception {
+      release.await();
+      return new String[] { path };
+    }
+  }
+}
@@ -40,7 +40,8 @@ public interface LockManager {
    * @param id
    * @return
    * @throws LockTimeoutException
-   *           indicates that a lock was not achieved within the a timeout (30s)
+   *           indicates that a lock was not achieved within the timeout (lock.wait.timeout,
+   *           120s by default)
    */
   Lock waitForLock(String id) throws LockTimeoutException;
 
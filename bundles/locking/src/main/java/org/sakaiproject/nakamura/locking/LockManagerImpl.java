@@ -20,10 +20,12 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
@@ -31,16 +33,31 @@ import org.sakaiproject.nakamura.api.locking.cache.LockImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to manage the locks.
+ * <p>
+ * Lock ids are spread over a number of stripes, each guarded by its own
+ * {@link ReentrantLock}, so that unrelated ids do not contend. Threads waiting for a lock
+ * queue on the id in arrival order, and on unlock the lock is handed directly to the
+ * first waiter, which is woken immediately. A lock held on this server for longer than
+ * the lease is taken to be abandoned and is released. Locks held by another server are
+ * not signalled on release, waiters for those re-check the cache periodically.
+ * </p>
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
@@ -64,12 +81,39 @@ public class LockManagerImpl implements LockManager {
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
 
+  private static final int DEFAULT_STRIPES = 64;
+  private static final long DEFAULT_WAIT_TIMEOUT = 120000L;
+  private static final long DEFAULT_LEASE = 60000L;
+  /**
+   * How often a waiter re-checks a lock held by another server in the cluster.
+   */
+  private static final long REMOTE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  /**
+   * The number of stripes lock ids are spread over, rounded up to a power of two.
+   */
+  @Property(intValue = DEFAULT_STRIPES)
+  static final String STRIPES = "lock.stripes";
+
+  /**
+   * The maximum time in ms {@link #waitForLock(String)} waits before giving up.
+   */
+  @Property(longValue = DEFAULT_WAIT_TIMEOUT)
+  static final String WAIT_TIMEOUT = "lock.wait.timeout";
+
+  /**
+   * The time in ms after which a lock held on this server is released for the next
+   * waiter.
+   */
+  @Property(longValue = DEFAULT_LEASE)
+  static final String LEASE = "lock.lease";
+
   /**
    * Service dependency, the Cache Manager
    */
@@ -101,7 +145,9 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  private Stripe[] stripes;
+  private long waitTimeoutNanos;
+  private long leaseNanos;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -111,6 +157,28 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    configure(DEFAULT_STRIPES, DEFAULT_WAIT_TIMEOUT, DEFAULT_LEASE);
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    configure(PropertiesUtil.toInteger(properties.get(STRIPES), DEFAULT_STRIPES),
+        PropertiesUtil.toLong(properties.get(WAIT_TIMEOUT), DEFAULT_WAIT_TIMEOUT),
+        PropertiesUtil.toLong(properties.get(LEASE), DEFAULT_LEASE));
+  }
+
+  private void configure(int nstripes, long waitTimeout, long lease) {
+    int n = 1;
+    while (n < nstripes) {
+      n <<= 1;
+    }
+    Stripe[] s = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      s[i] = new Stripe();
+    }
+    stripes = s;
+    waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+    leaseNanos = TimeUnit.MILLISECONDS.toNanos(lease);
   }
 
   public Lock getLock(String id) {
@@ -124,16 +192,26 @@ public class LockManagerImpl implements LockManager {
   public Lock getLock(String id, boolean create) {
     LockImpl lock = lockMap.get(id);
     if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
+      Stripe stripe = getStripe(id);
+      stripe.lock.lock();
+      try {
+        lock = lockMap.get(id);
+        if (lock != null && lock.isLocked() && isExpired(stripe, id)) {
+          release(stripe, id);
           lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
+        }
+        if (lock == null || !lock.isLocked()) {
+          if (stripe.hasWaiters(id)) {
+            // released by another server, the first waiter goes before us
+            handOff(stripe, id);
+            lock = lockMap.get(id);
+          } else {
+            lock = grant(stripe, id, threadId.get());
+            getRequestLocks().put(id, lock);
           }
         }
+      } finally {
+        stripe.lock.unlock();
       }
     }
     if (lock != null) {
@@ -160,8 +238,17 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      String id = lock.getLocked();
+      Stripe stripe = getStripe(id);
+      stripe.lock.lock();
+      try {
+        LockImpl current = lockMap.get(id);
+        // the lease may have expired and the lock been granted to someone else since
+        if (current == null || current.getLockId() == lock.getLockId()) {
+          release(stripe, id);
+        }
+      } finally {
+        stripe.lock.unlock();
       }
     }
   }
@@ -186,36 +273,171 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    long start = System.nanoTime();
+    long deadline = start + waitTimeoutNanos;
+    long thisThread = threadId.get();
+    Stripe stripe = getStripe(id);
+    LockImpl lock = null;
+    stripe.lock.lock();
+    try {
+      LockImpl current = lockMap.get(id);
+      if (current == null || !current.isLocked()) {
+        if (!stripe.hasWaiters(id)) {
+          lock = grant(stripe, id, thisThread);
+        }
+      } else {
+        current.bind(this);
+        if (current.isOwner()) {
+          lock = current;
         }
-        return lock;
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+      if (lock == null) {
+        lock = await(stripe, id, thisThread, deadline);
       }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+    } finally {
+      stripe.lock.unlock();
+    }
+    getRequestLocks().put(id, lock);
+    lock.bind(this);
+    TelemetryCounter.getHistogram("locking", "LockManager-wait", getPrefix(id))
+        .recordSince(start);
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    }
+    return lock;
+  }
+
+  /**
+   * Queue the current thread on the id and wait for the lock to be handed to it. Must be
+   * called holding the stripe lock.
+   */
+  private LockImpl await(Stripe stripe, String id, long thisThread, long deadline)
+      throws LockTimeoutException {
+    Waiter waiter = new Waiter(thisThread, stripe.lock.newCondition());
+    LinkedList<Waiter> queue = stripe.waiters.get(id);
+    if (queue == null) {
+      queue = new LinkedList<Waiter>();
+      stripe.waiters.put(id, queue);
+    }
+    queue.add(waiter);
+    try {
+      while (waiter.lock == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          LOGGER.warn("{} timed out waiting for lock {}", Thread.currentThread(), id);
+          throw new LockTimeoutException("Failed to lock node " + id);
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        LockImpl current = lockMap.get(id);
+        if (current == null || !current.isLocked()) {
+          // released by another server, or removed from the cache
+          if (queue.getFirst() == waiter) {
+            queue.removeFirst();
+            waiter.lock = grant(stripe, id, thisThread);
+          } else {
+            waiter.condition.awaitNanos(Math.min(remaining, REMOTE_POLL_NANOS));
+          }
+        } else if (isExpired(stripe, id)) {
+          release(stripe, id);
+        } else {
+          Long acquired = stripe.held.get(id);
+          if (acquired == null) {
+            // held by another server, which will not signal us
+            remaining = Math.min(remaining, REMOTE_POLL_NANOS);
+          } else {
+            remaining = Math.min(remaining, acquired + leaseNanos - System.nanoTime());
+          }
+          waiter.condition.awaitNanos(Math.max(remaining, 1));
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
+      }
+      return waiter.lock;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if (waiter.lock != null) {
+        // handed over as we were interrupted
+        return waiter.lock;
+      }
+      throw new LockTimeoutException("Interrupted waiting for lock on " + id, e);
+    } finally {
+      if (waiter.lock == null) {
+        queue.remove(waiter);
+      }
+      if (queue.isEmpty()) {
+        stripe.waiters.remove(id);
       }
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
+  }
+
+  /**
+   * Create a lock on id owned by ownerThread. Must be called holding the stripe lock.
+   */
+  private LockImpl grant(Stripe stripe, String id, long ownerThread) {
+    LockImpl lock = new LockImpl(id, random.nextLong(), ownerThread, instanceId);
+    lockMap.put(id, lock);
+    stripe.held.put(id, System.nanoTime());
+    return lock;
+  }
+
+  /**
+   * Remove the lock on id and hand it to the first waiter, if there is one. Must be
+   * called holding the stripe lock.
+   */
+  private void release(Stripe stripe, String id) {
+    Long acquired = stripe.held.remove(id);
+    if (acquired != null) {
+      TelemetryCounter.getHistogram("locking", "LockManager-hold", getPrefix(id))
+          .recordSince(acquired);
+    }
+    lockMap.remove(id);
+    handOff(stripe, id);
+  }
+
+  /**
+   * Grant the free lock on id to the first waiter and wake it. Must be called holding the
+   * stripe lock.
+   */
+  private void handOff(Stripe stripe, String id) {
+    LinkedList<Waiter> queue = stripe.waiters.get(id);
+    if (queue != null && !queue.isEmpty()) {
+      Waiter next = queue.removeFirst();
+      next.lock = grant(stripe, id, next.threadId);
+      next.condition.signal();
+    }
+  }
+
+  /**
+   * @return true if the lock on id is held on this server and its lease has run out.
+   */
+  private boolean isExpired(Stripe stripe, String id) {
+    Long acquired = stripe.held.get(id);
+    if (acquired != null && System.nanoTime() - acquired > leaseNanos) {
+      LOGGER.warn("Lease on lock {} expired, releasing it", id);
+      return true;
+    }
+    return false;
+  }
+
+  private Stripe getStripe(String id) {
+    Stripe[] s = stripes;
+    int h = id.hashCode();
+    h ^= (h >>> 16);
+    return s[h & (s.length - 1)];
+  }
+
+  /**
+   * @return the part of the id that metrics are grouped by, the first element of a path
+   *         or the part before a ':'.
+   */
+  static String getPrefix(String id) {
+    for (int i = 1; i < id.length(); i++) {
+      char c = id.charAt(i);
+      if (c == '/' || c == ':') {
+        return id.substring(0, i);
+      }
+    }
+    return "other";
   }
 
   /**
@@ -244,6 +466,34 @@ public class LockManagerImpl implements LockManager {
     this.cacheManagerService = null;
     lockMap = null;
   }
- 
+
+  /**
+   * Locks held on this server and threads waiting for locks, for the ids that hash to
+   * the stripe.
+   */
+  private static final class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+    /**
+     * id to the {@link System#nanoTime()} the lock was granted at.
+     */
+    final Map<String, Long> held = new HashMap<String, Long>();
+    final Map<String, LinkedList<Waiter>> waiters = new HashMap<String, LinkedList<Waiter>>();
+
+    boolean hasWaiters(String id) {
+      LinkedList<Waiter> queue = waiters.get(id);
+      return queue != null && !queue.isEmpty();
+    }
+  }
+
+  private static final class Waiter {
+    final long threadId;
+    final Condition condition;
+    LockImpl lock;
+
+    Waiter(long threadId, Condition condition) {
+      this.threadId = threadId;
+      this.condition = condition;
+    }
+  }
  
 }
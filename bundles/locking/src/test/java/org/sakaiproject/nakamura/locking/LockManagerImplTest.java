@@ -22,17 +22,30 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.locking.cache.LockImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  *
  */
@@ -99,4 +112,141 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaiterWokenOnUnlock() throws Exception {
+    Lock held = lockManager.waitForLock("/a/foo");
+    final AtomicLong acquiredAt = new AtomicLong();
+    final CountDownLatch waiting = new CountDownLatch(1);
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          waiting.countDown();
+          Lock lock = lockManager.waitForLock("/a/foo");
+          acquiredAt.set(System.nanoTime());
+          assertTrue(lock.isOwner());
+          lock.unlock();
+        } catch (LockTimeoutException e) {
+          // acquiredAt stays 0
+        }
+      }
+    };
+    waiter.start();
+    waiting.await();
+    Thread.sleep(100);
+    long released = System.nanoTime();
+    held.unlock();
+    waiter.join(5000);
+    assertTrue(acquiredAt.get() > 0);
+    // woken on release rather than on the next poll
+    assertTrue(acquiredAt.get() - released < TimeUnit.MILLISECONDS.toNanos(500));
+  }
+
+  @Test
+  public void testWaitersServedInOrder() throws Exception {
+    Lock held = lockManager.waitForLock("/a/foo");
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> waiters = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      final int n = i;
+      Thread waiter = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Lock lock = lockManager.waitForLock("/a/foo");
+            order.add(n);
+            lock.unlock();
+          } catch (LockTimeoutException e) {
+            order.add(-1);
+          }
+        }
+      };
+      waiter.start();
+      waiters.add(waiter);
+      // let each waiter queue before the next
+      Thread.sleep(50);
+    }
+    held.unlock();
+    for (Thread waiter : waiters) {
+      waiter.join(5000);
+    }
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+  }
+
+  @Test
+  public void testUnrelatedLocks() throws Exception {
+    lockManager.waitForLock("/a/foo");
+    final Lock[] other = new Lock[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          other[0] = lockManager.waitForLock("/a/bar");
+        } catch (LockTimeoutException e) {
+          // other stays null
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    assertTrue(other[0] != null);
+    assertEquals("/a/bar", other[0].getLocked());
+  }
+
+  @Test
+  public void testLeaseExpiry() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LEASE, 100L);
+    lockManager.activate(properties);
+    LockImpl abandoned = (LockImpl) lockManager.waitForLock("/a/foo");
+    final Lock[] taken = new Lock[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          taken[0] = lockManager.waitForLock("/a/foo");
+        } catch (LockTimeoutException e) {
+          // taken stays null
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    assertTrue(taken[0] != null);
+    assertTrue(taken[0].getLockId() != abandoned.getLockId());
+    // the old owner unlocking must not release the new owner's lock
+    abandoned.unlock();
+    assertEquals(taken[0].getLockId(), lockManager.getLock("/a/foo", false).getLockId());
+  }
+
+  @Test
+  public void testWaitTimeout() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.WAIT_TIMEOUT, 100L);
+    lockManager.activate(properties);
+    lockManager.waitForLock("/a/foo");
+    final boolean[] timedOut = new boolean[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("/a/foo");
+        } catch (LockTimeoutException e) {
+          timedOut[0] = true;
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    assertTrue(timedOut[0]);
+    assertFalse(t.isAlive());
+  }
+
+  @Test
+  public void testPrefix() {
+    assertEquals("/sites", LockManagerImpl.getPrefix("/sites/site/store/abc"));
+    assertEquals("a", LockManagerImpl.getPrefix("a:user1/message"));
+    assertEquals("other", LockManagerImpl.getPrefix("foo"));
+  }
+
 }
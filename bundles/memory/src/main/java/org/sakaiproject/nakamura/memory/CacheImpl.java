@@ -17,13 +17,19 @@
  */
 package org.sakaiproject.nakamura.memory;
 
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+import net.sf.ehcache.event.RegisteredEventListeners;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,20 +40,33 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *
  */
 public class CacheImpl<V> implements Cache<V> {
 
+  /**
+   * The ehcache used when no name is given.
+   */
+  static final String DEFAULT_CACHE = "default";
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheImpl.class);
+  private static final MetricCounter HITS = TelemetryCounter.getCounter("memory", "Cache", "hits");
+  private static final MetricCounter MISSES = TelemetryCounter.getCounter("memory", "Cache", "misses");
+  private static final LatencyHistogram GET_LATENCY = TelemetryCounter.getHistogram("memory", "Cache", "get");
   private String cacheName;
   private net.sf.ehcache.Cache cache;
   private CacheScope scope;
   private boolean checkPayloadClasses;
-  private Set<String> loadedClasses = Sets.newHashSet();
+  private Set<String> loadedClasses = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+  private final MetricCounter cacheHits;
+  private final MetricCounter cacheMisses;
+  private final LatencyHistogram cacheGetLatency;
+  private final ConcurrentMap<TieredCache<?>, CacheEventListener> invalidationListeners = Maps.newConcurrentMap();
 
   /**
    * @param cacheManager
@@ -56,11 +75,16 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public CacheImpl(CacheManager cacheManager, String name, CacheScope scope) {
     if (name == null) {
-      cacheName = "default";
+      cacheName = DEFAULT_CACHE;
     } else {
       cacheName = name;
     }
     this.scope = scope;
+    // per cache statistics, resolved once so that get does not have to look them up.
+    String service = "Cache-" + cacheName;
+    cacheHits = TelemetryCounter.getCounter("memory", service, "hits");
+    cacheMisses = TelemetryCounter.getCounter("memory", service, "misses");
+    cacheGetLatency = TelemetryCounter.getHistogram("memory", service, "get");
     synchronized (cacheManager) {
       cache = cacheManager.getCache(cacheName);
       if (cache == null) {
@@ -70,6 +94,19 @@ public class CacheImpl<V> implements Cache<V> {
           throw new RuntimeException("Failed to create Cache with name " + cacheName);
         }
       }
+      // the evictions of an ehcache are counted once, however many handles there are to it.
+      RegisteredEventListeners listeners = cache.getCacheEventNotificationService();
+      boolean counted = false;
+      for (Object listener : listeners.getCacheEventListeners()) {
+        if (listener instanceof EvictionCounter) {
+          counted = true;
+          break;
+        }
+      }
+      if (!counted) {
+        listeners.registerListener(new EvictionCounter(TelemetryCounter.getCounter("memory",
+            service, "evictions")));
+      }
     }
     checkPayloadClasses = false;
     CacheConfiguration cacheConfiguration = cache.getCacheConfiguration();
@@ -104,8 +141,13 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
    */
   public V get(String key) {
+    long start = System.nanoTime();
     Element e = cache.get(key);
+    GET_LATENCY.recordSince(start);
+    cacheGetLatency.recordSince(start);
     if (e == null) {
+      MISSES.increment();
+      cacheMisses.increment();
       return null;
     }
     return stats(e.getObjectValue());
@@ -114,9 +156,11 @@ public class CacheImpl<V> implements Cache<V> {
   @SuppressWarnings("unchecked")
   private V stats(Object objectValue) {
     if (objectValue == null) {
-      TelemetryCounter.incrementValue("memory", "Cache", "misses");
+      MISSES.increment();
+      cacheMisses.increment();
     } else {
-      TelemetryCounter.incrementValue("memory", "Cache", "hits");
+      HITS.increment();
+      cacheHits.increment();
     }
     return (V) objectValue;
   }
@@ -220,6 +264,59 @@ public class CacheImpl<V> implements Cache<V> {
     return values;
   }
 
+  /**
+   * Pass removals and updates seen by this cache, including those replicated from other
+   * nodes in the cluster, on to a near cache.
+   *
+   * @param tiers
+   */
+  void addInvalidationListener(final TieredCache<?> tiers) {
+    CacheEventListener listener = new CacheEventListenerAdapter() {
+      @Override
+      public void notifyElementRemoved(Ehcache ehcache, Element element) {
+        tiers.invalidate(String.valueOf(element.getObjectKey()));
+      }
+
+      @Override
+      public void notifyElementPut(Ehcache ehcache, Element element) {
+        tiers.invalidate(String.valueOf(element.getObjectKey()));
+      }
+
+      @Override
+      public void notifyElementUpdated(Ehcache ehcache, Element element) {
+        tiers.invalidate(String.valueOf(element.getObjectKey()));
+      }
+
+      @Override
+      public void notifyRemoveAll(Ehcache ehcache) {
+        tiers.invalidateAll();
+      }
+    };
+    if (invalidationListeners.putIfAbsent(tiers, listener) == null) {
+      cache.getCacheEventNotificationService().registerListener(listener);
+    }
+  }
+
+  /**
+   * Stop passing removals and updates on to a near cache.
+   *
+   * @param tiers
+   */
+  void removeInvalidationListener(TieredCache<?> tiers) {
+    CacheEventListener listener = invalidationListeners.remove(tiers);
+    if (listener != null) {
+      cache.getCacheEventNotificationService().unregisterListener(listener);
+    }
+  }
+
+  /**
+   * @return the time to live of entries in this cache, in seconds, 0 if they live forever.
+   */
+  long getTimeToLiveSeconds() {
+    CacheConfiguration cacheConfiguration = cache.getCacheConfiguration();
+    return cacheConfiguration.isEternal() ? 0 : cacheConfiguration.getTimeToLiveSeconds();
+  }
+
   public void checkCompatableScope(CacheScope scope) {
     if (!scope.equals(this.scope)) {
       throw new IllegalStateException("The cache called " + cacheName
@@ -228,4 +325,25 @@ public class CacheImpl<V> implements Cache<V> {
     }
   }
 
+  /**
+   * Counts the evictions and expiries of an ehcache.
+   */
+  private static final class EvictionCounter extends CacheEventListenerAdapter {
+    private final MetricCounter evictions;
+
+    private EvictionCounter(MetricCounter evictions) {
+      this.evictions = evictions;
+    }
+
+    @Override
+    public void notifyElementEvicted(Ehcache ehcache, Element element) {
+      evictions.increment();
+    }
+
+    @Override
+    public void notifyElementExpired(Ehcache ehcache, Element element) {
+      evictions.increment();
+    }
+  }
+
 }
@@ -40,9 +40,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -77,7 +78,12 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  /**
+   * Registry of instance caches by scope and name, caches without a name are held under
+   * the name of the default ehcache. Lookups are lock free, only the creation of a cache
+   * that is not yet registered is serialized.
+   */
+  private final ConcurrentMap<String, Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
 
@@ -249,16 +255,18 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    */
   @SuppressWarnings("unchecked")
   private <V> Cache<V> getInstanceCache(String name, CacheScope scope) {
-    if (name == null) {
-      return new CacheImpl<V>(cacheManager, null, scope);
-    } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
-      if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name, scope);
-        caches.put(name, c);
+    String key = scope + ":" + (name == null ? CacheImpl.DEFAULT_CACHE : name);
+    Cache<V> c = (Cache<V>) caches.get(key);
+    if (c == null) {
+      synchronized (caches) {
+        c = (Cache<V>) caches.get(key);
+        if (c == null) {
+          c = new CacheImpl<V>(cacheManager, name, scope);
+          caches.put(key, c);
+        }
       }
-      return c;
     }
+    return c;
   }
 
   /**
@@ -0,0 +1,262 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A serialized store held in direct {@link ByteBuffer} slabs outside the java heap, so
+ * that a large number of entries can be kept without adding to GC pause times. Values
+ * are appended to the current slab, when every slab is full the oldest slab is recycled
+ * as a whole and the entries it held are dropped, which makes the store a bounded
+ * circular log. Values that are not {@link Serializable} are not stored.
+ * <p>
+ * Reads do not lock, a slab generation is checked after the bytes have been copied out
+ * so that a read racing with the recycling of a slab is treated as a miss.
+ */
+class OffHeapStore<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapStore.class);
+
+  private static final class Location {
+    final int slab;
+    final int generation;
+    final int offset;
+    final int length;
+    final long expires;
+
+    Location(int slab, int generation, int offset, int length, long expires) {
+      this.slab = slab;
+      this.generation = generation;
+      this.offset = offset;
+      this.length = length;
+      this.expires = expires;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+  private final ByteBuffer[] slabs;
+  private final List<List<String>> slabKeys;
+  private final AtomicIntegerArray generations;
+  private final int slabSize;
+  private final long ttlMillis;
+  private final ClassLoader classLoader;
+  private int currentSlab = -1;
+  private int allocated = 0;
+  private long bytesUsed = 0;
+
+  /**
+   * @param maxBytes
+   *          the maximum number of bytes of direct memory to use.
+   * @param slabSize
+   *          the size of each slab, which is also the largest value that can be stored.
+   * @param ttlMillis
+   *          the time an entry lives for, 0 or less for no expiry.
+   */
+  OffHeapStore(long maxBytes, int slabSize, long ttlMillis) {
+    int count = (int) Math.max(2L, maxBytes / slabSize);
+    this.slabs = new ByteBuffer[count];
+    this.generations = new AtomicIntegerArray(count);
+    this.slabKeys = new ArrayList<List<String>>(count);
+    for (int i = 0; i < count; i++) {
+      slabKeys.add(new ArrayList<String>());
+    }
+    this.slabSize = slabSize;
+    this.ttlMillis = ttlMillis;
+    this.classLoader = this.getClass().getClassLoader();
+  }
+
+  V get(String key) {
+    Location location = index.get(key);
+    if (location == null) {
+      return null;
+    }
+    if (location.expires > 0 && location.expires < System.currentTimeMillis()) {
+      index.remove(key, location);
+      return null;
+    }
+    ByteBuffer buffer = slabs[location.slab];
+    if (buffer == null) {
+      // the store has been freed.
+      return null;
+    }
+    byte[] bytes = new byte[location.length];
+    ByteBuffer slab = buffer.duplicate();
+    slab.position(location.offset);
+    slab.get(bytes);
+    if (generations.get(location.slab) != location.generation) {
+      return null;
+    }
+    return deserialize(bytes);
+  }
+
+  void put(String key, V value) {
+    if (!(value instanceof Serializable)) {
+      index.remove(key);
+      return;
+    }
+    byte[] bytes = serialize(value);
+    if (bytes == null || bytes.length > slabSize) {
+      index.remove(key);
+      return;
+    }
+    long expires = (ttlMillis > 0) ? System.currentTimeMillis() + ttlMillis : 0;
+    synchronized (this) {
+      if (currentSlab < 0 || slabs[currentSlab].remaining() < bytes.length) {
+        nextSlab();
+      }
+      ByteBuffer slab = slabs[currentSlab];
+      int offset = slab.position();
+      slab.put(bytes);
+      bytesUsed += bytes.length;
+      slabKeys.get(currentSlab).add(key);
+      index.put(key, new Location(currentSlab, generations.get(currentSlab), offset,
+          bytes.length, expires));
+    }
+  }
+
+  void remove(String key) {
+    index.remove(key);
+  }
+
+  synchronized void clear() {
+    index.clear();
+    for (int i = 0; i < allocated; i++) {
+      recycle(i);
+    }
+    currentSlab = -1;
+    bytesUsed = 0;
+  }
+
+  /**
+   * Empty the store and drop the slabs, so that the direct memory they hold can be
+   * reclaimed. The store allocates new slabs if it is written to again.
+   */
+  synchronized void free() {
+    clear();
+    for (int i = 0; i < allocated; i++) {
+      slabs[i] = null;
+    }
+    allocated = 0;
+  }
+
+  int size() {
+    return index.size();
+  }
+
+  synchronized long getBytesUsed() {
+    return bytesUsed;
+  }
+
+  /**
+   * Move to the next slab, allocating it if needed or recycling it if the store is full.
+   * Must be called holding the monitor.
+   */
+  private void nextSlab() {
+    currentSlab = (currentSlab + 1) % slabs.length;
+    if (currentSlab >= allocated) {
+      slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+      allocated++;
+    } else {
+      bytesUsed -= slabs[currentSlab].position();
+      recycle(currentSlab);
+    }
+  }
+
+  private void recycle(int slab) {
+    generations.incrementAndGet(slab);
+    for (String key : slabKeys.get(slab)) {
+      Location location = index.get(key);
+      if (location != null && location.slab == slab) {
+        index.remove(key, location);
+      }
+    }
+    slabKeys.get(slab).clear();
+    slabs[slab].clear();
+  }
+
+  private byte[] serialize(V value) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(value);
+      oos.close();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to serialize {} into the off heap store: {} ", value.getClass(),
+          e.getMessage());
+      return null;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private V deserialize(byte[] bytes) {
+    try {
+      ObjectInputStream ois = new ClassLoaderObjectInputStream(new ByteArrayInputStream(bytes),
+          classLoader);
+      try {
+        return (V) ois.readObject();
+      } finally {
+        ois.close();
+      }
+    } catch (IOException e) {
+      LOGGER.debug("Unable to deserialize from the off heap store: {} ", e.getMessage());
+    } catch (ClassNotFoundException e) {
+      LOGGER.debug("Unable to deserialize from the off heap store: {} ", e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Resolves classes against the bundle class loader, which has dynamic imports, rather
+   * than whatever loader happens to be on the stack.
+   */
+  private static final class ClassLoaderObjectInputStream extends ObjectInputStream {
+    private final ClassLoader classLoader;
+
+    ClassLoaderObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+      super(in);
+      this.classLoader = classLoader;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      try {
+        return Class.forName(desc.getName(), false, classLoader);
+      } catch (ClassNotFoundException e) {
+        return super.resolveClass(desc);
+      }
+    }
+  }
+}
@@ -18,11 +18,14 @@
 package org.sakaiproject.nakamura.memory;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.memory.Cache;
@@ -35,28 +38,93 @@ import java.util.Map;
 @Service(value = StorageCacheManager.class)
 public class StorageCacheManagerImpl implements StorageCacheManager {
 
+  @Property(boolValue = false, description = "When true the sparse caches are fronted by an on heap hot tier and an off heap tier")
+  static final String TIERED_ENABLED = "tiered-cache.enabled";
+
+  @Property(intValue = 10000, description = "Maximum number of entries held on heap by each tiered sparse cache")
+  static final String TIERED_L1_SIZE = "tiered-cache.l1-size";
+
+  @Property(intValue = 256, description = "Maximum megabytes of off heap memory used by each tiered sparse cache, 0 disables the off heap tier")
+  static final String TIERED_L2_SIZE_MB = "tiered-cache.l2-size-mb";
+
+  @Property(intValue = 4, description = "Size in megabytes of each off heap slab, values larger than this are not held off heap")
+  static final String TIERED_SLAB_SIZE_MB = "tiered-cache.slab-size-mb";
+
+  private static final long MB = 1024L * 1024L;
+
   private Map<String, Map<String, CacheHolder>> knownCaches;
 
+  /**
+   * The tiered caches that listen to a backing cache for invalidations, so that the
+   * listeners can be removed on deactivation.
+   */
+  private final Map<TieredCache<CacheHolder>, CacheImpl<CacheHolder>> invalidationSources = Maps.newHashMap();
+
+  private boolean tiered;
+  private int l1Size;
+  private long l2Bytes;
+  private int slabSize;
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Activate
   public void activate(Map<String, Object> props) {
+    tiered = PropertiesUtil.toBoolean(props.get(TIERED_ENABLED), false);
+    l1Size = PropertiesUtil.toInteger(props.get(TIERED_L1_SIZE), 10000);
+    l2Bytes = PropertiesUtil.toInteger(props.get(TIERED_L2_SIZE_MB), 256) * MB;
+    slabSize = (int) (PropertiesUtil.toInteger(props.get(TIERED_SLAB_SIZE_MB), 4) * MB);
     ImmutableMap.Builder<String, Map<String, CacheHolder>> b = ImmutableMap.builder();
     Cache<CacheHolder> accesssControlCacheCache = cacheManagerService.getCache("accessControlCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> authorizableCacheCache = cacheManagerService.getCache("authorizableCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> contentCacheCache = cacheManagerService.getCache("contentCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> queryCache = cacheManagerService.getCache("queryCache", CacheScope.CLUSTERINVALIDATED);
-    b.put("ac", new MapDeligate<String, CacheHolder>(accesssControlCacheCache));
-    b.put("au", new MapDeligate<String, CacheHolder>(authorizableCacheCache));
-    b.put("cn", new MapDeligate<String, CacheHolder>(contentCacheCache));
-    b.put("sparseQueryCache", new MapDeligate<String, CacheHolder>(queryCache));
+    b.put("ac", wrap("accessControlCache", accesssControlCacheCache));
+    b.put("au", wrap("authorizableCache", authorizableCacheCache));
+    b.put("cn", wrap("contentCache", contentCacheCache));
+    b.put("sparseQueryCache", wrap("queryCache", queryCache));
     knownCaches = b.build();
   }
 
   @Deactivate
   public void deactivate(Map<String, Object> props) {
+    synchronized (invalidationSources) {
+      for (Map.Entry<TieredCache<CacheHolder>, CacheImpl<CacheHolder>> e : invalidationSources.entrySet()) {
+        e.getValue().removeInvalidationListener(e.getKey());
+      }
+      invalidationSources.clear();
+    }
+    Map<String, Map<String, CacheHolder>> caches = knownCaches;
+    if (caches != null) {
+      for (Map<String, CacheHolder> cache : caches.values()) {
+        if (cache instanceof TieredCache) {
+          ((TieredCache<?>) cache).close();
+        }
+      }
+    }
+  }
 
+  /**
+   * Front the cache with the near cache tiers when tiered mode is enabled.
+   */
+  private Map<String, CacheHolder> wrap(String name, Cache<CacheHolder> cache) {
+    if (!tiered) {
+      return new MapDeligate<String, CacheHolder>(cache);
+    }
+    long ttlMillis = 0;
+    if (cache instanceof CacheImpl) {
+      ttlMillis = ((CacheImpl<CacheHolder>) cache).getTimeToLiveSeconds() * 1000L;
+    }
+    TieredCache<CacheHolder> tieredCache = new TieredCache<CacheHolder>(name, cache, l1Size,
+        l2Bytes, slabSize, ttlMillis);
+    if (cache instanceof CacheImpl) {
+      CacheImpl<CacheHolder> source = (CacheImpl<CacheHolder>) cache;
+      source.addInvalidationListener(tieredCache);
+      synchronized (invalidationSources) {
+        invalidationSources.put(tieredCache, source);
+      }
+    }
+    return tieredCache;
   }
 
   public Map<String, CacheHolder> getAccessControlCache() {
@@ -0,0 +1,234 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A near cache in front of a {@link Cache}. Reads are served from a small on heap
+ * {@link TinyLfuCache}, then from a large {@link OffHeapStore}, and only then from the
+ * backing cache. Writes go to every tier. The backing cache remains the point of cluster
+ * coherence, removals and updates it sees (including invalidations from other nodes) are
+ * passed on to the tiers through {@link #invalidate(String)}.
+ * <p>
+ * A fill of the tiers can race with an invalidation of the same key, the value read from
+ * the backing cache (or the off heap tier) may already be stale when it is written to the
+ * faster tiers. Each invalidation bumps a generation for the stripe the key falls in, and a
+ * fill that sees the generation change while it was in flight is dropped.
+ * <p>
+ * Like {@link MapDeligate} this map is lookup only.
+ */
+public class TieredCache<V> implements Map<String, V> {
+
+  private final Cache<V> backing;
+  private final TinyLfuCache<V> l1;
+  private final OffHeapStore<V> l2;
+  private final MetricCounter l1Hits;
+  private final MetricCounter l2Hits;
+  private final MetricCounter misses;
+  private final MetricCounter droppedFills;
+  private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+  private static final int STRIPES = 64;
+
+  /**
+   * @param name
+   *          the name used to report statistics.
+   * @param backing
+   *          the cache behind the tiers.
+   * @param l1Size
+   *          the maximum number of entries on heap.
+   * @param l2Bytes
+   *          the maximum number of bytes off heap, 0 to disable the off heap tier.
+   * @param slabSize
+   *          the size of each off heap slab.
+   * @param ttlMillis
+   *          the time entries live for in the tiers, 0 or less for no expiry.
+   */
+  public TieredCache(String name, Cache<V> backing, int l1Size, long l2Bytes, int slabSize,
+      long ttlMillis) {
+    this.backing = backing;
+    this.l1 = new TinyLfuCache<V>(l1Size, ttlMillis);
+    this.l2 = (l2Bytes > 0) ? new OffHeapStore<V>(l2Bytes, slabSize, ttlMillis) : null;
+    String service = "TieredCache-" + name;
+    l1Hits = TelemetryCounter.getCounter("memory", service, "l1.hits");
+    l2Hits = TelemetryCounter.getCounter("memory", service, "l2.hits");
+    misses = TelemetryCounter.getCounter("memory", service, "misses");
+    droppedFills = TelemetryCounter.getCounter("memory", service, "dropped.fills");
+  }
+
+  public V get(Object key) {
+    String k = (String) key;
+    V value = l1.get(k);
+    if (value != null) {
+      l1Hits.increment();
+      return value;
+    }
+    long seen = generation(k);
+    if (l2 != null) {
+      value = l2.get(k);
+      if (value != null) {
+        l2Hits.increment();
+        l1.put(k, value);
+        checkFill(k, seen);
+        return value;
+      }
+    }
+    misses.increment();
+    value = backing.get(k);
+    if (value != null) {
+      fill(k, value, seen);
+    }
+    return value;
+  }
+
+  public V put(String key, V value) {
+    // the backing cache is written first, it will invalidate the tiers as part of the
+    // update, so the tiers must be written after it.
+    V previous = backing.put(key, value);
+    fill(key, value, generation(key));
+    return previous;
+  }
+
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  public V remove(Object key) {
+    String k = (String) key;
+    V value = get(k);
+    backing.remove(k);
+    invalidate(k);
+    return value;
+  }
+
+  public void clear() {
+    backing.clear();
+    invalidateAll();
+  }
+
+  /**
+   * Drop a key from the tiers without touching the backing cache.
+   */
+  void invalidate(String key) {
+    // the generation must move before the tiers are cleared, see checkFill.
+    generations.incrementAndGet(stripe(key));
+    l1.remove(key);
+    if (l2 != null) {
+      l2.remove(key);
+    }
+  }
+
+  /**
+   * Drop everything from the tiers without touching the backing cache.
+   */
+  void invalidateAll() {
+    for (int i = 0; i < STRIPES; i++) {
+      generations.incrementAndGet(i);
+    }
+    l1.clear();
+    if (l2 != null) {
+      l2.clear();
+    }
+  }
+
+  /**
+   * Empty the tiers and release the off heap slabs, the cache must not be used afterwards.
+   */
+  void close() {
+    invalidateAll();
+    if (l2 != null) {
+      l2.free();
+    }
+  }
+
+  private void fill(String key, V value, long seen) {
+    l1.put(key, value);
+    if (l2 != null) {
+      l2.put(key, value);
+    }
+    checkFill(key, seen);
+  }
+
+  /**
+   * Undo a fill if the key was invalidated while it was in flight. The check is made after
+   * the tiers have been written, so an invalidation either moves the generation before the
+   * check, and the fill is dropped here, or clears the tiers after the fill.
+   */
+  private void checkFill(String key, long seen) {
+    if (generation(key) != seen) {
+      droppedFills.increment();
+      invalidate(key);
+    }
+  }
+
+  private long generation(String key) {
+    return generations.get(stripe(key));
+  }
+
+  private static int stripe(String key) {
+    return (key.hashCode() & 0x7fffffff) % STRIPES;
+  }
+
+  int getL1Size() {
+    return l1.size();
+  }
+
+  int getL2Size() {
+    return (l2 == null) ? 0 : l2.size();
+  }
+
+  long getL2BytesUsed() {
+    return (l2 == null) ? 0 : l2.getBytesUsed();
+  }
+
+  public boolean containsValue(Object value) {
+    throw new UnsupportedOperationException("This map is lookup only.");
+  }
+
+  public Set<Entry<String, V>> entrySet() {
+    throw new UnsupportedOperationException("This map is lookup only.");
+  }
+
+  public boolean isEmpty() {
+    return false;
+  }
+
+  public Set<String> keySet() {
+    throw new UnsupportedOperationException("This map is lookup only.");
+  }
+
+  public void putAll(Map<? extends String, ? extends V> m) {
+    throw new UnsupportedOperationException("This map is singly add only, use an iterator or loop.");
+  }
+
+  public int size() {
+    throw new UnsupportedOperationException("This map is lookup only.");
+  }
+
+  public Collection<V> values() {
+    throw new UnsupportedOperationException("This map is lookup only.");
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded on heap cache using W-TinyLFU admission. New entries go into a small LRU
+ * window, when the window overflows its least recently used entry is only admitted to
+ * the main LRU region if it has been seen more often, according to a
+ * {@link FrequencySketch}, than the entry the main region would have to evict. One hit
+ * wonders therefore pass through the window without flushing the hot set.
+ * <p>
+ * Lookups go straight to a {@link ConcurrentHashMap}. The recency order is only updated
+ * when the structural lock is free, under contention reordering is skipped rather than
+ * waited for.
+ */
+class TinyLfuCache<V> {
+
+  private static final class Node<V> {
+    final String key;
+    final V value;
+    final long expires;
+
+    Node(String key, V value, long expires) {
+      this.key = key;
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Node<V>> data;
+  private final LinkedHashMap<String, Node<V>> window;
+  private final LinkedHashMap<String, Node<V>> main;
+  private final FrequencySketch sketch;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final int windowMax;
+  private final int mainMax;
+  private final long ttlMillis;
+
+  /**
+   * @param maximumSize
+   *          the maximum number of entries held.
+   * @param ttlMillis
+   *          the time an entry lives for, 0 or less for no expiry.
+   */
+  TinyLfuCache(int maximumSize, long ttlMillis) {
+    int max = Math.max(maximumSize, 2);
+    this.windowMax = Math.max(1, max / 100);
+    this.mainMax = max - windowMax;
+    this.ttlMillis = ttlMillis;
+    this.data = new ConcurrentHashMap<String, Node<V>>(max);
+    this.window = new LinkedHashMap<String, Node<V>>(16, 0.75f, true);
+    this.main = new LinkedHashMap<String, Node<V>>(16, 0.75f, true);
+    this.sketch = new FrequencySketch(max);
+  }
+
+  V get(String key) {
+    Node<V> node = data.get(key);
+    if (node == null) {
+      recordAccess(key, false);
+      return null;
+    }
+    if (node.expires > 0 && node.expires < System.currentTimeMillis()) {
+      remove(key);
+      return null;
+    }
+    recordAccess(key, true);
+    return node.value;
+  }
+
+  void put(String key, V value) {
+    Node<V> node = new Node<V>(key, value, (ttlMillis > 0) ? System.currentTimeMillis()
+        + ttlMillis : 0);
+    lock.lock();
+    try {
+      sketch.increment(key);
+      data.put(key, node);
+      if (main.containsKey(key)) {
+        main.put(key, node);
+        return;
+      }
+      window.put(key, node);
+      if (window.size() > windowMax) {
+        Iterator<Map.Entry<String, Node<V>>> wi = window.entrySet().iterator();
+        Node<V> candidate = wi.next().getValue();
+        wi.remove();
+        admit(candidate);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void remove(String key) {
+    lock.lock();
+    try {
+      data.remove(key);
+      window.remove(key);
+      main.remove(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void clear() {
+    lock.lock();
+    try {
+      data.clear();
+      window.clear();
+      main.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    return data.size();
+  }
+
+  /**
+   * Must be called holding the lock.
+   */
+  private void admit(Node<V> candidate) {
+    if (main.size() < mainMax) {
+      main.put(candidate.key, candidate);
+      return;
+    }
+    Iterator<Map.Entry<String, Node<V>>> mi = main.entrySet().iterator();
+    Node<V> victim = mi.next().getValue();
+    if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+      mi.remove();
+      data.remove(victim.key, victim);
+      main.put(candidate.key, candidate);
+    } else {
+      data.remove(candidate.key, candidate);
+    }
+  }
+
+  private void recordAccess(String key, boolean hit) {
+    if (lock.tryLock()) {
+      try {
+        sketch.increment(key);
+        if (hit && main.get(key) == null) {
+          window.get(key);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -1,6 +1,8 @@
 package org.sakaiproject.nakamura.memory;
 
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -10,6 +12,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class CacheManagerServiceImplTest {
 
@@ -23,4 +26,17 @@ public class CacheManagerServiceImplTest {
     BufferedReader reader = new BufferedReader(new InputStreamReader(finishedConfig));
     assertEquals(reader.readLine(), "Howdy, kind Globe!");
   }
+
+  @Test
+  public void instanceCachesAreReused() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    try {
+      Cache<String> unnamed = cacheManagerService.getCache(null, CacheScope.INSTANCE);
+      assertSame(unnamed, cacheManagerService.getCache(null, CacheScope.INSTANCE));
+      Cache<String> named = cacheManagerService.getCache("test", CacheScope.CLUSTERINVALIDATED);
+      assertSame(named, cacheManagerService.getCache("test", CacheScope.CLUSTERINVALIDATED));
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
 }
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+public class OffHeapStoreTest {
+
+  @Test
+  public void testRoundTrip() {
+    OffHeapStore<HashMap<String, String>> store = new OffHeapStore<HashMap<String, String>>(
+        1024 * 1024, 64 * 1024, 0);
+    HashMap<String, String> value = new HashMap<String, String>();
+    value.put("sakai:name", "test");
+    store.put("/a/b", value);
+    assertEquals(value, store.get("/a/b"));
+    store.remove("/a/b");
+    assertNull(store.get("/a/b"));
+  }
+
+  @Test
+  public void testOldestSlabsAreRecycled() {
+    OffHeapStore<String> store = new OffHeapStore<String>(256 * 1024, 64 * 1024, 0);
+    for (int i = 0; i < 50000; i++) {
+      store.put("key" + i, "value" + i);
+    }
+    assertTrue(store.getBytesUsed() <= 256 * 1024);
+    assertNull(store.get("key0"));
+    assertEquals("value49999", store.get("key49999"));
+  }
+
+  @Test
+  public void testNonSerializableIsSkipped() {
+    OffHeapStore<Object> store = new OffHeapStore<Object>(256 * 1024, 64 * 1024, 0);
+    store.put("key", new Object());
+    assertNull(store.get("key"));
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TieredCacheTest {
+
+  @Test
+  public void testStaleFillFromBackingIsDropped() {
+    final RacingCache backing = new RacingCache();
+    backing.put("k", "v1");
+    final TieredCache<String> tiered = new TieredCache<String>("test-backing", backing, 100,
+        256 * 1024, 64 * 1024, 0);
+    // another node updates the key after the backing cache has been read, but before the
+    // value read is written to the tiers.
+    backing.afterGet = new Runnable() {
+      public void run() {
+        backing.put("k", "v2");
+        tiered.invalidate("k");
+      }
+    };
+    assertEquals("v1", tiered.get("k"));
+    assertEquals("v2", tiered.get("k"));
+    assertEquals(2, backing.gets);
+  }
+
+  @Test
+  public void testCloseEmptiesTheTiers() {
+    RacingCache backing = new RacingCache();
+    TieredCache<String> tiered = new TieredCache<String>("test-close", backing, 100,
+        256 * 1024, 64 * 1024, 0);
+    tiered.put("k", "v1");
+    tiered.close();
+    assertEquals(0, tiered.getL1Size());
+    assertEquals(0, tiered.getL2Size());
+    assertEquals(0, tiered.getL2BytesUsed());
+    backing.remove("k");
+    assertNull(tiered.get("k"));
+  }
+
+  /**
+   * A map backed cache that can run some work once, straight after a get.
+   */
+  private static class RacingCache implements Cache<String> {
+    private final Map<String, String> map = new HashMap<String, String>();
+    private Runnable afterGet;
+    private int gets;
+
+    public String get(String key) {
+      gets++;
+      String value = map.get(key);
+      Runnable r = afterGet;
+      afterGet = null;
+      if (r != null) {
+        r.run();
+      }
+      return value;
+    }
+
+    public String put(String key, String payload) {
+      return map.put(key, payload);
+    }
+
+    public boolean containsKey(String key) {
+      return map.containsKey(key);
+    }
+
+    public void clear() {
+      map.clear();
+    }
+
+    public void remove(String key) {
+      map.remove(key);
+    }
+
+    public void removeChildren(String key) {
+      map.remove(key);
+    }
+
+    public List<String> list() {
+      return new ArrayList<String>(map.values());
+    }
+
+    public void checkCompatableScope(CacheScope scope) {
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TinyLfuCacheTest {
+
+  @Test
+  public void testBounded() {
+    TinyLfuCache<String> cache = new TinyLfuCache<String>(100, 0);
+    for (int i = 0; i < 10000; i++) {
+      cache.put("key" + i, "value" + i);
+    }
+    assertTrue(cache.size() <= 100);
+  }
+
+  @Test
+  public void testFrequentKeysSurviveScan() {
+    TinyLfuCache<String> cache = new TinyLfuCache<String>(1000, 0);
+    for (int i = 0; i < 100000; i++) {
+      cache.put("scan" + i, "value");
+      String hot = "hot" + (i % 200);
+      if (cache.get(hot) == null) {
+        cache.put(hot, "value");
+      }
+    }
+    int retained = 0;
+    for (int i = 0; i < 200; i++) {
+      if (cache.get("hot" + i) != null) {
+        retained++;
+      }
+    }
+    assertEquals(200, retained);
+  }
+
+  @Test
+  public void testRemoveAndExpiry() throws Exception {
+    TinyLfuCache<String> cache = new TinyLfuCache<String>(10, 0);
+    cache.put("a", "1");
+    assertEquals("1", cache.get("a"));
+    cache.remove("a");
+    assertNull(cache.get("a"));
+
+    TinyLfuCache<String> expiring = new TinyLfuCache<String>(10, 1);
+    expiring.put("a", "1");
+    Thread.sleep(10);
+    assertNull(expiring.get("a"));
+  }
+}
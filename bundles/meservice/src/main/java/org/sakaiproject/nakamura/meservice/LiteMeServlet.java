@@ -29,6 +29,9 @@ import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -37,9 +40,13 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.CommonParams;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.doc.BindingType;
@@ -56,20 +63,23 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.AuthorizableUtil;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.api.user.GroupMembershipIndex;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.meservice.MeSnapshotCache.Snapshot;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,6 +88,7 @@ import com.google.common.base.Joiner;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -88,10 +99,12 @@ import java.util.Map.Entry;
 import java.util.MissingResourceException;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.jcr.RepositoryException;
+import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -136,15 +149,38 @@ import javax.servlet.http.HttpServletResponse;
       "}<pre>"),
     @ServiceResponse(code = 401, description = "Unauthorized: credentials provided were not acceptable to return information for."),
     @ServiceResponse(code = 500, description = "Unable to return information about current user.") }))
-@SlingServlet(paths = { "/system/me" }, generateComponent = false, methods = { "GET" })
+@SlingServlet(paths = { "/system/me" }, generateComponent = false, generateService = false, methods = { "GET" })
 @Component // this is needed to add the activate method
+@Service({ Servlet.class, EventHandler.class })
 @Properties({
   @Property(name = LiteMeServlet.LOCALE_LANGUAGE_PROP, value = LiteMeServlet.DEFAULT_LANGUAGE),
-  @Property(name = LiteMeServlet.LOCALE_COUNTRY_PROP, value = LiteMeServlet.DEFAULT_COUNTRY)
+  @Property(name = LiteMeServlet.LOCALE_COUNTRY_PROP, value = LiteMeServlet.DEFAULT_COUNTRY),
+  @Property(name = LiteMeServlet.CACHE_SIZE_PROP, intValue = LiteMeServlet.DEFAULT_CACHE_SIZE),
+  @Property(name = LiteMeServlet.CACHE_TTL_PROP, longValue = LiteMeServlet.DEFAULT_CACHE_TTL),
+  @Property(name = EventConstants.EVENT_TOPIC, value = {
+      "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+      "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+      "org/sakaiproject/nakamura/lite/authorizables/DELETE",
+      "org/sakaiproject/nakamura/lite/content/ADDED",
+      "org/sakaiproject/nakamura/lite/content/UPDATED",
+      "org/sakaiproject/nakamura/lite/content/DELETE",
+      ConnectionConstants.EVENT_TOPIC_BASE + "*",
+      GroupMembershipIndex.TOPIC_INVALIDATED })
 })
-public class LiteMeServlet extends SlingSafeMethodsServlet {
+public class LiteMeServlet extends SlingSafeMethodsServlet implements EventHandler {
   public static final String LOCALE_LANGUAGE_PROP = "locale.language";
   public static final String LOCALE_COUNTRY_PROP = "locale.country";
+  /**
+   * The number of users whose feed is held in memory, 0 turns the cache off.
+   */
+  public static final String CACHE_SIZE_PROP = "me.cache.size";
+  /**
+   * Maximum age (s) of a cached feed, bounding the staleness of changes made on other nodes.
+   */
+  public static final String CACHE_TTL_PROP = "me.cache.ttl";
+
+  public static final int DEFAULT_CACHE_SIZE = 1000;
+  public static final long DEFAULT_CACHE_TTL = 60L;
 
   public static final String DEFAULT_LANGUAGE = "en";
   public static final String DEFAULT_COUNTRY = "US";
@@ -158,8 +194,14 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
   private static final long serialVersionUID = -3786472219389695181L;
   private static final Logger LOG = LoggerFactory.getLogger(LiteMeServlet.class);
+  private static final MetricCounter ME_REQUESTS = TelemetryCounter.getCounter("meservice", "LiteMeServlet", "/system/me");
   private static final String LOCALE_FIELD = "locale";
   private static final String TIMEZONE_FIELD = "timezone";
+  private static final String AUTHORIZABLE_TOPIC = "org/sakaiproject/nakamura/lite/authorizables/";
+  /**
+   * The time the search index takes to reflect a change to messages or contacts.
+   */
+  private static final long INDEX_SETTLE_MS = 5000L;
 
   @Reference
   protected transient LiteMessagingService messagingService;
@@ -176,13 +218,72 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Reference
   protected BasicUserInfoService basicUserInfoService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile GroupMembershipIndex membershipIndex;
+
   private String defaultLanguage;
   private String defaultCountry;
 
+  private transient volatile MeSnapshotCache snapshotCache;
+
   @Activate @Modified
   protected void activate(Map<?, ?> props) {
     defaultLanguage = PropertiesUtil.toString(props.get(LOCALE_LANGUAGE_PROP), DEFAULT_LANGUAGE);
     defaultCountry = PropertiesUtil.toString(props.get(LOCALE_COUNTRY_PROP), DEFAULT_COUNTRY).toUpperCase();
+    int cacheSize = PropertiesUtil.toInteger(props.get(CACHE_SIZE_PROP), DEFAULT_CACHE_SIZE);
+    long cacheTtl = PropertiesUtil.toLong(props.get(CACHE_TTL_PROP), DEFAULT_CACHE_TTL);
+    snapshotCache = cacheSize > 0 ? new MeSnapshotCache(cacheSize,
+        TimeUnit.SECONDS.toMillis(cacheTtl), INDEX_SETTLE_MS) : null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the cached feeds affected by a change to an authorizable, to a user's messages,
+   * contacts or public profile, or to a connection. Feeds are dropped again once the
+   * membership index has caught up with an authorizable change.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    MeSnapshotCache cache = snapshotCache;
+    if (cache == null) {
+      return;
+    }
+    String topic = event.getTopic();
+    if (topic.startsWith(ConnectionConstants.EVENT_TOPIC_BASE)) {
+      invalidate(cache, event.getProperty(UserConstants.EVENT_PROP_USERID));
+      invalidate(cache, event.getProperty("target"));
+      return;
+    }
+    Object path = event.getProperty("path");
+    if (path == null) {
+      cache.clear();
+    } else if (topic.startsWith(AUTHORIZABLE_TOPIC)
+        || GroupMembershipIndex.TOPIC_INVALIDATED.equals(topic)) {
+      cache.invalidate(String.valueOf(path));
+    } else {
+      String id = PathUtils.getAuthorizableId(String.valueOf(path));
+      if (id != null && isFeedContent(String.valueOf(path), id)) {
+        cache.invalidate(id);
+      }
+    }
+  }
+
+  private void invalidate(MeSnapshotCache cache, Object id) {
+    if (id != null) {
+      cache.invalidate(String.valueOf(id));
+    }
+  }
+
+  /**
+   * @return true if the content path is in the part of a home folder the feed is built from.
+   */
+  private boolean isFeedContent(String path, String id) {
+    String home = LitePersonalUtils.getHomePath(id) + "/";
+    return path.startsWith(home + MessageConstants.FOLDER_MESSAGES)
+        || path.startsWith(home + ConnectionConstants.CONTACT_STORE_NAME)
+        || path.startsWith(home + LitePersonalUtils.PATH_PUBLIC);
   }
 
   /**
@@ -194,7 +295,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
-    TelemetryCounter.incrementValue("meservice", "LiteMeServlet", "/system/me");
+    ME_REQUESTS.increment();
     try {
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -212,23 +313,46 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       if ( requestedUserId != null && requestedUserId.length() > 0) {
         userId = requestedUserId;
       }
-      Authorizable au = um.findAuthorizable(userId);
-      if ( au == null ) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
-        return;
+      // What another user's feed holds depends on what this session can see, so only a
+      // user's own feed is cached.
+      MeSnapshotCache cache = userId.equals(session.getUserId()) ? snapshotCache : null;
+      Snapshot snapshot = cache == null ? null : cache.get(userId);
+      if (snapshot == null) {
+        long generation = cache == null ? 0 : cache.getGeneration();
+        // read before the groups are, which can be no older than this.
+        GroupMembershipIndex index = membershipIndex;
+        long notAfter = index == null ? 0 : index.getExpires();
+        Authorizable au = um.findAuthorizable(userId);
+        if ( au == null ) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
+          return;
+        }
+        snapshot = buildSnapshot(session, au, request);
+        if (cache != null) {
+          cache.put(userId, snapshot, generation, notAfter);
+        }
       }
+
       PrintWriter w = response.getWriter();
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
-      writer.object();
       // User info
-      writer.key("user");
-      writeUserJSON(writer, session, au, request);
+      w.write("{\"user\":{");
+      w.write(snapshot.user);
+      if (snapshot.properties != null) {
+        StringWriter locale = new StringWriter();
+        ExtendedJSONWriter writer = new ExtendedJSONWriter(locale);
+        writer.object();
+        writeLocale(writer, snapshot.properties, request);
+        writer.endObject();
+        w.write(',');
+        w.write(members(locale));
+      }
+      w.write('}');
 
       try {
         String messageBucketUrl = messageBucketService.getBucketUrl(request, "default");
         if ( messageBucketUrl != null) {
-          writer.key("eventbus");
-          writer.value(messageBucketUrl);
+          w.write(",\"eventbus\":");
+          w.write(JSONObject.quote(messageBucketUrl));
         }
       } catch ( MessageBucketException e) {
         LOG.warn("Failed to create message bucket URL {} "+e.getMessage());
@@ -236,24 +360,9 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
       }
 
-      // Dump this user his info
-      writer.key("profile");
-      ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-      writer.valueMap(profile);
-
-      // Dump this user his number of unread messages.
-      writer.key("messages");
-      writeMessageCounts(writer, session, au, request);
-
-      // Dump this user his number of contacts.
-      writer.key("contacts");
-      writeContactCounts(writer, au, request);
-
-      // Dump the groups for this user.
-      writer.key("groups");
-      writeGroups(writer, session, au);
-
-      writer.endObject();
+      w.write(',');
+      w.write(snapshot.body);
+      w.write('}');
     } catch (JSONException e) {
       LOG.error("Failed to create proper JSON response in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -283,12 +392,15 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    * @param session
    * @param au
    * @param jcrSession
+   * @param dependencies
+   *          gets the ids of the groups that are written.
    * @throws JSONException
    * @throws StorageClientException
    * @throws AccessDeniedException
    * @throws RepositoryException
    */
-  protected void writeGroups(ExtendedJSONWriter writer, Session session, Authorizable au)
+  protected void writeGroups(ExtendedJSONWriter writer, Session session, Authorizable au,
+      Set<String> dependencies)
       throws JSONException, StorageClientException, AccessDeniedException {
     AuthorizableManager authorizableManager = session.getAuthorizableManager();
     writer.array();
@@ -312,6 +424,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
             continue;
           }
         }
+        dependencies.add(group.getId());
         ValueMap groupProfile = new ValueMapDecorator(basicUserInfoService.getProperties(group));
         if (groupProfile != null) {
           writer.valueMap(groupProfile);
@@ -357,19 +470,10 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
       Query query = new Query(queryString);
       LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-      while (resultIterator.hasNext()) {
-        Result contact = resultIterator.next();
-        if (contact.getProperties().containsKey("state")) {
-          String state = ((String) contact.getProperties().get("state").iterator().next()).toLowerCase();
-          int count = 0;
-          if (contacts.containsKey(state)) {
-            count = contacts.get(state);
-          }
-          contacts.put(state, count + 1);
-        }
+      Map<String, Long> counts = searchServiceFactory.getFacetCounts(request, query, "state",
+          false);
+      for (Entry<String, Long> count : counts.entrySet()) {
+        contacts.put(count.getKey().toLowerCase(), count.getValue().intValue());
       }
     } finally {
       for (Entry<String, Integer> entry : contacts.entrySet()) {
@@ -429,38 +533,96 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   }
 
   /**
+   * Builds the parts of the feed that do not depend on the request.
+   *
+   * @param session
+   * @param au
+   *          the user the feed is for.
+   * @param request
+   * @return the snapshot of the feed.
+   * @throws JSONException
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws MessagingException
+   * @throws SolrSearchException
+   */
+  protected Snapshot buildSnapshot(Session session, Authorizable au,
+      SlingHttpServletRequest request) throws JSONException, StorageClientException,
+      AccessDeniedException, MessagingException, SolrSearchException {
+    Set<String> dependencies = new HashSet<String>();
+
+    StringWriter user = new StringWriter();
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(user);
+    writer.object();
+    Map<String, Object> properties = writeUserInfo(writer, session, au, dependencies);
+    writer.endObject();
+
+    StringWriter body = new StringWriter();
+    writer = new ExtendedJSONWriter(body);
+    writer.object();
+    // Dump this user his info
+    writer.key("profile");
+    ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+    writer.valueMap(profile);
+
+    // Dump this user his number of unread messages.
+    writer.key("messages");
+    writeMessageCounts(writer, session, au, request);
+
+    // Dump this user his number of contacts.
+    writer.key("contacts");
+    writeContactCounts(writer, au, request);
+
+    // Dump the groups for this user.
+    writer.key("groups");
+    writeGroups(writer, session, au, dependencies);
+    writer.endObject();
+
+    return new Snapshot(members(user), properties, members(body), dependencies);
+  }
+
+  /**
+   * @return the members of a serialized JSON object, without the enclosing braces.
+   */
+  private static String members(StringWriter object) {
+    StringBuffer buffer = object.getBuffer();
+    return buffer.substring(1, buffer.length() - 1);
+  }
+
+  /**
+   * Writes the members of the user object, apart from the locale.
    *
    * @param write
    * @param session
    * @param authorizable
-   * @throws RepositoryException
+   * @param dependencies
+   *          gets the ids of the groups the information was taken from.
+   * @return the properties of the user the locale is worked out from, or null for an
+   *         anonymous user.
    * @throws JSONException
    * @throws StorageClientException
    */
-  protected void writeUserJSON(ExtendedJSONWriter write, Session session,
-      Authorizable authorizable, SlingHttpServletRequest request)
+  protected Map<String, Object> writeUserInfo(ExtendedJSONWriter write, Session session,
+      Authorizable authorizable, Set<String> dependencies)
       throws JSONException, StorageClientException {
 
     String user = session.getUserId();
     boolean isAnonymous = (UserConstants.ANON_USERID.equals(user));
     if (isAnonymous || authorizable == null) {
-
-      write.object();
       write.key("anon").value(true);
       write.key("subjects");
       write.array();
       write.endArray();
       write.key("superUser");
       write.value(false);
-      write.endObject();
+      return null;
     } else {
-      Set<String> subjects = getSubjects(authorizable, session.getAuthorizableManager());
+      Set<String> subjects = getSubjects(authorizable, session.getAuthorizableManager(),
+          authorizable.getId().equals(user));
       Map<String, Object> properties = getProperties(authorizable);
-
-      write.object();
+      dependencies.addAll(subjects);
       writeGeneralInfo(write, authorizable, subjects, properties);
-      writeLocale(write, properties, request);
-      write.endObject();
+      return properties;
     }
 
   }
@@ -605,14 +767,32 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    * @param authorizableManager
    *          The {@link AuthorizableManager authorizableManager} that can be used to retrieve
    *          the group membership.
+   * @param self
+   *          true if the authorizable is the session user. The membership index sees every
+   *          group, so it is only used for the user's own groups, other users' groups are
+   *          limited to those the session can read.
    * @return All the names of the {@link Group groups} a user is a member of.
    * @throws RepositoryException
    */
   protected Set<String> getSubjects(Authorizable authorizable,
-      AuthorizableManager authorizableManager) {
+      AuthorizableManager authorizableManager, boolean self) {
     Set<String> subjects = new HashSet<String>();
     if (authorizable != null) {
       String principal = authorizable.getId();
+      GroupMembershipIndex index = membershipIndex;
+      if (self && principal != null && index != null) {
+        try {
+          subjects.addAll(index.getMemberOf(principal));
+          subjects.remove(Group.EVERYONE);
+          return subjects;
+        } catch (StorageClientException e) {
+          LOG.warn("Unable to get the groups of {} from the index: {}", principal,
+              e.getMessage());
+        } catch (AccessDeniedException e) {
+          LOG.warn("Unable to get the groups of {} from the index: {}", principal,
+              e.getMessage());
+        }
+      }
       if (principal != null) {
         Iterator<Group> it = authorizable.memberOf(authorizableManager);
         while (it.hasNext()) {
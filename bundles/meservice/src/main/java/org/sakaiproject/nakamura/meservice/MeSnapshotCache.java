@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A local LRU cache of the pre-serialized parts of a user's /system/me feed. Only the parts that
+ * do not depend on the request are held; the locale and the event bus url are written on every
+ * request.
+ * <p>
+ * An entry is dropped when the user, or any authorizable the entry was built from (the groups
+ * the user is a member of and the groups they manage), changes. The message and contact counts
+ * come from the search index, which lags the change, so an entry built shortly after its user
+ * was invalidated only lives until the index has settled. Events are only seen on the local
+ * node, so entries also expire after a fixed time, and no later than the membership index
+ * they were built from.
+ */
+class MeSnapshotCache {
+
+  private static final MetricCounter HITS = TelemetryCounter.getCounter("meservice", "MeSnapshotCache", "hits");
+  private static final MetricCounter MISSES = TelemetryCounter.getCounter("meservice", "MeSnapshotCache", "misses");
+  private static final MetricCounter INVALIDATIONS = TelemetryCounter.getCounter("meservice", "MeSnapshotCache", "invalidations");
+
+  private final Map<String, Snapshot> cache;
+  /**
+   * The most recent invalidations, by authorizable id.
+   */
+  private final Map<String, Invalidation> invalidations;
+  private final long ttlMs;
+  private final long settleMs;
+  /**
+   * Sequence of invalidations, so that a snapshot built while one of the authorizables it was
+   * built from was changing is not put into the cache.
+   */
+  private long generation;
+  /**
+   * The highest generation dropped from {@link #invalidations}, anything loaded before it may
+   * have missed an invalidation.
+   */
+  private long forgotten;
+
+  /**
+   * @param maxSize the maximum number of users held.
+   * @param ttlMs the maximum age of an entry.
+   * @param settleMs the time the search index takes to reflect a change.
+   */
+  MeSnapshotCache(final int maxSize, long ttlMs, long settleMs) {
+    this.ttlMs = ttlMs;
+    this.settleMs = settleMs;
+    this.cache = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+        return size() > maxSize;
+      }
+    };
+    this.invalidations = new LinkedHashMap<String, Invalidation>(16, 0.75f, false) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Invalidation> eldest) {
+        if (size() > maxSize) {
+          forgotten = Math.max(forgotten, eldest.getValue().generation);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return the current generation, to be passed to {@link #put(String, Snapshot, long, long)}.
+   */
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * @return the snapshot of the user, or null if not cached.
+   */
+  Snapshot get(String userId) {
+    Snapshot snapshot;
+    synchronized (this) {
+      snapshot = cache.get(userId);
+    }
+    if (snapshot == null || snapshot.expires < System.currentTimeMillis()) {
+      MISSES.increment();
+      return null;
+    }
+    HITS.increment();
+    return snapshot;
+  }
+
+  /**
+   * Cache the snapshot of a user, unless the user or anything the snapshot was built from was
+   * invalidated since it was loaded.
+   *
+   * @param userId
+   * @param snapshot
+   * @param loadedAt the generation read before the snapshot was built.
+   * @param notAfter the latest time (ms) the snapshot may be kept, 0 for no limit beyond the
+   *          ttl.
+   */
+  synchronized void put(String userId, Snapshot snapshot, long loadedAt, long notAfter) {
+    if (loadedAt < forgotten || isInvalidatedSince(snapshot.dependencies, loadedAt)) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long expires = now + ttlMs;
+    if (notAfter > 0) {
+      expires = Math.min(expires, notAfter);
+    }
+    Invalidation last = invalidations.get(userId);
+    if (last != null) {
+      if (last.generation > loadedAt) {
+        return;
+      }
+      long settled = last.time + settleMs;
+      if (settled > now) {
+        // built before the index reflects the change, only keep it until it does.
+        expires = Math.min(expires, settled);
+      }
+    }
+    snapshot.expires = expires;
+    cache.put(userId, snapshot);
+  }
+
+  /**
+   * Drop the entry for an authorizable and every entry that was built from it.
+   */
+  synchronized void invalidate(String authorizableId) {
+    INVALIDATIONS.increment();
+    generation++;
+    invalidations.remove(authorizableId);
+    invalidations.put(authorizableId, new Invalidation(generation, System.currentTimeMillis()));
+    cache.remove(authorizableId);
+    for (Iterator<Snapshot> i = cache.values().iterator(); i.hasNext();) {
+      if (i.next().dependencies.contains(authorizableId)) {
+        i.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    generation++;
+    forgotten = generation;
+    invalidations.clear();
+    cache.clear();
+  }
+
+  private boolean isInvalidatedSince(Set<String> ids, long loadedAt) {
+    for (String id : ids) {
+      Invalidation invalidation = invalidations.get(id);
+      if (invalidation != null && invalidation.generation > loadedAt) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class Invalidation {
+    private final long generation;
+    private final long time;
+
+    private Invalidation(long generation, long time) {
+      this.generation = generation;
+      this.time = time;
+    }
+  }
+
+  /**
+   * The request independent parts of a /system/me feed.
+   */
+  static final class Snapshot {
+    /**
+     * The members of the user object, without the enclosing braces.
+     */
+    final String user;
+    /**
+     * The user properties the locale is worked out from, null for anonymous.
+     */
+    final Map<String, Object> properties;
+    /**
+     * The profile, messages, contacts and groups members, without the enclosing braces.
+     */
+    final String body;
+    /**
+     * The ids of the other authorizables the snapshot was built from.
+     */
+    final Set<String> dependencies;
+    private volatile long expires;
+
+    Snapshot(String user, Map<String, Object> properties, String body,
+        Set<String> dependencies) {
+      this.user = user;
+      this.properties = properties == null ? null : Collections.unmodifiableMap(properties);
+      this.body = body;
+      this.dependencies = Collections.unmodifiableSet(new HashSet<String>(dependencies));
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.meservice.MeSnapshotCache.Snapshot;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ *
+ */
+public class MeSnapshotCacheTest {
+
+  private Snapshot snapshot(Set<String> dependencies) {
+    return new Snapshot("\"userid\":\"alice\"", Collections.<String, Object> emptyMap(),
+        "\"groups\":[]", dependencies);
+  }
+
+  @Test
+  public void testGetPut() {
+    MeSnapshotCache cache = new MeSnapshotCache(10, 60000L, 0L);
+    assertNull(cache.get("alice"));
+    Snapshot snapshot = snapshot(Collections.<String> emptySet());
+    cache.put("alice", snapshot, cache.getGeneration(), 0);
+    assertSame(snapshot, cache.get("alice"));
+  }
+
+  @Test
+  public void testInvalidateDependency() {
+    MeSnapshotCache cache = new MeSnapshotCache(10, 60000L, 0L);
+    cache.put("alice", snapshot(ImmutableSet.of("g-math")), cache.getGeneration(), 0);
+    cache.put("bob", snapshot(ImmutableSet.of("g-art")), cache.getGeneration(), 0);
+    cache.invalidate("g-math");
+    assertNull(cache.get("alice"));
+    assertNotNull(cache.get("bob"));
+    cache.invalidate("bob");
+    assertNull(cache.get("bob"));
+  }
+
+  @Test
+  public void testRacingInvalidation() {
+    MeSnapshotCache cache = new MeSnapshotCache(10, 60000L, 0L);
+    long generation = cache.getGeneration();
+    cache.invalidate("g-math");
+    cache.put("alice", snapshot(ImmutableSet.of("g-math")), generation, 0);
+    assertNull(cache.get("alice"));
+
+    // unrelated changes do not stop a snapshot being cached
+    generation = cache.getGeneration();
+    cache.invalidate("carol");
+    cache.put("alice", snapshot(ImmutableSet.of("g-math")), generation, 0);
+    assertNotNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testForgottenInvalidation() {
+    MeSnapshotCache cache = new MeSnapshotCache(1, 60000L, 0L);
+    long generation = cache.getGeneration();
+    cache.invalidate("g-math");
+    // pushes the invalidation of g-math out
+    cache.invalidate("carol");
+    cache.put("alice", snapshot(ImmutableSet.of("g-math")), generation, 0);
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testSettle() throws Exception {
+    MeSnapshotCache cache = new MeSnapshotCache(10, 60000L, 50L);
+    cache.invalidate("alice");
+    cache.put("alice", snapshot(Collections.<String> emptySet()), cache.getGeneration(), 0);
+    assertNotNull(cache.get("alice"));
+    Thread.sleep(100L);
+    // built before the index had settled, so it is rebuilt
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testPutAfterSettle() throws Exception {
+    MeSnapshotCache cache = new MeSnapshotCache(10, 60000L, 50L);
+    cache.invalidate("alice");
+    Thread.sleep(100L);
+    // the index has settled, so the snapshot lives for the full time
+    Snapshot snapshot = snapshot(Collections.<String> emptySet());
+    cache.put("alice", snapshot, cache.getGeneration(), 0);
+    assertSame(snapshot, cache.get("alice"));
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    MeSnapshotCache cache = new MeSnapshotCache(10, 50L, 0L);
+    cache.put("alice", snapshot(Collections.<String> emptySet()), cache.getGeneration(), 0);
+    Thread.sleep(100L);
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testExpiresWithTheMembershipIndex() throws Exception {
+    MeSnapshotCache cache = new MeSnapshotCache(10, 60000L, 0L);
+    cache.put("alice", snapshot(Collections.<String> emptySet()), cache.getGeneration(),
+        System.currentTimeMillis() + 50L);
+    assertNotNull(cache.get("alice"));
+    Thread.sleep(100L);
+    assertNull(cache.get("alice"));
+  }
+}
@@ -30,12 +30,8 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
-import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.CommonParams;
-import org.apache.solr.common.params.GroupParams;
-import org.apache.solr.common.util.NamedList;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -47,7 +43,6 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.slf4j.Logger;
@@ -56,8 +51,6 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -148,48 +141,36 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
 
       queryString.append(")");
 
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+
+      JSONWriter write = new JSONWriter(response.getWriter());
+
       // The "groupedby" clause forces a categorized count. If not
       // specified, all we need is the total count.
-      String groupedBy;
-      final Map<String, Object> queryOptions;
       if (request.getRequestParameter("groupedby") == null) {
-        groupedBy = null;
-        queryOptions = ImmutableMap.of(
+        final Map<String, Object> queryOptions = ImmutableMap.of(
             PARAMS_ITEMS_PER_PAGE, (Object) "0",
             CommonParams.START, "0"
         );
-      } else {
-        groupedBy = request.getRequestParameter("groupedby").getString();
-        groupedBy = groupedBy.replaceFirst("^sakai:", "");
-        // group=true&group.field=category&group.limit=0&fl=category
-        queryOptions = new ImmutableMap.Builder<String, Object>().
-            put(PARAMS_ITEMS_PER_PAGE, "50").
-            put(CommonParams.START, "0").
-            put(CommonParams.FL, groupedBy).
-            put(GroupParams.GROUP, "true").
-            put(GroupParams.GROUP_FIELD, groupedBy).
-            put(GroupParams.GROUP_LIMIT, "0").
-            build();
-      }
-
-      Query query = new Query(queryString.toString(), queryOptions);
-      LOGGER.info("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
+        Query query = new Query(queryString.toString(), queryOptions);
+        LOGGER.info("Submitting Query {} ", query);
+        SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
+            request, query, false);
 
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-
-      JSONWriter write = new JSONWriter(response.getWriter());
-
-      if (groupedBy == null) {
         write.object();
         write.key("count");
         write.value(resultSet.getSize());
         write.endObject();
       } else {
-        // The user want to group the count by a specified set.
-        Map<String, Long> mapCount = getMapCount((SolrQueryResponseWrapper) resultSet, groupedBy);
+        // The user want to group the count by a specified set, which is counted by a
+        // facet on that field.
+        String groupedBy = request.getRequestParameter("groupedby").getString();
+        groupedBy = groupedBy.replaceFirst("^sakai:", "");
+        Query query = new Query(queryString.toString());
+        LOGGER.info("Submitting Query {} counted by {}", query, groupedBy);
+        Map<String, Long> mapCount = searchServiceFactory.getFacetCounts(request, query,
+            groupedBy, false);
         write.object();
         write.key("count");
         write.array();
@@ -216,22 +197,4 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage());
     }
   }
-
-  @SuppressWarnings("unchecked")
-  private Map<String, Long> getMapCount(SolrQueryResponseWrapper resultSet, String groupedBy) {
-    Map<String, Long> mapCount = new HashMap<String, Long>();
-    QueryResponse solrQueryResponse = ((SolrQueryResponseWrapper) resultSet).getQueryResponse();
-    NamedList<Object> solrResponse = solrQueryResponse.getResponse();
-    NamedList<Object> groupedList = (NamedList<Object>) solrResponse.get("grouped");
-    NamedList<Object> categoryResponse = (NamedList<Object>) groupedList.get(groupedBy);
-    List<NamedList<Object>> groupsResponse = (List<NamedList<Object>>) categoryResponse.get("groups");
-    for (NamedList<Object> groupingResult : groupsResponse) {
-      final String category = (String) groupingResult.get("groupValue");
-      final SolrDocumentList documentList = (SolrDocumentList) groupingResult.get("doclist");
-      final long categoryCount = documentList.getNumFound();
-      LOGGER.debug("category = {}, count = {}", category, categoryCount);
-      mapCount.put(category, categoryCount);
-    }
-    return mapCount;
-  }
 }
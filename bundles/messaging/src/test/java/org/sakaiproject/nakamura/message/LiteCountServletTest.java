@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.message;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -27,17 +28,14 @@ import static org.mockito.Mockito.withSettings;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONObject;
-import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.common.SolrDocumentList;
-import org.apache.solr.common.util.NamedList;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -45,8 +43,6 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 
 /**
@@ -99,34 +95,10 @@ public class LiteCountServletTest {
     when(messagingService.getFullPathToStore("admin", session)).thenReturn(
         "/path/to/store");
 
-    List<NamedList<Object>> groupsResponse = new ArrayList<NamedList<Object>>();
-
-    SolrDocumentList documentListA = mock(SolrDocumentList.class);
-    when(documentListA.getNumFound()).thenReturn(2L);
-    NamedList<Object> groupingResultA = new NamedList<Object>();
-    groupingResultA.add("groupValue", "a");
-    groupingResultA.add("doclist", documentListA);
-    groupsResponse.add(groupingResultA);
-
-    SolrDocumentList documentListC = mock(SolrDocumentList.class);
-    when(documentListC.getNumFound()).thenReturn(1L);
-    NamedList<Object> groupingResultC = new NamedList<Object>();
-    groupingResultC.add("groupValue", "c");
-    groupingResultC.add("doclist", documentListC);
-    groupsResponse.add(groupingResultC);
-
-    NamedList<Object> categoryResponse = new NamedList<Object>();
-    categoryResponse.add("groups", groupsResponse);
-    NamedList<Object> groupedList = new NamedList<Object>();
-    groupedList.add("foo", categoryResponse);
-    NamedList<Object> solrResponse = new NamedList<Object>();
-    solrResponse.add("grouped", groupedList);
-    QueryResponse solrQueryResponse = mock(QueryResponse.class);
-    when(solrQueryResponse.getResponse()).thenReturn(solrResponse);
-
-    SolrSearchResultSet resultSet = mock(SolrSearchResultSet.class, withSettings().extraInterfaces(SolrQueryResponseWrapper.class));
-    when(searchFactory.getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean())).thenReturn(resultSet);
-    when(((SolrQueryResponseWrapper)resultSet).getQueryResponse()).thenReturn(solrQueryResponse);
+    Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    counts.put("a", 2L);
+    counts.put("c", 1L);
+    when(searchFactory.getFacetCounts(isA(SlingHttpServletRequest.class), isA(Query.class), eq("foo"), anyBoolean())).thenReturn(counts);
     servlet.doGet(request, response);
 
     write.flush();
@@ -61,6 +61,12 @@ public interface ProxyClientService {
    */
   public static final String SAKAI_LIMIT_GET_SIZE = "sakai:proxy-limit-length";
 
+  /**
+   * Set to true to let the GET responses of this end point be held in the shared proxy
+   * cache. The session cookies of the requesting user are then not sent upstream.
+   */
+  public static final String SAKAI_PROXY_CACHE = "sakai:proxy-cache";
+
 
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
@@ -104,6 +110,22 @@ public interface ProxyClientService {
       Map<String, Object> input, InputStream requestInputStream,
       long requestContentLength, String requestContentType) throws ProxyClientException;
 
+  /**
+   * Resolves the end point URL of a proxy node against the supplied template parameters,
+   * exactly as {@link #executeCall(Node, Map, Map, InputStream, long, String)} would
+   * before dispatching the request.
+   *
+   * @param node
+   *          the node containing the proxy end point specification.
+   * @param input
+   *          a map of parameters for the url template.
+   * @return the resolved URL, or null if the node does not define an end point.
+   * @throws ProxyClientException
+   *           if the end point template is invalid or can not be evaluated.
+   */
+  public String resolveEndpoint(Node node, Map<String, Object> input)
+      throws ProxyClientException;
+
   /**
    * Exports the HTTP Connection Manager for use by bundles making HTTP requests
    */
@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.sakaiproject.nakamura.util.StringUtils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An immutable, post processed proxy response held by the {@link ProxyResponseCache},
+ * together with the upstream validators and the times until which it is fresh and may be
+ * served stale while it is revalidated.
+ */
+final class CachedProxyResponse {
+
+  /**
+   * Upstream headers that control how long a response may be held, kept so that a 304
+   * from the upstream server can be merged over them.
+   */
+  private static final String[] UPSTREAM_HEADERS = { "cache-control", "expires", "date",
+      "age", "vary", "etag", "last-modified", "set-cookie" };
+
+  private final int status;
+  private final String contentType;
+  private final String characterEncoding;
+  private final List<String[]> headers;
+  private final byte[] body;
+  private final Map<String, String> upstream;
+  private final long freshUntil;
+  private final long staleUntil;
+
+  private CachedProxyResponse(int status, String contentType, String characterEncoding,
+      List<String[]> headers, byte[] body, Map<String, String> upstream, long freshUntil,
+      long staleUntil) {
+    this.status = status;
+    this.contentType = contentType;
+    this.characterEncoding = characterEncoding;
+    this.headers = headers;
+    this.body = body;
+    this.upstream = upstream;
+    this.freshUntil = freshUntil;
+    this.staleUntil = staleUntil;
+  }
+
+  /**
+   * @return a cached copy of the captured output, or null if the upstream response may
+   *         not be stored by a shared cache.
+   */
+  static CachedProxyResponse create(CapturingProxyResponse capture,
+      Map<String, String[]> upstreamHeaders, long now, long defaultTtl,
+      long defaultStale) {
+    if (!capture.isCacheable()) {
+      return null;
+    }
+    Map<String, String> upstream = new HashMap<String, String>();
+    for (String name : UPSTREAM_HEADERS) {
+      String value = getHeader(upstreamHeaders, name);
+      if (value != null) {
+        upstream.put(name, value);
+      }
+    }
+    return create(capture.getCapturedStatus(), capture.getCapturedContentType(),
+        capture.getCapturedCharacterEncoding(),
+        Collections.unmodifiableList(capture.getCapturedHeaders()),
+        capture.getCapturedBody(), upstream, now, defaultTtl, defaultStale);
+  }
+
+  private static CachedProxyResponse create(int status, String contentType,
+      String characterEncoding, List<String[]> headers, byte[] body,
+      Map<String, String> upstream, long now, long defaultTtl, long defaultStale) {
+    if (upstream.containsKey("set-cookie")) {
+      return null;
+    }
+    String vary = upstream.get("vary");
+    if (vary != null) {
+      for (String name : StringUtils.split(vary, ',')) {
+        name = name.trim().toLowerCase();
+        if ("*".equals(name) || ProxyResponseCache.IGNORED_HEADERS.contains(name)) {
+          return null;
+        }
+      }
+    }
+    Map<String, String> directives = parseCacheControl(upstream.get("cache-control"));
+    if (directives.containsKey("no-store") || directives.containsKey("private")) {
+      return null;
+    }
+    long lifetime = lifetime(directives, upstream, now, defaultTtl);
+    if (lifetime <= 0 && !upstream.containsKey("etag")
+        && !upstream.containsKey("last-modified")) {
+      return null;
+    }
+    long stale = defaultStale;
+    if (directives.containsKey("no-cache") || directives.containsKey("must-revalidate")
+        || directives.containsKey("proxy-revalidate")) {
+      stale = 0;
+    } else if (directives.containsKey("stale-while-revalidate")) {
+      stale = seconds(directives.get("stale-while-revalidate"), 0) * 1000L;
+    }
+    long freshUntil = now + Math.max(0, lifetime);
+    return new CachedProxyResponse(status, contentType, characterEncoding, headers, body,
+        upstream, freshUntil, freshUntil + stale);
+  }
+
+  /**
+   * @return the freshness lifetime in ms.
+   */
+  private static long lifetime(Map<String, String> directives,
+      Map<String, String> upstream, long now, long defaultTtl) {
+    if (directives.containsKey("no-cache")) {
+      return 0;
+    }
+    long age = seconds(upstream.get("age"), 0) * 1000L;
+    long maxAge = seconds(directives.get("s-maxage"), -1);
+    if (maxAge < 0) {
+      maxAge = seconds(directives.get("max-age"), -1);
+    }
+    if (maxAge >= 0) {
+      return maxAge * 1000L - age;
+    }
+    String expires = upstream.get("expires");
+    if (expires != null) {
+      try {
+        long date = now;
+        String dateHeader = upstream.get("date");
+        if (dateHeader != null) {
+          date = DateUtil.parseDate(dateHeader).getTime();
+        }
+        return DateUtil.parseDate(expires).getTime() - date;
+      } catch (DateParseException e) {
+        // an invalid Expires means already expired.
+        return 0;
+      }
+    }
+    return defaultTtl - age;
+  }
+
+  static Map<String, String> parseCacheControl(String cacheControl) {
+    Map<String, String> directives = new HashMap<String, String>();
+    if (cacheControl != null) {
+      for (String directive : StringUtils.split(cacheControl, ',')) {
+        String name = directive;
+        String value = "";
+        int i = directive.indexOf('=');
+        if (i >= 0) {
+          name = directive.substring(0, i);
+          value = directive.substring(i + 1).trim();
+          if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+          }
+        }
+        directives.put(name.trim().toLowerCase(), value);
+      }
+    }
+    return directives;
+  }
+
+  private static long seconds(String value, long defaultValue) {
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        return defaultValue;
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * @return the first value of a header, matched ignoring case, with repeated
+   *         Cache-Control and Vary headers joined.
+   */
+  static String getHeader(Map<String, String[]> headers, String name) {
+    String result = null;
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if (name.equalsIgnoreCase(e.getKey()) && e.getValue() != null) {
+        for (String value : e.getValue()) {
+          result = (result == null) ? value : result + ", " + value;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return a copy of this response with its freshness recalculated from the headers of
+   *         a 304 Not Modified response, or null if it may no longer be stored.
+   */
+  CachedProxyResponse revalidate(Map<String, String[]> notModifiedHeaders, long now,
+      long defaultTtl, long defaultStale) {
+    Map<String, String> merged = new HashMap<String, String>(upstream);
+    merged.remove("age");
+    merged.remove("date");
+    for (String name : UPSTREAM_HEADERS) {
+      String value = getHeader(notModifiedHeaders, name);
+      if (value != null) {
+        merged.put(name, value);
+      }
+    }
+    return create(status, contentType, characterEncoding, headers, body, merged, now,
+        defaultTtl, defaultStale);
+  }
+
+  boolean isFresh(long now) {
+    return now < freshUntil;
+  }
+
+  /**
+   * @return true if this response may be sent while it is being revalidated.
+   */
+  boolean isServableStale(long now) {
+    return now < staleUntil;
+  }
+
+  /**
+   * Add conditional request headers so the upstream server can answer with a 304.
+   */
+  void addValidators(Map<String, String> requestHeaders) {
+    String etag = upstream.get("etag");
+    if (etag != null) {
+      requestHeaders.put("If-None-Match", etag);
+    }
+    String lastModified = upstream.get("last-modified");
+    if (lastModified != null) {
+      requestHeaders.put("If-Modified-Since", lastModified);
+    }
+  }
+
+  int size() {
+    return body.length;
+  }
+
+  /**
+   * Send this response, or a 304 if the client already holds it.
+   */
+  void send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String etag = null;
+    for (String[] h : headers) {
+      if ("ETag".equalsIgnoreCase(h[0])) {
+        etag = h[1];
+      }
+    }
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (etag != null && ifNoneMatch != null
+        && ("*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(etag))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      response.setHeader("ETag", etag);
+      return;
+    }
+    response.setStatus(status);
+    if (contentType != null) {
+      response.setContentType(contentType);
+    }
+    if (characterEncoding != null) {
+      response.setCharacterEncoding(characterEncoding);
+    }
+    for (String[] h : headers) {
+      if (!"Content-Length".equalsIgnoreCase(h[0])) {
+        response.addHeader(h[0], h[1]);
+      }
+    }
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+  }
+}
@@ -0,0 +1,360 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Captures the output of a {@link org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor}
+ * so that it can be stored in the {@link ProxyResponseCache} and replayed to later
+ * requests. At most maxBytes of body are held in memory, beyond that the capture is
+ * abandoned and, when delivering, the output is streamed straight through to the wrapped
+ * response.
+ */
+class CapturingProxyResponse extends SlingHttpServletResponseWrapper {
+
+  private final int maxBytes;
+  private final boolean deliver;
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private final List<String[]> headers = new ArrayList<String[]>();
+  private int status = HttpServletResponse.SC_OK;
+  private String errorMessage;
+  private boolean error;
+  private String contentType;
+  private String characterEncoding;
+  private boolean overflowed;
+  private OutputStream target;
+  private ServletOutputStream outputStream;
+  private PrintWriter writer;
+
+  /**
+   * @param response
+   *          the response being wrapped.
+   * @param maxBytes
+   *          the largest body that will be captured.
+   * @param deliver
+   *          true if output that overflows the capture should be sent to the wrapped
+   *          response, false if it should be discarded.
+   */
+  CapturingProxyResponse(SlingHttpServletResponse response, int maxBytes, boolean deliver) {
+    super(response);
+    this.maxBytes = maxBytes;
+    this.deliver = deliver;
+    this.target = buffer;
+  }
+
+  /**
+   * @return true if the whole response was captured, was a 200 and set no cookies.
+   */
+  boolean isCacheable() {
+    return !overflowed && !error && status == HttpServletResponse.SC_OK
+        && getHeader("Set-Cookie") == null;
+  }
+
+  int getCapturedStatus() {
+    return status;
+  }
+
+  String getCapturedContentType() {
+    return contentType;
+  }
+
+  String getCapturedCharacterEncoding() {
+    return characterEncoding;
+  }
+
+  List<String[]> getCapturedHeaders() {
+    return headers;
+  }
+
+  byte[] getCapturedBody() {
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Flush anything still held in the writer into the capture.
+   */
+  void finish() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+  }
+
+  /**
+   * Send a response that was not stored to the wrapped response.
+   */
+  void replay() throws IOException {
+    finish();
+    if (overflowed) {
+      // already streamed
+      return;
+    }
+    if (error) {
+      if (errorMessage == null) {
+        super.sendError(status);
+      } else {
+        super.sendError(status, errorMessage);
+      }
+      return;
+    }
+    sendHead();
+    if (buffer.size() > 0) {
+      buffer.writeTo(getResponse().getOutputStream());
+    }
+  }
+
+  private void sendHead() {
+    HttpServletResponse response = (HttpServletResponse) getResponse();
+    response.setStatus(status);
+    if (contentType != null) {
+      response.setContentType(contentType);
+    }
+    if (characterEncoding != null) {
+      response.setCharacterEncoding(characterEncoding);
+    }
+    for (String[] h : headers) {
+      response.addHeader(h[0], h[1]);
+    }
+  }
+
+  private void write(byte[] b, int off, int len) throws IOException {
+    if (!overflowed && buffer.size() + len > maxBytes) {
+      overflowed = true;
+      if (deliver) {
+        sendHead();
+        target = getResponse().getOutputStream();
+        buffer.writeTo(target);
+      } else {
+        target = null;
+      }
+      buffer.reset();
+    }
+    if (target != null) {
+      target.write(b, off, len);
+    }
+  }
+
+  private boolean passThrough() {
+    return overflowed && deliver;
+  }
+
+  private String getHeader(String name) {
+    for (String[] h : headers) {
+      if (h[0].equalsIgnoreCase(name)) {
+        return h[1];
+      }
+    }
+    return null;
+  }
+
+  private void removeHeader(String name) {
+    for (Iterator<String[]> i = headers.iterator(); i.hasNext();) {
+      if (i.next()[0].equalsIgnoreCase(name)) {
+        i.remove();
+      }
+    }
+  }
+
+  // ---------- HttpServletResponse ----------
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (outputStream == null) {
+      outputStream = new ServletOutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          CapturingProxyResponse.this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          CapturingProxyResponse.this.write(b, off, len);
+        }
+      };
+    }
+    return outputStream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      String encoding = getCharacterEncoding();
+      if (encoding == null) {
+        encoding = "ISO-8859-1";
+      }
+      writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), encoding));
+    }
+    return writer;
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+    if (characterEncoding != null) {
+      return characterEncoding;
+    }
+    return super.getCharacterEncoding();
+  }
+
+  @Override
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public void setCharacterEncoding(String charset) {
+    if (passThrough()) {
+      super.setCharacterEncoding(charset);
+    }
+    characterEncoding = charset;
+  }
+
+  @Override
+  public void setContentType(String type) {
+    if (passThrough()) {
+      super.setContentType(type);
+    }
+    contentType = type;
+  }
+
+  @Override
+  public void setContentLength(int len) {
+    // the length is set when the captured body is sent.
+  }
+
+  @Override
+  public void setStatus(int sc) {
+    if (passThrough()) {
+      super.setStatus(sc);
+    }
+    status = sc;
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public void setStatus(int sc, String sm) {
+    setStatus(sc);
+  }
+
+  @Override
+  public void sendError(int sc) throws IOException {
+    sendError(sc, null);
+  }
+
+  @Override
+  public void sendError(int sc, String msg) throws IOException {
+    if (passThrough()) {
+      super.sendError(sc, msg);
+    }
+    status = sc;
+    errorMessage = msg;
+    error = true;
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
+    setHeader("Location", location);
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+    return getHeader(name) != null;
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if (passThrough()) {
+      super.setHeader(name, value);
+    }
+    removeHeader(name);
+    headers.add(new String[] { name, value });
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    if (passThrough()) {
+      super.addHeader(name, value);
+    }
+    headers.add(new String[] { name, value });
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    setHeader(name, String.valueOf(value));
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    addHeader(name, String.valueOf(value));
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+    setHeader(name, ProxyResponseCache.formatDate(date));
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    addHeader(name, ProxyResponseCache.formatDate(date));
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (passThrough()) {
+      super.flushBuffer();
+    }
+  }
+
+  @Override
+  public boolean isCommitted() {
+    return passThrough() && super.isCommitted();
+  }
+
+  @Override
+  public void reset() {
+    if (!overflowed) {
+      headers.clear();
+      status = HttpServletResponse.SC_OK;
+      error = false;
+      errorMessage = null;
+      contentType = null;
+      characterEncoding = null;
+    }
+    resetBuffer();
+  }
+
+  @Override
+  public void resetBuffer() {
+    if (!overflowed) {
+      buffer.reset();
+    }
+  }
+}
@@ -116,6 +116,13 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "iCal", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  /**
+   * If true a size limited GET is made in one request with the body counted as it is
+   * streamed, if false a HEAD request checks the Content-Length first.
+   */
+  @Property(boolValue = true)
+  private static final String LIMIT_GET_STREAMING = "limit.get.streaming";
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -140,6 +147,8 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   private Map<String, Object> configProperties;
 
   private Set<String> safeOpenProcessors = new HashSet<String>();
+
+  private boolean streamLimitedGets = true;
   
   public static final Logger logger = LoggerFactory
       .getLogger(ProxyClientServiceImpl.class);
@@ -174,6 +183,10 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           safeOpenProcessors.add(pp);
         }
       }
+      Object streaming = configProperties.get(LIMIT_GET_STREAMING);
+      if (streaming != null) {
+        streamLimitedGets = Boolean.parseBoolean(String.valueOf(streaming));
+      }
     } else {
       configProperties = new HashMap<String, Object>();
     }
@@ -275,54 +288,8 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
       if (node != null && node.hasProperty(SAKAI_REQUEST_PROXY_ENDPOINT)) {
         // setup the post request
-        String endpointURL = JcrUtils.getMultiValueString(node
-            .getProperty(SAKAI_REQUEST_PROXY_ENDPOINT));
-        if ( isUnsafeProxyDefinition(node)) {
-          try {
-            URL u = new URL(endpointURL);
-            String host = u.getHost();
-            if ( host.indexOf('$') >= 0 ) {
-              throw new ProxyClientException("Invalid Endpoint template, relies on request to resolve valid URL "+u);
-            }
-          } catch ( MalformedURLException e) {
-            throw new ProxyClientException("Invalid Endpoint template, relies on request to resolve valid URL", e);
-          }
-        }
-        
-        // Find all velocity replacement variable(s) in the endpointURL,
-        // copy any equivalent keys from the input Map, to a new Map that
-        // can be process by Velocity. In the new Map, the Map value field
-        // has been changed from RequestParameter[] to String.
-
-        Map<String, String> inputContext = new HashMap<String, String>();
-
-        int startPosition = endpointURL.indexOf("${");
-        while(startPosition > -1) {
-          int endPosition = endpointURL.indexOf("}", startPosition);
-          if (endPosition > -1) {
-            String key = endpointURL.substring(startPosition + 2, endPosition);
-            Object value = input.get(key);
-            if (value instanceof RequestParameter[]) {
-              // now change input value object from RequestParameter[] to String
-              // and add to inputContext Map.
-              RequestParameter[] requestParameters = (RequestParameter[]) value;
-              inputContext.put(key, requestParameters[0].getString());
-            } else {
-              // KERN-1346 regression; see KERN-1409
-              inputContext.put(key, String.valueOf(value));
-            }
-            // look for the next velocity replacement variable
-            startPosition = endpointURL.indexOf("${", endPosition);
-          } else {
-            break;
-          }
-        }
-
-        VelocityContext context = new VelocityContext(inputContext);
-        
-        // add in the config properties from the bundle overwriting everythign else.
-        context.put("config", configProperties);
-
+        String endpointURL = getEndpointTemplate(node);
+        VelocityContext context = createUrlContext(endpointURL, input);
         endpointURL = processUrlTemplate(endpointURL, context);
 
         ProxyMethod proxyMethod = ProxyMethod.GET;
@@ -336,10 +303,13 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
         HttpMethod method = null;
+        long maxSize = -1;
         switch (proxyMethod) {
         case GET:
           if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
-            long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+            maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+          }
+          if (maxSize >= 0 && !streamLimitedGets) {
             method = new HeadMethod(endpointURL);
             HttpMethodParams params = new HttpMethodParams(method.getParams());
             // make certain we reject the body of a head
@@ -367,6 +337,7 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
             } else {
               return new ProxyResponseImpl(result, method);
             }
+            method.releaseConnection();
           }
           method = new GetMethod(endpointURL);
           // redirects work automatically for get, options and head, but not for put and
@@ -480,6 +451,18 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
+        if (maxSize >= 0) {
+          // refuse an oversized response up front where the server gives its length,
+          // otherwise the response body is counted as it streams.
+          Header contentLengthHeader = method.getResponseHeader("Content-Length");
+          if (result == 200 && contentLengthHeader != null
+              && getLength(contentLengthHeader) > maxSize) {
+            method.abort();
+            return new ProxyResponseImpl(HttpServletResponse.SC_PRECONDITION_FAILED,
+                "Response too large", method);
+          }
+          return new ProxyResponseImpl(result, method, maxSize);
+        }
         return new ProxyResponseImpl(result, method);
       }
 
@@ -495,6 +478,101 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         + " does not contain a valid endpoint specification ");
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyClientService#resolveEndpoint(javax.jcr.Node,
+   *      java.util.Map)
+   */
+  public String resolveEndpoint(Node node, Map<String, Object> input)
+      throws ProxyClientException {
+    try {
+      bindNode(node);
+      if (node != null && node.hasProperty(SAKAI_REQUEST_PROXY_ENDPOINT)) {
+        String endpointURL = getEndpointTemplate(node);
+        return processUrlTemplate(endpointURL, createUrlContext(endpointURL, input));
+      }
+      return null;
+    } catch ( ProxyClientException e ) {
+      throw e;
+    } catch (Exception e) {
+      throw new ProxyClientException("The Proxy request specified by  " + node
+          + " failed, cause follows:", e);
+    } finally {
+      unbindNode();
+    }
+  }
+
+  /**
+   * @return the end point template of the node, checked for safety.
+   */
+  private String getEndpointTemplate(Node node) throws ProxyClientException,
+      RepositoryException {
+    String endpointURL = JcrUtils.getMultiValueString(node
+        .getProperty(SAKAI_REQUEST_PROXY_ENDPOINT));
+    if ( isUnsafeProxyDefinition(node)) {
+      try {
+        URL u = new URL(endpointURL);
+        String host = u.getHost();
+        if ( host.indexOf('$') >= 0 ) {
+          throw new ProxyClientException("Invalid Endpoint template, relies on request to resolve valid URL "+u);
+        }
+      } catch ( MalformedURLException e) {
+        throw new ProxyClientException("Invalid Endpoint template, relies on request to resolve valid URL", e);
+      }
+    }
+    return endpointURL;
+  }
+
+  /**
+   * @return a velocity context holding the template parameters referenced by the end
+   *         point URL and the bundle configuration.
+   */
+  private VelocityContext createUrlContext(String endpointURL, Map<String, Object> input) {
+    // Find all velocity replacement variable(s) in the endpointURL,
+    // copy any equivalent keys from the input Map, to a new Map that
+    // can be process by Velocity. In the new Map, the Map value field
+    // has been changed from RequestParameter[] to String.
+
+    Map<String, String> inputContext = new HashMap<String, String>();
+
+    int startPosition = endpointURL.indexOf("${");
+    while(startPosition > -1) {
+      int endPosition = endpointURL.indexOf("}", startPosition);
+      if (endPosition > -1) {
+        String key = endpointURL.substring(startPosition + 2, endPosition);
+        Object value = input.get(key);
+        if (value instanceof RequestParameter[]) {
+          // now change input value object from RequestParameter[] to String
+          // and add to inputContext Map.
+          RequestParameter[] requestParameters = (RequestParameter[]) value;
+          inputContext.put(key, requestParameters[0].getString());
+        } else {
+          // KERN-1346 regression; see KERN-1409
+          inputContext.put(key, String.valueOf(value));
+        }
+        // look for the next velocity replacement variable
+        startPosition = endpointURL.indexOf("${", endPosition);
+      } else {
+        break;
+      }
+    }
+
+    VelocityContext context = new VelocityContext(inputContext);
+    
+    // add in the config properties from the bundle overwriting everythign else.
+    context.put("config", configProperties);
+    return context;
+  }
+
+  private long getLength(Header contentLengthHeader) {
+    try {
+      return Long.parseLong(contentLengthHeader.getValue().trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
     if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
       String postProcessorName = node.getProperty(
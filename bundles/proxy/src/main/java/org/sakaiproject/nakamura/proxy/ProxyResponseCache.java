@@ -0,0 +1,393 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A shared cache of post processed proxy responses. Entries are keyed on the resolved end
+ * point URL, the post processor and the request headers and parameters that can change
+ * the response. Upstream Cache-Control, Expires, ETag and Last-Modified headers are
+ * honoured, stale entries are revalidated with conditional GETs while they continue to be
+ * served, and concurrent fetches of the same key are coalesced into one upstream call.
+ */
+class ProxyResponseCache {
+
+  /**
+   * The upstream call and post processing for one proxied request.
+   */
+  interface Origin {
+    /**
+     * @param validators
+     *          conditional request headers to add to the upstream request.
+     */
+    ProxyResponse fetch(Map<String, String> validators) throws ProxyClientException;
+
+    void process(SlingHttpServletResponse response, ProxyResponse proxyResponse)
+        throws IOException;
+  }
+
+  /**
+   * Request headers (lower case) that do not form part of the cache key. A response that
+   * varies on any of these is not stored. Session headers are removed before fetching, so
+   * they can not change the response.
+   */
+  static final Set<String> IGNORED_HEADERS = ImmutableSet.of("cookie", "user-agent",
+      "referer", "origin", "connection", "keep-alive", "te", "upgrade", "via",
+      "cache-control", "pragma", "if-none-match", "if-modified-since", "if-match",
+      "if-unmodified-since", "if-range", "x-forwarded-for", "x-forwarded-host",
+      "x-forwarded-proto");
+
+  /**
+   * Request headers (lower case) carrying the session of the requesting user. They are not
+   * sent upstream when fetching for the shared cache, as the response is served to anyone.
+   */
+  static final Set<String> SESSION_HEADERS = ImmutableSet.of("cookie", "cookie2");
+
+  /**
+   * Request headers (lower case) that identify a user to the upstream server, set by the
+   * template, the client or a pre processor. A request with any of these is not cached, the
+   * response belongs to that user. The trusted token also changes on every request.
+   */
+  static final Set<String> CREDENTIAL_HEADERS = ImmutableSet.of("authorization",
+      "proxy-authorization", TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME);
+
+  /**
+   * Conditional request headers (lower case) from the client, these are answered from the
+   * cache rather than being sent upstream.
+   */
+  static final Set<String> CONDITIONAL_HEADERS = ImmutableSet.of("if-none-match",
+      "if-modified-since", "if-match", "if-unmodified-since", "if-range");
+
+  /**
+   * Cache busting parameters that do not form part of the cache key.
+   */
+  private static final Set<String> IGNORED_PARAMETERS = ImmutableSet.of("_", "_charset_");
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyResponseCache.class);
+
+  private static final MetricCounter HITS = TelemetryCounter.getCounter("proxy", "ProxyResponseCache", "hits");
+  private static final MetricCounter STALE = TelemetryCounter.getCounter("proxy", "ProxyResponseCache", "stale");
+  private static final MetricCounter MISSES = TelemetryCounter.getCounter("proxy", "ProxyResponseCache", "misses");
+  private static final MetricCounter COALESCED = TelemetryCounter.getCounter("proxy", "ProxyResponseCache", "coalesced");
+  private static final MetricCounter REVALIDATED = TelemetryCounter.getCounter("proxy", "ProxyResponseCache", "revalidated");
+  private static final MetricCounter STORED = TelemetryCounter.getCounter("proxy", "ProxyResponseCache", "stored");
+  private static final MetricCounter EVICTIONS = TelemetryCounter.getCounter("proxy", "ProxyResponseCache", "evictions");
+
+  private final Map<String, CachedProxyResponse> entries;
+
+  private final ConcurrentMap<String, CountDownLatch> fetches = new ConcurrentHashMap<String, CountDownLatch>();
+
+  private final int maxEntryBytes;
+
+  private final long defaultTtl;
+
+  private final long staleWindow;
+
+  private final long coalesceTimeout;
+
+  /**
+   * @param maxEntries
+   *          the number of responses held, least recently used are evicted first.
+   * @param maxEntryBytes
+   *          the largest post processed body that will be stored.
+   * @param defaultTtl
+   *          freshness in ms of responses with no upstream expiry information.
+   * @param staleWindow
+   *          time in ms after expiry that a response may be served while it is
+   *          revalidated, unless the upstream server specifies otherwise.
+   * @param coalesceTimeout
+   *          the longest time in ms a request will wait for a concurrent fetch of the
+   *          same response.
+   */
+  ProxyResponseCache(final int maxEntries, int maxEntryBytes, long defaultTtl,
+      long staleWindow, long coalesceTimeout) {
+    this.maxEntryBytes = maxEntryBytes;
+    this.defaultTtl = defaultTtl;
+    this.staleWindow = staleWindow;
+    this.coalesceTimeout = coalesceTimeout;
+    this.entries = new LinkedHashMap<String, CachedProxyResponse>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, CachedProxyResponse> eldest) {
+        if (size() > maxEntries) {
+          EVICTIONS.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return true if a request with these upstream headers may be answered from the
+   *         shared cache.
+   */
+  static boolean isCacheable(Map<String, String> headers) {
+    for (String name : headers.keySet()) {
+      String lower = name.toLowerCase();
+      if (CREDENTIAL_HEADERS.contains(lower) || "range".equals(lower)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Remove the session headers of the requesting user, so that what is fetched for the
+   * shared cache does not depend on who asked for it.
+   */
+  static void removeSessionHeaders(Map<String, String> headers) {
+    for (Iterator<String> i = headers.keySet().iterator(); i.hasNext();) {
+      if (SESSION_HEADERS.contains(i.next().toLowerCase())) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * @param url the resolved upstream url.
+   * @param nodePath the path of the proxy node, so that nodes sharing an endpoint do not
+   *          share responses.
+   * @param postProcessor
+   * @param headers the request headers.
+   * @param nodeHeaders the headers the proxy node adds to the upstream request.
+   * @param templateParams
+   * @return the cache key for a request.
+   */
+  static String key(String url, String nodePath, String postProcessor,
+      Map<String, String> headers, Map<String, String> nodeHeaders,
+      Map<String, Object> templateParams) {
+    Map<String, String> sorted = new TreeMap<String, String>();
+    for (Entry<String, String> h : headers.entrySet()) {
+      String name = h.getKey().toLowerCase();
+      if (!IGNORED_HEADERS.contains(name)) {
+        sorted.put("h:" + name, h.getValue());
+      }
+    }
+    for (Entry<String, String> h : nodeHeaders.entrySet()) {
+      sorted.put("n:" + h.getKey().toLowerCase(), h.getValue());
+    }
+    for (Entry<String, Object> p : templateParams.entrySet()) {
+      if (!IGNORED_PARAMETERS.contains(p.getKey())) {
+        sorted.put("p:" + p.getKey(), toString(p.getValue()));
+      }
+    }
+    StringBuilder key = new StringBuilder(url).append('\n').append(nodePath).append('\n')
+        .append(postProcessor);
+    for (Entry<String, String> e : sorted.entrySet()) {
+      key.append('\n').append(e.getKey()).append('=').append(e.getValue());
+    }
+    return key.toString();
+  }
+
+  private static String toString(Object value) {
+    if (value instanceof RequestParameter[]) {
+      StringBuilder sb = new StringBuilder();
+      for (RequestParameter p : (RequestParameter[]) value) {
+        sb.append(p.getString()).append('\u0000');
+      }
+      return sb.toString();
+    }
+    return String.valueOf(value);
+  }
+
+  static String formatDate(long date) {
+    return DateUtil.formatDate(new Date(date));
+  }
+
+  /**
+   * Send the response for a key, from the cache where possible and from the origin
+   * otherwise.
+   */
+  void send(String key, SlingHttpServletRequest request,
+      SlingHttpServletResponse response, Origin origin) throws ProxyClientException,
+      IOException {
+    long now = System.currentTimeMillis();
+    CachedProxyResponse entry = get(key);
+    if (entry != null && entry.isFresh(now)) {
+      HITS.increment();
+      entry.send(request, response);
+      return;
+    }
+    // only one request fetches a missing or expired response, the others serve stale or
+    // wait for it.
+    CountDownLatch latch = new CountDownLatch(1);
+    CountDownLatch inProgress = fetches.putIfAbsent(key, latch);
+    if (inProgress != null) {
+      if (entry != null && entry.isServableStale(now)) {
+        STALE.increment();
+        entry.send(request, response);
+        return;
+      }
+      if (awaitFetch(inProgress)) {
+        entry = get(key);
+        if (entry != null && entry.isServableStale(System.currentTimeMillis())) {
+          COALESCED.increment();
+          entry.send(request, response);
+          return;
+        }
+      }
+      MISSES.increment();
+      fetch(key, null, request, response, true, origin);
+      return;
+    }
+    try {
+      if (entry != null && entry.isServableStale(now)) {
+        STALE.increment();
+        entry.send(request, response);
+        response.flushBuffer();
+        try {
+          fetch(key, entry, request, response, false, origin);
+        } catch (ProxyClientException e) {
+          LOGGER.warn("Failed to revalidate proxy response {} {}", key, e.getMessage());
+        } catch (IOException e) {
+          LOGGER.warn("Failed to revalidate proxy response {} {}", key, e.getMessage());
+        }
+      } else {
+        MISSES.increment();
+        fetch(key, entry, request, response, true, origin);
+      }
+    } finally {
+      fetches.remove(key, latch);
+      latch.countDown();
+    }
+  }
+
+  /**
+   * Fetch from the origin, conditionally if there is an entry to revalidate, and store
+   * the result.
+   *
+   * @param deliver
+   *          true if the result should be sent to the response, false if it has already
+   *          been answered.
+   */
+  private void fetch(String key, CachedProxyResponse entry,
+      SlingHttpServletRequest request, SlingHttpServletResponse response,
+      boolean deliver, Origin origin) throws ProxyClientException, IOException {
+    Map<String, String> validators = new HashMap<String, String>();
+    if (entry != null) {
+      entry.addValidators(validators);
+    }
+    ProxyResponse proxyResponse = origin.fetch(validators);
+    try {
+      long now = System.currentTimeMillis();
+      if (entry != null
+          && proxyResponse.getResultCode() == HttpServletResponse.SC_NOT_MODIFIED) {
+        REVALIDATED.increment();
+        CachedProxyResponse refreshed = entry.revalidate(
+            proxyResponse.getResponseHeaders(), now, defaultTtl, staleWindow);
+        put(key, refreshed);
+        if (deliver) {
+          entry.send(request, response);
+        }
+        return;
+      }
+      CapturingProxyResponse capture = new CapturingProxyResponse(response, maxEntryBytes,
+          deliver);
+      origin.process(capture, proxyResponse);
+      capture.finish();
+      CachedProxyResponse fetched = CachedProxyResponse.create(capture,
+          proxyResponse.getResponseHeaders(), now, defaultTtl, staleWindow);
+      put(key, fetched);
+      if (deliver) {
+        if (fetched != null) {
+          fetched.send(request, response);
+        } else {
+          capture.replay();
+        }
+      }
+    } finally {
+      proxyResponse.close();
+    }
+  }
+
+  /**
+   * Wait for another request to finish fetching a response.
+   *
+   * @return true if the fetch completed in time.
+   */
+  private boolean awaitFetch(CountDownLatch inProgress) {
+    try {
+      return inProgress.await(coalesceTimeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  CachedProxyResponse get(String key) {
+    synchronized (entries) {
+      return entries.get(key);
+    }
+  }
+
+  /**
+   * Store a response, or drop the key if the response may not be stored.
+   */
+  private void put(String key, CachedProxyResponse response) {
+    synchronized (entries) {
+      if (response == null) {
+        entries.remove(key);
+      } else {
+        STORED.increment();
+        entries.put(key, response);
+      }
+    }
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+}
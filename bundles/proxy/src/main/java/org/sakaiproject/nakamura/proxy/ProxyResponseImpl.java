@@ -19,8 +19,13 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.util.IOUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -35,6 +40,7 @@ public class ProxyResponseImpl implements ProxyResponse {
   private HttpMethod method;
   private Map<String, String[]> headers = new HashMap<String, String[]>();
   private String cause;
+  private long maxLength = -1;
 
   /**
    * @param result
@@ -72,6 +78,18 @@ public class ProxyResponseImpl implements ProxyResponse {
     }
   }
 
+  /**
+   * @param result
+   * @param method
+   * @param maxLength
+   *          the number of body bytes that may be read before the transfer is aborted
+   *          with a {@link ResponseTooLargeException}.
+   */
+  public ProxyResponseImpl(int result, HttpMethod method, long maxLength) {
+    this(result, method);
+    this.maxLength = maxLength;
+  }
+
   /**
    * @param scPreconditionFailed
    * @param string
@@ -103,7 +121,19 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
    */
   public byte[] getResponseBody() throws IOException {
-    return method.getResponseBody();
+    if (cause != null) {
+      return new byte[0];
+    }
+    if (maxLength < 0) {
+      return method.getResponseBody();
+    }
+    InputStream in = getResponseBodyAsInputStream();
+    if (in == null) {
+      return null;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IOUtils.stream(in, out);
+    return out.toByteArray();
   }
 
   /**
@@ -111,7 +141,14 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
    */
   public InputStream getResponseBodyAsInputStream() throws IOException {
-    return method.getResponseBodyAsStream();
+    if (cause != null) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    InputStream in = method.getResponseBodyAsStream();
+    if (maxLength < 0 || in == null) {
+      return in;
+    }
+    return new LimitedInputStream(in);
   }
 
   /**
@@ -119,7 +156,21 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
    */
   public String getResponseBodyAsString() throws IOException {
-    return method.getResponseBodyAsString();
+    if (cause != null) {
+      return "";
+    }
+    if (maxLength < 0) {
+      return method.getResponseBodyAsString();
+    }
+    byte[] body = getResponseBody();
+    if (body == null) {
+      return null;
+    }
+    String charset = "ISO-8859-1";
+    if (method instanceof HttpMethodBase) {
+      charset = ((HttpMethodBase) method).getResponseCharSet();
+    }
+    return new String(body, charset);
   }
 
   /**
@@ -139,4 +190,52 @@ public class ProxyResponseImpl implements ProxyResponse {
     return cause;
   }
 
+  /**
+   * Counts the body as it is read and aborts the transfer once it passes maxLength, so
+   * that an oversized response is never read in full, whatever its Content-Length said.
+   */
+  private class LimitedInputStream extends FilterInputStream {
+    private long count;
+
+    LimitedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    private void count(long n) throws ResponseTooLargeException {
+      count += n;
+      if (count > maxLength) {
+        if (method != null) {
+          // drop the connection rather than draining the rest of the body.
+          method.abort();
+        }
+        throw new ResponseTooLargeException(maxLength);
+      }
+    }
+  }
+
 }
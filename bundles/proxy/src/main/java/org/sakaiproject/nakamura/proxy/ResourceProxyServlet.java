@@ -20,6 +20,9 @@ package org.sakaiproject.nakamura.proxy;
 import com.google.common.collect.ImmutableSet;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
@@ -31,6 +34,7 @@ import org.apache.sling.api.request.RequestParameterMap;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.OptingServlet;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -42,12 +46,15 @@ import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 import org.sakaiproject.nakamura.util.JcrUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -127,6 +134,24 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
 
   private final Set<String> optOutOps = ImmutableSet.of("delete", "import");
 
+  @Property(boolValue = true, description = "Cache the post processed output of proxied GET requests, for proxy nodes with sakai:proxy-cache set to true")
+  static final String CACHE_ENABLED = "proxy.cache.enabled";
+
+  @Property(intValue = 1000, description = "The maximum number of proxied responses held in the cache")
+  static final String CACHE_MAX_ENTRIES = "proxy.cache.maxentries";
+
+  @Property(intValue = 1048576, description = "The largest proxied response body, in bytes, that will be cached")
+  static final String CACHE_MAX_ENTRY_BYTES = "proxy.cache.maxentrybytes";
+
+  @Property(longValue = 0, description = "Seconds that a response with no upstream expiry information is fresh; with 0 such responses are only cached if they can be revalidated")
+  static final String CACHE_DEFAULT_TTL = "proxy.cache.defaultttl";
+
+  @Property(longValue = 60, description = "Seconds after expiry that a response may be served while it is revalidated, unless the upstream server specifies otherwise")
+  static final String CACHE_STALE_WHILE_REVALIDATE = "proxy.cache.stalewhilerevalidate";
+
+  @Property(longValue = 10000, description = "Milliseconds a request will wait for a concurrent fetch of the same response")
+  static final String CACHE_COALESCE_TIMEOUT = "proxy.cache.coalescetimeout";
+
   @Reference
   transient ProxyClientService proxyClientService;
 
@@ -140,6 +165,11 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
 
   private Set<String> headerBacklist = new HashSet<String>();
 
+  /**
+   * Shared cache of proxied GET responses, null when disabled.
+   */
+  private transient volatile ProxyResponseCache responseCache;
+
   /**
    *
    */
@@ -149,6 +179,22 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
    headerBacklist.add("Content-Type");
    headerBacklist.add("Authorization");
   }
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> properties) {
+    if (PropertiesUtil.toBoolean(properties.get(CACHE_ENABLED), true)) {
+      responseCache = new ProxyResponseCache(
+          PropertiesUtil.toInteger(properties.get(CACHE_MAX_ENTRIES), 1000),
+          PropertiesUtil.toInteger(properties.get(CACHE_MAX_ENTRY_BYTES), 1048576),
+          PropertiesUtil.toLong(properties.get(CACHE_DEFAULT_TTL), 0) * 1000L,
+          PropertiesUtil.toLong(properties.get(CACHE_STALE_WHILE_REVALIDATE), 60) * 1000L,
+          PropertiesUtil.toLong(properties.get(CACHE_COALESCE_TIMEOUT), 10000));
+    } else {
+      responseCache = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -313,6 +359,29 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
         }
       }
 
+      ProxyResponseCache cache = responseCache;
+      if (cache != null && "GET".equals(request.getMethod()) && !userInputStream
+          && isProxiedGet(node) && isCacheEnabled(node)
+          && ProxyResponseCache.isCacheable(headers)) {
+        // the headers the node adds upstream are part of what is fetched.
+        Map<String, String> nodeHeaders = getNodeHeaders(node);
+        String url = ProxyResponseCache.isCacheable(nodeHeaders) ? proxyClientService
+            .resolveEndpoint(node, templateParams) : null;
+        if (url != null) {
+          ProxyResponseCache.removeSessionHeaders(headers);
+          for (Iterator<String> i = headers.keySet().iterator(); i.hasNext();) {
+            if (ProxyResponseCache.CONDITIONAL_HEADERS.contains(i.next().toLowerCase())) {
+              i.remove();
+            }
+          }
+          String key = ProxyResponseCache.key(url, node.getPath(), postProcessor.getName(),
+              headers, nodeHeaders, templateParams);
+          cache.send(key, request, response, new CachedOrigin(node, headers,
+              templateParams, postProcessor));
+          return;
+        }
+      }
+
       ProxyResponse proxyResponse = proxyClientService.executeCall(node, headers,
           templateParams, null, -1, null);
       try {
@@ -320,6 +389,13 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
       } finally {
         proxyResponse.close();
       }
+    } catch (ResponseTooLargeException e) {
+      LOGGER.info("Aborted proxy response for {}: {} ", request.getResource().getPath(),
+          e.getMessage());
+      if (!response.isCommitted()) {
+        response.reset();
+        response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, e.getMessage());
+      }
     } catch (IOException e) {
       throw e;
     } catch (ProxyClientException e) {
@@ -329,6 +405,73 @@ public class ResourceProxyServlet extends SlingAllMethodsServlet implements Opti
     }
   }
 
+  /**
+   * @return the headers set on the node with {@link ProxyClientService#SAKAI_PROXY_HEADER},
+   *         parsed as the proxy client service adds them to the upstream request.
+   */
+  private Map<String, String> getNodeHeaders(Node node) throws RepositoryException {
+    Map<String, String> nodeHeaders = new HashMap<String, String>();
+    for (Value v : JcrUtils.getValues(node, ProxyClientService.SAKAI_PROXY_HEADER)) {
+      String[] keyVal = StringUtils.split(v.getString(), ':', 2);
+      if (keyVal.length == 2) {
+        nodeHeaders.put(keyVal[0].trim(), keyVal[1].trim());
+      }
+    }
+    return nodeHeaders;
+  }
+
+  /**
+   * @return true if the node has opted in to the shared cache. Responses are fetched without
+   *         the cookies of the user for the cache, so an upstream that authenticates with
+   *         them must not opt in.
+   */
+  private boolean isCacheEnabled(Node node) throws RepositoryException {
+    return node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE)
+        && node.getProperty(ProxyClientService.SAKAI_PROXY_CACHE).getBoolean();
+  }
+
+  /**
+   * @return true if the node proxies to an upstream GET.
+   */
+  private boolean isProxiedGet(Node node) throws RepositoryException {
+    if (node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)) {
+      return "GET".equals(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)
+          .getString());
+    }
+    return true;
+  }
+
+  /**
+   * Fetches and post processes a proxied request on behalf of the response cache.
+   */
+  private class CachedOrigin implements ProxyResponseCache.Origin {
+    private final Node node;
+    private final Map<String, String> headers;
+    private final Map<String, Object> templateParams;
+    private final ProxyPostProcessor postProcessor;
+
+    CachedOrigin(Node node, Map<String, String> headers,
+        Map<String, Object> templateParams, ProxyPostProcessor postProcessor) {
+      this.node = node;
+      this.headers = headers;
+      this.templateParams = templateParams;
+      this.postProcessor = postProcessor;
+    }
+
+    public ProxyResponse fetch(Map<String, String> validators)
+        throws ProxyClientException {
+      Map<String, String> upstreamHeaders = new HashMap<String, String>(headers);
+      upstreamHeaders.putAll(validators);
+      return proxyClientService.executeCall(node, upstreamHeaders, templateParams, null,
+          -1, null);
+    }
+
+    public void process(SlingHttpServletResponse response, ProxyResponse proxyResponse)
+        throws IOException {
+      postProcessor.process(templateParams, response, proxyResponse);
+    }
+  }
+
   protected void bindPreProcessor(ProxyPreProcessor proxyPreProcessor) {
     preProcessors.put(proxyPreProcessor.getName(), proxyPreProcessor);
   }
@@ -23,11 +23,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import org.apache.jackrabbit.JcrConstants;
+import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
@@ -38,8 +40,10 @@ import org.sakaiproject.nakamura.testutils.http.DummyServer;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Dictionary;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.Map;
 
 import javax.jcr.Binary;
@@ -48,6 +52,7 @@ import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 import javax.jcr.nodetype.PropertyDefinition;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  *
@@ -95,6 +100,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
   @After
   public void after() throws Exception {
     proxyClientServiceImpl.deactivate(null);
+    dummyServer.setChunked(false);
   }
 
   @Test
@@ -352,7 +358,47 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
   @Test
   public void testInvokeServiceNodeEndPointGetLimitLow() throws ProxyClientException,
       RepositoryException, IOException {
-    testRequest("GET", "HEAD", null, 1);
+    // refused on the Content-Length, without reading the body.
+    ProxyResponse response = executeRequest("GET", "GET", RESPONSE_BODY, 1);
+    assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, response.getResultCode());
+    assertEquals("", response.getResponseBodyAsString());
+    response.close();
+    verify();
+  }
+
+  @Test
+  public void testInvokeServiceNodeEndPointGetLimitLowChunked()
+      throws ProxyClientException, RepositoryException, IOException {
+    // no Content-Length, so the transfer is aborted as the body streams.
+    dummyServer.setChunked(true);
+    ProxyResponse response = executeRequest("GET", "GET", RESPONSE_BODY, 1);
+    assertEquals(200, response.getResultCode());
+    try {
+      response.getResponseBodyAsString();
+      fail("An oversized body should not be read in full");
+    } catch (ResponseTooLargeException e) {
+      // expected
+    }
+    response.close();
+    verify();
+  }
+
+  @Test
+  public void testInvokeServiceNodeEndPointGetLimitPreflight() throws Exception {
+    activateWithHeadPreflight();
+    // the HEAD passes, so the GET that follows it is the last request made.
+    testRequest("GET", "GET", RESPONSE_BODY, 1020000);
+  }
+
+  @Test
+  public void testInvokeServiceNodeEndPointGetLimitLowPreflight() throws Exception {
+    activateWithHeadPreflight();
+    // refused on the Content-Length of the HEAD, the GET is never made.
+    ProxyResponse response = executeRequest("GET", "HEAD", RESPONSE_BODY, 1);
+    assertEquals(HttpServletResponse.SC_PRECONDITION_FAILED, response.getResultCode());
+    assertEquals("", response.getResponseBodyAsString());
+    response.close();
+    verify();
   }
 
   @Test
@@ -373,8 +419,35 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     testRequest(null, "GET", RESPONSE_BODY, -1);
   }
 
+  private void activateWithHeadPreflight() throws Exception {
+    proxyClientServiceImpl.deactivate(null);
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("limit.get.streaming", Boolean.FALSE);
+    ComponentContext componentContext = EasyMock.createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    EasyMock.replay(componentContext);
+    proxyClientServiceImpl = new ProxyClientServiceImpl();
+    proxyClientServiceImpl.activate(componentContext);
+  }
+
   private void testRequest(String type, String expectedMethod, String body, long limit)
       throws ProxyClientException, RepositoryException, IOException {
+    ProxyResponse response = executeRequest(type, expectedMethod, body, limit);
+    assertEquals(body, response.getResponseBodyAsString());
+    assertEquals(APPLICATION_SOAP_XML_CHARSET_UTF_8,
+        response.getResponseHeaders().get("Content-Type")[0]);
+
+    response.close();
+
+    verify();
+  }
+
+  /**
+   * Make a call through a mocked proxy node, leaving the response to be checked by the
+   * caller.
+   */
+  private ProxyResponse executeRequest(String type, String expectedMethod, String body,
+      long limit) throws ProxyClientException, RepositoryException, IOException {
     Node node = createMock(Node.class);
 
     expect(node.getPath()).andReturn("/testing").anyTimes();
@@ -438,14 +511,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
 
     assertEquals(type + "s dont have request bodies ", null,
         request.getRequestBodyAsByteArray());
-
-    assertEquals(body, response.getResponseBodyAsString());
-    assertEquals(APPLICATION_SOAP_XML_CHARSET_UTF_8,
-        response.getResponseHeaders().get("Content-Type")[0]);
-
-    response.close();
-
-    verify();
+    return response;
   }
 
 }
@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ProxyResponseCacheTest {
+
+  @Mock
+  private SlingHttpServletRequest request;
+
+  @Mock
+  private SlingHttpServletResponse response;
+
+  @Mock
+  private ProxyResponse proxyResponse;
+
+  @Mock
+  private ProxyResponse notModified;
+
+  private ByteArrayOutputStream output;
+
+  private ProxyResponseCache cache;
+
+  private Map<String, String[]> upstreamHeaders;
+
+  @Before
+  public void setup() throws IOException {
+    cache = new ProxyResponseCache(10, 1024, 0, 60000, 1000);
+    output = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        output.write(b);
+      }
+    });
+    upstreamHeaders = new HashMap<String, String[]>();
+    when(proxyResponse.getResultCode()).thenReturn(200);
+    when(proxyResponse.getResponseHeaders()).thenReturn(upstreamHeaders);
+    when(notModified.getResultCode()).thenReturn(304);
+    when(notModified.getResponseHeaders()).thenReturn(new HashMap<String, String[]>());
+  }
+
+  @Test
+  public void testFreshResponseIsServedFromCache() throws Exception {
+    upstreamHeaders.put("Cache-Control", new String[] { "public, max-age=60" });
+    CountingOrigin origin = new CountingOrigin(proxyResponse);
+
+    cache.send("k", request, response, origin);
+    cache.send("k", request, response, origin);
+
+    assertEquals(1, origin.fetches.size());
+    assertEquals(1, origin.processed);
+    assertEquals("processed-1processed-1", output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testStaleResponseIsServedAndRevalidated() throws Exception {
+    upstreamHeaders.put("Cache-Control", new String[] { "max-age=0" });
+    upstreamHeaders.put("ETag", new String[] { "\"v1\"" });
+    CountingOrigin origin = new CountingOrigin(proxyResponse, notModified);
+
+    cache.send("k", request, response, origin);
+    cache.send("k", request, response, origin);
+
+    assertEquals(2, origin.fetches.size());
+    assertTrue(origin.fetches.get(0).isEmpty());
+    assertEquals("\"v1\"", origin.fetches.get(1).get("If-None-Match"));
+    // the upstream 304 re-uses the post processed output.
+    assertEquals(1, origin.processed);
+    assertEquals("processed-1processed-1", output.toString("UTF-8"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testPrivateResponseIsNotStored() throws Exception {
+    upstreamHeaders.put("Cache-Control", new String[] { "private, max-age=60" });
+    CountingOrigin origin = new CountingOrigin(proxyResponse, proxyResponse);
+
+    cache.send("k", request, response, origin);
+    cache.send("k", request, response, origin);
+
+    assertEquals(2, origin.processed);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testResponseWithoutValidatorsOrExpiryIsNotStored() throws Exception {
+    CountingOrigin origin = new CountingOrigin(proxyResponse);
+
+    cache.send("k", request, response, origin);
+
+    assertNull(cache.get("k"));
+    assertEquals("processed-1", output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testKeyIgnoresCookiesAndCacheBusters() {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Accept", "*/*");
+    Map<String, Object> params = new HashMap<String, Object>();
+    params.put("q", "puppies");
+    Map<String, String> nodeHeaders = new HashMap<String, String>();
+    String key = ProxyResponseCache.key("http://example.com/", "/var/proxy/rss", "rss",
+        headers, nodeHeaders, params);
+
+    headers.put("Cookie", "SAKAI-TRACKING=1234");
+    params.put("_", "1318348800000");
+    assertEquals(key, ProxyResponseCache.key("http://example.com/", "/var/proxy/rss", "rss",
+        headers, nodeHeaders, params));
+
+    headers.put("Accept-Language", "fr");
+    assertFalse(key.equals(ProxyResponseCache.key("http://example.com/", "/var/proxy/rss",
+        "rss", headers, nodeHeaders, params)));
+  }
+
+  @Test
+  public void testKeyIncludesTheProxyNode() {
+    Map<String, String> headers = new HashMap<String, String>();
+    Map<String, String> nodeHeaders = new HashMap<String, String>();
+    Map<String, Object> params = new HashMap<String, Object>();
+    String key = ProxyResponseCache.key("http://example.com/", "/var/proxy/a", "rss",
+        headers, nodeHeaders, params);
+
+    assertFalse(key.equals(ProxyResponseCache.key("http://example.com/", "/var/proxy/b",
+        "rss", headers, nodeHeaders, params)));
+
+    nodeHeaders.put("X-Api-Key", "1234");
+    assertFalse(key.equals(ProxyResponseCache.key("http://example.com/", "/var/proxy/a",
+        "rss", headers, nodeHeaders, params)));
+  }
+
+  @Test
+  public void testAuthorizedRequestsAreNotCacheable() {
+    Map<String, String> headers = new HashMap<String, String>();
+    assertTrue(ProxyResponseCache.isCacheable(headers));
+    headers.put("Authorization", "Basic Zm9vOmJhcg==");
+    assertFalse(ProxyResponseCache.isCacheable(headers));
+    headers.clear();
+    headers.put(TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME, "hmac;ieb;1");
+    assertFalse(ProxyResponseCache.isCacheable(headers));
+  }
+
+  @Test
+  public void testSessionHeadersAreRemoved() {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Cookie", "JSESSIONID=1234");
+    headers.put("Accept", "*/*");
+    assertTrue(ProxyResponseCache.isCacheable(headers));
+    ProxyResponseCache.removeSessionHeaders(headers);
+    assertFalse(headers.containsKey("Cookie"));
+    assertTrue(headers.containsKey("Accept"));
+  }
+
+  @Test
+  public void testParseCacheControl() {
+    Map<String, String> directives = CachedProxyResponse
+        .parseCacheControl("public, max-age=\"300\", stale-while-revalidate=30");
+    assertEquals("300", directives.get("max-age"));
+    assertEquals("30", directives.get("stale-while-revalidate"));
+    assertTrue(directives.containsKey("public"));
+  }
+
+  private static class CountingOrigin implements ProxyResponseCache.Origin {
+    private final List<Map<String, String>> fetches = new ArrayList<Map<String, String>>();
+    private final ProxyResponse[] responses;
+    private int processed;
+
+    CountingOrigin(ProxyResponse... responses) {
+      this.responses = responses;
+    }
+
+    public ProxyResponse fetch(Map<String, String> validators)
+        throws ProxyClientException {
+      fetches.add(new HashMap<String, String>(validators));
+      return responses[fetches.size() - 1];
+    }
+
+    public void process(SlingHttpServletResponse response, ProxyResponse proxyResponse)
+        throws IOException {
+      processed++;
+      response.setStatus(proxyResponse.getResultCode());
+      response.getOutputStream().write(("processed-" + processed).getBytes("UTF-8"));
+    }
+  }
+}
@@ -21,6 +21,9 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.commons.httpclient.Header;
@@ -102,6 +105,38 @@ public class ProxyResponseImplTest {
     }
   }
 
+  @Test
+  public void abortsAStreamedBodyOverTheLimit() throws Exception {
+    // given
+    methodHasAResponseBody();
+    methodReturnsEmptyHeaders();
+
+    // when
+    ProxyResponseImpl proxyResponse = new ProxyResponseImpl(200, method, 5);
+
+    // then
+    try {
+      proxyResponse.getResponseBody();
+      fail("Body is longer than the limit");
+    } catch (ResponseTooLargeException e) {
+      verify(method).abort();
+    }
+  }
+
+  @Test
+  public void readsAStreamedBodyWithinTheLimit() throws Exception {
+    // given
+    methodHasAResponseBody();
+    methodReturnsEmptyHeaders();
+
+    // when
+    ProxyResponseImpl proxyResponse = new ProxyResponseImpl(200, method, 1024);
+
+    // then
+    assertEquals("Hello, world.", new String(proxyResponse.getResponseBody(), "UTF-8"));
+    verify(method, never()).abort();
+  }
+
   private void methodReturnsHeaders() {
     when(method.getResponseHeaders()).thenReturn(headers.toArray(new Header[] {}));
   }
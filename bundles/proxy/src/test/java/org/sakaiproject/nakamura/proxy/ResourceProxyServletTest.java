@@ -17,12 +17,15 @@
  */
 package org.sakaiproject.nakamura.proxy;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -33,6 +36,7 @@ import org.apache.sling.api.resource.Resource;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
@@ -48,6 +52,8 @@ import java.util.Vector;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
@@ -306,6 +312,144 @@ public class ResourceProxyServletTest {
     verify(proxyPostProcessor).process(map, response, proxyResponse);
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void sharedCacheDoesNotSendUserCookiesUpstream() throws Exception {
+    // given
+    servlet.modified(new HashMap<String, Object>());
+    cacheableProxiedGet();
+    servlet.postProcessors = proxyPostProcessors;
+
+    // when
+    requestFromUser("alice");
+    servlet.doGet(request, response);
+    requestFromUser("bob");
+    servlet.doGet(request, response);
+
+    // then bob is served the response fetched for alice, which was fetched without her
+    // cookie.
+    ArgumentCaptor<Map> upstreamHeaders = ArgumentCaptor.forClass(Map.class);
+    verify(proxyClientService, times(1)).executeCall((Node) any(),
+        upstreamHeaders.capture(), (Map<String, Object>) any(), (InputStream) any(),
+        anyLong(), anyString());
+    assertFalse(upstreamHeaders.getValue().containsKey("Cookie"));
+    assertTrue(upstreamHeaders.getValue().containsKey("Accept"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void trustedTokenRequestsAreNotShared() throws Exception {
+    // given
+    servlet.modified(new HashMap<String, Object>());
+    cacheableProxiedGet();
+    servlet.postProcessors = proxyPostProcessors;
+    nodeHasSakaiPreprocessorProperty();
+    TrustedLoginTokenProxyPreProcessor trustedToken = new TrustedLoginTokenProxyPreProcessor();
+    trustedToken.hostname = "localhost";
+    proxyPreProcessors.put("rss", trustedToken);
+    servlet.preProcessors = proxyPreProcessors;
+
+    // when
+    requestFromUser("alice");
+    servlet.doGet(request, response);
+    requestFromUser("bob");
+    servlet.doGet(request, response);
+
+    // then each user gets their own upstream response, with their own token.
+    ArgumentCaptor<Map> upstreamHeaders = ArgumentCaptor.forClass(Map.class);
+    verify(proxyClientService, times(2)).executeCall((Node) any(),
+        upstreamHeaders.capture(), (Map<String, Object>) any(), (InputStream) any(),
+        anyLong(), anyString());
+    String token = (String) upstreamHeaders.getAllValues().get(1).get(
+        TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME);
+    assertTrue(token.contains("bob"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void nodeCredentialsAreNotShared() throws Exception {
+    // given
+    servlet.modified(new HashMap<String, Object>());
+    cacheableProxiedGet();
+    servlet.postProcessors = proxyPostProcessors;
+    Property headerProperty = mock(Property.class);
+    PropertyDefinition headerDefinition = mock(PropertyDefinition.class);
+    Value headerValue = mock(Value.class);
+    when(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).thenReturn(Boolean.TRUE);
+    when(node.getProperty(ProxyClientService.SAKAI_PROXY_HEADER)).thenReturn(headerProperty);
+    when(headerProperty.getDefinition()).thenReturn(headerDefinition);
+    when(headerDefinition.isMultiple()).thenReturn(Boolean.FALSE);
+    when(headerProperty.getValue()).thenReturn(headerValue);
+    when(headerValue.getString()).thenReturn("Authorization: Basic Zm9vOmJhcg==");
+
+    // when
+    requestFromUser("alice");
+    servlet.doGet(request, response);
+    requestFromUser("bob");
+    servlet.doGet(request, response);
+
+    // then the response fetched with the node credentials is not stored.
+    verify(proxyClientService, times(2)).executeCall((Node) any(),
+        (Map<String, String>) any(), (Map<String, Object>) any(), (InputStream) any(),
+        anyLong(), anyString());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void cookiesAreSentForNodesThatDoNotOptIn() throws Exception {
+    // given
+    servlet.modified(new HashMap<String, Object>());
+    cacheableProxiedGet();
+    servlet.postProcessors = proxyPostProcessors;
+    when(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE)).thenReturn(Boolean.FALSE);
+
+    // when
+    requestFromUser("alice");
+    servlet.doGet(request, response);
+    requestFromUser("bob");
+    servlet.doGet(request, response);
+
+    // then every request goes upstream with the cookie of the user.
+    ArgumentCaptor<Map> upstreamHeaders = ArgumentCaptor.forClass(Map.class);
+    verify(proxyClientService, times(2)).executeCall((Node) any(),
+        upstreamHeaders.capture(), (Map<String, Object>) any(), (InputStream) any(),
+        anyLong(), anyString());
+    assertEquals("SAKAI-TRACKING=bob", upstreamHeaders.getValue().get("Cookie"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void cacheableProxiedGet() throws Exception {
+    requestReturnsAResource();
+    resourceWithLegitimatePath();
+    resourceReturnsANode();
+    requestReturnsParameterMap();
+    nodeHasSakaiPostprocessorProperty();
+    proxyClientServiceReturnsAProxyResponse();
+    slingResponseHasOutputStream();
+    when(request.getMethod()).thenReturn("GET");
+    when(proxyClientService.resolveEndpoint((Node) any(), (Map<String, Object>) any()))
+        .thenReturn("http://example.com/feed");
+    Map<String, String[]> responseHeaders = new HashMap<String, String[]>();
+    responseHeaders.put("Cache-Control", new String[] { "max-age=60" });
+    when(proxyResponse.getResultCode()).thenReturn(200);
+    when(proxyResponse.getResponseHeaders()).thenReturn(responseHeaders);
+    Property cacheProperty = mock(Property.class);
+    when(cacheProperty.getBoolean()).thenReturn(Boolean.TRUE);
+    when(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE)).thenReturn(Boolean.TRUE);
+    when(node.getProperty(ProxyClientService.SAKAI_PROXY_CACHE)).thenReturn(cacheProperty);
+    servlet.proxyClientService = proxyClientService;
+  }
+
+  private void requestFromUser(String user) {
+    Vector<String> names = new Vector<String>();
+    names.add("Cookie");
+    names.add("Accept");
+    when(request.getHeaderNames()).thenReturn(names.elements());
+    when(request.getHeader("Cookie")).thenReturn("SAKAI-TRACKING=" + user);
+    when(request.getHeader("Accept")).thenReturn("*/*");
+    when(request.getRemoteUser()).thenReturn(user);
+  }
+
   private void nodeHasSakaiPostprocessorProperty() throws Exception {
     when(node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).thenReturn(Boolean.TRUE);
     when(node.getProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).thenReturn(jcrProperty);
@@ -1,6 +1,8 @@
 package org.sakaiproject.nakamura.api.search;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 public interface DeletedPathsService {
 
@@ -8,6 +10,28 @@ public interface DeletedPathsService {
    * Get a list of the paths that were deleted since the last Solr commit across all nodes
    * in the cluster. Escapes the paths to make sure they are safe for consumption in a
    * query.
+   *
+   * @deprecated a filter query built from this list changes with every delete and defeats
+   *             the Solr filter cache; use {@link #isDeleted(String)} to filter the hits.
    */
+  @Deprecated
   List<String> getDeletedPaths();
-}
\ No newline at end of file
+
+  /**
+   * Check a search hit against the paths deleted since the last Solr commit across all nodes
+   * in the cluster.
+   *
+   * @param path the unescaped path of the hit.
+   * @return true if the path, or one of its ancestors, has been deleted.
+   */
+  boolean isDeleted(String path);
+
+  /**
+   * Check a page of search hits against the paths deleted since the last Solr commit across
+   * all nodes in the cluster, reading the state of each node once for the whole page.
+   *
+   * @param paths the unescaped paths of the hits.
+   * @return the paths that, or one of whose ancestors, have been deleted.
+   */
+  Set<String> getDeleted(Collection<String> paths);
+}
@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.api.search.solr;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 
+import java.util.Map;
+
 public interface SolrSearchServiceFactory {
 
   SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query,
@@ -26,4 +28,21 @@ public interface SolrSearchServiceFactory {
 
   SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query)
       throws SolrSearchException;
+
+  /**
+   * Count the hits of a query for each value of a field. No documents are fetched, the counts
+   * come from a single faceted query.
+   *
+   * @param request
+   * @param query
+   *          the query to count the hits of, its paging options are ignored.
+   * @param field
+   *          the indexed field to count the values of.
+   * @param asAnon
+   * @return the number of hits for each value of the field that has any, highest count first.
+   *         Empty if the query type can not be counted.
+   * @throws SolrSearchException
+   */
+  Map<String, Long> getFacetCounts(SlingHttpServletRequest request, Query query,
+      String field, boolean asAnon) throws SolrSearchException;
 }
@@ -18,13 +18,23 @@
 package org.sakaiproject.nakamura.search;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.cluster.ClusterServer;
@@ -36,14 +46,21 @@ import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 
+import com.google.common.collect.Maps;
+
 /**
- * Manage a cache of deleted paths as signaled by content deletion events. The cache is
- * cleared when an index commit event is received.
+ * Manage the tombstones of paths deleted since the last index commit, as signaled by
+ * content deletion events. The tombstones are cleared when an index commit event is
+ * received.
  * <p>
- * A cache is managed per machine but shared with the cluster. This is to cut down on
- * overwriting a centrally managed but unsynchronized cache. Each machine should have only
- * one version of this service actively managing that machines cache so it should always
- * work with the authoritative state.
+ * Each machine keeps its own tombstones and publishes them to the cluster through a
+ * replicated cache, as a versioned header entry and the paths in fixed size chunks. Paths
+ * are only ever appended within a generation, which a commit ends, so a delete rewrites
+ * only the last chunk and the header, and a reader only decodes the chunks that have grown
+ * since it last looked. Each machine should have only one version of this service actively
+ * managing that machines entry so it should always work with the authoritative state. Hits
+ * are checked against the path and its ancestors, so search results are post filtered
+ * rather than restricted by a filter query that changes on every delete.
  */
 @Component
 @Service
@@ -55,12 +72,39 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
 public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsService {
   public static final String DELETED_PATH_CACHE = "deletedPathQueue";
 
+  /**
+   * The number of paths published in each chunk.
+   */
+  static final int CHUNK_SIZE = 128;
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Reference
   private ClusterTrackingService clusterTrackingService;
 
+  /**
+   * The cache used to track paths that have been marked as deleted since the last Solr
+   * commit. This cache is shared by all nodes in a cluster, acting as a sort of shared
+   * memory. Bound while the component is active.
+   */
+  private volatile Cache<String> deletedPathCache;
+
+  /**
+   * The tombstones of this machine. Guarded by this.
+   */
+  private Tombstones local;
+
+  /**
+   * The paths of the chunk of this machine that is being filled. Guarded by this.
+   */
+  private List<String> localChunk = new ArrayList<String>();
+
+  /**
+   * The last decoded tombstones of each server in the cluster, including this one.
+   */
+  private final ConcurrentMap<String, Tombstones> decoded = Maps.newConcurrentMap();
+
   public DeletedPathsServiceImpl() {
   }
 
@@ -70,55 +114,153 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
     this.clusterTrackingService = clusterTrackingService;
   }
 
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    deletedPathCache = cacheManagerService.getCache(DELETED_PATH_CACHE,
+        CacheScope.CLUSTERREPLICATED);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    deletedPathCache = null;
+  }
+
+  private static String key(String serverId) {
+    return "tombstones@" + serverId;
+  }
+
+  private static String chunkKey(String serverId, long generation, int chunk) {
+    return key(serverId) + "#" + generation + "#" + chunk;
+  }
+
   /**
-   * Get an instance of the cache used to track paths that have been marked as
-   * deleted since the last Solr commit.  This cache is shared by all nodes in a
-   * cluster, acting as a sort of shared memory.
+   * @return the tombstones of this machine, picking up what was published before a restart.
    */
-  private Cache<String> getDeletedPathCache() {
-    return cacheManagerService.getCache(DELETED_PATH_CACHE, CacheScope.CLUSTERREPLICATED);
+  private Tombstones getLocal() {
+    if (local == null) {
+      String myId = clusterTrackingService.getCurrentServerId();
+      Tombstones published = getTombstones(myId);
+      if (published == Tombstones.EMPTY) {
+        // versions must not repeat across restarts, or other machines could keep using a
+        // stale decoded copy that happens to carry the same version.
+        long generation = System.currentTimeMillis() * 1000;
+        local = new Tombstones(generation);
+        publishHeader(myId, generation);
+      } else {
+        local = published;
+        if (local.size() > 0) {
+          localChunk = Tombstones.decodeChunk(deletedPathCache.get(
+              chunkKey(myId, local.generation, (local.size() - 1) / CHUNK_SIZE)));
+        }
+      }
+    }
+    return local;
+  }
+
+  private void publishHeader(String myId, long version) {
+    String header = Tombstones.encodeHeader(local.generation, version, local.size());
+    local.setHeader(header, version);
+    deletedPathCache.put(key(myId), header);
+    decoded.put(myId, local);
   }
 
   /**
    * Record a path as having been deleted, preventing it from appearing in search results.
+   * Only the chunk the path is added to is published again, so a burst of deletes costs
+   * time in proportion to the number of paths.
    *
    * @param path the path that was deleted
    */
   private synchronized void storeDeletedPath(String path) {
-    Cache<String> cache = getDeletedPathCache();
+    Tombstones current = getLocal();
+    if (current.isDeleted(path)) {
+      return;
+    }
     String myId = clusterTrackingService.getCurrentServerId();
-
-    // add the new path to the last position
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    cache.put("path[" + pathCount + "]@" + myId,
-        SearchUtil.escapeString(path, Query.SOLR));
-    cache.put("pathCount@" + myId, String.valueOf(pathCount + 1));
-
-    // clean out any paths that start with the path we've just added
-    for (int idx = 0; idx < pathCount; idx++) {
-      String key = "path[" + idx + "]@" + myId;
-      String cachedPath = cache.get(key);
-      // check for null in case a previous pass deleted the element. we don't do garbage
-      // collection because the list is expected to be too short lived.
-      if (cachedPath != null && !cachedPath.equals(path) && cachedPath.startsWith(path)) {
-        cache.remove(key);
-      }
+    if (localChunk.size() == CHUNK_SIZE) {
+      localChunk = new ArrayList<String>();
+    }
+    localChunk.add(path);
+    synchronized (current) {
+      current.append(path);
     }
+    // the chunk goes first so that a reader that sees the new header can find it.
+    deletedPathCache.put(
+        chunkKey(myId, current.generation, (current.size() - 1) / CHUNK_SIZE),
+        StringUtils.join(localChunk, '\n'));
+    publishHeader(myId, current.version + 1);
   }
 
   /**
    * Clear the list of deleted nodes for this node.
    */
   private synchronized void clearDeletedPaths() {
-    Cache<String> cache = getDeletedPathCache();
+    Tombstones previous = getLocal();
     String myId = clusterTrackingService.getCurrentServerId();
+    long generation = previous.version + 1;
+    local = new Tombstones(generation);
+    localChunk = new ArrayList<String>();
+    publishHeader(myId, generation);
+    for (int i = 0; i * CHUNK_SIZE < previous.size(); i++) {
+      deletedPathCache.remove(chunkKey(myId, previous.generation, i));
+    }
+  }
 
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    for (int idx = 0; idx < pathCount; idx++) {
-      cache.remove("path[" + idx + "]@" + myId);
+  /**
+   * @return the current tombstones of a server, decoding only the chunks that have changed
+   *         since the server was last seen.
+   */
+  private Tombstones getTombstones(String serverId) {
+    String header = deletedPathCache.get(key(serverId));
+    Tombstones last = decoded.get(serverId);
+    if (last != null && last.matches(header)) {
+      return last;
+    }
+    long[] h = Tombstones.decodeHeader(header);
+    if (h == null) {
+      decoded.remove(serverId);
+      return Tombstones.EMPTY;
+    }
+    Tombstones tombstones = (last != null && last.generation == h[0]) ? last
+        : new Tombstones(h[0]);
+    synchronized (tombstones) {
+      while (tombstones.size() < h[2]) {
+        int seen = tombstones.size();
+        List<String> paths = Tombstones.decodeChunk(deletedPathCache.get(
+            chunkKey(serverId, h[0], seen / CHUNK_SIZE)));
+        // paths are only appended to a chunk, skip those already seen.
+        for (int j = seen % CHUNK_SIZE; j < paths.size() && tombstones.size() < h[2]; j++) {
+          tombstones.append(paths.get(j));
+        }
+        if (tombstones.size() == seen || paths.size() < CHUNK_SIZE) {
+          break;
+        }
+      }
+      // a chunk that has not replicated yet leaves the header unmatched, so the next read
+      // picks up the rest.
+      if (tombstones.size() >= h[2]) {
+        tombstones.setHeader(header, h[1]);
+      }
     }
+    decoded.put(serverId, tombstones);
+    return tombstones;
+  }
 
-    cache.put("pathCount@" + myId, Integer.toString(0));
+  /**
+   * @return the current tombstones of every server in the cluster.
+   */
+  private List<Tombstones> getAllTombstones() {
+    List<Tombstones> all = new ArrayList<Tombstones>();
+    if (deletedPathCache == null) {
+      return all;
+    }
+    for (ClusterServer server : clusterTrackingService.getAllServers()) {
+      Tombstones tombstones = getTombstones(server.getServerId());
+      if (tombstones.size() > 0) {
+        all.add(tombstones);
+      }
+    }
+    return all;
   }
 
   // ---------- DeletedPathsService interface ----------------------------------
@@ -128,28 +270,58 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPaths()
    */
   @Override
+  @Deprecated
   public List<String> getDeletedPaths() {
     List<String> deletedPaths = new ArrayList<String>();
-    Cache<String> cache = getDeletedPathCache();
-
-    for (ClusterServer server : clusterTrackingService.getAllServers()) {
-      String serverId = server.getServerId();
-      int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + serverId), 0);
-
-      for (int idx = 0; idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
-
-        if (path != null) {
+    for (Tombstones tombstones : getAllTombstones()) {
+      for (String path : tombstones.ordered) {
+        // a path deleted after one of its descendants covers it.
+        if (!tombstones.isDeleted(Tombstones.parent(path))) {
           deletedPaths.add(SearchUtil.escapeString(path, Query.SOLR));
         }
       }
     }
-
     return deletedPaths;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#isDeleted(java.lang.String)
+   */
+  @Override
+  public boolean isDeleted(String path) {
+    return !getDeleted(Collections.singleton(path)).isEmpty();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeleted(java.util.Collection)
+   */
+  @Override
+  public Set<String> getDeleted(Collection<String> paths) {
+    Set<String> deleted = new HashSet<String>();
+    List<Tombstones> all = getAllTombstones();
+    if (all.isEmpty()) {
+      return deleted;
+    }
+    for (String path : paths) {
+      for (Tombstones tombstones : all) {
+        if (tombstones.isDeleted(path)) {
+          deleted.add(path);
+          break;
+        }
+      }
+    }
+    return deleted;
+  }
+
   // ---------- EventHandler interface -----------------------------------------
   public void handleEvent(Event event) {
+    if (deletedPathCache == null) {
+      return;
+    }
     String topic = event.getTopic();
 
     if ("org/sakaiproject/nakamura/lite/content/DELETE".equals(topic)) {
@@ -163,4 +335,105 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
       clearDeletedPaths();
     }
   }
+
+  /**
+   * The deleted paths of one server for one generation. Paths are only appended, so the set
+   * can be read while it grows. The header is encoded as the generation, the version and the
+   * number of paths, one per line, and each chunk as one path per line in the order they
+   * were deleted.
+   */
+  static final class Tombstones {
+    private static final Tombstones EMPTY = new Tombstones(0);
+
+    private final long generation;
+    private final Set<String> paths = Collections.newSetFromMap(Maps
+        .<String, Boolean>newConcurrentMap());
+    private final Queue<String> ordered = new ConcurrentLinkedQueue<String>();
+    private volatile int size;
+    private volatile String header;
+    private volatile long version;
+
+    private Tombstones(long generation) {
+      this.generation = generation;
+      this.version = generation;
+    }
+
+    static String encodeHeader(long generation, long version, int size) {
+      return generation + "\n" + version + "\n" + size;
+    }
+
+    /**
+     * @return the generation, version and number of paths, or null if there is no header.
+     */
+    static long[] decodeHeader(String encoded) {
+      if (encoded == null || encoded.length() == 0) {
+        return null;
+      }
+      String[] lines = StringUtils.split(encoded, '\n');
+      if (lines.length != 3) {
+        return null;
+      }
+      try {
+        return new long[] { Long.parseLong(lines[0]), Long.parseLong(lines[1]),
+            Long.parseLong(lines[2]) };
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    static List<String> decodeChunk(String encoded) {
+      List<String> paths = new ArrayList<String>();
+      if (encoded != null && encoded.length() > 0) {
+        Collections.addAll(paths, StringUtils.split(encoded, '\n'));
+      }
+      return paths;
+    }
+
+    static String parent(String path) {
+      int i = path.lastIndexOf('/');
+      return i <= 0 ? "" : path.substring(0, i);
+    }
+
+    /**
+     * Add a path. Must be called while holding the lock of this object.
+     */
+    void append(String path) {
+      paths.add(path);
+      ordered.add(path);
+      size++;
+    }
+
+    void setHeader(String header, long version) {
+      this.version = version;
+      this.header = header;
+    }
+
+    /**
+     * @return true if the encoded header is the one last read.
+     */
+    boolean matches(String encoded) {
+      return encoded != null && encoded.equals(header);
+    }
+
+    int size() {
+      return size;
+    }
+
+    /**
+     * @return true if the path or one of its ancestors has been deleted.
+     */
+    boolean isDeleted(String path) {
+      if (size == 0) {
+        return false;
+      }
+      String p = path;
+      while (p.length() > 0) {
+        if (paths.contains(p)) {
+          return true;
+        }
+        p = parent(p);
+      }
+      return false;
+    }
+  }
 }
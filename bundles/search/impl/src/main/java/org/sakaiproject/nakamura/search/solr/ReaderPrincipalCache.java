@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local LRU cache of the principals a user reads as (the user and every group they are
+ * a direct or indirect member of), held as the encoded value of the Solr readers parameter.
+ * <p>
+ * An entry is dropped when the user, or any group in the entry, is updated or deleted. Adding a
+ * user or a group to a group updates the member as well, so this also covers new memberships.
+ * Events are only seen on the local node, so entries also expire after a fixed time to bound
+ * the staleness of membership changes made elsewhere in the cluster. An entry loaded from a
+ * membership index that is itself refreshed on a timer expires no later than that index, so
+ * the two times do not add up.
+ */
+class ReaderPrincipalCache {
+
+  private static final MetricCounter HITS = TelemetryCounter.getCounter("search", "ReaderPrincipalCache", "hits");
+  private static final MetricCounter MISSES = TelemetryCounter.getCounter("search", "ReaderPrincipalCache", "misses");
+  private static final MetricCounter INVALIDATIONS = TelemetryCounter.getCounter("search", "ReaderPrincipalCache", "invalidations");
+
+  private final Map<String, Readers> cache;
+  private final long ttlMs;
+  /**
+   * Bumped on every invalidation, so that a lookup that raced with a membership change does not
+   * put its (possibly stale) result into the cache.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param maxSize the maximum number of users held.
+   * @param ttlMs the maximum age of an entry.
+   */
+  ReaderPrincipalCache(final int maxSize, long ttlMs) {
+    this.ttlMs = ttlMs;
+    this.cache = Collections.synchronizedMap(new LinkedHashMap<String, Readers>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Readers> eldest) {
+        return size() > maxSize;
+      }
+    });
+  }
+
+  /**
+   * @return the current generation, to be passed to {@link #put(String, Set, long, long)}.
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @return the encoded readers of the user, or null if not cached.
+   */
+  String get(String userId) {
+    Readers readers = cache.get(userId);
+    if (readers == null || readers.expires < System.currentTimeMillis()) {
+      MISSES.increment();
+      return null;
+    }
+    HITS.increment();
+    return readers.encoded;
+  }
+
+  /**
+   * Cache the principals of a user.
+   *
+   * @param userId
+   * @param principals the user id and the ids of all the groups the user is a member of.
+   * @param loadedAt the generation read before the principals were loaded.
+   * @param notAfter the latest time (ms) the entry may be kept, 0 for no limit beyond the ttl.
+   * @return the encoded readers.
+   */
+  String put(String userId, Set<String> principals, long loadedAt, long notAfter) {
+    long expires = System.currentTimeMillis() + ttlMs;
+    if (notAfter > 0) {
+      expires = Math.min(expires, notAfter);
+    }
+    Readers readers = new Readers(principals, expires);
+    synchronized (cache) {
+      if (generation.get() == loadedAt) {
+        cache.put(userId, readers);
+      }
+    }
+    return readers.encoded;
+  }
+
+  /**
+   * Drop the entry for an authorizable and every entry that includes it as a principal.
+   */
+  void invalidate(String authorizableId) {
+    INVALIDATIONS.increment();
+    synchronized (cache) {
+      generation.incrementAndGet();
+      cache.remove(authorizableId);
+      for (Iterator<Readers> i = cache.values().iterator(); i.hasNext();) {
+        if (i.next().principals.contains(authorizableId)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  void clear() {
+    synchronized (cache) {
+      generation.incrementAndGet();
+      cache.clear();
+    }
+  }
+
+  private static final class Readers {
+    private final Set<String> principals;
+    private final String encoded;
+    private final long expires;
+
+    private Readers(Set<String> principals, long expires) {
+      // sorted, so that the same set of principals always produces the same query.
+      this.principals = Collections.unmodifiableSet(new TreeSet<String>(principals));
+      this.encoded = StringUtils.join(this.principals, ",");
+      this.expires = expires;
+    }
+  }
+}
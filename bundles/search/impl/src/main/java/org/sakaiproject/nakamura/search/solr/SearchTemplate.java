@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_SEARCHRESPONSEDECORATOR;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.util.JcrUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * An immutable copy of a search template node, read from the repository once and reused by
+ * every request against the template until the node changes.
+ */
+public final class SearchTemplate {
+
+  private final String path;
+  private final String queryType;
+  private final TemplateString queryTemplate;
+  private final String[] propertyProviderNames;
+  private final Map<String, String> defaultValues;
+  private final Map<String, List<TemplateString>> options;
+  private final Map<String, Boolean> multipleOptions;
+  private final String batchResultProcessorName;
+  private final String resultProcessorName;
+  private final String[] responseDecoratorNames;
+
+  private SearchTemplate(Node queryNode) throws RepositoryException {
+    path = queryNode.getPath();
+    // check the resource type and set the query type appropriately
+    // default to using solr for queries
+    if (queryNode.hasProperty("sling:resourceType")
+        && "sakai/sparse-search".equals(queryNode.getProperty("sling:resourceType")
+            .getString())) {
+      queryType = Query.SPARSE;
+    } else {
+      queryType = Query.SOLR;
+    }
+    queryTemplate = new TemplateString(queryNode.getProperty(SAKAI_QUERY_TEMPLATE)
+        .getString());
+    propertyProviderNames = getStringArrayProp(queryNode, SAKAI_PROPERTY_PROVIDER);
+    batchResultProcessorName = getStringProp(queryNode, SAKAI_BATCHRESULTPROCESSOR);
+    resultProcessorName = getStringProp(queryNode, SAKAI_RESULTPROCESSOR);
+    responseDecoratorNames = getStringArrayProp(queryNode, SAKAI_SEARCHRESPONSEDECORATOR);
+
+    ImmutableMap.Builder<String, String> defaults = ImmutableMap.builder();
+    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)) {
+      PropertyIterator defaultProps = queryNode.getNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)
+          .getProperties();
+      while (defaultProps.hasNext()) {
+        javax.jcr.Property prop = defaultProps.nextProperty();
+        String key = prop.getName();
+        if (!key.startsWith("jcr:") && !prop.isMultiple()) {
+          defaults.put(key, prop.getString());
+        }
+      }
+    }
+    defaultValues = defaults.build();
+
+    ImmutableMap.Builder<String, List<TemplateString>> opts = ImmutableMap.builder();
+    ImmutableMap.Builder<String, Boolean> multiple = ImmutableMap.builder();
+    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      PropertyIterator queryOptions = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS)
+          .getProperties();
+      while (queryOptions.hasNext()) {
+        javax.jcr.Property prop = queryOptions.nextProperty();
+        String key = prop.getName();
+        if (!JcrUtils.isJCRProperty(key)) {
+          ImmutableList.Builder<TemplateString> vals = ImmutableList.builder();
+          if (prop.isMultiple()) {
+            for (Value val : prop.getValues()) {
+              vals.add(new TemplateString(val.getString()));
+            }
+          } else {
+            vals.add(new TemplateString(prop.getString()));
+          }
+          opts.put(key, vals.build());
+          multiple.put(key, prop.isMultiple());
+        }
+      }
+    }
+    options = opts.build();
+    multipleOptions = multiple.build();
+  }
+
+  /**
+   * @return the template held by the node, or null if the node has no query template.
+   * @throws RepositoryException
+   */
+  public static SearchTemplate load(Node queryNode) throws RepositoryException {
+    if (queryNode == null || !queryNode.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+      return null;
+    }
+    return new SearchTemplate(queryNode);
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getQueryType() {
+    return queryType;
+  }
+
+  public TemplateString getQueryTemplate() {
+    return queryTemplate;
+  }
+
+  /**
+   * @return the property provider names, or null if none are set.
+   */
+  public String[] getPropertyProviderNames() {
+    return propertyProviderNames == null ? null : propertyProviderNames.clone();
+  }
+
+  /**
+   * @return the single valued defaults from sakai:query-template-defaults.
+   */
+  public Map<String, String> getDefaultValues() {
+    return defaultValues;
+  }
+
+  /**
+   * @return the values of each option in sakai:query-template-options.
+   */
+  public Map<String, List<TemplateString>> getOptions() {
+    return options;
+  }
+
+  /**
+   * @return true if the option was held in a multi valued property.
+   */
+  public boolean isMultipleOption(String key) {
+    Boolean multiple = multipleOptions.get(key);
+    return multiple != null && multiple.booleanValue();
+  }
+
+  /**
+   * @return the batch result processor name, or null if not set.
+   */
+  public String getBatchResultProcessorName() {
+    return batchResultProcessorName;
+  }
+
+  /**
+   * @return the result processor name, or null if not set.
+   */
+  public String getResultProcessorName() {
+    return resultProcessorName;
+  }
+
+  /**
+   * @return the response decorator names, or null if none are set.
+   */
+  public String[] getResponseDecoratorNames() {
+    return responseDecoratorNames == null ? null : responseDecoratorNames.clone();
+  }
+
+  private static String getStringProp(Node node, String propName)
+      throws RepositoryException {
+    if (node.hasProperty(propName)) {
+      return node.getProperty(propName).getString();
+    }
+    return null;
+  }
+
+  private static String[] getStringArrayProp(Node node, String propName)
+      throws RepositoryException {
+    if (!node.hasProperty(propName)) {
+      return null;
+    }
+    javax.jcr.Property prop = node.getProperty(propName);
+    if (prop.isMultiple()) {
+      Value[] vals = prop.getValues();
+      String[] strings = new String[vals.length];
+      for (int i = 0; i < vals.length; i++) {
+        strings[i] = vals[i].getString();
+      }
+      return strings;
+    }
+    return new String[] { prop.getString() };
+  }
+
+  /**
+   * A template string, checked once for template markup so that literal values can skip
+   * template evaluation.
+   */
+  public static final class TemplateString {
+    private final String template;
+    private final boolean literal;
+
+    TemplateString(String template) {
+      this.template = template;
+      this.literal = template.indexOf('$') < 0 && template.indexOf('#') < 0;
+    }
+
+    public String getTemplate() {
+      return template;
+    }
+
+    /**
+     * @return true if the template has no variable references or directives, so evaluates
+     *         to itself.
+     */
+    public boolean isLiteral() {
+      return literal;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.util.telemetry.MetricCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds the parsed search templates by path, dropping a template when its node, one of its
+ * child nodes or one of its ancestors changes.
+ */
+@Component(immediate = true)
+@Service(value = { SearchTemplateCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }) })
+public class SearchTemplateCache implements EventHandler {
+
+  private static final MetricCounter HITS = TelemetryCounter.getCounter("search", "SearchTemplateCache", "hits");
+  private static final MetricCounter MISSES = TelemetryCounter.getCounter("search", "SearchTemplateCache", "misses");
+
+  private final ConcurrentMap<String, SearchTemplate> templates = new ConcurrentHashMap<String, SearchTemplate>();
+  /**
+   * Bumped on every change, so a template read while its node was changing is not kept.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param queryNode the search template node.
+   * @return the parsed template, or null if the node has no query template.
+   * @throws RepositoryException
+   */
+  public SearchTemplate get(Node queryNode) throws RepositoryException {
+    if (queryNode == null) {
+      return null;
+    }
+    String path = queryNode.getPath();
+    SearchTemplate template = templates.get(path);
+    if (template != null) {
+      HITS.increment();
+      return template;
+    }
+    MISSES.increment();
+    long loadedAt = generation.get();
+    template = SearchTemplate.load(queryNode);
+    if (template != null) {
+      templates.put(path, template);
+      if (generation.get() != loadedAt) {
+        templates.remove(path, template);
+      }
+    }
+    return template;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && !path.startsWith(SEARCH_PATH_PREFIX)
+        && !SEARCH_PATH_PREFIX.startsWith(path)) {
+      // templates are only executed from under the search prefix.
+      return;
+    }
+    generation.incrementAndGet();
+    if (path == null) {
+      templates.clear();
+      return;
+    }
+    for (Iterator<String> i = templates.keySet().iterator(); i.hasNext();) {
+      String templatePath = i.next();
+      if (templatePath.equals(path) || path.startsWith(templatePath + "/")
+          || templatePath.startsWith(path + "/")) {
+        i.remove();
+      }
+    }
+  }
+}
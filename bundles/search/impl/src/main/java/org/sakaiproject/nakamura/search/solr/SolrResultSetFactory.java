@@ -24,8 +24,11 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.PropertiesUtil;
@@ -36,6 +39,8 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.params.CommonParams;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -52,6 +57,8 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.user.GroupMembershipIndex;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,16 +69,21 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  */
 @Component(metatype = true)
-@Service
-@Property(name = "type", value = Query.SOLR)
-
-public class SolrResultSetFactory implements ResultSetFactory {
+@Service(value = { ResultSetFactory.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "type", value = Query.SOLR),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE",
+        GroupMembershipIndex.TOPIC_INVALIDATED }) })
+public class SolrResultSetFactory implements ResultSetFactory, EventHandler {
   @Property(longValue = 100L)
   private static final String VERY_SLOW_QUERY_TIME = "verySlowQueryTime";
   @Property(longValue = 10L)
@@ -80,12 +92,24 @@ public class SolrResultSetFactory implements ResultSetFactory {
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
   @Property(value = "POST")
   private static final String HTTP_METHOD = "httpMethod";
+  /**
+   * Number of users whose reader principals are cached, 0 disables the cache.
+   */
+  @Property(intValue = 1000)
+  private static final String READERS_CACHE_SIZE = "readersCacheSize";
+  /**
+   * Maximum age (s) of cached reader principals, bounding the staleness of membership changes
+   * made on other nodes.
+   */
+  @Property(longValue = 300L)
+  private static final String READERS_CACHE_TTL = "readersCacheTtl";
 
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrResultSetFactory.class);
   private static final Logger SLOW_QUERY_LOGGER = LoggerFactory.getLogger(SlowQueryLogger.class);
+  private static final LatencyHistogram QUERY_LATENCY = TelemetryCounter.getHistogram("search", "Solr", "query");
 
   @Reference
   private SolrServerService solrSearchService;
@@ -93,10 +117,21 @@ public class SolrResultSetFactory implements ResultSetFactory {
   @Reference
   private DeletedPathsService deletedPathsService;
 
+  /**
+   * When present, used to find the groups of a user instead of walking their memberships.
+   * The index resolves nested groups whether or not the user can read them, as the
+   * principals used for access control are, where the walk through the user's session
+   * skips groups the user can not read. Readers cached from the index are dropped again
+   * once the index has been invalidated.
+   */
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private volatile GroupMembershipIndex membershipIndex;
+
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
   private METHOD queryMethod;
+  private volatile ReaderPrincipalCache readersCache;
 
   @Activate
   protected void activate(Map<?, ?> props) {
@@ -105,6 +140,29 @@ public class SolrResultSetFactory implements ResultSetFactory {
     slowQueryThreshold = PropertiesUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = PropertiesUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
     queryMethod = METHOD.valueOf(PropertiesUtil.toString(props.get(HTTP_METHOD), "POST"));
+    int readersCacheSize = PropertiesUtil.toInteger(props.get(READERS_CACHE_SIZE), 1000);
+    long readersCacheTtl = PropertiesUtil.toLong(props.get(READERS_CACHE_TTL), 300L);
+    readersCache = readersCacheSize > 0 ? new ReaderPrincipalCache(readersCacheSize,
+        TimeUnit.SECONDS.toMillis(readersCacheTtl)) : null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops cached reader principals affected by a change to an authorizable.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    ReaderPrincipalCache cache = readersCache;
+    if (cache != null) {
+      Object id = event.getProperty("path");
+      if (id != null) {
+        cache.invalidate(String.valueOf(id));
+      } else {
+        cache.clear();
+      }
+    }
   }
 
   /**
@@ -155,14 +213,7 @@ public class SolrResultSetFactory implements ResultSetFactory {
       } else {
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(gi.next().getId());
-          }
-          readers.add(session.getUserId());
-          queryOptions.put("readers", StringUtils.join(readers,","));
+          queryOptions.put("readers", getReaders(session));
         }
       }
 
@@ -170,12 +221,8 @@ public class SolrResultSetFactory implements ResultSetFactory {
       // some things on the server that the UI doesn't want (e.g. collection groups)
       filterQueries.add("-exclude:true");
 
-      // filter out deleted items
-      List<String> deletedPaths = deletedPathsService.getDeletedPaths();
-      if (!deletedPaths.isEmpty()) {
-        // these are escaped as they are collected
-        filterQueries.add("-path:(" + StringUtils.join(deletedPaths, " OR ") + ")");
-      }
+      // items deleted since the last commit are filtered out of the hits rather than the
+      // query, keeping the filter queries stable so Solr can cache them.
       // save filterQuery changes
       queryOptions.put(CommonParams.FQ, filterQueries);
 
@@ -188,9 +235,10 @@ public class SolrResultSetFactory implements ResultSetFactory {
         } catch (UnsupportedEncodingException e) {
         }
       }
-      long tquery = System.currentTimeMillis();
+      long tqueryNanos = System.nanoTime();
       QueryResponse response = solrServer.query(solrQuery, queryMethod);
-      tquery = System.currentTimeMillis() - tquery;
+      QUERY_LATENCY.recordSince(tqueryNanos);
+      long tquery = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tqueryNanos);
       try {
         if ( tquery > verySlowQueryThreshold ) {
           SLOW_QUERY_LOGGER.error("Very slow solr query {} ms {} ",tquery, URLDecoder.decode(solrQuery.toString(),"UTF-8"));
@@ -201,7 +249,7 @@ public class SolrResultSetFactory implements ResultSetFactory {
         }
       } catch (UnsupportedEncodingException e) {
       }
-      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response);
+      SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response, deletedPathsService);
       if ( LOGGER.isDebugEnabled()) {
         LOGGER.debug("Got {} hits in {} ms", rs.getSize(), response.getElapsedTime());
       }
@@ -215,6 +263,43 @@ public class SolrResultSetFactory implements ResultSetFactory {
     }
   }
 
+  /**
+   * @return the comma separated ids of the session user and all the groups they are a member
+   *         of.
+   */
+  private String getReaders(Session session) throws StorageClientException,
+      AccessDeniedException {
+    String userId = session.getUserId();
+    ReaderPrincipalCache cache = readersCache;
+    long generation = 0;
+    if (cache != null) {
+      String readers = cache.get(userId);
+      if (readers != null) {
+        return readers;
+      }
+      generation = cache.getGeneration();
+    }
+    Set<String> readers = Sets.newHashSet();
+    GroupMembershipIndex index = membershipIndex;
+    long notAfter = 0;
+    if (index != null) {
+      // read before the memberships, whatever is read can be no older than this.
+      notAfter = index.getExpires();
+      readers.addAll(index.getMemberOf(userId));
+    } else {
+      AuthorizableManager am = session.getAuthorizableManager();
+      Authorizable user = am.findAuthorizable(userId);
+      for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+        readers.add(gi.next().getId());
+      }
+    }
+    readers.add(userId);
+    if (cache != null) {
+      return cache.put(userId, readers, generation, notAfter);
+    }
+    return StringUtils.join(readers, ",");
+  }
+
   /**
    * @param request
    * @param query
@@ -24,6 +24,7 @@ import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
@@ -37,17 +38,30 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryResponseWrapper {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrSearchResultSetImpl.class);
 
   private final QueryResponse queryResponse;
+  private final DeletedPathsService deletedPathsService;
   private SolrDocumentList responseList;
 
   public SolrSearchResultSetImpl(QueryResponse queryResponse) {
+    this(queryResponse, null);
+  }
+
+  /**
+   * @param queryResponse
+   * @param deletedPathsService if not null, hits that have been deleted since the last
+   *          commit are removed from the results.
+   */
+  public SolrSearchResultSetImpl(QueryResponse queryResponse,
+      DeletedPathsService deletedPathsService) {
     LOGGER.debug("new SolrSearchResultSetImpl(QueryResponse {})", queryResponse);
     this.queryResponse = queryResponse;
+    this.deletedPathsService = deletedPathsService;
   }
 
   public Iterator<Result> getResultSetIterator() {
@@ -155,6 +169,40 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
           }
         }
       }
+      removeDeleted();
+    }
+  }
+
+  /**
+   * Drop hits deleted since they were indexed. The total is reduced by the hits dropped from
+   * this page, deleted hits on other pages are not known until the index is committed.
+   */
+  private void removeDeleted() {
+    if (deletedPathsService == null) {
+      return;
+    }
+    List<String> paths = new ArrayList<String>(responseList.size());
+    for (SolrDocument doc : responseList) {
+      Object path = doc.getFirstValue("path");
+      if (path != null) {
+        paths.add(String.valueOf(path));
+      }
+    }
+    Set<String> deleted = deletedPathsService.getDeleted(paths);
+    if (deleted.isEmpty()) {
+      return;
+    }
+    int removed = 0;
+    for (Iterator<SolrDocument> i = responseList.iterator(); i.hasNext();) {
+      Object path = i.next().getFirstValue("path");
+      if (path != null && deleted.contains(String.valueOf(path))) {
+        i.remove();
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      LOGGER.debug("Removed {} deleted hits", removed);
+      responseList.setNumFound(Math.max(0, responseList.getNumFound() - removed));
     }
   }
 
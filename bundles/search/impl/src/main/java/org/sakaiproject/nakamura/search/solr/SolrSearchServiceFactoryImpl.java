@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.search.solr;
 
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
+
 import com.google.common.collect.Maps;
 
 import org.apache.commons.lang.StringUtils;
@@ -27,6 +29,9 @@ import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -35,6 +40,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
@@ -77,4 +83,44 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
       Query query) throws SolrSearchException {
     return getSearchResultSet(request, query, false);
   }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory#getFacetCounts(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.sakaiproject.nakamura.api.search.solr.Query, java.lang.String, boolean)
+   */
+  public Map<String, Long> getFacetCounts(SlingHttpServletRequest request, Query query,
+      String field, boolean asAnon) throws SolrSearchException {
+    Map<String, Long> counts = Maps.newLinkedHashMap();
+    if (!Query.SOLR.equals(query.getType())) {
+      LOGGER.warn("Unable to count {} query [{}]", query.getType(), query);
+      return counts;
+    }
+    Map<String, Object> options = Maps.newHashMap();
+    if (query.getOptions() != null) {
+      options.putAll(query.getOptions());
+    }
+    // rows=0, only the facet counts are wanted.
+    options.put(PARAMS_ITEMS_PER_PAGE, "0");
+    options.put(CommonParams.START, "0");
+    options.put(FacetParams.FACET, "true");
+    options.put(FacetParams.FACET_FIELD, field);
+    options.put(FacetParams.FACET_MINCOUNT, "1");
+    options.put(FacetParams.FACET_LIMIT, "-1");
+    options.put(FacetParams.FACET_SORT, FacetParams.FACET_SORT_COUNT);
+    SolrSearchResultSet rs = getSearchResultSet(request,
+        new Query(query.getType(), query.getQueryString(), options), asAnon);
+    List<FacetField> facetFields = (rs == null) ? null : rs.getFacetFields();
+    if (facetFields != null) {
+      for (FacetField facetField : facetFields) {
+        if (field.equals(facetField.getName()) && facetField.getValues() != null) {
+          for (FacetField.Count count : facetField.getValues()) {
+            counts.put(count.getName(), count.getCount());
+          }
+        }
+      }
+    }
+    return counts;
+  }
 }
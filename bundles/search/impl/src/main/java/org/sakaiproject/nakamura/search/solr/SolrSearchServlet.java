@@ -22,13 +22,6 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.FACE
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON_RESULTS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_SEARCHRESPONSEDECORATOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TIDY;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTAL;
@@ -67,8 +60,8 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
+import org.sakaiproject.nakamura.search.solr.SearchTemplate.TemplateString;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
-import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
@@ -84,9 +77,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.jcr.Node;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.Value;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -178,6 +169,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Reference
   private transient TemplateService templateService;
 
+  @Reference
+  private transient SearchTemplateCache searchTemplateCache;
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -191,11 +185,12 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
       }
       TelemetryCounter.incrementValue("search", "SolrSearchServlet", resource.getPath());
       Node node = resource.adaptTo(Node.class);
-      if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+      SearchTemplate template = searchTemplateCache.get(node);
+      if (template != null) {
         // KERN-1147 Respond better when all parameters haven't been provided for a query
         Query query;
         try {
-          query = processQuery(request, node);
+          query = processQuery(request, template);
         } catch (MissingParameterException e) {
           response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
           return;
@@ -223,9 +218,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         boolean useBatch = false;
         // Get the
         SolrSearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = searchBatchResultProcessorTracker.getByName(node.getProperty(
-              SAKAI_BATCHRESULTPROCESSOR).getString());
+        if (template.getBatchResultProcessorName() != null) {
+          searchBatchProcessor = searchBatchResultProcessorTracker.getByName(template
+              .getBatchResultProcessorName());
           useBatch = true;
           if (searchBatchProcessor == null) {
             searchBatchProcessor = defaultSearchBatchProcessor;
@@ -233,9 +228,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
 
         SolrSearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = searchResultProcessorTracker.getByName(node.getProperty(SAKAI_RESULTPROCESSOR)
-              .getString());
+        if (template.getResultProcessorName() != null) {
+          searchProcessor = searchResultProcessorTracker.getByName(template
+              .getResultProcessorName());
           if (searchProcessor == null) {
             searchProcessor = defaultSearchProcessor;
           }
@@ -294,8 +289,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         write.key(TOTAL);
         write.value(rs.getSize());
 
-        if ( node.hasProperty(SAKAI_SEARCHRESPONSEDECORATOR)) {
-          String[] decoratorNames = getStringArrayProp(node, SAKAI_SEARCHRESPONSEDECORATOR);
+        String[] decoratorNames = template.getResponseDecoratorNames();
+        if ( decoratorNames != null ) {
           for ( String name : decoratorNames ) {
             SearchResponseDecorator decorator = searchResponseDecoratorTracker.getByName(name);
             if ( decorator != null ) {
@@ -321,41 +316,20 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    *
    * @param request
    *          the request.
-   * @param queryTemplate
-   *          the query template.
-   * @param propertyProviderName
+   * @param template
+   *          the search template.
    * @return A processed query template
    * @throws MissingParameterException
    */
-  protected Query processQuery(SlingHttpServletRequest request, Node queryNode)
-      throws RepositoryException, MissingParameterException, JSONException {
-    // check the resource type and set the query type appropriately
-    // default to using solr for queries
-    javax.jcr.Property resourceType = queryNode.getProperty("sling:resourceType");
-    String queryType;
-    if ("sakai/sparse-search".equals(resourceType.getString())) {
-      queryType = Query.SPARSE;
-    } else {
-      queryType = Query.SOLR;
-    }
-
-    String[] propertyProviderNames = null;
-    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-      propertyProviderNames = getStringArrayProp(queryNode, SAKAI_PROPERTY_PROVIDER);
-    }
-    PropertyIterator defaultValues = null;
-    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_DEFAULTS)) {
-      Node defaults = queryNode.getNode(SAKAI_QUERY_TEMPLATE_DEFAULTS);
-      defaultValues = defaults.getProperties();
-    }
-    Map<String, String> propertiesMap = loadProperties(request, propertyProviderNames,
-        defaultValues, queryType);
-
-    String queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+  protected Query processQuery(SlingHttpServletRequest request, SearchTemplate template)
+      throws MissingParameterException {
+    String queryType = template.getQueryType();
+    Map<String, String> propertiesMap = loadProperties(request,
+        template.getPropertyProviderNames(), template.getDefaultValues(), queryType);
 
     // process the query string before checking for missing terms to a) give processors a
     // chance to set things and b) catch any missing terms added by the processors.
-    String queryString = templateService.evaluateTemplate(propertiesMap, queryTemplate);
+    String queryString = evaluate(propertiesMap, template.getQueryTemplate());
 
     // expand home directory references to full path; eg. ~user => a:user
     queryString = SearchUtil.expandHomeDirectory(queryString);
@@ -368,55 +342,46 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
               + StringUtils.join(missingTerms, ", "));
     }
 
-    // collect query options
-    PropertyIterator queryOptions = null;
-    if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      Node queryOptionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
-      queryOptions = queryOptionsNode.getProperties();
-    }
-
     // process the options as templates and check for missing params
-    Map<String, Object> options = processOptions(propertiesMap, queryOptions, queryType);
+    Map<String, Object> options = processOptions(propertiesMap, template, queryType);
 
-    return new Query(queryNode.getPath(), queryType, queryString, options);
+    return new Query(template.getPath(), queryType, queryString, options);
+  }
+
+  private String evaluate(Map<String, String> propertiesMap, TemplateString template) {
+    if (template.isLiteral()) {
+      return template.getTemplate();
+    }
+    return templateService.evaluateTemplate(propertiesMap, template.getTemplate());
   }
 
   /**
    * @param propertiesMap
-   * @param queryOptions
+   * @param template
    * @return
    * @throws JSONException
    * @throws MissingParameterException
    */
   private Map<String, Object> processOptions(Map<String, String> propertiesMap,
-      PropertyIterator queryOptions, String queryType) throws RepositoryException,
-      MissingParameterException {
+      SearchTemplate template, String queryType) throws MissingParameterException {
     Set<String> missingTerms = Sets.newHashSet();
     Map<String, Object> options = Maps.newHashMap();
-    if (queryOptions != null) {
-      while (queryOptions.hasNext()) {
-        javax.jcr.Property prop = queryOptions.nextProperty();
-        String key = prop.getName();
-
-        if (!JcrUtils.isJCRProperty(key)) {
-          if (prop.isMultiple()) {
-            Set<String> processedVals = Sets.newHashSet();
-            Value[] vals = prop.getValues();
-            for (Value val : vals) {
-              String processedVal = processValue(key, val.getString(), propertiesMap,
-                  queryType, missingTerms);
-              processedVals.add(processedVal);
-            }
-            if (!processedVals.isEmpty()) {
-              options.put(key, processedVals);
-            }
-          } else {
-            String val = prop.getString();
-            String processedVal = processValue(key, val, propertiesMap, queryType,
-                missingTerms);
-            options.put(key, processedVal);
-          }
+    for (Entry<String, List<TemplateString>> option : template.getOptions().entrySet()) {
+      String key = option.getKey();
+      if (template.isMultipleOption(key)) {
+        Set<String> processedVals = Sets.newHashSet();
+        for (TemplateString val : option.getValue()) {
+          String processedVal = processValue(key, val, propertiesMap, queryType,
+              missingTerms);
+          processedVals.add(processedVal);
         }
+        if (!processedVals.isEmpty()) {
+          options.put(key, processedVals);
+        }
+      } else {
+        String processedVal = processValue(key, option.getValue().get(0), propertiesMap,
+            queryType, missingTerms);
+        options.put(key, processedVal);
       }
     }
 
@@ -439,10 +404,15 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @param missingTerms
    * @return
    */
-  private String processValue(String key, String val, Map<String, String> propertiesMap,
-      String queryType, Set<String> missingTerms) {
-    missingTerms.addAll(templateService.missingTerms(propertiesMap, val));
-    String processedVal = templateService.evaluateTemplate(propertiesMap, val);
+  private String processValue(String key, TemplateString val,
+      Map<String, String> propertiesMap, String queryType, Set<String> missingTerms) {
+    String processedVal;
+    if (val.isLiteral()) {
+      processedVal = val.getTemplate();
+    } else {
+      missingTerms.addAll(templateService.missingTerms(propertiesMap, val.getTemplate()));
+      processedVal = templateService.evaluateTemplate(propertiesMap, val.getTemplate());
+    }
     if ("sort".equals(key)) {
       processedVal = SearchUtil.escapeString(processedVal, queryType);
     }
@@ -460,10 +430,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @param request
    * @param propertyProviderName
    * @return
-   * @throws RepositoryException
    */
   private Map<String, String> loadProperties(SlingHttpServletRequest request,
-      String[] propertyProviderNames, PropertyIterator defaultProps, String queryType) throws RepositoryException {
+      String[] propertyProviderNames, Map<String, String> defaultProps, String queryType) {
     Map<String, String> propertiesMap = new HashMap<String, String>();
 
     // 0. load authorizable (user) information
@@ -474,14 +443,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     propertiesMap.put("_userId", ClientUtils.escapeQueryChars(userId));
 
     // 1. load in properties from the query template node so defaults can be set
-    if (defaultProps != null) {
-      while (defaultProps.hasNext()) {
-        javax.jcr.Property prop = defaultProps.nextProperty();
-        String key = prop.getName();
-        if (!key.startsWith("jcr:") && !propertiesMap.containsKey(key) && !prop.isMultiple()) {
-          String val = prop.getString();
-          propertiesMap.put(key, val);
-        }
+    for (Entry<String, String> defaultProp : defaultProps.entrySet()) {
+      if (!propertiesMap.containsKey(defaultProp.getKey())) {
+        propertiesMap.put(defaultProp.getKey(), defaultProp.getValue());
       }
     }
 
@@ -535,23 +499,6 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     return false;
   }
 
-  private String[] getStringArrayProp(Node queryNode, String propName) throws RepositoryException {
-    String[] propertyProviderNames;
-    javax.jcr.Property propProv = queryNode.getProperty(propName);
-    if (propProv.isMultiple()) {
-      Value[] propProvVals = propProv.getValues();
-      propertyProviderNames = new String[propProvVals.length];
-
-      for (int i = 0; i < propProvVals.length; i++) {
-        propertyProviderNames[i] = propProvVals[i].getString();
-      }
-    } else {
-      propertyProviderNames = new String[1];
-      propertyProviderNames[0] = propProv.getString();
-    }
-    return propertyProviderNames;
-  }
-
   private void writeFacetFields(SolrSearchResultSet rs, ExtendedJSONWriter writer) throws JSONException {
     if (rs.getFacetFields() != null) {
       List<FacetField> fields = rs.getFacetFields();
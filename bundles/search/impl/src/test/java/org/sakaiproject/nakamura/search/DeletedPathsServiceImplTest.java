@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.search;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
@@ -38,6 +40,7 @@ import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 /**
  *
@@ -73,6 +76,7 @@ public class DeletedPathsServiceImplTest {
         cache);
 
     service = new DeletedPathsServiceImpl(cacheManagerService, clusterTrackingService);
+    service.activate(null);
   }
 
   @Test
@@ -134,4 +138,62 @@ public class DeletedPathsServiceImplTest {
 
     assertEquals(keeperPaths, service.getDeletedPaths());
   }
+
+  @Test
+  public void testIsDeleted() throws Exception {
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first/second")));
+    assertTrue(service.isDeleted("/first/second"));
+    assertTrue(service.isDeleted("/first/second/child"));
+    assertFalse(service.isDeleted("/first"));
+    assertFalse(service.isDeleted("/first/secondary"));
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first")));
+    assertTrue(service.isDeleted("/first/third"));
+    assertFalse(service.isDeleted("/firstly"));
+    assertEquals(Lists.newArrayList("/first"), service.getDeletedPaths());
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT",
+        ImmutableMap.of()));
+    assertFalse(service.isDeleted("/first/third"));
+  }
+
+  @Test
+  public void testGetDeleted() throws Exception {
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/first/second")));
+    assertEquals(Sets.newHashSet("/first/second", "/first/second/child"),
+        service.getDeleted(Lists.newArrayList("/first", "/first/second",
+            "/first/second/child", "/other")));
+  }
+
+  @Test
+  public void testChunksAreReadIncrementally() throws Exception {
+    // another machine reading the same cache entries
+    DeletedPathsServiceImpl reader = new DeletedPathsServiceImpl(cacheManagerService,
+        clusterTrackingService);
+    reader.activate(null);
+    int total = DeletedPathsServiceImpl.CHUNK_SIZE * 2 + 10;
+    List<String> addedPaths = Lists.newArrayList();
+    for (int i = 0; i < total; i++) {
+      String path = "/path" + i;
+      addedPaths.add(path);
+      service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+          ImmutableMap.of("path", path)));
+      if (i == 5 || i == DeletedPathsServiceImpl.CHUNK_SIZE) {
+        assertEquals(addedPaths, reader.getDeletedPaths());
+      }
+    }
+    assertEquals(addedPaths, reader.getDeletedPaths());
+    assertTrue(reader.isDeleted("/path0/child"));
+    assertTrue(reader.isDeleted("/path" + (total - 1)));
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT",
+        ImmutableMap.of()));
+    assertFalse(reader.isDeleted("/path0"));
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/again")));
+    assertEquals(Lists.newArrayList("/again"), reader.getDeletedPaths());
+  }
 }
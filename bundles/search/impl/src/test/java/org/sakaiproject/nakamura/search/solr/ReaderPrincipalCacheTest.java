@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+public class ReaderPrincipalCacheTest {
+
+  @Test
+  public void testEncodedSorted() {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(10, 60000);
+    assertNull(cache.get("alice"));
+    String readers = cache.put("alice", ImmutableSet.of("alice", "zeta", "beta"),
+        cache.getGeneration(), 0);
+    assertEquals("alice,beta,zeta", readers);
+    assertEquals("alice,beta,zeta", cache.get("alice"));
+  }
+
+  @Test
+  public void testGroupChangeInvalidatesMembers() {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(10, 60000);
+    cache.put("alice", ImmutableSet.of("alice", "g1"), cache.getGeneration(), 0);
+    cache.put("bob", ImmutableSet.of("bob", "g2"), cache.getGeneration(), 0);
+    cache.invalidate("g1");
+    assertNull(cache.get("alice"));
+    assertEquals("bob,g2", cache.get("bob"));
+    cache.invalidate("bob");
+    assertNull(cache.get("bob"));
+  }
+
+  @Test
+  public void testRacingLoadIsNotCached() {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(10, 60000);
+    long generation = cache.getGeneration();
+    cache.invalidate("g1");
+    assertEquals("alice,g1", cache.put("alice", ImmutableSet.of("alice", "g1"), generation, 0));
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testBoundedAndExpiring() {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(2, 60000);
+    cache.put("a", ImmutableSet.of("a"), cache.getGeneration(), 0);
+    cache.put("b", ImmutableSet.of("b"), cache.getGeneration(), 0);
+    cache.get("a");
+    cache.put("c", ImmutableSet.of("c"), cache.getGeneration(), 0);
+    assertNull(cache.get("b"));
+    assertEquals("a", cache.get("a"));
+
+    ReaderPrincipalCache expired = new ReaderPrincipalCache(2, -1);
+    expired.put("a", ImmutableSet.of("a"), expired.getGeneration(), 0);
+    assertNull(expired.get("a"));
+  }
+
+  @Test
+  public void testExpiresWithTheMembershipIndex() {
+    ReaderPrincipalCache cache = new ReaderPrincipalCache(10, 60000);
+    cache.put("a", ImmutableSet.of("a"), cache.getGeneration(), System.currentTimeMillis() - 1);
+    assertNull(cache.get("a"));
+    cache.put("b", ImmutableSet.of("b"), cache.getGeneration(),
+        System.currentTimeMillis() + 60000);
+    assertEquals("b", cache.get("b"));
+  }
+}
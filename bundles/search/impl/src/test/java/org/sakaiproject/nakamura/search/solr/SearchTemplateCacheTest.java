@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+
+public class SearchTemplateCacheTest {
+
+  private SearchTemplateCache cache;
+  private Node node;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new SearchTemplateCache();
+    node = mock(Node.class);
+    when(node.getPath()).thenReturn("/var/search/files");
+    when(node.hasProperty(SAKAI_QUERY_TEMPLATE)).thenReturn(true);
+    Property queryTemplate = mock(Property.class);
+    when(queryTemplate.getString()).thenReturn("resourceType:file AND tag:${tag}");
+    when(node.getProperty(SAKAI_QUERY_TEMPLATE)).thenReturn(queryTemplate);
+    when(node.hasProperty(SAKAI_RESULTPROCESSOR)).thenReturn(true);
+    Property processor = mock(Property.class);
+    when(processor.getString()).thenReturn("Files");
+    when(node.getProperty(SAKAI_RESULTPROCESSOR)).thenReturn(processor);
+  }
+
+  @Test
+  public void testParsedOnce() throws Exception {
+    SearchTemplate template = cache.get(node);
+    assertEquals(Query.SOLR, template.getQueryType());
+    assertEquals("Files", template.getResultProcessorName());
+    assertNull(template.getBatchResultProcessorName());
+    assertNull(template.getPropertyProviderNames());
+    assertFalse(template.getQueryTemplate().isLiteral());
+    assertTrue(template.getOptions().isEmpty());
+    assertSame(template, cache.get(node));
+  }
+
+  @Test
+  public void testNotATemplate() throws Exception {
+    when(node.hasProperty(SAKAI_QUERY_TEMPLATE)).thenReturn(false);
+    assertNull(cache.get(node));
+    assertNull(cache.get(null));
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    SearchTemplate template = cache.get(node);
+
+    cache.handleEvent(event("/content/elsewhere"));
+    assertSame(template, cache.get(node));
+
+    cache.handleEvent(event("/var/search/files/sakai:query-template-options"));
+    SearchTemplate reloaded = cache.get(node);
+    assertNotSame(template, reloaded);
+
+    cache.handleEvent(event("/var/search"));
+    assertNotSame(reloaded, cache.get(node));
+  }
+
+  private Event event(String path) {
+    return new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, ImmutableMap.of(
+        SlingConstants.PROPERTY_PATH, path));
+  }
+}
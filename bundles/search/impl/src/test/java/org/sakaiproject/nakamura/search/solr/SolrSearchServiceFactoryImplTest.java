@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.common.params.FacetParams;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SolrSearchServiceFactoryImplTest {
+
+  private SolrSearchServiceFactoryImpl factory;
+  private ResultSetFactory solrFactory;
+  private SlingHttpServletRequest request;
+
+  @Before
+  public void setUp() {
+    factory = new SolrSearchServiceFactoryImpl();
+    solrFactory = mock(ResultSetFactory.class);
+    request = mock(SlingHttpServletRequest.class);
+    factory.bindResultSetFactories(solrFactory, ImmutableMap.of("type", Query.SOLR));
+  }
+
+  @Test
+  public void testFacetCounts() throws Exception {
+    FacetField state = new FacetField("state");
+    state.add("PENDING", 7);
+    state.add("ACCEPTED", 3);
+    SolrSearchResultSet rs = mock(SolrSearchResultSet.class);
+    when(rs.getFacetFields()).thenReturn(Lists.newArrayList(state));
+    when(solrFactory.processQuery(eq(request), any(Query.class), eq(false))).thenReturn(rs);
+
+    Map<String, Long> counts = factory.getFacetCounts(request, new Query("resourceType:sakai/contact",
+        ImmutableMap.<String, Object> of(PARAMS_ITEMS_PER_PAGE, "25")), "state", false);
+
+    assertEquals(2, counts.size());
+    Iterator<Map.Entry<String, Long>> i = counts.entrySet().iterator();
+    Map.Entry<String, Long> first = i.next();
+    assertEquals("PENDING", first.getKey());
+    assertEquals(Long.valueOf(7), first.getValue());
+    assertEquals(Long.valueOf(3), counts.get("ACCEPTED"));
+
+    ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+    verify(solrFactory).processQuery(eq(request), query.capture(), eq(false));
+    Map<String, Object> options = query.getValue().getOptions();
+    assertEquals("resourceType:sakai/contact", query.getValue().getQueryString());
+    assertEquals("0", options.get(PARAMS_ITEMS_PER_PAGE));
+    assertEquals("true", options.get(FacetParams.FACET));
+    assertEquals("state", options.get(FacetParams.FACET_FIELD));
+  }
+
+  @Test
+  public void testFacetCountsUnknownType() throws Exception {
+    Map<String, Long> counts = factory.getFacetCounts(request, new Query("sparse",
+        "resourceType:sakai/contact", null), "state", false);
+    assertTrue(counts.isEmpty());
+  }
+}
@@ -2,117 +2,220 @@ package org.apache.jackrabbit.core.security.principal;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A concurrent LRU map. Keys are spread over a number of segments, each an access ordered
+ * {@link LinkedHashMap} under its own lock, so that a get or a put is O(1) and only contends
+ * with operations on the same segment. Each segment holds its share of the maximum size and
+ * evicts its own least recently used entry, so the eviction order is LRU per segment rather
+ * than across the whole map.
+ * <p>
+ * Null values are allowed, so that a miss can be cached. An entry can be given a time to live
+ * with {@link #put(Object, Object, long)}, after which it is treated as absent. Use
+ * {@link #getHolder(Object)} to tell a cached null from an absent key in one call.
+ *
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-  public class Holder<T> {
+  private static final int MAX_SEGMENTS = 16;
+  /**
+   * Segments are only added while each holds at least this many entries, small maps keep a
+   * single segment and so an exact LRU order.
+   */
+  private static final int MIN_SEGMENT_SIZE = 32;
 
-    protected long last;
-    protected V value;
-    private K key;
+  /**
+   * A cached value, which may be null.
+   *
+   * @param <V>
+   */
+  public static final class Holder<V> {
+    private final V value;
+    /**
+     * System time (ms) at which the entry expires, 0 for never.
+     */
+    private final long expires;
 
-    public Holder(K key, V value) {
-      this.key = key;
+    private Holder(V value, long expires) {
       this.value = value;
-      this.last = System.currentTimeMillis();
+      this.expires = expires;
     }
 
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
+    public V getValue() {
+      return value;
     }
 
-    @Override
-    public boolean equals(Object obj) {
-      boolean eq = false;
-      if (obj != null) {
-        try {
-          @SuppressWarnings("unchecked")
-          Holder<T> t = (Holder<T>) obj;
-          eq = value.equals(t.value);
-        } catch (ClassCastException e) {
-          eq = false;
-        }
-      }
-      return eq;
+    private boolean isExpired(long now) {
+      return expires != 0 && expires <= now;
     }
+  }
 
-    @Override
-    public int hashCode() {
-      return value.hashCode();
+  private static final class Segment<K, V> extends LinkedHashMap<K, Holder<V>> {
+    private static final long serialVersionUID = 1L;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxSize;
+
+    private Segment(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
     }
 
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, Holder<V>> eldest) {
+      return size() > maxSize;
+    }
   }
 
-  /**
-   * 
-   */
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
+  private final Segment<K, V>[] segments;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
 
   public ConcurrentLRUMap() {
+    this(100);
   }
 
+  @SuppressWarnings("unchecked")
   public ConcurrentLRUMap(int size) {
-    maxSize = size;
+    int n = 1;
+    while (n < MAX_SEGMENTS && n * 2 * MIN_SEGMENT_SIZE <= size) {
+      n <<= 1;
+    }
+    // rounded down, so that the map never holds more than size entries
+    int segmentSize = Math.max(1, size / n);
+    segments = new Segment[n];
+    for (int i = 0; i < n; i++) {
+      segments[i] = new Segment<K, V>(segmentSize);
+    }
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    int h = (key == null) ? 0 : key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & (segments.length - 1)];
+  }
+
+  /**
+   * @return the live entry for the key, dropping it if it has expired. The segment lock must
+   *         be held.
+   */
+  private Holder<V> getLive(Segment<K, V> segment, Object key) {
+    Holder<V> h = segment.get(key);
+    if (h != null && h.isExpired(System.currentTimeMillis())) {
+      segment.remove(key);
+      return null;
+    }
+    return h;
   }
 
   public int size() {
-    return delegate.size();
+    int size = 0;
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        size += segment.size();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return size;
   }
 
   public boolean isEmpty() {
-    return delegate.isEmpty();
+    return size() == 0;
   }
 
+  /**
+   * Not counted as a hit or miss.
+   */
   public boolean containsKey(Object key) {
-    return delegate.containsKey(key);
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      return getLive(segment, key) != null;
+    } finally {
+      segment.lock.unlock();
+    }
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
+    return values().contains(value);
   }
 
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
+  public V get(Object key) {
+    Holder<V> h = getHolder(key);
+    return (h == null) ? null : h.value;
+  }
 
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
-        }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
-      }
+  /**
+   * Get the entry for a key, counted as a hit if it is present even when its value is null.
+   *
+   * @param key
+   * @return the holder of the cached value, or null if the key is absent or has expired.
+   */
+  public Holder<V> getHolder(Object key) {
+    Segment<K, V> segment = segmentFor(key);
+    Holder<V> h;
+    segment.lock.lock();
+    try {
+      h = getLive(segment, key);
+    } finally {
+      segment.lock.unlock();
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
-      return null;
+    if (h == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return h;
+  }
+
+  public V put(K key, V value) {
+    return put(key, value, 0);
+  }
+
+  /**
+   * Put an entry that is treated as absent once ttl ms have passed.
+   *
+   * @param key
+   * @param value
+   * @param ttl
+   *          time to live in ms, 0 or less for no limit.
+   * @return the previous value of the key.
+   */
+  public V put(K key, V value, long ttl) {
+    Holder<V> h = new Holder<V>(value, ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+    Segment<K, V> segment = segmentFor(key);
+    Holder<V> previous;
+    segment.lock.lock();
+    try {
+      previous = segment.put(key, h);
+    } finally {
+      segment.lock.unlock();
     }
-    return v.value;
+    return (previous == null) ? null : previous.value;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
-      return null;
+    Segment<K, V> segment = segmentFor(key);
+    Holder<V> previous;
+    segment.lock.lock();
+    try {
+      previous = segment.remove(key);
+    } finally {
+      segment.lock.unlock();
     }
-    return v.value;
+    return (previous == null) ? null : previous.value;
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
@@ -122,24 +225,73 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
   }
 
   public void clear() {
-    delegate.clear();
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        segment.clear();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
   }
 
+  /**
+   * @return the number of gets that found a live entry.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of gets that found no live entry.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return a copy of the live entries, which does not change the access order.
+   */
+  private Map<K, V> snapshot() {
+    Map<K, V> copy = new HashMap<K, V>();
+    long now = System.currentTimeMillis();
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        for (Iterator<Map.Entry<K, Holder<V>>> i = segment.entrySet().iterator(); i.hasNext();) {
+          Map.Entry<K, Holder<V>> e = i.next();
+          if (!e.getValue().isExpired(now)) {
+            copy.put(e.getKey(), e.getValue().value);
+          }
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * @return a copy of the keys.
+   */
   public Set<K> keySet() {
-    return delegate.keySet();
+    return new HashSet<K>(snapshot().keySet());
   }
 
+  /**
+   * @return a copy of the values.
+   */
   public Collection<V> values() {
-    List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
-    }
+    List<V> values = new ArrayList<V>(snapshot().values());
     return values;
   }
 
+  /**
+   * @return a copy of the entries, setting the value of an entry writes through to the map.
+   */
   public Set<Entry<K, V>> entrySet() {
     Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
+    for (final Entry<K, V> e : snapshot().entrySet()) {
       set.add(new Entry<K, V>() {
 
         public K getKey() {
@@ -147,27 +299,15 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
         }
 
         public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
+          return e.getValue();
         }
 
         public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
-          }
-          return h.value;
+          e.setValue(value);
+          return put(e.getKey(), value);
         }
       });
     }
     return set;
   }
-
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
-    }
-    v.last = System.currentTimeMillis();
-    return v.value;
-  }
 }
@@ -41,9 +41,10 @@ import org.slf4j.LoggerFactory;
 
 import java.security.Principal;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -55,6 +56,8 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   public static final String MAXSIZE_KEY = "cacheMaxSize";
   /** Option name to enable negative cache entries (see JCR-2672) */
   public static final String NEGATIVE_ENTRY_KEY = "cacheIncludesNegative";
+  /** Option name for the time (ms) a negative cache entry is kept */
+  public static final String NEGATIVE_ENTRY_TTL_KEY = "cacheNegativeTtl";
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SparsePrincipalProvider.class);
 
@@ -63,6 +66,10 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
   /** the principal cache */
   private ConcurrentLRUMap<String, Principal> cache = new ConcurrentLRUMap<String, Principal>();
+  /** if true, principals that are not found are cached as null */
+  private boolean includeNegative;
+  /** the time (ms) a negative entry is kept, so that a new authorizable is soon seen */
+  private long negativeTtl;
   private Repository sparseRepository;
   private org.sakaiproject.nakamura.api.lite.Session session;
   private AuthorizableManager authorizableManager;
@@ -138,20 +145,26 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
   public PrincipalIterator getGroupMembership(final Principal principal) {
     final List<String> memberIds = new ArrayList<String>();
+    // the ids already in memberIds, so that nested groups are not walked in O(n^2)
+    final Set<String> seen = new HashSet<String>();
     try {
       org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
           .findAuthorizable(principal.getName());
       if (a == null) {
         return PrincipalIteratorAdapter.EMPTY;
       }
-      Collections.addAll(memberIds, a.getPrincipals());
+      for (String pid : a.getPrincipals()) {
+        if (seen.add(pid)) {
+          memberIds.add(pid);
+        }
+      }
     } catch (AccessDeniedException e) {
       LOGGER.debug(e.getMessage(), e);
     } catch (StorageClientException e) {
       LOGGER.debug(e.getMessage(), e);
     }
     if (everyonePrincipal.isMember(principal)
-        && !memberIds.contains(everyonePrincipal.getName())) {
+        && seen.add(everyonePrincipal.getName())) {
       memberIds.add(everyonePrincipal.getName());
       addToCache(principal);
     }
@@ -174,21 +187,19 @@ public class SparsePrincipalProvider implements PrincipalProvider {
                   .findAuthorizable(id);
               if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
                 for (String pid : a.getPrincipals()) {
-                  if (!memberIds.contains(pid)) {
+                  if (seen.add(pid)) {
                     memberIds.add(pid);
                   }
                 }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
                 return true;
               } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
@@ -259,6 +270,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public void close() {
+    LOGGER.debug("Principal cache hits {} misses {}", cache.getHitCount(), cache.getMissCount());
     try {
       session.logout();
     } catch (ClientPoolException e) {
@@ -277,8 +289,10 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    ConcurrentLRUMap.Holder<Principal> cached = cache.getHolder(principalName);
+    if (cached != null) {
+      // only a negative entry holds null, and those are only put when they are enabled
+      return cached.getValue();
     }
     Principal principal = null;
     try {
@@ -288,6 +302,8 @@ public class SparsePrincipalProvider implements PrincipalProvider {
     }
     if (principal != null) {
       cache.put(principalName, principal);
+    } else if (includeNegative) {
+      cache.put(principalName, null, negativeTtl);
     }
     return principal;
   }
@@ -331,6 +347,8 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
     int maxSize = Integer.parseInt(options.getProperty(MAXSIZE_KEY, "1000"));
     cache = new ConcurrentLRUMap<String, Principal>(maxSize);
+    includeNegative = Boolean.parseBoolean(options.getProperty(NEGATIVE_ENTRY_KEY, "false"));
+    negativeTtl = Long.parseLong(options.getProperty(NEGATIVE_ENTRY_TTL_KEY, "30000"));
 
     initialized = true;
   }
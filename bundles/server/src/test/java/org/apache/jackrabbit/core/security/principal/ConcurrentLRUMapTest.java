@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ConcurrentLRUMapTest {
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(3);
+    map.put("a", "A");
+    map.put("b", "B");
+    map.put("c", "C");
+    // a is now the most recently used
+    assertEquals("A", map.get("a"));
+    map.put("d", "D");
+    assertEquals(3, map.size());
+    assertTrue(map.containsKey("a"));
+    assertFalse(map.containsKey("b"));
+    assertTrue(map.containsKey("c"));
+    assertTrue(map.containsKey("d"));
+  }
+
+  @Test
+  public void testBounded() {
+    ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(1000);
+    for (int i = 0; i < 10000; i++) {
+      map.put(i, i);
+    }
+    assertTrue(map.size() <= 1000);
+    assertTrue(map.size() > 900);
+    // the most recent entries are kept
+    assertEquals(Integer.valueOf(9999), map.get(9999));
+  }
+
+  @Test
+  public void testNegativeEntry() throws Exception {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("missing", null, 50);
+    assertTrue(map.containsKey("missing"));
+    assertNull(map.get("missing"));
+    Thread.sleep(100);
+    assertFalse(map.containsKey("missing"));
+    assertEquals(0, map.size());
+  }
+
+  @Test
+  public void testStats() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("a", "A");
+    map.get("a");
+    map.get("a");
+    map.get("b");
+    assertEquals(2, map.getHitCount());
+    assertEquals(1, map.getMissCount());
+  }
+
+  @Test
+  public void testHolderTellsNullFromAbsent() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("missing", null);
+    ConcurrentLRUMap.Holder<String> h = map.getHolder("missing");
+    assertNotNull(h);
+    assertNull(h.getValue());
+    assertNull(map.getHolder("absent"));
+    assertEquals(1, map.getHitCount());
+    assertEquals(1, map.getMissCount());
+  }
+
+  @Test
+  public void testRemoveAndClear() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("a", "A");
+    map.put("b", "B");
+    assertEquals("A", map.remove("a"));
+    assertNull(map.remove("a"));
+    assertEquals(1, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+}
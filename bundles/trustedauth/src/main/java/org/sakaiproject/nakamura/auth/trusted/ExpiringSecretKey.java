@@ -19,6 +19,10 @@ package org.sakaiproject.nakamura.auth.trusted;
 
 import org.sakaiproject.nakamura.api.auth.trusted.ExpiringSecretKeyData;
 
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -30,6 +34,11 @@ public class ExpiringSecretKey {
   private long expires;
   private SecretKey secretKey;
   private ExpiringSecretKeyData secretKeyData;
+  /**
+   * A Mac per thread initialised with this key, to avoid a provider lookup and key setup on
+   * every use.
+   */
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
 
   /**
    * @param b a byte array defining the secret key
@@ -76,4 +85,20 @@ public class ExpiringSecretKey {
   public String getServerId() {
     return secretKeyData.getServerId();
   }
+
+  /**
+   * @return a Mac initialised with this key, for use by the calling thread only. doFinal
+   *         leaves it ready for the next use.
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  public Mac getMac() throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac m = macs.get();
+    if (m == null) {
+      m = Mac.getInstance(secretKey.getAlgorithm());
+      m.init(secretKey);
+      macs.set(m);
+    }
+    return m;
+  }
 }
@@ -39,6 +39,10 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -123,17 +127,27 @@ public class TokenStore {
     public String encode(long expires, String userId, String tokenType) throws IllegalStateException,
         UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException,
         SecureCookieException {
-      String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
-          + encodeField(userId) + "@" + tokenType+ "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
-          secretKeyId);
+          secretKeyId, false);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ", false);
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
-      m.update(cookiePayload.getBytes(UTF_8));
-      String cookieValue = encodeField(m.doFinal());
+      return encode(expiringSecretKey, expires, userId, tokenType);
+    }
+
+    private String encode(ExpiringSecretKey expiringSecretKey, long expires, String userId,
+        String tokenType) throws UnsupportedEncodingException, NoSuchAlgorithmException,
+        InvalidKeyException {
+      String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
+          + encodeField(userId) + "@" + tokenType+ "@" + serverId;
+      Mac m = expiringSecretKey.getMac();
+      String cookieValue;
+      try {
+        cookieValue = encodeField(m.doFinal(cookiePayload.getBytes(UTF_8)));
+      } finally {
+        // the Mac is reused by this thread, leave it ready even if doFinal failed.
+        m.reset();
+      }
       return cookieValue + "@" + cookiePayload;
     }
 
@@ -143,6 +157,13 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String[] decode(String value) throws SecureCookieException {
+      VerifiedCookie verified = verifiedCookies.get(value);
+      if (verified != null) {
+        if (System.currentTimeMillis() < verified.expires) {
+          return new String[]{verified.userId, verified.tokenType};
+        }
+        verifiedCookies.remove(value);
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 5) {
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
@@ -153,7 +174,7 @@ public class TokenStore {
           try {
             
             ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
-                secretKeyId);
+                secretKeyId, false);
             if (expiringSecretKey == null) {
               LOG.warn("No Secure Key found ",getCacheKey(serverId, secretKeyId));
               throw new SecureCookieException("No Secure Key found "
@@ -164,8 +185,19 @@ public class TokenStore {
             if ( debugCookies ) {
               LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
             }
-            String hmac = encode(cookieTime, userId, this.tokenType);
-            if (value.equals(hmac)) {
+            String hmac = encode(expiringSecretKey, cookieTime, userId, this.tokenType);
+            if (!constantTimeEquals(value, hmac)) {
+              // the key of another server may have been replaced since it was copied here.
+              ExpiringSecretKey refreshed = TokenStore.this.getSecretKey(serverId,
+                  secretKeyId, true);
+              if (refreshed != null && refreshed != expiringSecretKey) {
+                expiringSecretKey = refreshed;
+                hmac = encode(expiringSecretKey, cookieTime, userId, this.tokenType);
+              }
+            }
+            if (constantTimeEquals(value, hmac)) {
+              verifiedCookies.put(value, new VerifiedCookie(userId, tokenType,
+                  Math.min(cookieTime, expiringSecretKey.getExpires())));
               return new String[]{userId, tokenType};
             }
           } catch (ArrayIndexOutOfBoundsException e) {
@@ -193,6 +225,75 @@ public class TokenStore {
 
   }
 
+  /**
+   * The identity of a cookie that has been verified, until it or its key expires.
+   */
+  private static final class VerifiedCookie {
+    private final String userId;
+    private final String tokenType;
+    private final long expires;
+
+    private VerifiedCookie(String userId, String tokenType, long expires) {
+      this.userId = userId;
+      this.tokenType = tokenType;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * A size bounded map of cookie values to their identity. Reads do not lock. When a put
+   * takes the map over its size, one thread prunes it, dropping expired cookies first and
+   * then arbitrary ones, down to three quarters of the size, so that pruning is not done
+   * on every put once the map is full. A pruned cookie is simply verified again.
+   */
+  private static final class VerifiedCookieCache {
+    private final ConcurrentMap<String, VerifiedCookie> cookies = new ConcurrentHashMap<String, VerifiedCookie>();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+    private final int maxSize;
+
+    private VerifiedCookieCache(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    private VerifiedCookie get(String value) {
+      return cookies.get(value);
+    }
+
+    private void put(String value, VerifiedCookie verified) {
+      cookies.put(value, verified);
+      if (cookies.size() > maxSize && pruning.compareAndSet(false, true)) {
+        try {
+          prune();
+        } finally {
+          pruning.set(false);
+        }
+      }
+    }
+
+    private void remove(String value) {
+      cookies.remove(value);
+    }
+
+    private void prune() {
+      long now = System.currentTimeMillis();
+      for (Iterator<VerifiedCookie> i = cookies.values().iterator(); i.hasNext();) {
+        if (i.next().expires <= now) {
+          i.remove();
+        }
+      }
+      int target = maxSize - maxSize / 4;
+      for (Iterator<VerifiedCookie> i = cookies.values().iterator(); i.hasNext()
+          && cookies.size() > target;) {
+        i.next();
+        i.remove();
+      }
+    }
+
+    private int size() {
+      return cookies.size();
+    }
+  }
+
   public static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
 
   /**
@@ -210,6 +311,11 @@ public class TokenStore {
   private static final String UTF_8 = "UTF-8";
 
   private static final String DEFAULT_TOKEN_FILE = "sling/cookie-tokens.bin";
+  /**
+   * The number of verified cookies remembered, so that a cookie seen again is not checked
+   * again.
+   */
+  private static final int VERIFIED_COOKIES_SIZE = 10000;
   /**
    * The ttl of the cookie before it becomes invalid (in ms)
    */
@@ -218,15 +324,22 @@ public class TokenStore {
   /**
    * The time when a new token should be created.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private volatile long nextUpdate = System.currentTimeMillis();
   /**
    * The location of the current token.
    */
-  private int secretKeyId = 0;
+  private volatile int secretKeyId = 0;
   /**
-   * A ring of tokens used to encypt.
+   * A ring of tokens used to encypt. The array is never changed once assigned, a new key is
+   * added to a copy which then replaces it, so it can be read without a lock. It is
+   * assigned before secretKeyId, so that the key of an id that has been read is present.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private volatile ExpiringSecretKey[] secretKeyRingBuffer;
+  /**
+   * Local copies of the secret keys of other servers, keyed by cache key.
+   */
+  private final ConcurrentMap<String, ExpiringSecretKey> offServerKeys = new ConcurrentHashMap<String, ExpiringSecretKey>();
+  private final VerifiedCookieCache verifiedCookies = new VerifiedCookieCache(VERIFIED_COOKIES_SIZE);
   /**
    * A secure random used for generating new tokens.
    */
@@ -309,7 +422,22 @@ public class TokenStore {
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
+  SecureCookie getActiveToken() {
+    int activeId = secretKeyId;
+    ExpiringSecretKey[] ring = secretKeyRingBuffer;
+    if (ring != null && System.currentTimeMillis() <= nextUpdate
+        && !hasExpired(ring[activeId])) {
+      return new SecureCookie(serverId, activeId);
+    }
+    return updateActiveToken();
+  }
+
+  /**
+   * Add a new key to the ring if the current one is due to be replaced.
+   *
+   * @return the current token.
+   */
+  private synchronized SecureCookie updateActiveToken() {
     if (secretKeyRingBuffer == null) {
       loadLocalSecretKeys();
     }
@@ -330,10 +458,12 @@ public class TokenStore {
       if (nextToken == secretKeyRingBuffer.length) {
         nextToken = 0;
       }
-      secretKeyRingBuffer[nextToken] = expiringSecretKey;
+      ExpiringSecretKey[] ring = secretKeyRingBuffer.clone();
+      ring[nextToken] = expiringSecretKey;
+      secretKeyRingBuffer = ring;
       LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
       if ( debugCookies ) {
-        dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+        dumpSecretKeyRingBuffer(ring);
       }
       getServerKeyCache().put(getCacheKey(serverId, nextToken),
           expiringSecretKey.getSecretKeyData());
@@ -498,17 +628,28 @@ public class TokenStore {
    *          the server that owns the secret Key
    * @param keyNumber
    *          the key number
+   * @param refresh
+   *          if true the key of another server is read from the cluster cache even if there
+   *          is a local copy.
    * @return
    */
-  private ExpiringSecretKey getSecretKey(String serverId, int keyNumber) {
+  private ExpiringSecretKey getSecretKey(String serverId, int keyNumber, boolean refresh) {
     LOG.debug("Looking key {} in {} ", serverId, keyNumber);
-    if ( secretKeyRingBuffer[keyNumber] != null ) {
-      if ( serverId.equals(secretKeyRingBuffer[keyNumber].getServerId())) {
-        LOG.debug("Found Key {} will expire at {}", keyNumber, secretKeyRingBuffer[keyNumber].getExpires());
-        return secretKeyRingBuffer[keyNumber];
+    ExpiringSecretKey[] ring = secretKeyRingBuffer;
+    if ( ring[keyNumber] != null ) {
+      if ( serverId.equals(ring[keyNumber].getServerId())) {
+        LOG.debug("Found Key {} will expire at {}", keyNumber, ring[keyNumber].getExpires());
+        return ring[keyNumber];
       }
     }
     String cacheKey = getCacheKey(serverId, keyNumber);
+    ExpiringSecretKey offServerKey = offServerKeys.get(cacheKey);
+    if (offServerKey != null) {
+      if (!refresh && System.currentTimeMillis() < offServerKey.getExpires()) {
+        return offServerKey;
+      }
+      offServerKeys.remove(cacheKey, offServerKey);
+    }
     Cache<ExpiringSecretKeyData> keyCache = getServerKeyCache();
 
     LOG.debug("Looking for off server key {} in {} ", cacheKey, keyCache);
@@ -518,7 +659,9 @@ public class TokenStore {
       LOG.debug("Got Cache Key {} as  {} ", cacheKey, cachedServerKeyData);
       if ( System.currentTimeMillis() < cachedServerKeyData.getExpires()) {
           LOG.debug("Got Key is valid using {} as  {} ", cacheKey, cachedServerKeyData);
-         return new ExpiringSecretKey(cachedServerKeyData);
+          offServerKey = new ExpiringSecretKey(cachedServerKeyData);
+          offServerKeys.put(cacheKey, offServerKey);
+          return offServerKey;
       } else if ( System.currentTimeMillis() < cachedServerKeyData.getExpires() + 600000L  ){
           LOG.debug("Got Key is Not valid {}, ", cacheKey, cachedServerKeyData);
       } else {
@@ -540,6 +683,25 @@ public class TokenStore {
   }
   
   
+  /**
+   * Compare two strings in a time that does not depend on where they differ, so that a
+   * forged cookie can not be built up from timings.
+   *
+   * @param a
+   * @param b
+   * @return true if the strings are equal.
+   */
+  static boolean constantTimeEquals(String a, String b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    int diff = 0;
+    for (int i = 0; i < a.length(); i++) {
+      diff |= a.charAt(i) ^ b.charAt(i);
+    }
+    return diff == 0;
+  }
+
   /**
    * Encode a UTF8 fields for use in a cookie.
    *
@@ -573,5 +735,10 @@ public class TokenStore {
     return unescapedField;
   }
 
-
+  /**
+   * @return the number of verified cookies remembered.
+   */
+  int getVerifiedCookieCount() {
+    return verifiedCookies.size();
+  }
 }
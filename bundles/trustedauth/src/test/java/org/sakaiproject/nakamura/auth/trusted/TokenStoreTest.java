@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.auth.trusted.TrustedTokenTypes;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookieException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Two token stores sharing a cluster replicated cache, as two servers in a cluster.
+ */
+public class TokenStoreTest {
+
+  private static final long TTL = 60000L;
+  private LocalCache<Object> cache;
+  private CacheManagerService cacheManagerService;
+
+  @Before
+  public void before() {
+    cache = new LocalCache<Object>();
+    cacheManagerService = new CacheManagerService() {
+      @SuppressWarnings("unchecked")
+      public <T> Cache<T> getCache(String name, CacheScope scope) {
+        return (Cache<T>) cache;
+      }
+
+      public void unbind(CacheScope scope) {
+      }
+    };
+  }
+
+  private TokenStore newTokenStore(String serverId) throws Exception {
+    TokenStore tokenStore = new TokenStore();
+    tokenStore.doInit(cacheManagerService, tokenFile(), serverId, TTL);
+    return tokenStore;
+  }
+
+  private String tokenFile() throws IOException {
+    File f = File.createTempFile("cookie-tokens", ".bin");
+    f.delete();
+    f.deleteOnExit();
+    new File(f.getAbsolutePath() + ".tmp").deleteOnExit();
+    return f.getAbsolutePath();
+  }
+
+  private String encode(TokenStore tokenStore, String userId) throws Exception {
+    return tokenStore.getActiveToken().encode(System.currentTimeMillis() + TTL, userId,
+        TrustedTokenTypes.AUTHENTICATED_TRUST);
+  }
+
+  @Test
+  public void testDecodeOffServer() throws Exception {
+    TokenStore a = newTokenStore("serverA");
+    TokenStore b = newTokenStore("serverB");
+    String cookie = encode(a, "ieb");
+    Assert.assertArrayEquals(new String[] { "ieb", TrustedTokenTypes.AUTHENTICATED_TRUST },
+        b.getSecureCookie().decode(cookie));
+    Assert.assertArrayEquals(new String[] { "ieb", TrustedTokenTypes.AUTHENTICATED_TRUST },
+        a.getSecureCookie().decode(cookie));
+  }
+
+  @Test(expected = SecureCookieException.class)
+  public void testVerifiedCookieExpires() throws Exception {
+    TokenStore a = newTokenStore("serverA");
+    String cookie = a.getActiveToken().encode(System.currentTimeMillis() + 50L, "ieb",
+        TrustedTokenTypes.AUTHENTICATED_TRUST);
+    Assert.assertArrayEquals(new String[] { "ieb", TrustedTokenTypes.AUTHENTICATED_TRUST },
+        a.getSecureCookie().decode(cookie));
+    Thread.sleep(100L);
+    a.getSecureCookie().decode(cookie);
+  }
+
+  @Test(expected = SecureCookieException.class)
+  public void testTampered() throws Exception {
+    TokenStore a = newTokenStore("serverA");
+    String cookie = encode(a, "ieb");
+    a.getSecureCookie().decode(cookie);
+    char c = cookie.charAt(0) == 'A' ? 'B' : 'A';
+    a.getSecureCookie().decode(c + cookie.substring(1));
+  }
+
+  @Test
+  public void testReplacedOffServerKey() throws Exception {
+    TokenStore a = newTokenStore("serverA");
+    TokenStore b = newTokenStore("serverB");
+    b.getSecureCookie().decode(encode(a, "ieb"));
+    // a restarted serverA without its token file puts a new key in the same slot.
+    TokenStore restarted = newTokenStore("serverA");
+    String cookie = encode(restarted, "ieb2");
+    Assert.assertArrayEquals(new String[] { "ieb2", TrustedTokenTypes.AUTHENTICATED_TRUST },
+        b.getSecureCookie().decode(cookie));
+  }
+
+  @Test
+  public void testVerifiedCookiesAreBounded() throws Exception {
+    TokenStore a = newTokenStore("serverA");
+    TokenStore.SecureCookie secureCookie = a.getSecureCookie();
+    for (int i = 0; i < 10001; i++) {
+      Assert.assertEquals("user" + i, secureCookie.decode(encode(a, "user" + i))[0]);
+    }
+    Assert.assertTrue(a.getVerifiedCookieCount() <= 10000);
+    Assert.assertTrue(a.getVerifiedCookieCount() > 0);
+  }
+
+  @Test
+  public void testConstantTimeEquals() {
+    Assert.assertTrue(TokenStore.constantTimeEquals("abc@123", "abc@123"));
+    Assert.assertFalse(TokenStore.constantTimeEquals("abc@123", "abc@124"));
+    Assert.assertFalse(TokenStore.constantTimeEquals("abc@123", "abc@1234"));
+    Assert.assertTrue(TokenStore.constantTimeEquals("", ""));
+  }
+}
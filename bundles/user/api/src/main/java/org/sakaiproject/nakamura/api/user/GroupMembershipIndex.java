@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.user;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+
+import java.util.Set;
+
+/**
+ * The transitive group memberships of authorizables. Memberships are loaded as they are
+ * asked for and kept up to date from authorizable events, so repeated questions about the
+ * same (nested) groups do not walk the storage again.
+ */
+public interface GroupMembershipIndex {
+
+  /**
+   * Posted after the index has dropped what it knew about an authorizable, with the id as
+   * the "path" property, or with no path when everything was dropped. Caches built from the
+   * index should invalidate on this as well as on the authorizable event, so that an entry
+   * rebuilt from the index before it was invalidated does not survive.
+   */
+  String TOPIC_INVALIDATED = "org/sakaiproject/nakamura/user/membership/INVALIDATED";
+
+  /**
+   * @param authorizableId
+   * @return the ids of every group the authorizable is a direct or indirect member of, in
+   *         the same sense as {@link org.sakaiproject.nakamura.api.lite.authorizable.Authorizable#memberOf(org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager)}.
+   *         Empty if the authorizable does not exist.
+   */
+  Set<String> getMemberOf(String authorizableId)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * @param groupId
+   * @param authorizableId
+   * @return true if the authorizable is a direct or indirect member of the group.
+   */
+  boolean isMember(String groupId, String authorizableId)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * @param groupId
+   * @return the ids of every user and group that is a direct or indirect member of the group.
+   *         Empty if the group does not exist.
+   */
+  Set<String> getTransitiveMembers(String groupId)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * Changes made on other nodes in a cluster are only seen once the index is dropped, so a
+   * cache of what was read from the index should not keep it any longer than this.
+   *
+   * @return the time (ms) at which everything the index holds now will be dropped, or 0 if
+   *         it is never dropped.
+   */
+  long getExpires();
+}
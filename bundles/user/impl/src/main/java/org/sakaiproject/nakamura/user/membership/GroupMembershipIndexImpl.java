@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.membership;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.user.GroupMembershipIndex;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a {@link MembershipClosure} of the authorizables asked about, invalidated by
+ * authorizable events. Events only reach this node for changes made on it, so the whole
+ * index is also dropped once it is older than a configured time.
+ */
+@Component(metatype = true)
+@Service(value = { GroupMembershipIndex.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class GroupMembershipIndexImpl implements GroupMembershipIndex, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupMembershipIndexImpl.class);
+
+  /**
+   * Seconds after which the whole index is rebuilt, to pick up changes made on other app
+   * servers in a cluster. Caches built from the index expire with it, so this bounds the
+   * staleness of their entries as well.
+   */
+  @Property(longValue = 300L)
+  static final String INDEX_TTL = "membership.index.ttl";
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  private volatile MembershipClosure closure = new MembershipClosure();
+  private volatile long expires;
+  private long ttl;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    ttl = PropertiesUtil.toLong(properties.get(INDEX_TTL), 300L) * 1000L;
+    reset();
+  }
+
+  private void reset() {
+    closure = new MembershipClosure();
+    expires = System.currentTimeMillis() + ttl;
+  }
+
+  private MembershipClosure getClosure() {
+    if (ttl > 0 && System.currentTimeMillis() > expires) {
+      reset();
+    }
+    return closure;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.user.GroupMembershipIndex#getExpires()
+   */
+  public long getExpires() {
+    if (ttl <= 0) {
+      return 0;
+    }
+    getClosure();
+    return expires;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object path = event.getProperty("path");
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    if (path == null) {
+      reset();
+    } else {
+      closure.invalidate(String.valueOf(path));
+      properties.put("path", String.valueOf(path));
+    }
+    // only now can the caches built from the index be sure of not rebuilding from what
+    // was just dropped.
+    eventAdmin.postEvent(new Event(TOPIC_INVALIDATED, properties));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.user.GroupMembershipIndex#getMemberOf(java.lang.String)
+   */
+  public Set<String> getMemberOf(String authorizableId) throws StorageClientException,
+      AccessDeniedException {
+    AuthorizableLoader loader = new AuthorizableLoader();
+    try {
+      return getClosure().getMemberOf(authorizableId, loader);
+    } finally {
+      loader.logout();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.user.GroupMembershipIndex#isMember(java.lang.String,
+   *      java.lang.String)
+   */
+  public boolean isMember(String groupId, String authorizableId)
+      throws StorageClientException, AccessDeniedException {
+    AuthorizableLoader loader = new AuthorizableLoader();
+    try {
+      return getClosure().isMember(groupId, authorizableId, loader);
+    } finally {
+      loader.logout();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.user.GroupMembershipIndex#getTransitiveMembers(java.lang.String)
+   */
+  public Set<String> getTransitiveMembers(String groupId) throws StorageClientException,
+      AccessDeniedException {
+    AuthorizableLoader loader = new AuthorizableLoader();
+    try {
+      return getClosure().getTransitiveMembers(groupId, loader);
+    } finally {
+      loader.logout();
+    }
+  }
+
+  /**
+   * Loads authorizables through an admin session, which is only opened if something has to
+   * be loaded.
+   */
+  private class AuthorizableLoader implements MembershipClosure.Loader {
+    private Session session;
+
+    public MembershipClosure.Node load(String id) throws StorageClientException,
+        AccessDeniedException {
+      if (session == null) {
+        session = repository.loginAdministrative();
+      }
+      TelemetryCounter.incrementValue("user", "GroupMembershipIndex", "load");
+      Authorizable authorizable = session.getAuthorizableManager().findAuthorizable(id);
+      if (authorizable == null) {
+        return null;
+      }
+      if (authorizable instanceof Group) {
+        return new MembershipClosure.Node(true, authorizable.getPrincipals(),
+            ((Group) authorizable).getMembers());
+      }
+      return new MembershipClosure.Node(false, authorizable.getPrincipals(), null);
+    }
+
+    private void logout() {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.error("Error logging out of admin session", e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,405 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.membership;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in memory index of group membership. Each authorizable is interned to an int and holds
+ * its direct groups and, for a group, its direct members, as loaded from storage. The
+ * transitive closures in both directions are worked out when first asked for and kept as
+ * sorted int arrays, building on the closures already known for the groups on the way.
+ * <p>
+ * Invalidating an authorizable drops what was loaded for it and every closure it is part
+ * of, which are rebuilt when next asked for. Loading happens outside the lock, and anything
+ * loaded while an invalidation happened is used but not kept.
+ */
+class MembershipClosure {
+
+  /**
+   * What the closure knows about an authorizable as stored.
+   */
+  static final class Node {
+    private final boolean group;
+    private final String[] principals;
+    private final String[] members;
+
+    /**
+     * @param group
+     * @param principals the ids of the groups the authorizable is a direct member of.
+     * @param members the direct members of a group, ignored for a user.
+     */
+    Node(boolean group, String[] principals, String[] members) {
+      this.group = group;
+      this.principals = (principals == null) ? new String[0] : principals;
+      this.members = (members == null || !group) ? new String[0] : members;
+    }
+  }
+
+  /**
+   * Loads authorizables from storage.
+   */
+  interface Loader {
+    /**
+     * @return the authorizable, or null if it does not exist.
+     */
+    Node load(String id) throws StorageClientException, AccessDeniedException;
+  }
+
+  private static final int[] EMPTY = new int[0];
+
+  private static final class Vertex {
+    private final boolean exists;
+    private final boolean group;
+    private final int[] parents;
+    private final int[] members;
+
+    private Vertex(boolean exists, boolean group, int[] parents, int[] members) {
+      this.exists = exists;
+      this.group = group;
+      this.parents = parents;
+      this.members = members;
+    }
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, Integer> ids = new HashMap<String, Integer>();
+  private String[] names = new String[1024];
+  private Vertex[] vertices = new Vertex[1024];
+  /**
+   * memberOf[v] is the sorted ids of every group v is a direct or indirect member of.
+   */
+  private int[][] memberOf = new int[1024][];
+  /**
+   * membersOf[v] is the sorted ids of every direct or indirect member of group v.
+   */
+  private int[][] membersOf = new int[1024][];
+  private int size;
+  private long generation;
+
+  /**
+   * @return the ids of every group the authorizable is a direct or indirect member of.
+   */
+  Set<String> getMemberOf(String id, Loader loader) throws StorageClientException,
+      AccessDeniedException {
+    return toNames(memberOf(intern(id), loader));
+  }
+
+  /**
+   * @return the ids of every direct or indirect member of the group.
+   */
+  Set<String> getTransitiveMembers(String id, Loader loader) throws StorageClientException,
+      AccessDeniedException {
+    return toNames(membersOf(intern(id), loader));
+  }
+
+  /**
+   * @return true if the authorizable is a direct or indirect member of the group.
+   */
+  boolean isMember(String groupId, String id, Loader loader) throws StorageClientException,
+      AccessDeniedException {
+    Integer g;
+    lock.readLock().lock();
+    try {
+      g = ids.get(groupId);
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (g == null) {
+      // never seen, so it can not be in any closure. Loading the member will tell.
+      g = intern(groupId);
+    }
+    return Arrays.binarySearch(memberOf(intern(id), loader), g) >= 0;
+  }
+
+  /**
+   * Drop what is known about an authorizable and every closure it is part of.
+   */
+  void invalidate(String id) {
+    lock.writeLock().lock();
+    try {
+      generation++;
+      Integer v = ids.get(id);
+      if (v == null) {
+        return;
+      }
+      vertices[v] = null;
+      memberOf[v] = null;
+      membersOf[v] = null;
+      for (int i = 0; i < size; i++) {
+        if (memberOf[i] != null && Arrays.binarySearch(memberOf[i], v) >= 0) {
+          memberOf[i] = null;
+        }
+        if (membersOf[i] != null && Arrays.binarySearch(membersOf[i], v) >= 0) {
+          membersOf[i] = null;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private int[] memberOf(int v, Loader loader) throws StorageClientException,
+      AccessDeniedException {
+    long loadedAt;
+    lock.readLock().lock();
+    try {
+      if (memberOf[v] != null) {
+        return memberOf[v];
+      }
+      loadedAt = generation;
+    } finally {
+      lock.readLock().unlock();
+    }
+    BitSet groups = new BitSet();
+    Deque<Integer> queue = new ArrayDeque<Integer>();
+    push(queue, vertex(v, loader).parents);
+    while (!queue.isEmpty()) {
+      int p = queue.poll();
+      if (groups.get(p)) {
+        continue;
+      }
+      Vertex parent = vertex(p, loader);
+      if (!parent.exists || !parent.group) {
+        // not a group, memberOf does not return it
+        continue;
+      }
+      groups.set(p);
+      int[] known = knownMemberOf(p);
+      if (known != null) {
+        for (int g : known) {
+          groups.set(g);
+        }
+      } else {
+        push(queue, parent.parents);
+      }
+    }
+    groups.clear(v);
+    int[] closure = toArray(groups);
+    store(true, v, closure, loadedAt);
+    return closure;
+  }
+
+  private int[] membersOf(int v, Loader loader) throws StorageClientException,
+      AccessDeniedException {
+    long loadedAt;
+    lock.readLock().lock();
+    try {
+      if (membersOf[v] != null) {
+        return membersOf[v];
+      }
+      loadedAt = generation;
+    } finally {
+      lock.readLock().unlock();
+    }
+    BitSet members = new BitSet();
+    Deque<Integer> queue = new ArrayDeque<Integer>();
+    push(queue, vertex(v, loader).members);
+    while (!queue.isEmpty()) {
+      int m = queue.poll();
+      if (members.get(m)) {
+        continue;
+      }
+      Vertex member = vertex(m, loader);
+      if (!member.exists) {
+        continue;
+      }
+      members.set(m);
+      if (member.group) {
+        int[] known = knownMembersOf(m);
+        if (known != null) {
+          for (int k : known) {
+            members.set(k);
+          }
+        } else {
+          push(queue, member.members);
+        }
+      }
+    }
+    members.clear(v);
+    int[] closure = toArray(members);
+    store(false, v, closure, loadedAt);
+    return closure;
+  }
+
+  private int[] knownMemberOf(int v) {
+    lock.readLock().lock();
+    try {
+      return memberOf[v];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private int[] knownMembersOf(int v) {
+    lock.readLock().lock();
+    try {
+      return membersOf[v];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Keep a closure, unless something was invalidated while it was worked out.
+   */
+  private void store(boolean up, int v, int[] closure, long loadedAt) {
+    lock.writeLock().lock();
+    try {
+      if (generation == loadedAt) {
+        // the arrays may have grown since the closure was started, so look them up here.
+        if (up) {
+          memberOf[v] = closure;
+        } else {
+          membersOf[v] = closure;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return what is known about an authorizable, loading it if need be.
+   */
+  private Vertex vertex(int v, Loader loader) throws StorageClientException,
+      AccessDeniedException {
+    String name;
+    long loadedAt;
+    lock.readLock().lock();
+    try {
+      if (vertices[v] != null) {
+        return vertices[v];
+      }
+      name = names[v];
+      loadedAt = generation;
+    } finally {
+      lock.readLock().unlock();
+    }
+    Node node = loader.load(name);
+    lock.writeLock().lock();
+    try {
+      Vertex vertex;
+      if (node == null) {
+        vertex = new Vertex(false, false, EMPTY, EMPTY);
+      } else {
+        vertex = new Vertex(true, node.group, internAll(node.principals),
+            internAll(node.members));
+      }
+      if (generation == loadedAt) {
+        vertices[v] = vertex;
+      }
+      return vertex;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private int intern(String name) {
+    lock.readLock().lock();
+    try {
+      Integer v = ids.get(name);
+      if (v != null) {
+        return v;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    lock.writeLock().lock();
+    try {
+      return internLocked(name);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The write lock must be held.
+   */
+  private int internLocked(String name) {
+    Integer v = ids.get(name);
+    if (v != null) {
+      return v;
+    }
+    if (size == names.length) {
+      int capacity = names.length * 2;
+      names = Arrays.copyOf(names, capacity);
+      vertices = Arrays.copyOf(vertices, capacity);
+      memberOf = Arrays.copyOf(memberOf, capacity);
+      membersOf = Arrays.copyOf(membersOf, capacity);
+    }
+    names[size] = name;
+    ids.put(name, size);
+    return size++;
+  }
+
+  /**
+   * The write lock must be held.
+   */
+  private int[] internAll(String[] names) {
+    if (names.length == 0) {
+      return EMPTY;
+    }
+    int[] result = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      result[i] = internLocked(names[i]);
+    }
+    return result;
+  }
+
+  private static void push(Deque<Integer> queue, int[] ids) {
+    for (int id : ids) {
+      queue.add(id);
+    }
+  }
+
+  private static int[] toArray(BitSet set) {
+    int[] result = new int[set.cardinality()];
+    int j = 0;
+    for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+      result[j++] = i;
+    }
+    return result;
+  }
+
+  private Set<String> toNames(int[] closure) {
+    Set<String> result = new LinkedHashSet<String>();
+    lock.readLock().lock();
+    try {
+      for (int v : closure) {
+        result.add(names[v]);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return Collections.unmodifiableSet(result);
+  }
+}
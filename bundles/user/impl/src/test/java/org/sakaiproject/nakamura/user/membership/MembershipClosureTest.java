@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.membership;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class MembershipClosureTest {
+
+  /**
+   * An in memory store of groups that counts loads.
+   */
+  private static class FakeLoader implements MembershipClosure.Loader {
+    private final Map<String, Set<String>> members = new HashMap<String, Set<String>>();
+    private final Set<String> users = new HashSet<String>();
+    private int loads;
+
+    private FakeLoader user(String id) {
+      users.add(id);
+      return this;
+    }
+
+    private FakeLoader group(String id, String... memberIds) {
+      members.put(id, new HashSet<String>(Arrays.asList(memberIds)));
+      return this;
+    }
+
+    public MembershipClosure.Node load(String id) throws StorageClientException,
+        AccessDeniedException {
+      loads++;
+      if (!users.contains(id) && !members.containsKey(id)) {
+        return null;
+      }
+      Set<String> principals = new HashSet<String>();
+      for (Map.Entry<String, Set<String>> e : members.entrySet()) {
+        if (e.getValue().contains(id)) {
+          principals.add(e.getKey());
+        }
+      }
+      Set<String> direct = members.get(id);
+      return new MembershipClosure.Node(direct != null,
+          principals.toArray(new String[principals.size()]),
+          direct == null ? null : direct.toArray(new String[direct.size()]));
+    }
+  }
+
+  private static Set<String> set(String... ids) {
+    return new HashSet<String>(Arrays.asList(ids));
+  }
+
+  private FakeLoader nested() {
+    return new FakeLoader().user("alice").user("bob").group("math", "alice")
+        .group("science", "math", "bob").group("staff", "science").group("all", "staff", "math");
+  }
+
+  @Test
+  public void testMemberOf() throws Exception {
+    MembershipClosure closure = new MembershipClosure();
+    FakeLoader loader = nested();
+    assertEquals(set("math", "science", "staff", "all"), closure.getMemberOf("alice", loader));
+    assertEquals(set("science", "staff", "all"), closure.getMemberOf("bob", loader));
+    assertEquals(set(), closure.getMemberOf("nobody", loader));
+  }
+
+  @Test
+  public void testTransitiveMembers() throws Exception {
+    MembershipClosure closure = new MembershipClosure();
+    FakeLoader loader = nested();
+    assertEquals(set("alice", "bob", "math", "science", "staff"),
+        closure.getTransitiveMembers("all", loader));
+    assertEquals(set("alice"), closure.getTransitiveMembers("math", loader));
+    assertTrue(closure.isMember("staff", "alice", loader));
+    assertFalse(closure.isMember("math", "bob", loader));
+    assertFalse(closure.isMember("unknown", "bob", loader));
+  }
+
+  @Test
+  public void testMemoized() throws Exception {
+    MembershipClosure closure = new MembershipClosure();
+    FakeLoader loader = nested();
+    closure.getMemberOf("alice", loader);
+    int loads = loader.loads;
+    closure.getMemberOf("alice", loader);
+    assertTrue(closure.isMember("all", "alice", loader));
+    assertEquals(loads, loader.loads);
+    // bob only needs loading himself, the groups above science are known.
+    closure.getMemberOf("bob", loader);
+    assertEquals(loads + 1, loader.loads);
+  }
+
+  @Test
+  public void testCycle() throws Exception {
+    MembershipClosure closure = new MembershipClosure();
+    FakeLoader loader = new FakeLoader().user("alice").group("a", "b", "alice").group("b", "a");
+    assertEquals(set("a", "b"), closure.getMemberOf("alice", loader));
+    assertEquals(set("b", "alice"), closure.getTransitiveMembers("a", loader));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    MembershipClosure closure = new MembershipClosure();
+    FakeLoader loader = nested();
+    assertEquals(set("math", "science", "staff", "all"), closure.getMemberOf("alice", loader));
+    assertEquals(set("alice", "bob", "math", "science", "staff"),
+        closure.getTransitiveMembers("all", loader));
+
+    // science no longer in staff, sparse reports both as updated.
+    loader.group("staff");
+    closure.invalidate("staff");
+    closure.invalidate("science");
+    assertEquals(set("math", "science", "all"), closure.getMemberOf("alice", loader));
+    assertEquals(set("science"), closure.getMemberOf("bob", loader));
+    assertEquals(set("alice", "math", "staff"), closure.getTransitiveMembers("all", loader));
+    assertFalse(closure.isMember("staff", "alice", loader));
+  }
+}
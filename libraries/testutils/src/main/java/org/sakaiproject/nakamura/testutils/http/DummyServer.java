@@ -56,6 +56,10 @@ public class DummyServer extends AbstractHandler {
    * The next status to send.
    */
   private int status = 200;
+  /**
+   * If true the response is sent chunked, without a Content-Length.
+   */
+  private boolean chunked;
   /**
    * The last captured request.
    */
@@ -131,6 +135,12 @@ public class DummyServer extends AbstractHandler {
 
     response.setContentType(contentType);
     response.setStatus(status);
+    if (chunked) {
+      // committing the headers before the body is written stops a Content-Length being set.
+      response.flushBuffer();
+    } else if (responseBody != null) {
+      response.setContentLength(responseBody.getBytes(response.getCharacterEncoding()).length);
+    }
     response.getWriter().print(responseBody);
     ((Request) request).setHandled(true);
   }
@@ -151,6 +161,14 @@ public class DummyServer extends AbstractHandler {
     this.status = status;
   }
 
+  /**
+   * @param chunked
+   *          true if the next responses should be sent chunked, without a Content-Length.
+   */
+  public void setChunked(boolean chunked) {
+    this.chunked = chunked;
+  }
+
   /**
    * @param responsebody
    *          the responsebody to set
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram using log-linear buckets in the style of HdrHistogram.
+ * Values are recorded in microseconds. Values below {@link #LINEAR_LIMIT} get a bucket
+ * each, above that every power of two is split into {@link #SUB_BUCKETS} buckets, which
+ * bounds the relative error of a reported percentile to roughly 6%. Recording a value
+ * never allocates.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+  private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final MetricCounter count = new MetricCounter();
+  private final MetricCounter total = new MetricCounter();
+  private final AtomicLong max = new AtomicLong();
+
+  LatencyHistogram() {
+  }
+
+  /**
+   * Record the time elapsed since a start time obtained from {@link System#nanoTime()}.
+   *
+   * @param startNanos
+   */
+  public void recordSince(long startNanos) {
+    record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * @param micros
+   *          the latency to record, in microseconds.
+   */
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    buckets.incrementAndGet(bucketFor(micros));
+    count.increment();
+    total.add(micros);
+    long m = max.get();
+    while (micros > m && !max.compareAndSet(m, micros)) {
+      m = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getMean() {
+    long c = count.get();
+    return (c == 0) ? 0 : total.get() / c;
+  }
+
+  /**
+   * @param percentile
+   *          between 0 and 100.
+   * @return the highest value, in microseconds, that the given percentile of recorded
+   *         values are less than or equal to. The value is the upper bound of the bucket
+   *         the percentile falls in, capped at the recorded max.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = buckets.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) {
+      return 0;
+    }
+    double p = Math.min(100.0, Math.max(0.0, percentile));
+    long target = Math.max(1L, (long) Math.ceil((p / 100.0) * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= target) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0L);
+    }
+    count.reset();
+    total.reset();
+    max.set(0L);
+  }
+
+  static int bucketFor(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int msb = 63 - Long.numberOfLeadingZeros(value);
+    int shift = msb - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + sub;
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < LINEAR_LIMIT) {
+      return bucket;
+    }
+    int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+    long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+    long upper = ((sub + 1) << shift) - 1;
+    return (upper < 0) ? Long.MAX_VALUE : upper;
+  }
+}
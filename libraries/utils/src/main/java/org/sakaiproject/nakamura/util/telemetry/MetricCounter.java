@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A monotonically increasing counter, striped over a number of cells so that concurrent
+ * increments from different threads do not contend on a single memory location. Obtain
+ * an instance once through {@link TelemetryCounter#getCounter(String, String, String)}
+ * and keep it, incrementing it never allocates.
+ */
+public final class MetricCounter {
+
+  /**
+   * Each cell is padded out to its own cache line (8 longs = 64 bytes).
+   */
+  private static final int PAD = 8;
+
+  private static final int STRIPES;
+  static {
+    int n = 1;
+    int cpus = Runtime.getRuntime().availableProcessors();
+    while (n < cpus * 2 && n < 64) {
+      n <<= 1;
+    }
+    STRIPES = n;
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+  MetricCounter() {
+  }
+
+  public void increment() {
+    add(1L);
+  }
+
+  public void add(long delta) {
+    cells.getAndAdd(cellIndex(), delta);
+  }
+
+  /**
+   * @return the sum of all the cells. This is not an atomic snapshot, increments that
+   *         happen while summing may or may not be included.
+   */
+  public long get() {
+    long sum = 0L;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PAD);
+    }
+    return sum;
+  }
+
+  void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PAD, 0L);
+    }
+  }
+
+  private static int cellIndex() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32));
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return (h & (STRIPES - 1)) * PAD;
+  }
+}
@@ -0,0 +1,32 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+/**
+ * A metric whose value is owned by the component that registers it, such as the number of
+ * requests currently in flight, and is read when the metrics are reported. Unlike a
+ * {@link MetricCounter} a gauge can go down and is not reset by {@link TelemetryCounter#clear()}.
+ * Register it with {@link TelemetryCounter#registerGauge(String, String, String, MetricGauge)}.
+ */
+public interface MetricGauge {
+
+  /**
+   * @return the current value, must be cheap to compute and must not block.
+   */
+  long get();
+}
@@ -19,33 +19,79 @@ package org.sakaiproject.nakamura.util.telemetry;
 
 import com.google.common.collect.Maps;
 
+import java.util.Collection;
 import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Entry point to the telemetry metrics. Hot paths should resolve a {@link MetricCounter}
+ * or {@link LatencyHistogram} handle once with {@link #getCounter(String, String, String)}
+ * or {@link #getHistogram(String, String, String)} and keep it; updating a handle is
+ * lock free and does not allocate. {@link #incrementValue(String, String, String)} is
+ * kept for metrics whose name is only known at call time.
+ */
 public class TelemetryCounter {
-  protected static ConcurrentMap<String, TelemetryEntry> counters = Maps.newConcurrentMap();
+  protected static final ConcurrentMap<String, TelemetryEntry> counters = Maps.newConcurrentMap();
 
+  /**
+   * Reset all counters and histograms to zero, gauges are left as they are. Handles that have already been resolved remain valid.
+   */
   public static void clear() {
-    counters = Maps.newConcurrentMap();
+    for (TelemetryEntry entry : counters.values()) {
+      entry.reset();
+    }
   }
 
   public static void incrementValue(String moduleName, String serviceName, String metricName) {
+    getCounter(moduleName, serviceName, metricName).increment();
+  }
+
+  /**
+   * @return the counter for the metric, created if it does not exist.
+   */
+  public static MetricCounter getCounter(String moduleName, String serviceName, String metricName) {
+    return getEntry(moduleName, serviceName).getCounter(metricName);
+  }
+
+  /**
+   * @return the latency histogram for the metric, created if it does not exist.
+   */
+  public static LatencyHistogram getHistogram(String moduleName, String serviceName, String metricName) {
+    return getEntry(moduleName, serviceName).getHistogram(metricName);
+  }
+
+  /**
+   * Report a gauge owned by the caller under the metric name, replacing any gauge
+   * previously registered under that name.
+   */
+  public static void registerGauge(String moduleName, String serviceName, String metricName,
+      MetricGauge gauge) {
+    getEntry(moduleName, serviceName).registerGauge(metricName, gauge);
+  }
+
+  /**
+   * Stop reporting a gauge. Nothing is removed if another gauge has since been registered
+   * under the same name.
+   */
+  public static void unregisterGauge(String moduleName, String serviceName, String metricName,
+      MetricGauge gauge) {
+    getEntry(moduleName, serviceName).unregisterGauge(metricName, gauge);
+  }
+
+  static Collection<TelemetryEntry> getEntries() {
+    return counters.values();
+  }
+
+  private static TelemetryEntry getEntry(String moduleName, String serviceName) {
     String compositeKey = moduleName + "::" + serviceName;
     TelemetryEntry entry = counters.get(compositeKey);
-    Long value;
     if (entry == null) {
-      counters.put(compositeKey, new TelemetryEntry(moduleName, serviceName, Status.OK));
-      entry = counters.get(compositeKey);
-    }
-    TelemetryData telemetryData = entry.getMetric(metricName);
-    if (telemetryData == null) {
-      value = Long.valueOf(1);
-    } else {
-      if (!"L".equalsIgnoreCase(telemetryData.type)) {
-        throw new IllegalArgumentException("Attempting to increment a metric that isn't Long type.");
+      entry = new TelemetryEntry(moduleName, serviceName, Status.OK);
+      TelemetryEntry existing = counters.putIfAbsent(compositeKey, entry);
+      if (existing != null) {
+        entry = existing;
       }
-      value = Long.parseLong(telemetryData.value) + 1;
     }
-    entry.addMetric(metricName, new TelemetryData(value));
+    return entry;
   }
 
   public static enum Status {
@@ -19,34 +19,68 @@ package org.sakaiproject.nakamura.util.telemetry;
 
 import com.google.common.collect.Maps;
 
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
 
 class TelemetryEntry {
   private String module;
   private String service;
-  private long lastUpdate;
+  private volatile long lastUpdate;
   private TelemetryCounter.Status status;
-  private ConcurrentMap<String, TelemetryData> metrics;
+  private ConcurrentMap<String, MetricCounter> counters;
+  private ConcurrentMap<String, LatencyHistogram> histograms;
+  private ConcurrentMap<String, MetricGauge> gauges;
 
   public TelemetryEntry(String module, String service, TelemetryCounter.Status status) {
     this.module = module;
     this.service = service;
     this.status = status;
     lastUpdate = System.currentTimeMillis() / 1000;
-    metrics = Maps.newConcurrentMap();
+    counters = Maps.newConcurrentMap();
+    histograms = Maps.newConcurrentMap();
+    gauges = Maps.newConcurrentMap();
   }
 
-  public void addMetric(String name, TelemetryData d) {
-    lastUpdate = System.currentTimeMillis() / 1000;
-    metrics.putIfAbsent(name, d);
-    TelemetryData oldVal;
-    do {
-      oldVal = metrics.get(name);
-    } while (!metrics.replace(name, oldVal, d));
+  public MetricCounter getCounter(String name) {
+    MetricCounter counter = counters.get(name);
+    if (counter == null) {
+      counter = new MetricCounter();
+      MetricCounter existing = counters.putIfAbsent(name, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  public LatencyHistogram getHistogram(String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      LatencyHistogram existing = histograms.putIfAbsent(name, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram;
+  }
+
+  void registerGauge(String name, MetricGauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  void unregisterGauge(String name, MetricGauge gauge) {
+    gauges.remove(name, gauge);
   }
 
-  public TelemetryData getMetric(String metricName) {
-    return metrics.get(metricName);
+  void reset() {
+    for (MetricCounter counter : counters.values()) {
+      counter.reset();
+    }
+    for (LatencyHistogram histogram : histograms.values()) {
+      histogram.reset();
+    }
   }
 
   public String getModule() {
@@ -65,7 +99,31 @@ class TelemetryEntry {
     return status;
   }
 
-  public ConcurrentMap<String, TelemetryData> getMetrics() {
+  /**
+   * @return a point in time view of all the metrics of this entry. Histograms are
+   *         expanded into count, mean, p50, p99, p999 and max metrics, in microseconds.
+   */
+  public Map<String, TelemetryData> getMetrics() {
+    // the last update time is refreshed when the metrics are read rather than on every
+    // increment, to keep the hot path free of shared writes.
+    lastUpdate = System.currentTimeMillis() / 1000;
+    Map<String, TelemetryData> metrics = Maps.newTreeMap();
+    for (Entry<String, MetricCounter> e : counters.entrySet()) {
+      metrics.put(e.getKey(), new TelemetryData(e.getValue().get()));
+    }
+    for (Entry<String, MetricGauge> e : gauges.entrySet()) {
+      metrics.put(e.getKey(), new TelemetryData(e.getValue().get()));
+    }
+    for (Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+      LatencyHistogram h = e.getValue();
+      String name = e.getKey();
+      metrics.put(name + ".count", new TelemetryData(h.getCount()));
+      metrics.put(name + ".mean", new TelemetryData(h.getMean()));
+      metrics.put(name + ".p50", new TelemetryData(h.getValueAtPercentile(50.0)));
+      metrics.put(name + ".p99", new TelemetryData(h.getValueAtPercentile(99.0)));
+      metrics.put(name + ".p999", new TelemetryData(h.getValueAtPercentile(99.9)));
+      metrics.put(name + ".max", new TelemetryData(h.getMax()));
+    }
     return metrics;
   }
 }
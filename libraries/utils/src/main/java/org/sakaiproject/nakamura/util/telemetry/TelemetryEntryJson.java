@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.util.Map;
+
+/**
+ * Writes a {@link TelemetryEntry} as a JSON object, the JSON equivalent of
+ * {@link TelemetryEntryXml}.
+ */
+public class TelemetryEntryJson {
+
+  public static void write(JSONWriter writer, TelemetryEntry entry) throws JSONException {
+    Map<String, TelemetryData> metrics = entry.getMetrics();
+    writer.object();
+    writer.key("module").value(entry.getModule());
+    writer.key("service").value(entry.getService());
+    writer.key("last_update").value(entry.getLastUpdate());
+    writer.key("metrics").object();
+    for (Map.Entry<String, TelemetryData> e : metrics.entrySet()) {
+      TelemetryData d = e.getValue();
+      writer.key(e.getKey());
+      if (d.value != null && ("l".equalsIgnoreCase(d.type) || "i".equalsIgnoreCase(d.type))) {
+        writer.value(Long.parseLong(d.value));
+      } else if (d.value != null && "n".equalsIgnoreCase(d.type)) {
+        writer.value(Double.parseDouble(d.value));
+      } else {
+        writer.value(d.value);
+      }
+    }
+    writer.endObject();
+    writer.key("state").value(entry.getStatus().toString());
+    writer.endObject();
+  }
+}
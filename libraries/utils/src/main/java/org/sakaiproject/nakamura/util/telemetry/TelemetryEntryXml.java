@@ -58,6 +58,7 @@ import java.util.Map;
 public class TelemetryEntryXml {
 
   public static void write(TransformerHandler hd, TelemetryEntry entry) throws SAXException {
+    Map<String, TelemetryData> metrics = entry.getMetrics();
     AttributesImpl atts = new AttributesImpl();
     atts.addAttribute("","","module","CDATA", entry.getModule());
     atts.addAttribute("","","service","CDATA", entry.getService());
@@ -68,7 +69,7 @@ public class TelemetryEntryXml {
     char epochChars[] = epochString.toCharArray();
     hd.characters(epochChars, 0, epochChars.length);
     hd.endElement("","","last_update");
-    for (Map.Entry<String,TelemetryData> e : entry.getMetrics().entrySet()) {
+    for (Map.Entry<String,TelemetryData> e : metrics.entrySet()) {
       TelemetryData d = e.getValue();
       atts.clear();
       atts.addAttribute("","","name","CDATA",e.getKey());
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import com.google.common.collect.Lists;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes every telemetry metric as a read only JMX attribute named
+ * <code>module::service/metric</code> on the
+ * <code>org.sakaiproject.nakamura:type=Telemetry</code> MBean.
+ */
+@Component(immediate = true)
+public class TelemetryMBeanExporter implements DynamicMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TelemetryMBeanExporter.class);
+  static final String OBJECT_NAME = "org.sakaiproject.nakamura:type=Telemetry";
+
+  private ObjectName objectName;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      objectName = new ObjectName(OBJECT_NAME);
+      if (mbeanServer.isRegistered(objectName)) {
+        mbeanServer.unregisterMBean(objectName);
+      }
+      mbeanServer.registerMBean(this, objectName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register telemetry with JMX: {}", e.getMessage());
+      objectName = null;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (Exception e) {
+        LOGGER.debug("Unable to unregister telemetry from JMX: {}", e.getMessage());
+      }
+      objectName = null;
+    }
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    int slash = attribute.indexOf('/');
+    if (slash > 0) {
+      String entryKey = attribute.substring(0, slash);
+      TelemetryEntry entry = TelemetryCounter.counters.get(entryKey);
+      if (entry != null) {
+        TelemetryData d = entry.getMetrics().get(attribute.substring(slash + 1));
+        if (d != null) {
+          return toValue(d);
+        }
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        LOGGER.debug("No telemetry attribute {} ", attribute);
+      }
+    }
+    return list;
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = Lists.newArrayList();
+    for (Entry<String, TelemetryEntry> e : TelemetryCounter.counters.entrySet()) {
+      for (Entry<String, TelemetryData> m : e.getValue().getMetrics().entrySet()) {
+        String type = isNumeric(m.getValue()) ? Long.class.getName() : String.class.getName();
+        attributes.add(new MBeanAttributeInfo(e.getKey() + "/" + m.getKey(), type,
+            m.getKey(), true, false, false));
+      }
+    }
+    return new MBeanInfo(getClass().getName(), "Sakai Nakamura Telemetry",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+        new MBeanOperationInfo[0], null);
+  }
+
+  public void setAttribute(Attribute attribute) {
+    throw new UnsupportedOperationException("Telemetry attributes are read only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException("No operations on telemetry");
+  }
+
+  private static boolean isNumeric(TelemetryData d) {
+    return d.value != null && ("l".equalsIgnoreCase(d.type) || "i".equalsIgnoreCase(d.type));
+  }
+
+  private static Object toValue(TelemetryData d) {
+    return isNumeric(d) ? (Object) Long.valueOf(d.value) : d.value;
+  }
+}
@@ -21,10 +21,13 @@ import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -38,8 +41,30 @@ public class TelemetryReportServlet extends SlingSafeMethodsServlet {
   
   @Override
   public void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
-    response.setContentType("application/xml");
-    write(response);
+    if ("json".equals(request.getRequestPathInfo().getExtension())) {
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      writeJson(response);
+    } else {
+      response.setContentType("application/xml");
+      write(response);
+    }
+  }
+
+  private void writeJson(SlingHttpServletResponse response) throws IOException {
+    try {
+      JSONWriter writer = new JSONWriter(response.getWriter());
+      writer.setTidy(true);
+      writer.object();
+      writer.key("results").array();
+      for (TelemetryEntry entry : TelemetryCounter.getEntries()) {
+        TelemetryEntryJson.write(writer, entry);
+      }
+      writer.endArray();
+      writer.endObject();
+    } catch (JSONException e) {
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
   }
 
   private void write(SlingHttpServletResponse response) throws IOException {
@@ -61,8 +86,8 @@ public class TelemetryReportServlet extends SlingSafeMethodsServlet {
       hd.startDocument();
       AttributesImpl atts = new AttributesImpl();
       hd.startElement("","","ResmonResults",atts);
-      for ( String telemetryKey : TelemetryCounter.counters.keySet() ) {
-        TelemetryEntryXml.write(hd, TelemetryCounter.counters.get(telemetryKey));
+      for ( TelemetryEntry entry : TelemetryCounter.getEntries() ) {
+        TelemetryEntryXml.write(hd, entry);
       }
       hd.endElement("","","ResmonResults");
       hd.endDocument();
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TelemetryCounterTest {
+
+  @Test
+  public void testHandlesAreShared() {
+    MetricCounter counter = TelemetryCounter.getCounter("test", "handles", "count");
+    assertSame(counter, TelemetryCounter.getCounter("test", "handles", "count"));
+    long before = counter.get();
+    TelemetryCounter.incrementValue("test", "handles", "count");
+    counter.increment();
+    assertEquals(before + 2, counter.get());
+  }
+
+  @Test
+  public void testConcurrentIncrements() throws Exception {
+    final MetricCounter counter = TelemetryCounter.getCounter("test", "concurrent", "count");
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            counter.increment();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(80000L, counter.get());
+  }
+
+  @Test
+  public void testClearKeepsHandles() {
+    MetricCounter counter = TelemetryCounter.getCounter("test", "clear", "count");
+    counter.add(5);
+    TelemetryCounter.clear();
+    assertEquals(0L, counter.get());
+    counter.increment();
+    assertEquals(1L, TelemetryCounter.getCounter("test", "clear", "count").get());
+  }
+
+  @Test
+  public void testGaugeIsReadWhenReportedAndNotCleared() {
+    final AtomicInteger inFlight = new AtomicInteger();
+    MetricGauge gauge = new MetricGauge() {
+      public long get() {
+        return inFlight.get();
+      }
+    };
+    TelemetryCounter.registerGauge("test", "gauge", "inflight", gauge);
+    inFlight.incrementAndGet();
+    inFlight.incrementAndGet();
+    inFlight.decrementAndGet();
+    TelemetryCounter.clear();
+    assertEquals(new TelemetryData(1L), getMetrics("test", "gauge").get("inflight"));
+
+    // a gauge registered later under the same name is not removed with the old one.
+    MetricGauge replacement = new MetricGauge() {
+      public long get() {
+        return 7L;
+      }
+    };
+    TelemetryCounter.registerGauge("test", "gauge", "inflight", replacement);
+    TelemetryCounter.unregisterGauge("test", "gauge", "inflight", gauge);
+    assertEquals(new TelemetryData(7L), getMetrics("test", "gauge").get("inflight"));
+    TelemetryCounter.unregisterGauge("test", "gauge", "inflight", replacement);
+    assertFalse(getMetrics("test", "gauge").containsKey("inflight"));
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = TelemetryCounter.getHistogram("test", "histogram", "latency");
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000L, histogram.getCount());
+    assertEquals(1000L, histogram.getMax());
+    assertEquals(500L, histogram.getMean());
+    long p50 = histogram.getValueAtPercentile(50.0);
+    assertTrue("p50 was " + p50, p50 >= 500 && p50 <= 535);
+    long p99 = histogram.getValueAtPercentile(99.0);
+    assertTrue("p99 was " + p99, p99 >= 990 && p99 <= 1000);
+  }
+
+  @Test
+  public void testBucketBounds() {
+    for (long v = 0; v < 2000000; v += 3) {
+      int bucket = LatencyHistogram.bucketFor(v);
+      assertTrue(LatencyHistogram.upperBound(bucket) >= v);
+      if (bucket > 0) {
+        assertTrue(LatencyHistogram.upperBound(bucket - 1) < v);
+      }
+    }
+  }
+
+  private Map<String, TelemetryData> getMetrics(String module, String service) {
+    for (TelemetryEntry entry : TelemetryCounter.getEntries()) {
+      if (module.equals(entry.getModule()) && service.equals(entry.getService())) {
+        return entry.getMetrics();
+      }
+    }
+    throw new IllegalStateException("No telemetry for " + module + "::" + service);
+  }
+}